@@ -23,6 +23,12 @@ import java.util.concurrent.atomic.AtomicInteger;
  */
 public final class ActionLogBufferPathGenerator {
 
+  /**
+   * Number of bytes of stdout and of stderr that are kept in memory before an action's output is
+   * written to its log files. Most actions print nothing, so their log files are never created.
+   */
+  private static final int IN_MEMORY_OUTPUT_LIMIT = 64 * 1024;
+
   private final AtomicInteger actionCounter = new AtomicInteger();
 
   private final Path actionOutputRoot;
@@ -32,11 +38,13 @@ public final class ActionLogBufferPathGenerator {
   }
 
   /**
-   * Generates a unique filename for an action to store its output.
+   * Generates a unique filename for an action to store its output. Output is buffered in memory
+   * until it grows large or the filename is requested.
    */
   public FileOutErr generate() {
     int actionId = actionCounter.incrementAndGet();
     return new FileOutErr(actionOutputRoot.getRelative("stdout-" + actionId),
-                          actionOutputRoot.getRelative("stderr-" + actionId));
+                          actionOutputRoot.getRelative("stderr-" + actionId),
+                          IN_MEMORY_OUTPUT_LIMIT);
   }
 }
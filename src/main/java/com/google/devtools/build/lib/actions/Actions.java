@@ -22,6 +22,7 @@ import com.google.common.escape.Escapers;
 import com.google.devtools.build.lib.actions.MutableActionGraph.ActionConflictException;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.util.HashMap;
@@ -188,31 +189,7 @@ public final class Actions {
       while (iter.hasNext()) {
         pathJ = iter.next();
         if (pathJ.startsWith(pathI)) { // prefix conflict.
-          Artifact artifactI = Preconditions.checkNotNull(artifactPathMap.get(pathI), pathI);
-          Artifact artifactJ = Preconditions.checkNotNull(artifactPathMap.get(pathJ), pathJ);
-
-          // We ignore the artifact prefix conflict between a TreeFileArtifact and its parent
-          // TreeArtifact.
-          // We can only have such a conflict here if:
-          // 1. The TreeArtifact is generated by an ActionTemplate. And the TreeFileArtifact is
-          //    generated by an expanded action created at execution time from the ActionTemplate.
-          // 2. This is an incremental build with invalidated configured targets. In this case,
-          //    the action graph contains expanded actions from previous builds and they will be
-          //    checked for artifact conflicts.
-          if (artifactJ.hasParent() && artifactJ.getParent().equals(artifactI)) {
-            continue;
-          }
-
-          ActionAnalysisMetadata actionI =
-              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactI), artifactI);
-          ActionAnalysisMetadata actionJ =
-              Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactJ), artifactJ);
-          if (actionI.shouldReportPathPrefixConflict(actionJ)) {
-            ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(pathI,
-                pathJ, actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
-            badActions.put(actionI, exception);
-            badActions.put(actionJ, exception);
-          }
+          addPrefixConflict(actionGraph, artifactPathMap, pathI, pathJ, badActions);
         } else { // pathJ didn't have prefix pathI, so no conflict possible for pathI.
           break;
         }
@@ -221,6 +198,77 @@ public final class Actions {
     return ImmutableMap.copyOf(badActions);
   }
 
+  /**
+   * Returns the shortest path in {@code paths} that is a proper prefix of {@code path}, or null if
+   * there is none.
+   *
+   * <p>The pairs of paths for which this is not null are exactly the pairs reported by {@link
+   * #findArtifactPrefixConflicts(ActionGraph, SortedMap)}, but they can be found without sorting
+   * the paths, and in parallel. See {@link #findArtifactPrefixConflicts(ActionGraph, Map, List)}.
+   */
+  @Nullable
+  public static PathFragment findShortestPrefix(PathFragment path, Map<PathFragment, ?> paths) {
+    for (int i = 1; i < path.segmentCount(); i++) {
+      PathFragment prefix = path.subFragment(0, i);
+      if (paths.containsKey(prefix)) {
+        return prefix;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Like {@link #findArtifactPrefixConflicts(ActionGraph, SortedMap)}, but takes the pairs of paths
+   * to check, as found by {@link #findShortestPrefix}, sorted.
+   *
+   * @param prefixPairs pairs of a path and a path it is a prefix of, sorted by the first and then
+   *     the second path
+   */
+  public static Map<ActionAnalysisMetadata, ArtifactPrefixConflictException>
+      findArtifactPrefixConflicts(ActionGraph actionGraph,
+      Map<PathFragment, Artifact> artifactPathMap,
+      List<Pair<PathFragment, PathFragment>> prefixPairs) {
+    // Keep deterministic ordering of bad actions.
+    Map<ActionAnalysisMetadata, ArtifactPrefixConflictException> badActions = new LinkedHashMap();
+    for (Pair<PathFragment, PathFragment> pair : prefixPairs) {
+      addPrefixConflict(actionGraph, artifactPathMap, pair.first, pair.second, badActions);
+    }
+    return ImmutableMap.copyOf(badActions);
+  }
+
+  private static void addPrefixConflict(
+      ActionGraph actionGraph,
+      Map<PathFragment, Artifact> artifactPathMap,
+      PathFragment pathI,
+      PathFragment pathJ,
+      Map<ActionAnalysisMetadata, ArtifactPrefixConflictException> badActions) {
+    Artifact artifactI = Preconditions.checkNotNull(artifactPathMap.get(pathI), pathI);
+    Artifact artifactJ = Preconditions.checkNotNull(artifactPathMap.get(pathJ), pathJ);
+
+    // We ignore the artifact prefix conflict between a TreeFileArtifact and its parent
+    // TreeArtifact.
+    // We can only have such a conflict here if:
+    // 1. The TreeArtifact is generated by an ActionTemplate. And the TreeFileArtifact is
+    //    generated by an expanded action created at execution time from the ActionTemplate.
+    // 2. This is an incremental build with invalidated configured targets. In this case,
+    //    the action graph contains expanded actions from previous builds and they will be
+    //    checked for artifact conflicts.
+    if (artifactJ.hasParent() && artifactJ.getParent().equals(artifactI)) {
+      return;
+    }
+
+    ActionAnalysisMetadata actionI =
+        Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactI), artifactI);
+    ActionAnalysisMetadata actionJ =
+        Preconditions.checkNotNull(actionGraph.getGeneratingAction(artifactJ), artifactJ);
+    if (actionI.shouldReportPathPrefixConflict(actionJ)) {
+      ArtifactPrefixConflictException exception = new ArtifactPrefixConflictException(pathI,
+          pathJ, actionI.getOwner().getLabel(), actionJ.getOwner().getLabel());
+      badActions.put(actionI, exception);
+      badActions.put(actionJ, exception);
+    }
+  }
+
   /**
    * Returns the escaped name for a given relative path as a string. This takes
    * a short relative path and turns it into a string suitable for use as a
@@ -28,10 +28,18 @@ import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Predicate;
+import java.util.function.Supplier;
 import javax.annotation.Nullable;
 
 /**
  * A cache of Artifacts, keyed by Path.
+ *
+ * <p>Derived artifacts are created without any locking, and the lookups of source artifacts only
+ * contend when they are for the same path, so that the threads analyzing configured targets don't
+ * serialize on the factory.
  */
 @ThreadSafe
 public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, ArtifactDeserializer {
@@ -48,9 +56,9 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * Map of package names to source root paths so that we can create source
    * artifact paths given execPaths in the symlink forest.
    */
-  private ImmutableMap<PackageIdentifier, Root> packageRoots;
+  private volatile ImmutableMap<PackageIdentifier, Root> packageRoots;
 
-  private ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
+  private volatile ArtifactIdRegistry artifactIdRegistry = new ArtifactIdRegistry();
 
   private static class SourceArtifactCache {
 
@@ -74,12 +82,14 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
 
     /**
      * The main Path to source artifact cache. There will always be exactly one canonical
-     * artifact for a given source path.
+     * artifact for a given source path. Updates of an entry are atomic, and only lock the part of
+     * the map holding it.
      */
-    private final Map<PathFragment, Entry> pathToSourceArtifact = new HashMap<>();
+    private final ConcurrentMap<PathFragment, Entry> pathToSourceArtifact =
+        new ConcurrentHashMap<>();
 
     /** Id of current build. Has to be increased every time before execution phase starts. */
-    private int buildId = 0;
+    private volatile int buildId = 0;
 
     /** Returns artifact if it present in the cache, otherwise null. */
     Artifact getArtifact(PathFragment execPath) {
@@ -99,9 +109,13 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       return null;
     }
 
-    void markEntryAsValid(PathFragment execPath) {
-      Artifact oldValue = Preconditions.checkNotNull(getArtifact(execPath));
-      pathToSourceArtifact.put(execPath, new Entry(oldValue));
+    /** Marks the entry of {@code artifact} as valid, unless it has been replaced meanwhile. */
+    void markEntryAsValid(PathFragment execPath, Artifact artifact) {
+      Preconditions.checkNotNull(
+          pathToSourceArtifact.computeIfPresent(
+              execPath,
+              (path, entry) -> entry.getArtifact() == artifact ? new Entry(artifact) : entry),
+          execPath);
     }
 
     void newBuild() {
@@ -113,8 +127,24 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       buildId = 0;
     }
 
-    void putArtifact(PathFragment execPath, Artifact artifact) {
-      pathToSourceArtifact.put(execPath, new Entry(artifact));
+    /**
+     * Returns the artifact in the cache for {@code execPath} if {@code isUsable} accepts it, and
+     * otherwise stores and returns the one created by {@code factory}. Atomic.
+     */
+    Artifact getOrCreateArtifact(
+        PathFragment execPath,
+        Predicate<Artifact> isUsable,
+        Supplier<Artifact> factory) {
+      Entry entry = pathToSourceArtifact.get(execPath);
+      if (entry != null && isUsable.test(entry.getArtifact())) {
+        return entry.getArtifact();
+      }
+      return pathToSourceArtifact
+          .compute(
+              execPath,
+              (path, old) ->
+                  old != null && isUsable.test(old.getArtifact()) ? old : new Entry(factory.get()))
+          .getArtifact();
     }
   }
   
@@ -250,7 +280,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * setting the <code>root</code> and <code>execPath</code> to the
    * specified values.
    */
-  private synchronized Artifact getArtifact(Path path, Root root, PathFragment execPath,
+  private Artifact getArtifact(Path path, Root root, PathFragment execPath,
       ArtifactOwner owner, @Nullable SpecialArtifactType type) {
     Preconditions.checkNotNull(root);
     Preconditions.checkNotNull(execPath);
@@ -259,16 +289,14 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       return createArtifact(path, root, execPath, owner, type);
     }
 
-    Artifact artifact = sourceArtifactCache.getArtifact(execPath);
-    if (artifact == null || !Objects.equals(artifact.getArtifactOwner(), owner)
-        || !root.equals(artifact.getRoot())) {
-      // There really should be a safety net that makes it impossible to create two Artifacts
-      // with the same exec path but a different Owner, but we also need to reuse Artifacts from
-      // previous builds.
-      artifact = createArtifact(path, root, execPath, owner, type);
-      sourceArtifactCache.putArtifact(execPath, artifact);
-    }
-    return artifact;
+    // There really should be a safety net that makes it impossible to create two Artifacts
+    // with the same exec path but a different Owner, but we also need to reuse Artifacts from
+    // previous builds.
+    return sourceArtifactCache.getOrCreateArtifact(
+        execPath,
+        artifact ->
+            Objects.equals(artifact.getArtifactOwner(), owner) && root.equals(artifact.getRoot()),
+        () -> createArtifact(path, root, execPath, owner, type));
   }
 
   private Artifact createArtifact(Path path, Root root, PathFragment execPath, ArtifactOwner owner,
@@ -287,7 +315,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * not null). That Artifact will have root determined by the package roots of this factory if it
    * lives in a subpackage distinct from that of baseExecPath, and {@code baseRoot} otherwise.
    */
-  public synchronized Artifact resolveSourceArtifactWithAncestor(
+  public Artifact resolveSourceArtifactWithAncestor(
       PathFragment relativePath, PathFragment baseExecPath, Root baseRoot,
       RepositoryName repositoryName) {
     Preconditions.checkState(
@@ -337,6 +365,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
       dir = repo.getSecond();
     }
 
+    ImmutableMap<PackageIdentifier, Root> packageRoots = this.packageRoots;
     while (dir != null && !dir.equals(baseExecPath)) {
       Root sourceRoot = packageRoots.get(PackageIdentifier.create(repositoryName, dir));
       if (sourceRoot != null) {
@@ -355,7 +384,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
   }
 
   @Override
-  public synchronized Map<PathFragment, Artifact> resolveSourceArtifacts(
+  public Map<PathFragment, Artifact> resolveSourceArtifacts(
       Iterable<PathFragment> execPaths, PackageRootResolver resolver) throws InterruptedException {
     Map<PathFragment, Artifact> result = new HashMap<>();
     ArrayList<PathFragment> unresolvedPaths = new ArrayList<>();
@@ -398,7 +427,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
     if (artifact != null && sourceRoot.equals(artifact.getRoot())) {
       // Source root of existing artifact hasn't changed so we should mark corresponding entry in
       // the cache as valid.
-      sourceArtifactCache.markEntryAsValid(execPath);
+      sourceArtifactCache.markEntryAsValid(execPath, artifact);
     } else {
       // Must be a new artifact or artifact in the cache is stale, so create a new one.
       artifact = getSourceArtifact(execPath, sourceRoot, ArtifactOwner.NULL_OWNER); 
@@ -413,7 +442,7 @@ public class ArtifactFactory implements ArtifactResolver, ArtifactSerializer, Ar
    * @param execPath The artifact's exec path.
    */
   @VisibleForTesting  // for our own unit tests only.
-  synchronized boolean isDerivedArtifact(PathFragment execPath) {
+  boolean isDerivedArtifact(PathFragment execPath) {
     return execPath.startsWith(derivedPathPrefix);
   }
 
@@ -17,15 +17,20 @@ package com.google.devtools.build.lib.actions;
 import static com.google.devtools.build.lib.profiler.AutoProfiler.profiled;
 
 import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory;
+import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
-import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
-import java.util.Iterator;
-import java.util.LinkedList;
-import java.util.List;
+import com.google.devtools.common.options.EnumConverter;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.concurrent.CountDownLatch;
+import javax.annotation.Nullable;
 
 /**
  * Used to keep track of resources consumed by the Blaze action execution threads and throttle them
@@ -54,10 +59,79 @@ import java.util.concurrent.CountDownLatch;
  * guarantees that at least one thread will always be able to acquire any amount of requested
  * resources (even if it is greater than amount of available resources). Therefore, assuming that
  * threads correctly release acquired resources, Blaze will never be fully blocked.
+ *
+ * <p>Blocked requests are kept in one queue per distinct requested {@link ResourceSet}. Since most
+ * actions share a handful of resource sets, releasing resources only has to look at the head of
+ * each queue instead of at every blocked thread. The order in which queue heads are served is
+ * determined by the {@link SchedulingPolicy}. Requests for {@link ResourceSet#ZERO} never contend
+ * for the lock.
+ *
+ * <p>If a {@link ResourceUsageHistory} is installed, the resources declared by an action are
+ * replaced by an estimate based on what earlier executions of the same kind of action actually
+ * consumed, and executors can feed new measurements back through {@link #recordResourceUsage}.
  */
 @ThreadSafe
 public class ResourceManager {
 
+  /** The order in which blocked requests are granted once resources become available. */
+  public enum SchedulingPolicy {
+    /** Requests are considered in the order in which they were made. */
+    FIFO,
+    /**
+     * Requests asking for the least memory (then CPU, then I/O) are considered first. Small
+     * requests tend to be short actions, so this approximates shortest-job-first scheduling.
+     */
+    SMALLEST_FIRST;
+
+    /** Converts to {@link SchedulingPolicy}. */
+    public static class Converter extends EnumConverter<SchedulingPolicy> {
+      public Converter() {
+        super(SchedulingPolicy.class, "resource scheduling policy");
+      }
+    }
+  }
+
+  /** A blocked request for resources. */
+  private static final class ResourceRequest {
+    final ResourceSet resources;
+    final long sequenceNumber;
+    // Will always be initialized to 1 and counted down once the resources are granted.
+    final CountDownLatch latch = new CountDownLatch(1);
+
+    ResourceRequest(ResourceSet resources, long sequenceNumber) {
+      this.resources = resources;
+      this.sequenceNumber = sequenceNumber;
+    }
+  }
+
+  private static final Comparator<ArrayDeque<ResourceRequest>> FIFO_ORDER =
+      new Comparator<ArrayDeque<ResourceRequest>>() {
+        @Override
+        public int compare(ArrayDeque<ResourceRequest> a, ArrayDeque<ResourceRequest> b) {
+          return Long.compare(a.peekFirst().sequenceNumber, b.peekFirst().sequenceNumber);
+        }
+      };
+
+  private static final Comparator<ArrayDeque<ResourceRequest>> SMALLEST_FIRST_ORDER =
+      new Comparator<ArrayDeque<ResourceRequest>>() {
+        @Override
+        public int compare(ArrayDeque<ResourceRequest> a, ArrayDeque<ResourceRequest> b) {
+          ResourceSet first = a.peekFirst().resources;
+          ResourceSet second = b.peekFirst().resources;
+          int result = Double.compare(first.getMemoryMb(), second.getMemoryMb());
+          if (result == 0) {
+            result = Double.compare(first.getCpuUsage(), second.getCpuUsage());
+          }
+          if (result == 0) {
+            result = Double.compare(first.getIoUsage(), second.getIoUsage());
+          }
+          if (result == 0) {
+            result = Integer.compare(first.getLocalTestCount(), second.getLocalTestCount());
+          }
+          return result != 0 ? result : FIFO_ORDER.compare(a, b);
+        }
+      };
+
   /**
    * A handle returned by {@link #acquireResources(ActionExecutionMetadata, ResourceSet)} that must
    * be closed in order to free the resources again.
@@ -115,9 +189,20 @@ public class ResourceManager {
   private static final double MIN_NECESSARY_RAM_RATIO = 1.0;
   private static final double MIN_NECESSARY_IO_RATIO = 1.0;
 
-  // List of blocked threads. Associated CountDownLatch object will always
-  // be initialized to 1 during creation in the acquire() method.
-  private final List<Pair<ResourceSet, CountDownLatch>> requestList;
+  // Blocked requests, grouped by the requested resource set. Requests in the same queue are
+  // interchangeable, so if the head of a queue cannot be satisfied, neither can the rest of it.
+  private final Map<ResourceSet, ArrayDeque<ResourceRequest>> waitingRequests = new HashMap<>();
+
+  // Total number of requests in waitingRequests.
+  private int waitCount;
+
+  // Used to order requests across queues by arrival time.
+  private long nextSequenceNumber;
+
+  private SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+
+  // If non-null, measured resource usage used to refine declared resource sets.
+  @Nullable private volatile ResourceUsageHistory resourceUsageHistory;
 
   // The total amount of resources on the local host. Must be set by
   // an explicit call to setAvailableResources(), often using
@@ -146,9 +231,7 @@ public class ResourceManager {
   public static final int DEFAULT_RAM_UTILIZATION_PERCENTAGE = 67;
   private int ramUtilizationPercentage = DEFAULT_RAM_UTILIZATION_PERCENTAGE;
 
-  private ResourceManager() {
-    requestList = new LinkedList<>();
-  }
+  private ResourceManager() {}
 
   @VisibleForTesting public static ResourceManager instanceForTestingOnly() {
     return new ResourceManager();
@@ -163,11 +246,14 @@ public class ResourceManager {
     usedRam = 0;
     usedIo = 0;
     usedLocalTestCount = 0;
-    for (Pair<ResourceSet, CountDownLatch> request : requestList) {
-      // CountDownLatch can be set only to 0 or 1.
-      request.second.countDown();
+    for (ArrayDeque<ResourceRequest> queue : waitingRequests.values()) {
+      for (ResourceRequest request : queue) {
+        // CountDownLatch can be set only to 0 or 1.
+        request.latch.countDown();
+      }
     }
-    requestList.clear();
+    waitingRequests.clear();
+    waitCount = 0;
   }
 
   /**
@@ -192,6 +278,58 @@ public class ResourceManager {
     ramUtilizationPercentage = percentage;
   }
 
+  /**
+   * Specify the order in which blocked requests are granted.
+   */
+  public synchronized void setSchedulingPolicy(SchedulingPolicy policy) {
+    schedulingPolicy = Preconditions.checkNotNull(policy);
+  }
+
+  /**
+   * Sets the history used to estimate resource usage, or disables estimation if null.
+   */
+  public void setResourceUsageHistory(@Nullable ResourceUsageHistory history) {
+    resourceUsageHistory = history;
+  }
+
+  /**
+   * Returns true iff measurements passed to {@link #recordResourceUsage} are being used.
+   */
+  public boolean isRecordingResourceUsage() {
+    return resourceUsageHistory != null;
+  }
+
+  /**
+   * Records the resources actually consumed by an execution on behalf of the given action. Does
+   * nothing unless a {@link ResourceUsageHistory} is installed.
+   */
+  public void recordResourceUsage(
+      ActionExecutionMetadata owner, ResourceUsageHistory.Measurement measurement) {
+    ResourceUsageHistory history = resourceUsageHistory;
+    if (history != null) {
+      history.record(owner.getMnemonic(), getTargetName(owner), measurement);
+    }
+  }
+
+  /**
+   * Returns the resources the given action is expected to need. This is the declared resource set
+   * unless a {@link ResourceUsageHistory} is installed and knows better.
+   */
+  private ResourceSet estimateResources(ActionExecutionMetadata owner, ResourceSet declared) {
+    ResourceUsageHistory history = resourceUsageHistory;
+    if (history == null || declared.isZero()) {
+      return declared;
+    }
+    return history.estimate(owner.getMnemonic(), getTargetName(owner), declared);
+  }
+
+  @Nullable
+  private static String getTargetName(ActionExecutionMetadata owner) {
+    ActionOwner actionOwner = owner.getOwner();
+    Label label = actionOwner == null ? null : actionOwner.getLabel();
+    return label == null ? null : label.toString();
+  }
+
   /**
    * Acquires requested resource set. Will block if resource is not available.
    * NB! This method must be thread-safe!
@@ -203,23 +341,29 @@ public class ResourceManager {
     Preconditions.checkState(
         !threadHasResources(), "acquireResources with existing resource lock during %s", owner);
 
+    resources = estimateResources(owner, resources);
+    if (resources.isZero()) {
+      // Requesting nothing always succeeds and cannot affect anybody else.
+      threadLocked.set(true);
+      return new ResourceHandle(this, owner, resources);
+    }
+
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_LOCK);
-    CountDownLatch latch = null;
+    ResourceRequest request = null;
     try {
-      latch = acquire(resources);
-      if (latch != null) {
-        latch.await();
+      request = acquire(resources);
+      if (request != null) {
+        request.latch.await();
       }
     } catch (InterruptedException e) {
       // Synchronize on this to avoid any racing with #processWaitingThreads
       synchronized (this) {
-        if (latch.getCount() == 0) {
-          // Resources already acquired by other side. Release them, but not inside this
-          // synchronized block to avoid deadlock.
+        if (request.latch.getCount() == 0) {
+          // Resources already acquired by other side. Release them.
           release(resources);
         } else {
-          // Inform other side that resources shouldn't be acquired.
-          latch.countDown();
+          // Withdraw the request so that the resources are not granted to it.
+          removeRequest(request);
         }
       }
       throw e;
@@ -228,7 +372,7 @@ public class ResourceManager {
     threadLocked.set(true);
 
     // Profile acquisition only if it waited for resource to become available.
-    if (latch != null) {
+    if (request != null) {
       p.complete();
     }
 
@@ -249,6 +393,10 @@ public class ResourceManager {
 
     boolean acquired = false;
 
+    if (resources.isZero()) {
+      return new ResourceHandle(this, owner, resources);
+    }
+
     synchronized (this) {
       if (areResourcesAvailable(resources)) {
         incrementResources(resources);
@@ -276,7 +424,7 @@ public class ResourceManager {
    */
   public synchronized boolean inUse() {
     return usedCpu != 0.0 || usedRam != 0.0 || usedIo != 0.0 || usedLocalTestCount != 0
-        || !requestList.isEmpty();
+        || waitCount != 0;
   }
 
 
@@ -299,6 +447,11 @@ public class ResourceManager {
     Preconditions.checkState(
         threadHasResources(), "releaseResources without resource lock during %s", owner);
 
+    if (resources.isZero()) {
+      threadLocked.set(false);
+      return;
+    }
+
     boolean isConflict = false;
     AutoProfiler p = profiled(owner, ProfilerTask.ACTION_RELEASE);
     try {
@@ -313,15 +466,30 @@ public class ResourceManager {
     }
   }
 
-  private synchronized CountDownLatch acquire(ResourceSet resources) {
+  private synchronized ResourceRequest acquire(ResourceSet resources) {
     if (areResourcesAvailable(resources)) {
       incrementResources(resources);
       return null;
     }
-    Pair<ResourceSet, CountDownLatch> request =
-      new Pair<>(resources, new CountDownLatch(1));
-    requestList.add(request);
-    return request.second;
+    ResourceRequest request = new ResourceRequest(resources, nextSequenceNumber++);
+    ArrayDeque<ResourceRequest> queue = waitingRequests.get(resources);
+    if (queue == null) {
+      queue = new ArrayDeque<>();
+      waitingRequests.put(resources, queue);
+    }
+    queue.addLast(request);
+    waitCount++;
+    return request;
+  }
+
+  private synchronized void removeRequest(ResourceRequest request) {
+    ArrayDeque<ResourceRequest> queue = waitingRequests.get(request.resources);
+    if (queue != null && queue.remove(request)) {
+      waitCount--;
+      if (queue.isEmpty()) {
+        waitingRequests.remove(request.resources);
+      }
+    }
   }
 
   private synchronized boolean release(ResourceSet resources) {
@@ -342,7 +510,7 @@ public class ResourceManager {
     if (usedIo < epsilon) {
       usedIo = 0;
     }
-    if (!requestList.isEmpty()) {
+    if (waitCount != 0) {
       processWaitingThreads();
       return true;
     }
@@ -351,20 +519,36 @@ public class ResourceManager {
 
   /**
    * Tries to unblock one or more waiting threads if there are sufficient resources available.
+   *
+   * <p>Only the heads of the per-resource-set queues are inspected, so the cost is proportional to
+   * the number of distinct waiting resource sets plus the number of unblocked threads.
    */
   private synchronized void processWaitingThreads() {
-    Iterator<Pair<ResourceSet, CountDownLatch>> iterator = requestList.iterator();
-    while (iterator.hasNext()) {
-      Pair<ResourceSet, CountDownLatch> request = iterator.next();
-      if (request.second.getCount() != 0) {
-        if (areResourcesAvailable(request.first)) {
-          incrementResources(request.first);
-          request.second.countDown();
-          iterator.remove();
-        }
+    if (waitCount == 0) {
+      return;
+    }
+    PriorityQueue<ArrayDeque<ResourceRequest>> candidates =
+        new PriorityQueue<>(
+            waitingRequests.size(),
+            schedulingPolicy == SchedulingPolicy.SMALLEST_FIRST
+                ? SMALLEST_FIRST_ORDER
+                : FIFO_ORDER);
+    candidates.addAll(waitingRequests.values());
+    while (!candidates.isEmpty()) {
+      ArrayDeque<ResourceRequest> queue = candidates.poll();
+      ResourceRequest request = queue.peekFirst();
+      if (!areResourcesAvailable(request.resources)) {
+        // All other requests in this queue ask for the same resources and won't fit either.
+        continue;
+      }
+      incrementResources(request.resources);
+      request.latch.countDown();
+      queue.removeFirst();
+      waitCount--;
+      if (queue.isEmpty()) {
+        waitingRequests.remove(request.resources);
       } else {
-        // Cancelled by other side.
-        iterator.remove();
+        candidates.add(queue);
       }
     }
   }
@@ -409,7 +593,7 @@ public class ResourceManager {
 
   @VisibleForTesting
   synchronized int getWaitCount() {
-    return requestList.size();
+    return waitCount;
   }
 
   @VisibleForTesting
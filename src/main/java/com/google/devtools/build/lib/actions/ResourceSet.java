@@ -20,6 +20,7 @@ import com.google.devtools.common.options.Converter;
 import com.google.devtools.common.options.OptionsParsingException;
 import java.util.Iterator;
 import java.util.NoSuchElementException;
+import java.util.Objects;
 
 /**
  * Instances of this class represent an estimate of the resource consumption
@@ -122,6 +123,31 @@ public class ResourceSet {
     return localTestCount;
   }
 
+  /** Returns true iff this resource set does not request any resources at all. */
+  public boolean isZero() {
+    return memoryMb == 0.0 && cpuUsage == 0.0 && ioUsage == 0.0 && localTestCount == 0;
+  }
+
+  @Override
+  public boolean equals(Object obj) {
+    if (this == obj) {
+      return true;
+    }
+    if (!(obj instanceof ResourceSet)) {
+      return false;
+    }
+    ResourceSet other = (ResourceSet) obj;
+    return Double.compare(memoryMb, other.memoryMb) == 0
+        && Double.compare(cpuUsage, other.cpuUsage) == 0
+        && Double.compare(ioUsage, other.ioUsage) == 0
+        && localTestCount == other.localTestCount;
+  }
+
+  @Override
+  public int hashCode() {
+    return Objects.hash(memoryMb, cpuUsage, ioUsage, localTestCount);
+  }
+
   @Override
   public String toString() {
     return "Resources: \n"
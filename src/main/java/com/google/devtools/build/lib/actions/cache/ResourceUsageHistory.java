@@ -0,0 +1,255 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.PersistentMap;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.util.StringCanonicalizer;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+import javax.annotation.Nullable;
+
+/**
+ * Persistent record of the resources that locally executed spawns actually consumed.
+ *
+ * <p>Measurements are aggregated per action mnemonic and per mnemonic and owning target. The
+ * aggregates are used by the {@link com.google.devtools.build.lib.actions.ResourceManager} to
+ * replace the static {@link ResourceSet} declared by an action with an estimate based on earlier
+ * executions. The history is stored in the action cache directory and survives server restarts.
+ */
+@ThreadSafe
+public final class ResourceUsageHistory {
+
+  private static final int VERSION = 1;
+
+  /** Number of measurements needed before an aggregate is used for admission decisions. */
+  static final int MIN_SAMPLES = 3;
+
+  /** Weight of the most recent measurement in the CPU usage moving average. */
+  private static final double CPU_SMOOTHING = 0.3;
+
+  /**
+   * Factor applied to the remembered peak memory before folding in a new measurement, so that
+   * estimates slowly recover after a single unusually large execution.
+   */
+  private static final double MEMORY_DECAY = 0.95;
+
+  /** Lower bound for CPU estimates, so that measured actions never become free to schedule. */
+  private static final double MIN_CPU_USAGE = 0.1;
+
+  /** The resources consumed by a single finished spawn. */
+  public static final class Measurement {
+    private final double peakMemoryMb;
+    private final double cpuTimeSeconds;
+    private final double wallTimeSeconds;
+
+    public Measurement(double peakMemoryMb, double cpuTimeSeconds, double wallTimeSeconds) {
+      this.peakMemoryMb = peakMemoryMb;
+      this.cpuTimeSeconds = cpuTimeSeconds;
+      this.wallTimeSeconds = wallTimeSeconds;
+    }
+
+    public double getPeakMemoryMb() {
+      return peakMemoryMb;
+    }
+
+    public double getCpuTimeSeconds() {
+      return cpuTimeSeconds;
+    }
+
+    public double getWallTimeSeconds() {
+      return wallTimeSeconds;
+    }
+
+    /** Returns the average number of cores used while the spawn was running. */
+    double getCpuUsage() {
+      return wallTimeSeconds > 0 ? cpuTimeSeconds / wallTimeSeconds : 0.0;
+    }
+  }
+
+  /** Aggregated measurements for a mnemonic or a mnemonic and target. Immutable. */
+  public static final class Aggregate {
+    private final int samples;
+    private final double peakMemoryMb;
+    private final double cpuUsage;
+
+    Aggregate(int samples, double peakMemoryMb, double cpuUsage) {
+      this.samples = samples;
+      this.peakMemoryMb = peakMemoryMb;
+      this.cpuUsage = cpuUsage;
+    }
+
+    /** Returns the number of measurements folded into this entry. */
+    public int getSamples() {
+      return samples;
+    }
+
+    /** Returns the (slowly decaying) maximum of the measured peak memory, in MB. */
+    public double getPeakMemoryMb() {
+      return peakMemoryMb;
+    }
+
+    /** Returns the moving average of the number of cores used. */
+    public double getCpuUsage() {
+      return cpuUsage;
+    }
+
+    Aggregate add(Measurement measurement) {
+      return new Aggregate(
+          samples == Integer.MAX_VALUE ? samples : samples + 1,
+          Math.max(measurement.getPeakMemoryMb(), peakMemoryMb * MEMORY_DECAY),
+          CPU_SMOOTHING * measurement.getCpuUsage() + (1 - CPU_SMOOTHING) * cpuUsage);
+    }
+
+    static Aggregate of(Measurement measurement) {
+      return new Aggregate(1, measurement.getPeakMemoryMb(), measurement.getCpuUsage());
+    }
+  }
+
+  /** Persists the aggregates. Only ever saved explicitly, so there is no journaling. */
+  private static final class AggregateMap extends PersistentMap<String, Aggregate> {
+    AggregateMap(Path mapFile, Path journalFile) throws IOException {
+      super(VERSION, new ConcurrentHashMap<String, Aggregate>(), mapFile, journalFile);
+      load(/*failFast=*/ false);
+    }
+
+    @Override
+    protected boolean updateJournal() {
+      return false;
+    }
+
+    @Override
+    protected String readKey(DataInputStream in) throws IOException {
+      int length = in.readInt();
+      if (length < 0) {
+        throw new IOException("corrupt key length: " + length);
+      }
+      byte[] content = new byte[length];
+      in.readFully(content);
+      return StringCanonicalizer.intern(new String(content, UTF_8));
+    }
+
+    @Override
+    protected Aggregate readValue(DataInputStream in) throws IOException {
+      return new Aggregate(in.readInt(), in.readDouble(), in.readDouble());
+    }
+
+    @Override
+    protected void writeKey(String key, DataOutputStream out) throws IOException {
+      byte[] content = key.getBytes(UTF_8);
+      out.writeInt(content.length);
+      out.write(content);
+    }
+
+    @Override
+    protected void writeValue(Aggregate value, DataOutputStream out) throws IOException {
+      out.writeInt(value.getSamples());
+      out.writeDouble(value.getPeakMemoryMb());
+      out.writeDouble(value.getCpuUsage());
+    }
+  }
+
+  private final AggregateMap entries;
+
+  private ResourceUsageHistory(AggregateMap entries) {
+    this.entries = entries;
+  }
+
+  /**
+   * Loads the history stored in the given cache directory. Unreadable history files are ignored,
+   * since the history only affects scheduling.
+   */
+  public static ResourceUsageHistory load(Path cacheRoot) throws IOException {
+    return new ResourceUsageHistory(
+        new AggregateMap(
+            cacheRoot.getChild("resource_usage_v" + VERSION + ".blaze"),
+            cacheRoot.getChild("resource_usage_journal_v" + VERSION + ".blaze")));
+  }
+
+  /**
+   * Records a measurement for a spawn of the given mnemonic, owned by the given target (if any).
+   */
+  public void record(String mnemonic, @Nullable String target, Measurement measurement) {
+    Preconditions.checkNotNull(mnemonic);
+    // PersistentMap keeps its dirty state in unsynchronized fields.
+    synchronized (entries) {
+      update(mnemonic, measurement);
+      if (target != null) {
+        update(key(mnemonic, target), measurement);
+      }
+    }
+  }
+
+  private void update(String key, Measurement measurement) {
+    Aggregate entry = entries.get(key);
+    entries.put(key, entry == null ? Aggregate.of(measurement) : entry.add(measurement));
+  }
+
+  /**
+   * Returns the aggregate for the given mnemonic and target, falling back to the aggregate for the
+   * mnemonic alone, or null if neither has enough measurements.
+   */
+  @Nullable
+  public Aggregate get(String mnemonic, @Nullable String target) {
+    Aggregate entry = target != null ? entries.get(key(mnemonic, target)) : null;
+    if (entry == null || entry.getSamples() < MIN_SAMPLES) {
+      entry = entries.get(mnemonic);
+    }
+    return entry == null || entry.getSamples() < MIN_SAMPLES ? null : entry;
+  }
+
+  /**
+   * Returns the resources a spawn is expected to need based on its history, or {@code declared}
+   * if there is no usable history. Only RAM and CPU are estimated; I/O and the local test count are
+   * taken from the declaration.
+   */
+  public ResourceSet estimate(String mnemonic, @Nullable String target, ResourceSet declared) {
+    Aggregate entry = get(mnemonic, target);
+    if (entry == null) {
+      return declared;
+    }
+    return ResourceSet.create(
+        entry.getPeakMemoryMb(),
+        Math.max(MIN_CPU_USAGE, entry.getCpuUsage()),
+        declared.getIoUsage(),
+        declared.getLocalTestCount());
+  }
+
+  /** Returns the number of aggregates in the history. */
+  public int size() {
+    return entries.size();
+  }
+
+  /**
+   * Saves the history to disk.
+   *
+   * @return the size of the saved file in bytes
+   */
+  public long save() throws IOException {
+    synchronized (entries) {
+      return entries.save();
+    }
+  }
+
+  private static String key(String mnemonic, String target) {
+    return mnemonic + " " + target;
+  }
+}
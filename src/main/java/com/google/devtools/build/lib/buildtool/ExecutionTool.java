@@ -72,6 +72,7 @@ import com.google.devtools.build.lib.exec.ExecutionOptions;
 import com.google.devtools.build.lib.exec.ExecutorBuilder;
 import com.google.devtools.build.lib.exec.FilesetActionContextImpl;
 import com.google.devtools.build.lib.exec.OutputService;
+import com.google.devtools.build.lib.exec.PipelinedActionInputPrefetcher;
 import com.google.devtools.build.lib.exec.SingleBuildFileCache;
 import com.google.devtools.build.lib.exec.SymlinkTreeStrategy;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
@@ -109,6 +110,7 @@ import java.util.TreeMap;
 import java.util.UUID;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import javax.annotation.Nullable;
 
 /**
  * This class manages the execution phase. The entry point is {@link #executeBuild}.
@@ -173,6 +175,7 @@ public class ExecutionTool {
   private BlazeExecutor executor;
   private final ActionInputFileCache fileCache;
   private final ActionInputPrefetcher prefetcher;
+  @Nullable private final PipelinedActionInputPrefetcher pipelinedPrefetcher;
   private final ImmutableList<ActionContextProvider> actionContextProviders;
 
   private Map<String, SpawnActionContext> spawnStrategyMap =
@@ -226,7 +229,20 @@ public class ExecutionTool {
               env.getExecRoot().getPathString(), env.getDirectories().getFileSystem());
     }
     this.fileCache = cache;
-    this.prefetcher = builder.getActionInputPrefetcher();
+    ActionInputPrefetcher modulePrefetcher = builder.getActionInputPrefetcher();
+    ExecutionOptions executionOptions = request.getOptions(ExecutionOptions.class);
+    if (modulePrefetcher != ActionInputPrefetcher.NONE && executionOptions.inputPrefetchJobs > 0) {
+      this.pipelinedPrefetcher =
+          new PipelinedActionInputPrefetcher(
+              modulePrefetcher,
+              fileCache,
+              executionOptions.inputPrefetchJobs,
+              Math.max(1, executionOptions.inputPrefetchBudgetMb) * 1024L * 1024L);
+      this.prefetcher = pipelinedPrefetcher;
+    } else {
+      this.pipelinedPrefetcher = null;
+      this.prefetcher = modulePrefetcher;
+    }
         
     this.actionContextProviders = builder.getActionContextProviders();
     for (ActionContextProvider provider : actionContextProviders) {
@@ -457,6 +473,10 @@ public class ExecutionTool {
       for (ActionContextProvider actionContextProvider : actionContextProviders) {
         actionContextProvider.executionPhaseEnding();
       }
+      skyframeExecutor.setActionInputPrefetcher(ActionInputPrefetcher.NONE);
+      if (pipelinedPrefetcher != null) {
+        pipelinedPrefetcher.shutdown();
+      }
 
       Profiler.instance().markPhase(ProfilePhase.FINISH);
 
@@ -663,6 +683,9 @@ public class ExecutionTool {
     int actualJobs = options.jobs == 0 ? 1 : options.jobs;  // Treat 0 jobs as a single task.
 
     skyframeExecutor.setActionOutputRoot(actionOutputRoot);
+    // Speculative prefetching happens on Skyframe threads, so only do it if it doesn't block.
+    skyframeExecutor.setActionInputPrefetcher(
+        pipelinedPrefetcher != null ? pipelinedPrefetcher : ActionInputPrefetcher.NONE);
     ArtifactFactory artifactFactory = env.getSkyframeBuildView().getArtifactFactory();
     return new SkyframeBuilder(
         skyframeExecutor,
@@ -695,6 +718,16 @@ public class ExecutionTool {
       resources = LocalHostCapacity.getLocalHostCapacity();
       resourceMgr.setRamUtilizationPercentage(options.ramUtilizationPercentage);
     }
+    resourceMgr.setSchedulingPolicy(options.resourceSchedulingPolicy);
+    resourceMgr.setResourceUsageHistory(null);
+    if (options.useMeasuredLocalResources) {
+      try {
+        resourceMgr.setResourceUsageHistory(env.getResourceUsageHistory());
+      } catch (IOException e) {
+        getReporter().handle(Event.warn(
+            "Could not load resource usage history, using declared resources: " + e.getMessage()));
+      }
+    }
 
     resourceMgr.setAvailableResources(ResourceSet.create(
         resources.getMemoryMb(),
@@ -724,6 +757,16 @@ public class ExecutionTool {
     }
     env.getEventBus().post(new CachesSavedEvent(
         actionCacheSaveTimeInMs, actionCacheSizeInBytes));
+
+    if (request.getOptions(ExecutionOptions.class).useMeasuredLocalResources) {
+      try (AutoProfiler q = AutoProfiler.profiledAndLogged(
+          "Saving resource usage history", ProfilerTask.INFO, log)) {
+        env.getResourceUsageHistory().save();
+      } catch (IOException e) {
+        getReporter().handle(
+            Event.warn("I/O error while writing resource usage history: " + e.getMessage()));
+      }
+    }
   }
 
   private Reporter getReporter() {
@@ -15,15 +15,22 @@ package com.google.devtools.build.lib.collect.nestedset;
 
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.base.Predicate;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.UnmodifiableIterator;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 import java.util.AbstractCollection;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.List;
+import java.util.NoSuchElementException;
 import java.util.Objects;
 import java.util.Set;
 import javax.annotation.Nullable;
@@ -36,25 +43,57 @@ import javax.annotation.Nullable;
 @SuppressWarnings("unchecked")
 public final class NestedSet<E> implements Iterable<E> {
 
-  private final Order order;
+  /**
+   * The {@link Order#ordinal} of the order of this set in the low two bits, and its depth (see
+   * {@link #getDepth}) in the others. Packed into one field to keep nested sets small.
+   */
+  private final int orderAndDepth;
   private final Object children;
+  /**
+   * Records which edges of the traversal of {@link #children} lead to new elements, so that later
+   * flattenings can replay the traversal without deduplicating, followed by the number of elements
+   * (see {@link #writeSize}). Computed on the first flattening of a set that isn't a leaf.
+   */
   private byte[] memo;
 
   private static final byte[] LEAF_MEMO = {};
   private static final Object[] EMPTY_CHILDREN = {};
 
+  /** Sets with fewer elements are cheap enough to flatten that their flattenings aren't cached. */
+  private static final int MIN_CACHED_SIZE = 128;
+
+  /** The maximum total number of elements of the flattenings in {@link #FLATTENED}. */
+  private static final long MAX_CACHED_ELEMENTS = 1 << 24;
+
+  /**
+   * The flattenings of large sets, shared by all of their consumers, so that the same large set
+   * flattened by many actions is only copied into a list once. Keyed by the array of children by
+   * identity, which is shared by all the sets with the same structure, so that entries go away with
+   * the sets.
+   */
+  private static final Cache<Object, ImmutableList<?>> FLATTENED =
+      CacheBuilder.newBuilder()
+          .weakKeys()
+          .maximumWeight(MAX_CACHED_ELEMENTS)
+          .weigher(
+              new Weigher<Object, ImmutableList<?>>() {
+                @Override
+                public int weigh(Object children, ImmutableList<?> flattened) {
+                  return flattened.size();
+                }
+              })
+          .build();
+
   /**
    * Construct an empty NestedSet.  Should only be called by Order's class initializer.
    */
   NestedSet(Order order) {
-    this.order = order;
+    this.orderAndDepth = order.ordinal();
     this.children = EMPTY_CHILDREN;
     this.memo = LEAF_MEMO;
   }
 
   NestedSet(Order order, Set<E> direct, Set<NestedSet<E>> transitive) {
-    this.order = order;
-
     // The iteration order of these collections is the order in which we add the items.
     Collection<E> directOrder = direct;
     Collection<NestedSet<E>> transitiveOrder = transitive;
@@ -86,6 +125,7 @@ public final class NestedSet<E> implements Iterable<E> {
     Object[] children = new Object[direct.size() + transitive.size()];
     int n = 0;  // current position in children
     boolean leaf = true;  // until we find otherwise
+    int subsetDepth = 0;  // the maximum depth of the subsets we kept
 
     for (int pass = 0; pass <= 1; ++pass) {
       if ((pass == 0) == preorder && !direct.isEmpty()) {
@@ -109,6 +149,7 @@ public final class NestedSet<E> implements Iterable<E> {
             }
             children[n++] = a;
             leaf = false;
+            subsetDepth = Math.max(subsetDepth, subset.getDepth());
           } else {
             if (!alreadyInserted.contains((E) c) && hoisted.add((E) c)) {
               children[n++] = c;
@@ -120,6 +161,8 @@ public final class NestedSet<E> implements Iterable<E> {
     }
 
     // If we ended up wrapping exactly one item or one other set, dereference it.
+    int depth = (n == 0 || (n == 1 && !leaf)) ? subsetDepth : subsetDepth + 1;
+    this.orderAndDepth = order.ordinal() | (depth << 2);
     if (n == 1) {
       this.children = children[0];
     } else if (n == 0) {
@@ -138,7 +181,21 @@ public final class NestedSet<E> implements Iterable<E> {
    * Returns the ordering of this nested set.
    */
   public Order getOrder() {
-    return order;
+    return Orders.VALUES[orderAndDepth & 3];
+  }
+
+  /** Initialized lazily, since empty nested sets are created while {@link Order} is initialized. */
+  private static final class Orders {
+    private static final Order[] VALUES = Order.values();
+  }
+
+  /**
+   * Returns the depth of the structure of this set: 0 if it is empty, 1 if it has no subsets, and
+   * one more than the depth of its deepest subset otherwise. Subsets that were inlined when the set
+   * was built don't count. Runs in O(1) time.
+   */
+  public int getDepth() {
+    return orderAndDepth >>> 2;
   }
 
   /**
@@ -187,7 +244,52 @@ public final class NestedSet<E> implements Iterable<E> {
     if (isEmpty()) {
       return ImmutableList.of();
     }
-    return order == Order.LINK_ORDER ? expand().reverse() : expand();
+    return getOrder() == Order.LINK_ORDER ? expand().reverse() : expand();
+  }
+
+  /**
+   * Returns the number of unique elements of this set. Flattens the set the first time it is called
+   * on a set with subsets, but the result is memoized, so that later calls, like later flattenings,
+   * are cheap.
+   */
+  public int memoizedFlattenAndGetSize() {
+    if (isSingleton()) {
+      return 1;
+    }
+    // This value is only set in the constructor, so safe to test here with no lock.
+    if (memo == LEAF_MEMO) {
+      return ((Object[]) children).length;
+    }
+    lockedExpand();
+    return readSize(memo);
+  }
+
+  /**
+   * Returns true if {@code predicate} holds for an element of this set. Stops at the first such
+   * element, and doesn't flatten the set: it visits each subset once, in no particular order, but
+   * may test an element that is in several subsets more than once.
+   */
+  public boolean anyMatch(Predicate<? super E> predicate) {
+    if (isSingleton()) {
+      return predicate.apply((E) children);
+    }
+    CompactHashSet<Object> sets = CompactHashSet.create();
+    sets.add(children);
+    return anyMatch(predicate, sets, (Object[]) children);
+  }
+
+  private static <E> boolean anyMatch(
+      Predicate<? super E> predicate, CompactHashSet<Object> sets, Object[] children) {
+    for (Object c : children) {
+      if (c instanceof Object[]) {
+        if (sets.add(c) && anyMatch(predicate, sets, (Object[]) c)) {
+          return true;
+        }
+      } else if (predicate.apply((E) c)) {
+        return true;
+      }
+    }
+    return false;
   }
 
   /**
@@ -214,7 +316,7 @@ public final class NestedSet<E> implements Iterable<E> {
       return true;
     }
     return other != null
-        && order == other.order
+        && getOrder() == other.getOrder()
         && (children.equals(other.children)
             || (!isSingleton() && !other.isSingleton()
                 && Arrays.equals((Object[]) children, (Object[]) other.children)));
@@ -231,9 +333,9 @@ public final class NestedSet<E> implements Iterable<E> {
    */
   public int shallowHashCode() {
     if (isSingleton()) {
-      return Objects.hash(order, children);
+      return Objects.hash(getOrder(), children);
     } else {
-      return Objects.hash(order, Arrays.hashCode((Object[]) children));
+      return Objects.hash(getOrder(), Arrays.hashCode((Object[]) children));
     }
   }
 
@@ -259,33 +361,67 @@ public final class NestedSet<E> implements Iterable<E> {
     }
   };
 
+  /**
+   * Returns an iterator over the unique elements of this set, in the same order as {@link #toList}.
+   *
+   * <p>Except for sets in {@link Order#LINK_ORDER}, which are iterated backwards, the elements are
+   * produced lazily from the structure of the set, without building a list of them. Stopping early
+   * is cheap once the set has been flattened before.
+   */
   @Override
   public Iterator<E> iterator() {
-    // TODO: would it help to have a proper lazy iterator?  seems like it might reduce garbage.
-    return toCollection().iterator();
+    if (isSingleton()) {
+      return Iterators.singletonIterator((E) children);
+    }
+    if (getOrder() == Order.LINK_ORDER) {
+      return toList().iterator();
+    }
+    // This value is only set in the constructor, so safe to test here with no lock.
+    if (memo == LEAF_MEMO) {
+      return Iterators.forArray((E[]) children);
+    }
+    ImmutableList<E> flattened = (ImmutableList<E>) FLATTENED.getIfPresent(children);
+    if (flattened != null) {
+      return flattened.iterator();
+    }
+    CompactHashSet<E> members = lockedExpand();
+    if (members != null) {
+      return Iterators.unmodifiableIterator(members.iterator());
+    }
+    return new ReplayIterator<>((Object[]) children, memo, getDepth());
   }
 
   /**
    * Implementation of {@link #toList}.  Uses one of three strategies based on the value of
    * {@code this.memo}: wrap our direct items in a list, call {@link #lockedExpand} to perform
-   * the initial {@link #walk}, or call {@link #replay} if we have a nontrivial memo.
+   * the initial {@link #walk}, or use a {@link ReplayIterator} if we have a nontrivial memo.
+   * Large results are shared through {@link #FLATTENED}.
    */
   private ImmutableList<E> expand() {
     // This value is only set in the constructor, so safe to test here with no lock.
     if (memo == LEAF_MEMO) {
       return ImmutableList.<E>copyOf(new ArraySharingCollection<E>((Object[]) children));
     }
+    ImmutableList<E> flattened = (ImmutableList<E>) FLATTENED.getIfPresent(children);
+    if (flattened != null) {
+      return flattened;
+    }
     CompactHashSet<E> members = lockedExpand();
     if (members != null) {
-      return ImmutableList.copyOf(members);
+      flattened = ImmutableList.copyOf(members);
+    } else {
+      byte[] memo = this.memo;
+      Object[] output = new Object[readSize(memo)];
+      ReplayIterator<E> elements = new ReplayIterator<>((Object[]) children, memo, getDepth());
+      for (int i = 0; i < output.length; ++i) {
+        output[i] = elements.next();
+      }
+      flattened = ImmutableList.<E>copyOf(new ArraySharingCollection<E>(output));
     }
-    Object[] children = (Object[]) this.children;
-    // TODO:  We could record the exact size (inside memo, or by making order an int with two bits
-    // for Order.ordinal()) and avoid an array copy here.  It's not directly visible in profiles but
-    // it would reduce garbage generated.
-    ImmutableList.Builder<E> output = ImmutableList.builder();
-    replay(output, children, memo, 0);
-    return output.build();
+    if (flattened.size() >= MIN_CACHED_SIZE) {
+      FLATTENED.put(children, flattened);
+    }
+    return flattened;
   }
 
   // Hack to share our internal array with ImmutableList/ImmutableSet, or avoid
@@ -308,7 +444,7 @@ public final class NestedSet<E> implements Iterable<E> {
 
   /**
    * If this is the first call for this object, fills {@code this.memo} and returns a set from
-   * {@link #walk}.  Otherwise returns null; the caller should use {@link #replay} instead.
+   * {@link #walk}.  Otherwise returns null; the caller should use a {@link ReplayIterator} instead.
    */
   private synchronized CompactHashSet<E> lockedExpand() {
     if (memo != null) {
@@ -320,13 +456,49 @@ public final class NestedSet<E> implements Iterable<E> {
     sets.add(children);
     memo = new byte[Math.min((children.length + 7) / 8, 8)];
     int pos = walk(sets, members, children, 0);
-    int bytes = (pos + 7) / 8;
-    if (bytes <= memo.length - 16) {
+    int bytes = (pos + 7) / 8 + sizeBytes(members.size());
+    if (bytes > memo.length || bytes <= memo.length - 16) {
       memo = Arrays.copyOf(memo, bytes);
     }
+    writeSize(memo, members.size());
     return members;
   }
 
+  /** Returns the number of bytes {@link #writeSize} needs for {@code size}. */
+  private static int sizeBytes(int size) {
+    int bytes = 1;
+    while ((size >>>= 7) != 0) {
+      ++bytes;
+    }
+    return bytes;
+  }
+
+  /**
+   * Writes {@code size} at the end of {@code memo}, seven bits per byte starting with the lowest
+   * ones in the last byte, and the high bit of each byte set if more bytes precede it. The bytes
+   * before it are only read by the replay of the traversal, which stops before reaching them.
+   */
+  private static void writeSize(byte[] memo, int size) {
+    int i = memo.length - 1;
+    while ((size & ~0x7f) != 0) {
+      memo[i--] = (byte) ((size & 0x7f) | 0x80);
+      size >>>= 7;
+    }
+    memo[i] = (byte) size;
+  }
+
+  private static int readSize(byte[] memo) {
+    int size = 0;
+    int i = memo.length - 1;
+    for (int shift = 0; ; shift += 7) {
+      byte b = memo[i--];
+      size |= (b & 0x7f) << shift;
+      if ((b & 0x80) == 0) {
+        return size;
+      }
+    }
+  }
+
   /**
    * Perform a depth-first traversal of {@code children}, tracking visited
    * arrays in {@code sets} and visited leaves in {@code members}.  We also
@@ -369,25 +541,67 @@ public final class NestedSet<E> implements Iterable<E> {
   }
 
   /**
-   * Repeat a previous traversal of {@code children} performed by {@link #walk}
-   * and recorded in {@code memo}, appending leaves to {@code output}.
+   * Repeats a previous traversal of {@code children} performed by {@link #walk} and recorded in
+   * {@code memo}, producing the leaves it visited. The recursion of the traversal is replaced by an
+   * explicit stack, whose height is bounded by the depth of the set.
    */
-  private static <E> int replay(ImmutableList.Builder<E> output, Object[] children,
-                                byte[] memo, int pos) {
-    int n = children.length;
-    for (int i = 0; i < n; ++i) {
-      Object c = children[i];
-      if ((memo[pos>>3] & (1<<(pos&7))) != 0) {
+  private static final class ReplayIterator<E> extends UnmodifiableIterator<E> {
+    private final byte[] memo;
+    private final Object[][] arrays;
+    private final int[] indices;
+    private int top = 0;
+    private int pos = 0;
+    @Nullable private Object next;
+
+    ReplayIterator(Object[] children, byte[] memo, int depth) {
+      this.memo = memo;
+      this.arrays = new Object[depth][];
+      this.indices = new int[depth];
+      arrays[0] = children;
+      next = advance();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public E next() {
+      Object result = next;
+      if (result == null) {
+        throw new NoSuchElementException();
+      }
+      next = advance();
+      return (E) result;
+    }
+
+    /** Returns the next leaf of the traversal, or null if there is none. */
+    @Nullable
+    private Object advance() {
+      while (top >= 0) {
+        Object[] array = arrays[top];
+        int i = indices[top];
+        if (i == array.length) {
+          arrays[top--] = null;
+          continue;
+        }
+        indices[top] = i + 1;
+        Object c = array[i];
+        boolean taken = (memo[pos >> 3] & (1 << (pos & 7))) != 0;
+        ++pos;
+        if (!taken) {
+          continue;
+        }
         if (c instanceof Object[]) {
-          pos = replay(output, (Object[]) c, memo, pos + 1);
+          ++top;
+          arrays[top] = (Object[]) c;
+          indices[top] = 0;
         } else {
-          output.add((E) c);
-          ++pos;
+          return c;
         }
-      } else {
-        ++pos;
       }
+      return null;
     }
-    return pos;
   }
 }
@@ -29,6 +29,9 @@ public interface ActionInputPrefetcher {
    * Initiates best-effort prefetching of all given inputs. This should not block.
    *
    * <p>For any path not under this prefetcher's control, the call should be a no-op.
+   *
+   * <p>Implementations that transfer inputs synchronously can be wrapped in a {@link
+   * PipelinedActionInputPrefetcher} to fetch in the background.
    */
   void prefetchFiles(Iterable<? extends ActionInput> input);
 }
@@ -13,6 +13,7 @@
 // limitations under the License.
 package com.google.devtools.build.lib.exec;
 
+import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.exec.TestStrategy.TestOutputFormat;
 import com.google.devtools.build.lib.exec.TestStrategy.TestSummaryFormat;
@@ -220,6 +221,56 @@ public class ExecutionOptions extends OptionsBase {
   )
   public ResourceSet availableResources;
 
+  @Option(
+    name = "experimental_local_resource_scheduling",
+    defaultValue = "fifo",
+    category = "strategy",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "The order in which actions waiting for local resources are started once resources "
+            + "become available. 'fifo' starts them in the order they asked for resources; "
+            + "'smallest_first' prefers actions that declared the smallest resource requirements.",
+    converter = ResourceManager.SchedulingPolicy.Converter.class
+  )
+  public ResourceManager.SchedulingPolicy resourceSchedulingPolicy;
+
+  @Option(
+    name = "experimental_measured_local_resources",
+    defaultValue = "false",
+    category = "strategy",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "If set, the RAM and CPU requirements of locally executed actions are estimated from "
+            + "what earlier executions of the same action type and target actually used, "
+            + "instead of from the static values declared by the action. Measurements are kept "
+            + "next to the action cache."
+  )
+  public boolean useMeasuredLocalResources;
+
+  @Option(
+    name = "experimental_input_prefetch_jobs",
+    defaultValue = "0",
+    category = "strategy",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "If positive, inputs are prefetched in the background by this many threads, and the "
+            + "already built inputs of actions that are still waiting for other inputs are "
+            + "prefetched as well. Only has an effect if a module provides an input prefetcher, "
+            + "e.g. for a remote output file system."
+  )
+  public int inputPrefetchJobs;
+
+  @Option(
+    name = "experimental_input_prefetch_budget_mb",
+    defaultValue = "1024",
+    category = "strategy",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "The total size in MB of the inputs that may be queued for or in the process of being "
+            + "prefetched in the background. See --experimental_input_prefetch_jobs."
+  )
+  public int inputPrefetchBudgetMb;
+
   @Option(
     name = "local_test_jobs",
     defaultValue = "0",
@@ -15,14 +15,21 @@
 package com.google.devtools.build.lib.exec;
 
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingOutputStream;
 import com.google.devtools.build.lib.actions.ActionExecutionContext;
+import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.EnvironmentalExecException;
 import com.google.devtools.build.lib.actions.ExecException;
 import com.google.devtools.build.lib.actions.ExecutionStrategy;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.analysis.actions.AbstractFileWriteAction;
 import com.google.devtools.build.lib.analysis.actions.FileWriteActionContext;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
+import com.google.devtools.build.lib.vfs.FileSystem;
 import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.Symlinks;
 import java.io.BufferedOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
@@ -47,12 +54,30 @@ public final class FileWriteStrategy implements FileWriteActionContext {
             AutoProfiler.logged(
                 "running " + action.prettyPrint(), LOG, /*minTimeForLoggingInMilliseconds=*/ 100)) {
       try {
-        Path outputPath = Iterables.getOnlyElement(action.getOutputs()).getPath();
-        try (OutputStream out = new BufferedOutputStream(outputPath.getOutputStream())) {
-          action.newDeterministicWriter(actionExecutionContext).writeOutputFile(out);
-        }
-        if (action.makeExecutable()) {
-          outputPath.setExecutable(true);
+        Artifact output = Iterables.getOnlyElement(action.getOutputs());
+        Path outputPath = output.getPath();
+        MetadataHandler metadataHandler = actionExecutionContext.getMetadataHandler();
+        if (metadataHandler == null) {
+          try (OutputStream out = new BufferedOutputStream(outputPath.getOutputStream())) {
+            action.newDeterministicWriter(actionExecutionContext).writeOutputFile(out);
+          }
+          if (action.makeExecutable()) {
+            outputPath.setExecutable(true);
+          }
+        } else {
+          // Digest the contents while writing them and hand the digest to the metadata handler, so
+          // that the output doesn't have to be read back to compute its metadata.
+          byte[] digest;
+          try (HashingOutputStream out =
+              new HashingOutputStream(
+                  getDigestFunction(), new BufferedOutputStream(outputPath.getOutputStream()))) {
+            action.newDeterministicWriter(actionExecutionContext).writeOutputFile(out);
+            digest = out.hash().asBytes();
+          }
+          // The metadata handler doesn't touch the mode of injected outputs, so apply the mode it
+          // would have set.
+          outputPath.chmod(0555);
+          metadataHandler.injectDigest(output, outputPath.stat(Symlinks.NOFOLLOW), digest);
         }
       } catch (IOException e) {
         throw new EnvironmentalExecException("failed to create file '"
@@ -61,4 +86,15 @@ public final class FileWriteStrategy implements FileWriteActionContext {
       }
     }
   }
+
+  private static HashFunction getDigestFunction() {
+    switch (FileSystem.getDigestFunction()) {
+      case MD5:
+        return Hashing.md5();
+      case SHA1:
+        return Hashing.sha1();
+      default:
+        throw new IllegalStateException(FileSystem.getDigestFunction().toString());
+    }
+  }
 }
@@ -0,0 +1,202 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import java.io.IOException;
+import java.util.Set;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An {@link ActionInputPrefetcher} that fetches inputs in the background, so that the latency of
+ * transferring inputs from a remote or FUSE-backed output tree overlaps with the execution of other
+ * actions.
+ *
+ * <p>Each input is handed to the wrapped prefetcher on its own, on one of a bounded number of
+ * worker threads; the wrapped prefetcher may block until the input is available locally. Every
+ * input is fetched at most once per instance, no matter how many actions request it. The total
+ * size of the inputs that are being fetched is limited by a byte budget; inputs that do not fit
+ * are dropped, and are left to the on-demand fetching of the file system or to a later request.
+ *
+ * <p>The sizes of the inputs are looked up on the worker threads too, since the file cache may
+ * have to digest an input to find its size. Requesting inputs therefore never touches them.
+ *
+ * <p>Since fetching is best-effort, this prefetcher is also suitable for speculative requests, for
+ * example for the inputs of actions that are still waiting for some of their dependencies.
+ */
+@ThreadSafe
+public final class PipelinedActionInputPrefetcher implements ActionInputPrefetcher {
+  private static final Logger logger =
+      Logger.getLogger(PipelinedActionInputPrefetcher.class.getName());
+
+  private final ActionInputPrefetcher delegate;
+  private final ActionInputFileCache fileCache;
+  private final long maxBytesInFlight;
+  private final ThreadPoolExecutor fetchPool;
+
+  /** Exec paths of the inputs that are queued, being fetched, or already fetched. */
+  private final Set<String> requested = Sets.newConcurrentHashSet();
+  private final AtomicLong bytesInFlight = new AtomicLong();
+  private final AtomicLong fetchCount = new AtomicLong();
+
+  /**
+   * @param delegate fetches single inputs, possibly blocking until they are available locally
+   * @param fileCache provides the sizes of the inputs
+   * @param maxConcurrentFetches the number of inputs that are fetched at the same time
+   * @param maxBytesInFlight the total size of inputs that may be fetched at the same time. A single
+   *     input larger than this is still fetched when nothing else is in flight.
+   */
+  public PipelinedActionInputPrefetcher(
+      ActionInputPrefetcher delegate,
+      ActionInputFileCache fileCache,
+      int maxConcurrentFetches,
+      long maxBytesInFlight) {
+    Preconditions.checkArgument(maxConcurrentFetches > 0, maxConcurrentFetches);
+    Preconditions.checkArgument(maxBytesInFlight > 0, maxBytesInFlight);
+    this.delegate = Preconditions.checkNotNull(delegate);
+    this.fileCache = Preconditions.checkNotNull(fileCache);
+    this.maxBytesInFlight = maxBytesInFlight;
+    this.fetchPool =
+        new ThreadPoolExecutor(
+            maxConcurrentFetches,
+            maxConcurrentFetches,
+            3L,
+            TimeUnit.SECONDS,
+            new LinkedBlockingQueue<Runnable>(),
+            new ThreadFactoryBuilder()
+                .setNameFormat("Input prefetcher %d")
+                .setDaemon(true)
+                .build());
+    // Do not consume threads when not in use.
+    fetchPool.allowCoreThreadTimeOut(true);
+  }
+
+  @Override
+  public void prefetchFiles(Iterable<? extends ActionInput> inputs) {
+    for (ActionInput input : inputs) {
+      String execPath = input.getExecPathString();
+      if (!requested.add(execPath)) {
+        continue;
+      }
+      try {
+        fetchPool.execute(new Fetch(input));
+      } catch (RejectedExecutionException e) {
+        // We have been shut down.
+        requested.remove(execPath);
+        return;
+      }
+    }
+  }
+
+  /**
+   * Stops fetching. Queued fetches are dropped, fetches in progress are interrupted, and later
+   * requests are ignored.
+   */
+  public void shutdown() {
+    fetchPool.shutdownNow();
+  }
+
+  /** Returns the number of inputs that were handed to the wrapped prefetcher. */
+  public long getFetchCount() {
+    return fetchCount.get();
+  }
+
+  @VisibleForTesting
+  long getBytesInFlight() {
+    return bytesInFlight.get();
+  }
+
+  @VisibleForTesting
+  long getCompletedTaskCount() {
+    return fetchPool.getCompletedTaskCount();
+  }
+
+  /** Returns true iff all requested inputs have been fetched or dropped. */
+  @VisibleForTesting
+  boolean isIdle() {
+    return fetchPool.getCompletedTaskCount() == fetchPool.getTaskCount();
+  }
+
+  @VisibleForTesting
+  boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+    fetchPool.shutdown();
+    return fetchPool.awaitTermination(timeout, unit);
+  }
+
+  private long getSize(ActionInput input) {
+    try {
+      return Math.max(0, fileCache.getSizeInBytes(input));
+    } catch (IOException e) {
+      // The input may not exist yet; do not account for it.
+      return 0;
+    }
+  }
+
+  private boolean reserve(long size) {
+    while (true) {
+      long current = bytesInFlight.get();
+      if (current > 0 && current + size > maxBytesInFlight) {
+        return false;
+      }
+      if (bytesInFlight.compareAndSet(current, current + size)) {
+        return true;
+      }
+    }
+  }
+
+  private void release(long size) {
+    bytesInFlight.addAndGet(-size);
+  }
+
+  private class Fetch implements Runnable {
+    private final ActionInput input;
+
+    Fetch(ActionInput input) {
+      this.input = input;
+    }
+
+    @Override
+    public void run() {
+      long size = getSize(input);
+      if (!reserve(size)) {
+        // Dropped; a later request may find room for it.
+        requested.remove(input.getExecPathString());
+        return;
+      }
+      try {
+        fetchCount.incrementAndGet();
+        delegate.prefetchFiles(ImmutableList.of(input));
+      } catch (RuntimeException e) {
+        // Allow a later request to retry the input.
+        requested.remove(input.getExecPathString());
+        logger.log(Level.WARNING, "Failed to prefetch " + input.getExecPathString(), e);
+      } finally {
+        release(size);
+      }
+    }
+  }
+}
@@ -13,16 +13,19 @@
 // limitations under the License.
 package com.google.devtools.build.lib.exec.local;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
 import static java.nio.charset.StandardCharsets.UTF_8;
 import static java.util.logging.Level.INFO;
 import static java.util.logging.Level.SEVERE;
 
 import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.actions.ActionExecutionMetadata;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceManager.ResourceHandle;
 import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.exec.ActionInputPrefetcher;
 import com.google.devtools.build.lib.exec.SpawnResult;
@@ -36,11 +39,13 @@ import com.google.devtools.build.lib.util.NetUtil;
 import com.google.devtools.build.lib.util.OS;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.EnumMap;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -55,6 +60,8 @@ import javax.annotation.Nullable;
 @ThreadSafe
 public final class LocalSpawnRunner implements SpawnRunner {
   private static final Joiner SPACE_JOINER = Joiner.on(' ');
+  private static final Splitter.MapSplitter STATS_SPLITTER =
+      Splitter.on('\n').omitEmptyStrings().withKeyValueSeparator('=');
   private static final String UNHANDLED_EXCEPTION_MSG = "Unhandled exception running a local spawn";
   private static final int LOCAL_EXEC_ERROR = -1;
   private static final int POSIX_TIMEOUT_EXIT_CODE = /*SIGNAL_BASE=*/128 + /*SIGWINCH=*/28;
@@ -236,9 +243,17 @@ public final class LocalSpawnRunner implements SpawnRunner {
       Command cmd;
       OutputStream stdOut = ByteStreams.nullOutputStream();
       OutputStream stdErr = ByteStreams.nullOutputStream();
+      Path statsPath = null;
       if (useProcessWrapper) {
         List<String> cmdLine = new ArrayList<>();
         cmdLine.add(processWrapper);
+        if (resourceManager.isRecordingResourceUsage() && outErr.getOutputPath() != null) {
+          statsPath = outErr.getOutputPath().getParentDirectory()
+              .getChild(outErr.getOutputPath().getBaseName() + ".stats");
+          // Left over from an earlier spawn if the process-wrapper died before reading it back.
+          statsPath.delete();
+          cmdLine.add("--stats=" + statsPath.getPathString());
+        }
         cmdLine.add(Float.toString(timeoutSeconds));
         cmdLine.add(Double.toString(localExecutionOptions.localSigkillGraceSeconds));
         cmdLine.add(getPathOrDevNull(outErr.getOutputPath()));
@@ -285,6 +300,9 @@ public final class LocalSpawnRunner implements SpawnRunner {
       setState(State.SUCCESS);
 
       long wallTime = System.currentTimeMillis() - startTime;
+      if (statsPath != null) {
+        recordResourceUsage(statsPath, wallTime);
+      }
       boolean wasTimeout = result.getTerminationStatus().timedout()
           || wasTimeout(timeoutSeconds, wallTime)
           || result.getTerminationStatus().getRawExitCode() == POSIX_TIMEOUT_EXIT_CODE;
@@ -300,6 +318,36 @@ public final class LocalSpawnRunner implements SpawnRunner {
           .build();
     }
 
+    /**
+     * Feeds the resource usage reported by the process-wrapper back into the resource manager.
+     * The statistics only serve as scheduling hints, so any problem reading them is ignored.
+     */
+    private void recordResourceUsage(Path statsPath, long wallTimeMillis) {
+      try {
+        if (!statsPath.exists()) {
+          return;
+        }
+        Map<String, String> stats =
+            new HashMap<>(STATS_SPLITTER.split(FileSystemUtils.readContent(statsPath, ISO_8859_1)));
+        double cpuTimeSeconds =
+            (Long.parseLong(stats.get("utime_usec")) + Long.parseLong(stats.get("stime_usec")))
+                / 1e6;
+        double peakMemoryMb = Long.parseLong(stats.get("maxrss_kb")) / 1024.0;
+        resourceManager.recordResourceUsage(
+            spawn.getResourceOwner(),
+            new ResourceUsageHistory.Measurement(
+                peakMemoryMb, cpuTimeSeconds, wallTimeMillis / 1000.0));
+      } catch (IOException | RuntimeException e) {
+        stepLog(INFO, "could not read resource usage from %s: %s", statsPath, e);
+      } finally {
+        try {
+          statsPath.delete();
+        } catch (IOException e) {
+          stepLog(INFO, "could not delete %s: %s", statsPath, e);
+        }
+      }
+    }
+
     private String getPathOrDevNull(Path path) {
       return path == null ? "/dev/null" : path.getPathString();
     }
@@ -0,0 +1,448 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.graph;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import javax.annotation.Nullable;
+
+/**
+ * An immutable directed graph whose nodes are identified by the ints {@code 0} to {@code
+ * getNodeCount() - 1}, and whose successors and predecessors are stored in int arrays in
+ * compressed sparse row form.
+ *
+ * <p>A {@link Digraph} keeps a {@link Node} object per node, each with its own successor and
+ * predecessor sets. This class keeps two int arrays for all the successors, two for all the
+ * predecessors, and the labels. The algorithms below work on int arrays and {@link BitSet}s
+ * rather than on maps and sets of nodes, and are iterative, so deep graphs don't overflow the
+ * stack.
+ *
+ * <p>The successors and predecessors of each node are sorted by id, and the algorithms visit
+ * nodes in id order. A graph created by {@link #copyOf(Digraph, Comparator)} numbers its nodes in
+ * the order of their labels, so its traversals are deterministic.
+ */
+public final class CompactDigraph<T> {
+
+  private final ImmutableList<T> labels;
+  private final Map<T, Integer> ids;
+  // The successors of node i are successors[successorOffsets[i]] to
+  // successors[successorOffsets[i + 1] - 1], and likewise for predecessors.
+  private final int[] successorOffsets;
+  private final int[] successors;
+  private final int[] predecessorOffsets;
+  private final int[] predecessors;
+
+  private CompactDigraph(
+      ImmutableList<T> labels, Map<T, Integer> ids, int[] successorOffsets, int[] successors) {
+    this.labels = labels;
+    this.ids = ids;
+    this.successorOffsets = successorOffsets;
+    this.successors = successors;
+    int nodeCount = labels.size();
+    // Transposes the successor arrays. Sources are visited in id order, so the predecessors of
+    // each node come out sorted.
+    this.predecessorOffsets = new int[nodeCount + 1];
+    for (int successor : successors) {
+      predecessorOffsets[successor + 1]++;
+    }
+    for (int i = 0; i < nodeCount; i++) {
+      predecessorOffsets[i + 1] += predecessorOffsets[i];
+    }
+    this.predecessors = new int[successors.length];
+    int[] next = Arrays.copyOf(predecessorOffsets, nodeCount);
+    for (int node = 0; node < nodeCount; node++) {
+      for (int i = successorOffsets[node]; i < successorOffsets[node + 1]; i++) {
+        predecessors[next[successors[i]]++] = node;
+      }
+    }
+  }
+
+  /** Returns a compact copy of {@code graph}, whose node ids are in no particular order. */
+  public static <T> CompactDigraph<T> copyOf(Digraph<T> graph) {
+    return copyOf(graph.getNodes());
+  }
+
+  /**
+   * Returns a compact copy of {@code graph}, whose node ids are in the order of their labels under
+   * {@code order}.
+   */
+  public static <T> CompactDigraph<T> copyOf(Digraph<T> graph, Comparator<? super T> order) {
+    return copyOf(graph.getNodes(order));
+  }
+
+  private static <T> CompactDigraph<T> copyOf(Collection<Node<T>> nodes) {
+    ImmutableList.Builder<T> labels = ImmutableList.builder();
+    Map<T, Integer> ids = Maps.newHashMapWithExpectedSize(nodes.size());
+    int edgeCount = 0;
+    for (Node<T> node : nodes) {
+      labels.add(node.getLabel());
+      ids.put(node.getLabel(), ids.size());
+      edgeCount += node.numSuccessors();
+    }
+    int[] successorOffsets = new int[nodes.size() + 1];
+    int[] successors = new int[edgeCount];
+    int id = 0;
+    int edge = 0;
+    for (Node<T> node : nodes) {
+      successorOffsets[id] = edge;
+      for (Node<T> successor : node.getSuccessors()) {
+        successors[edge++] = ids.get(successor.getLabel());
+      }
+      Arrays.sort(successors, successorOffsets[id], edge);
+      id++;
+    }
+    successorOffsets[id] = edge;
+    return new CompactDigraph<>(labels.build(), ids, successorOffsets, successors);
+  }
+
+  /** Returns the number of nodes in the graph. */
+  public int getNodeCount() {
+    return labels.size();
+  }
+
+  /** Returns the number of edges in the graph. */
+  public int getEdgeCount() {
+    return successors.length;
+  }
+
+  /** Returns the label of node {@code node}. */
+  public T getLabel(int node) {
+    return labels.get(node);
+  }
+
+  /** Returns the labels of all nodes, in id order. */
+  public List<T> getLabels() {
+    return labels;
+  }
+
+  /** Returns a view of the labels of {@code nodes}. */
+  public List<T> getLabels(final int[] nodes) {
+    return new AbstractList<T>() {
+      @Override
+      public T get(int index) {
+        return labels.get(nodes[index]);
+      }
+
+      @Override
+      public int size() {
+        return nodes.length;
+      }
+    };
+  }
+
+  /**
+   * Returns the id of the node with the specified label.
+   *
+   * @throws IllegalArgumentException if no node has the specified label.
+   */
+  public int getId(T label) {
+    Integer id = ids.get(label);
+    if (id == null) {
+      throw new IllegalArgumentException("No such node label: " + label);
+    }
+    return id;
+  }
+
+  /** Returns the successors of {@code node}, sorted by id, in a new array. */
+  public int[] getSuccessors(int node) {
+    return Arrays.copyOfRange(successors, successorOffsets[node], successorOffsets[node + 1]);
+  }
+
+  /** Returns the predecessors of {@code node}, sorted by id, in a new array. */
+  public int[] getPredecessors(int node) {
+    return Arrays.copyOfRange(
+        predecessors, predecessorOffsets[node], predecessorOffsets[node + 1]);
+  }
+
+  /**
+   * Returns true iff the graph is cyclic. Uses Kahn's algorithm: the graph is acyclic iff all of
+   * its nodes can be removed by repeatedly removing a node without predecessors.
+   */
+  public boolean isCyclic() {
+    int nodeCount = getNodeCount();
+    int[] remainingPredecessors = new int[nodeCount];
+    int[] queue = new int[nodeCount];
+    int tail = 0;
+    for (int node = 0; node < nodeCount; node++) {
+      remainingPredecessors[node] = predecessorOffsets[node + 1] - predecessorOffsets[node];
+      if (remainingPredecessors[node] == 0) {
+        queue[tail++] = node;
+      }
+    }
+    for (int head = 0; head < tail; head++) {
+      int node = queue[head];
+      for (int i = successorOffsets[node]; i < successorOffsets[node + 1]; i++) {
+        if (--remainingPredecessors[successors[i]] == 0) {
+          queue[tail++] = successors[i];
+        }
+      }
+    }
+    return tail < nodeCount;
+  }
+
+  /**
+   * Returns the nodes of the graph in topological order, i.e. the reverse post-order of a
+   * depth-first search started from each node in id order, visiting successors in id order. For a
+   * graph created by {@link #copyOf(Digraph, Comparator)}, this is the same order as {@link
+   * Digraph#getTopologicalOrder(Comparator)}.
+   */
+  public int[] getTopologicalOrder() {
+    int nodeCount = getNodeCount();
+    int[] order = new int[nodeCount];
+    int remaining = nodeCount;
+    BitSet visited = new BitSet(nodeCount);
+    int[] stack = new int[nodeCount];
+    int[] nextEdge = new int[nodeCount];
+    for (int root = 0; root < nodeCount; root++) {
+      if (visited.get(root)) {
+        continue;
+      }
+      visited.set(root);
+      int depth = 0;
+      stack[depth++] = root;
+      nextEdge[root] = successorOffsets[root];
+      while (depth > 0) {
+        int node = stack[depth - 1];
+        if (nextEdge[node] < successorOffsets[node + 1]) {
+          int successor = successors[nextEdge[node]++];
+          if (!visited.get(successor)) {
+            visited.set(successor);
+            stack[depth++] = successor;
+            nextEdge[successor] = successorOffsets[successor];
+          }
+        } else {
+          depth--;
+          order[--remaining] = node;
+        }
+      }
+    }
+    return order;
+  }
+
+  /**
+   * Returns the strongly connected component of each node, using Tarjan's algorithm.
+   *
+   * <p>Components are numbered from 0 in a topological order of the strong component graph: every
+   * edge between two different components goes from a lower number to a higher one.
+   */
+  public int[] getStrongComponents() {
+    int nodeCount = getNodeCount();
+    int[] index = new int[nodeCount];
+    Arrays.fill(index, -1);
+    int[] lowLink = new int[nodeCount];
+    int[] component = new int[nodeCount];
+    Arrays.fill(component, -1);
+    // The nodes visited but not yet assigned to a component.
+    int[] componentStack = new int[nodeCount];
+    int componentDepth = 0;
+    int[] callStack = new int[nodeCount];
+    int[] nextEdge = new int[nodeCount];
+    int nextIndex = 0;
+    int componentCount = 0;
+    for (int root = 0; root < nodeCount; root++) {
+      if (index[root] != -1) {
+        continue;
+      }
+      int depth = 0;
+      index[root] = lowLink[root] = nextIndex++;
+      componentStack[componentDepth++] = root;
+      callStack[depth++] = root;
+      nextEdge[root] = successorOffsets[root];
+      while (depth > 0) {
+        int node = callStack[depth - 1];
+        if (nextEdge[node] < successorOffsets[node + 1]) {
+          int successor = successors[nextEdge[node]++];
+          if (index[successor] == -1) {
+            index[successor] = lowLink[successor] = nextIndex++;
+            componentStack[componentDepth++] = successor;
+            callStack[depth++] = successor;
+            nextEdge[successor] = successorOffsets[successor];
+          } else if (component[successor] == -1) {
+            lowLink[node] = Math.min(lowLink[node], index[successor]);
+          }
+        } else {
+          depth--;
+          if (depth > 0) {
+            int parent = callStack[depth - 1];
+            lowLink[parent] = Math.min(lowLink[parent], lowLink[node]);
+          }
+          if (lowLink[node] == index[node]) {
+            int member;
+            do {
+              member = componentStack[--componentDepth];
+              component[member] = componentCount;
+            } while (member != node);
+            componentCount++;
+          }
+        }
+      }
+    }
+    // Tarjan's algorithm completes the components in reverse topological order.
+    for (int node = 0; node < nodeCount; node++) {
+      component[node] = componentCount - 1 - component[node];
+    }
+    return component;
+  }
+
+  /**
+   * Returns the minimum rank of each node: the length of the shortest path to it from a node
+   * without predecessors, where all the nodes of a strongly connected component have the same
+   * rank.
+   */
+  public int[] getMinRanks() {
+    return getRanks(/*max=*/ false);
+  }
+
+  /**
+   * Returns the maximum rank of each node: the length of the longest path to it from a node
+   * without predecessors, where all the nodes of a strongly connected component have the same
+   * rank.
+   */
+  public int[] getMaxRanks() {
+    return getRanks(/*max=*/ true);
+  }
+
+  private int[] getRanks(boolean max) {
+    int nodeCount = getNodeCount();
+    int[] component = getStrongComponents();
+    int componentCount = 0;
+    for (int c : component) {
+      componentCount = Math.max(componentCount, c + 1);
+    }
+    // Groups the nodes by component, so that components can be visited in topological order.
+    int[] memberOffsets = new int[componentCount + 1];
+    for (int c : component) {
+      memberOffsets[c + 1]++;
+    }
+    for (int c = 0; c < componentCount; c++) {
+      memberOffsets[c + 1] += memberOffsets[c];
+    }
+    int[] members = new int[nodeCount];
+    int[] next = Arrays.copyOf(memberOffsets, componentCount);
+    for (int node = 0; node < nodeCount; node++) {
+      members[next[component[node]]++] = node;
+    }
+    // All the predecessors of a component come before it, so its rank is final when it's reached.
+    int[] componentRank = new int[componentCount];
+    Arrays.fill(componentRank, -1);
+    for (int c = 0; c < componentCount; c++) {
+      if (componentRank[c] == -1) {
+        componentRank[c] = 0;
+      }
+      for (int i = memberOffsets[c]; i < memberOffsets[c + 1]; i++) {
+        int node = members[i];
+        for (int j = successorOffsets[node]; j < successorOffsets[node + 1]; j++) {
+          int d = component[successors[j]];
+          if (d == c) {
+            continue;
+          }
+          int rank = componentRank[c] + 1;
+          if (componentRank[d] == -1) {
+            componentRank[d] = rank;
+          } else {
+            componentRank[d] =
+                max ? Math.max(componentRank[d], rank) : Math.min(componentRank[d], rank);
+          }
+        }
+      }
+    }
+    int[] ranks = new int[nodeCount];
+    for (int node = 0; node < nodeCount; node++) {
+      ranks[node] = componentRank[component[node]];
+    }
+    return ranks;
+  }
+
+  /** Returns the nodes reachable from any of {@code startNodes}, including themselves. */
+  public BitSet getFwdReachable(int... startNodes) {
+    return getReachable(startNodes, successorOffsets, successors);
+  }
+
+  /** Returns the nodes that reach any of {@code startNodes}, including themselves. */
+  public BitSet getBackReachable(int... startNodes) {
+    return getReachable(startNodes, predecessorOffsets, predecessors);
+  }
+
+  private BitSet getReachable(int[] startNodes, int[] offsets, int[] edges) {
+    BitSet reached = new BitSet(getNodeCount());
+    int[] stack = new int[getNodeCount()];
+    int depth = 0;
+    for (int node : startNodes) {
+      if (!reached.get(node)) {
+        reached.set(node);
+        stack[depth++] = node;
+      }
+    }
+    while (depth > 0) {
+      int node = stack[--depth];
+      for (int i = offsets[node]; i < offsets[node + 1]; i++) {
+        if (!reached.get(edges[i])) {
+          reached.set(edges[i]);
+          stack[depth++] = edges[i];
+        }
+      }
+    }
+    return reached;
+  }
+
+  /**
+   * Finds the shortest directed path from {@code from} to {@code to}, using breadth-first search.
+   *
+   * @return the nodes of the path, including both endpoints, or null if there is no path.
+   */
+  @Nullable
+  public int[] getShortestPath(int from, int to) {
+    int nodeCount = getNodeCount();
+    int[] parent = new int[nodeCount];
+    Arrays.fill(parent, -1);
+    parent[from] = from;
+    int[] queue = new int[nodeCount];
+    int tail = 0;
+    queue[tail++] = from;
+    for (int head = 0; head < tail && parent[to] == -1; head++) {
+      int node = queue[head];
+      for (int i = successorOffsets[node]; i < successorOffsets[node + 1]; i++) {
+        if (parent[successors[i]] == -1) {
+          parent[successors[i]] = node;
+          queue[tail++] = successors[i];
+        }
+      }
+    }
+    if (parent[to] == -1) {
+      return null;
+    }
+    int length = 1;
+    for (int node = to; node != from; node = parent[node]) {
+      length++;
+    }
+    int[] path = new int[length];
+    for (int node = to; length > 0; node = parent[node]) {
+      path[--length] = node;
+    }
+    return path;
+  }
+
+  @Override
+  public String toString() {
+    return "CompactDigraph[" + getNodeCount() + " nodes]";
+  }
+}
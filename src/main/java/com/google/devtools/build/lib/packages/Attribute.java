@@ -2095,6 +2095,16 @@ public final class Attribute implements Comparable<Attribute> {
     }
   }
 
+  /**
+   * Returns the default value declared for this attribute, without evaluating its condition. This
+   * is the value that {@link RuleClass} gives the attribute of a rule that doesn't set it, unless
+   * the attribute has a condition, a late-bound default or a Skylark computed default, or is one of
+   * the attributes whose default comes from the package.
+   */
+  Object getDeclaredDefaultValue() {
+    return defaultValue;
+  }
+
   /**
    * Returns the default value of this attribute, even if it has a condition, is a computed default,
    * or a late-bound default.
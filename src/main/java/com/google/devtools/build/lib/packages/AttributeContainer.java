@@ -60,6 +60,10 @@ public class AttributeContainer {
   }
 
   AttributeContainer(RuleClass ruleClass, Location[] locations) {
+    this(ruleClass, locations, new Object[ruleClass.getAttributeCount()]);
+  }
+
+  AttributeContainer(RuleClass ruleClass, Location[] locations, Object[] attributeValues) {
     int n = ruleClass.getAttributeCount();
     if (n > 254) {
       // We reserve the zero byte as a hole/sentinel inside state[].
@@ -67,13 +71,13 @@ public class AttributeContainer {
       throw new AssertionError("can't pack " + n + " rule indices into bytes");
     }
     this.ruleClass = ruleClass;
-    this.attributeValues = new Object[n];
+    this.attributeValues = attributeValues;
     this.state = EMPTY_STATE;
     this.attributeLocations = locations;
   }
 
   private static final byte[] EMPTY_STATE = {0};
-  private static final Location[] EMPTY_LOCATIONS = {};
+  static final Location[] EMPTY_LOCATIONS = {};
 
   /**
    * Returns an attribute value by name, or null on no match.
@@ -81,7 +85,7 @@ public class AttributeContainer {
   @Nullable
   public Object getAttr(String attrName) {
     Integer idx = ruleClass.getAttributeIndex(attrName);
-    return idx != null ? attributeValues[idx] : null;
+    return idx != null ? getAttributeValue(idx) : null;
   }
 
   /**
@@ -182,17 +186,25 @@ public class AttributeContainer {
     return locationIndex >= 0 ? attributeLocations[locationIndex] : null;
   }
 
+  RuleClass getRuleClass() {
+    return ruleClass;
+  }
+
   Object getAttributeValue(int index) {
     return attributeValues[index];
   }
 
+  void storeAttributeValue(Attribute attribute, int index, Object value) {
+    attributeValues[index] = value;
+  }
+
   void setAttributeValue(Attribute attribute, Object value, boolean explicit) {
     String name = attribute.getName();
     Integer index = ruleClass.getAttributeIndex(name);
     if (!explicit && getExplicit(index)) {
       throw new IllegalArgumentException("attribute " + name + " already explicitly set");
     }
-    attributeValues[index] = value;
+    storeAttributeValue(attribute, index, value);
     if (explicit) {
       setExplicit(index);
     }
@@ -233,4 +245,17 @@ public class AttributeContainer {
           return new AttributeContainer(ruleClass);
         }
       };
+
+  /**
+   * Creates {@link CompactAttributeContainer}s, which only store the attribute values that differ
+   * from their declared defaults.
+   */
+  public static final Function<RuleClass, AttributeContainer>
+      COMPACT_ATTRIBUTE_CONTAINER_FACTORY =
+          new Function<RuleClass, AttributeContainer>() {
+            @Override
+            public AttributeContainer apply(RuleClass ruleClass) {
+              return new CompactAttributeContainer(ruleClass);
+            }
+          };
 }
@@ -0,0 +1,131 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+
+/**
+ * An {@link AttributeContainer} that only stores the values of the attributes that differ from
+ * their declared defaults (see {@link Attribute#getDeclaredDefaultValue}).
+ *
+ * <p>Most attributes of most rules keep their defaults, so this retains a handful of references per
+ * rule instead of one per attribute of the rule class. The values that are stored are shared with
+ * other rules as much as {@link RuleClass} shares them; list values in particular are interned.
+ *
+ * <p>Unlike {@link AttributeContainer}, an attribute that hasn't been set yet reads as its declared
+ * default rather than as null. {@link RuleClass} sets every attribute of a rule before it's used,
+ * so this makes no difference once the rule is created.
+ */
+final class CompactAttributeContainer extends AttributeContainer {
+
+  private static final byte[] EMPTY_INDICES = {};
+  private static final Object[] EMPTY_VALUES = {};
+
+  // Indices of the attributes whose values are stored, in increasing order:
+  private byte[] storedIndices = EMPTY_INDICES;
+
+  // Values of the attributes in storedIndices, in the same order:
+  private Object[] storedValues = EMPTY_VALUES;
+
+  CompactAttributeContainer(RuleClass ruleClass) {
+    super(ruleClass, EMPTY_LOCATIONS, EMPTY_VALUES);
+  }
+
+  @Override
+  Object getAttributeValue(int index) {
+    int position = findStoredIndex(index);
+    return position >= 0
+        ? storedValues[position]
+        : getDefault(getRuleClass().getAttribute(index));
+  }
+
+  @Override
+  void storeAttributeValue(Attribute attribute, int index, Object value) {
+    int position = findStoredIndex(index);
+    if (isDefault(attribute, value)) {
+      if (position >= 0) {
+        remove(position);
+      }
+    } else if (position >= 0) {
+      storedValues[position] = value;
+    } else {
+      insert(-position - 1, index, value);
+    }
+  }
+
+  /**
+   * Returns the position of {@code index} in {@link #storedIndices}, or {@code -(insertion point) -
+   * 1} if it isn't there.
+   */
+  private int findStoredIndex(int index) {
+    for (int i = 0; i < storedIndices.length; ++i) {
+      int storedIndex = 0xff & storedIndices[i];
+      if (storedIndex == index) {
+        return i;
+      } else if (storedIndex > index) {
+        return -i - 1;
+      }
+    }
+    return -storedIndices.length - 1;
+  }
+
+  // The arrays are kept at their exact size: rules are populated once, and then only read.
+  private void insert(int position, int index, Object value) {
+    int n = storedIndices.length;
+    byte[] newIndices = new byte[n + 1];
+    Object[] newValues = new Object[n + 1];
+    System.arraycopy(storedIndices, 0, newIndices, 0, position);
+    System.arraycopy(storedValues, 0, newValues, 0, position);
+    newIndices[position] = (byte) index;
+    newValues[position] = value;
+    System.arraycopy(storedIndices, position, newIndices, position + 1, n - position);
+    System.arraycopy(storedValues, position, newValues, position + 1, n - position);
+    storedIndices = newIndices;
+    storedValues = newValues;
+  }
+
+  private void remove(int position) {
+    int n = storedIndices.length;
+    byte[] newIndices = Arrays.copyOf(storedIndices, n - 1);
+    Object[] newValues = Arrays.copyOf(storedValues, n - 1);
+    System.arraycopy(storedIndices, position + 1, newIndices, position, n - position - 1);
+    System.arraycopy(storedValues, position + 1, newValues, position, n - position - 1);
+    storedIndices = newIndices;
+    storedValues = newValues;
+  }
+
+  private static Object getDefault(Attribute attribute) {
+    Object defaultValue = attribute.getDeclaredDefaultValue();
+    // A late-bound default is never the value of an attribute; Attribute#getDefaultValue resolves
+    // it to the default of the late-bound default, which is stored.
+    return defaultValue instanceof Attribute.LateBoundDefault<?> ? null : defaultValue;
+  }
+
+  /**
+   * Returns true if {@code value} can be omitted, because {@link #getDefault} returns either the
+   * same object or an equal immutable one.
+   */
+  private static boolean isDefault(Attribute attribute, Object value) {
+    Object defaultValue = getDefault(attribute);
+    if (value == defaultValue) {
+      return true;
+    }
+    return (value instanceof String
+            || value instanceof Integer
+            || value instanceof Boolean
+            || value instanceof ImmutableList<?>)
+        && value.equals(defaultValue);
+  }
+}
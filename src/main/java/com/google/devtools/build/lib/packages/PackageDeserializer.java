@@ -0,0 +1,624 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static com.google.devtools.build.lib.packages.PackageSerializer.BOOLEAN;
+import static com.google.devtools.build.lib.packages.PackageSerializer.BUILTIN_LOCATION;
+import static com.google.devtools.build.lib.packages.PackageSerializer.DISTRIBUTION;
+import static com.google.devtools.build.lib.packages.PackageSerializer.ENVIRONMENT_GROUP;
+import static com.google.devtools.build.lib.packages.PackageSerializer.FILESET_ENTRY;
+import static com.google.devtools.build.lib.packages.PackageSerializer.FILE_LOCATION;
+import static com.google.devtools.build.lib.packages.PackageSerializer.FIRST_INDEX;
+import static com.google.devtools.build.lib.packages.PackageSerializer.GLOB_LIST;
+import static com.google.devtools.build.lib.packages.PackageSerializer.INPUT_FILE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.INTEGER;
+import static com.google.devtools.build.lib.packages.PackageSerializer.LABEL;
+import static com.google.devtools.build.lib.packages.PackageSerializer.LICENSE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.LIST;
+import static com.google.devtools.build.lib.packages.PackageSerializer.MAGIC;
+import static com.google.devtools.build.lib.packages.PackageSerializer.MAP;
+import static com.google.devtools.build.lib.packages.PackageSerializer.NEW_REFERENCE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.NO_LOCATION;
+import static com.google.devtools.build.lib.packages.PackageSerializer.NULL;
+import static com.google.devtools.build.lib.packages.PackageSerializer.NULL_REFERENCE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.PACKAGE_GROUP;
+import static com.google.devtools.build.lib.packages.PackageSerializer.RULE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.SELECTOR_LIST;
+import static com.google.devtools.build.lib.packages.PackageSerializer.SET;
+import static com.google.devtools.build.lib.packages.PackageSerializer.STRING;
+import static com.google.devtools.build.lib.packages.PackageSerializer.TRISTATE;
+import static com.google.devtools.build.lib.packages.PackageSerializer.VERSION;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.base.Function;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.events.NullEventHandler;
+import com.google.devtools.build.lib.packages.Attribute.SkylarkComputedDefaultTemplate.CannotPrecomputeDefaultsException;
+import com.google.devtools.build.lib.packages.BuildType.Selector;
+import com.google.devtools.build.lib.packages.BuildType.SelectorList;
+import com.google.devtools.build.lib.packages.License.DistributionType;
+import com.google.devtools.build.lib.packages.License.LicenseType;
+import com.google.devtools.build.lib.packages.RuleFactory.AttributeValuesMap;
+import com.google.devtools.build.lib.syntax.EvalException;
+import com.google.devtools.build.lib.syntax.GlobCriteria;
+import com.google.devtools.build.lib.syntax.GlobList;
+import com.google.devtools.build.lib.syntax.Type;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Recreates a package from the bytes written by {@link PackageSerializer}.
+ *
+ * <p>Rules are recreated through {@link RuleClass}, from their recorded attribute values, so they
+ * get the same computed defaults, implicit outputs and visibility as when the BUILD file is
+ * evaluated. The rule classes themselves aren't recorded: native ones are looked up by name, and
+ * Skylark ones are found by a {@link SkylarkRuleClassResolver}, which usually looks them up in the
+ * .bzl files the package depends on.
+ */
+public final class PackageDeserializer {
+
+  /** Finds the Skylark rule classes of the rules of a package. */
+  public interface SkylarkRuleClassResolver {
+    /**
+     * Returns the Skylark rule class named {@code name} whose rule definition environment has the
+     * given hash code (see {@link RuleClass#getRuleDefinitionEnvironmentHashCode}), or null if
+     * there is none.
+     */
+    @Nullable
+    RuleClass getRuleClass(String name, String definitionEnvironmentHashCode);
+  }
+
+  private final ByteBuffer in;
+  private final Package.Builder pkgBuilder;
+  private final Map<String, RuleClass> nativeRuleClasses;
+  private final SkylarkRuleClassResolver skylarkRuleClassResolver;
+  private final Function<RuleClass, AttributeContainer> attributeContainerFactory;
+
+  private final List<String> strings = new ArrayList<>();
+  private final List<Label> labels = new ArrayList<>();
+  private final List<RuleClass> ruleClasses = new ArrayList<>();
+  private final Map<String, PathFragment> paths = new HashMap<>();
+
+  private PackageDeserializer(
+      byte[] bytes,
+      Package.Builder pkgBuilder,
+      Map<String, RuleClass> nativeRuleClasses,
+      SkylarkRuleClassResolver skylarkRuleClassResolver,
+      Function<RuleClass, AttributeContainer> attributeContainerFactory) {
+    this.in = ByteBuffer.wrap(bytes);
+    this.pkgBuilder = pkgBuilder;
+    this.nativeRuleClasses = nativeRuleClasses;
+    this.skylarkRuleClassResolver = skylarkRuleClassResolver;
+    this.attributeContainerFactory = attributeContainerFactory;
+  }
+
+  /**
+   * Adds the contents of the package serialized in {@code bytes} to {@code pkgBuilder}, which must
+   * be a new builder for the same package whose filename is set.
+   *
+   * @throws IOException if {@code bytes} aren't a package in the current format, or refer to rule
+   *     classes that don't exist
+   */
+  static void deserialize(
+      byte[] bytes,
+      Package.Builder pkgBuilder,
+      Map<String, RuleClass> nativeRuleClasses,
+      SkylarkRuleClassResolver skylarkRuleClassResolver,
+      Function<RuleClass, AttributeContainer> attributeContainerFactory)
+      throws IOException, InterruptedException {
+    PackageDeserializer deserializer =
+        new PackageDeserializer(
+            bytes,
+            pkgBuilder,
+            nativeRuleClasses,
+            skylarkRuleClassResolver,
+            attributeContainerFactory);
+    try {
+      deserializer.readPackage();
+    } catch (BufferUnderflowException e) {
+      throw new IOException("serialized package is incomplete", e);
+    }
+    if (deserializer.in.hasRemaining()) {
+      throw new IOException("serialized package has not been fully decoded");
+    }
+    if (pkgBuilder.containsErrors()) {
+      throw new IOException("deserialized package contains errors");
+    }
+  }
+
+  private void readPackage() throws IOException, InterruptedException {
+    if (readInt() != MAGIC) {
+      throw new IOException("not a serialized package");
+    }
+    int version = readInt();
+    if (version != VERSION) {
+      throw new IOException("unsupported version " + version);
+    }
+    PackageIdentifier packageId;
+    try {
+      packageId =
+          PackageIdentifier.create(
+              RepositoryName.create(readString()), PathFragment.create(readString()));
+    } catch (LabelSyntaxException e) {
+      throw new IOException(e);
+    }
+    if (!packageId.equals(pkgBuilder.getPackageIdentifier())) {
+      throw new IOException(
+          "serialized package " + packageId + " is not " + pkgBuilder.getPackageIdentifier());
+    }
+
+    pkgBuilder.setDefaultVisibility(readVisibility());
+    pkgBuilder.setDefaultVisibilitySet(readBoolean());
+    pkgBuilder.setDefaultTestonly(readBoolean());
+    pkgBuilder.setDefaultDeprecation(readString());
+    String defaultHdrsCheck = readString();
+    if (defaultHdrsCheck != null) {
+      pkgBuilder.setDefaultHdrsCheck(defaultHdrsCheck);
+    }
+    pkgBuilder.setDefaultCopts(readStrings());
+    pkgBuilder.addFeatures(readStrings());
+    pkgBuilder.setDefaultLicense(readLicense());
+    pkgBuilder.setDefaultDistribs(readDistributions());
+    pkgBuilder.setDefaultCompatibleWith(
+        readLabels(), Package.DEFAULT_COMPATIBLE_WITH_ATTRIBUTE, null);
+    pkgBuilder.setDefaultRestrictedTo(readLabels(), Package.DEFAULT_RESTRICTED_TO_ATTRIBUTE, null);
+
+    MakeEnvironment.Builder makeEnv = new MakeEnvironment.Builder();
+    for (int i = readInt(); i > 0; i--) {
+      String name = readString();
+      int bindingCount = readInt();
+      String[] values = new String[bindingCount];
+      String[] platformSetRegexps = new String[bindingCount];
+      for (int j = 0; j < bindingCount; j++) {
+        values[j] = readString();
+        platformSetRegexps[j] = readString();
+      }
+      // Bindings are recorded most recent first, the reverse of the order of the updates.
+      for (int j = bindingCount - 1; j >= 0; j--) {
+        makeEnv.update(name, values[j], platformSetRegexps[j]);
+      }
+    }
+    pkgBuilder.setMakeEnv(makeEnv);
+
+    pkgBuilder.setSkylarkFileDependencies(ImmutableList.copyOf(readLabels()));
+
+    for (int i = readInt(); i > 0; i--) {
+      EventKind kind;
+      try {
+        kind = EventKind.valueOf(readString());
+      } catch (IllegalArgumentException e) {
+        throw new IOException(e);
+      }
+      Location location = readLocation();
+      Event event = Event.of(kind, location, readString());
+      String tag = readString();
+      pkgBuilder.addEvent(tag == null ? event : event.withTag(tag));
+    }
+
+    for (int i = readInt(); i > 0; i--) {
+      int kind = readInt();
+      try {
+        switch (kind) {
+          case INPUT_FILE:
+            readInputFile();
+            break;
+          case RULE:
+            readRule();
+            break;
+          case PACKAGE_GROUP:
+            readPackageGroup();
+            break;
+          case ENVIRONMENT_GROUP:
+            readEnvironmentGroup();
+            break;
+          default:
+            throw new IOException("unknown target kind " + kind);
+        }
+      } catch (Package.NameConflictException | LabelSyntaxException e) {
+        throw new IOException(e);
+      }
+    }
+  }
+
+  private void readInputFile() throws IOException, Package.NameConflictException {
+    String name = readString();
+    Location location = readLocation();
+    InputFile inputFile = pkgBuilder.createInputFile(name, location);
+    if (readBoolean()) {
+      RuleVisibility visibility = readVisibility();
+      License license = readBoolean() ? readLicense() : null;
+      pkgBuilder.setVisibilityAndLicense(inputFile, visibility, license);
+    }
+  }
+
+  private void readPackageGroup()
+      throws IOException, Package.NameConflictException, LabelSyntaxException {
+    String name = readString();
+    Location location = readLocation();
+    List<String> packages = readStrings();
+    List<Label> includes = readLabels();
+    pkgBuilder.addPackageGroup(name, packages, includes, NullEventHandler.INSTANCE, location);
+  }
+
+  private void readEnvironmentGroup()
+      throws IOException, Package.NameConflictException, LabelSyntaxException {
+    String name = readString();
+    Location location = readLocation();
+    List<Label> environments = readLabels();
+    List<Label> defaults = readLabels();
+    pkgBuilder.addEnvironmentGroup(
+        name, environments, defaults, NullEventHandler.INSTANCE, location);
+  }
+
+  private void readRule() throws IOException, LabelSyntaxException, InterruptedException {
+    RuleClass ruleClass = readRuleClass();
+    Label label = pkgBuilder.createLabel(readString());
+    Location location = readLocation();
+
+    RecordedAttributeValues attributeValues = new RecordedAttributeValues();
+    Map<Integer, Location> attributeLocations = new LinkedHashMap<>();
+    for (int i = readInt(); i > 0; i--) {
+      String name = readString();
+      Integer index = ruleClass.getAttributeIndex(name);
+      if (index == null) {
+        throw new IOException("no attribute " + name + " in " + ruleClass.getName());
+      }
+      boolean explicit = readBoolean();
+      Object value = readValue(ruleClass.getAttribute(index).getType());
+      if (value instanceof ImmutableList<?>) {
+        value = RuleClass.LIST_VALUE_INTERNER.intern((ImmutableList<?>) value);
+      }
+      attributeValues.put(name, value, explicit);
+      Location attributeLocation = readLocation();
+      if (attributeLocation != null) {
+        attributeLocations.put(index, attributeLocation);
+      }
+    }
+
+    Rule rule;
+    try {
+      rule =
+          ruleClass.createRuleUnchecked(
+              pkgBuilder,
+              label,
+              attributeValues,
+              location,
+              attributeContainerFactory.apply(ruleClass),
+              ruleClass.getDefaultImplicitOutputsFunction());
+    } catch (CannotPrecomputeDefaultsException e) {
+      throw new IOException(e);
+    }
+    for (Map.Entry<Integer, Location> entry : attributeLocations.entrySet()) {
+      rule.setAttributeLocation(entry.getKey(), entry.getValue());
+    }
+    pkgBuilder.addRuleUnchecked(rule);
+  }
+
+  private RuleClass readRuleClass() throws IOException {
+    int reference = readInt();
+    if (reference != NEW_REFERENCE) {
+      return getReferenced(ruleClasses, reference);
+    }
+    String name = readString();
+    String definitionEnvironmentHashCode = readString();
+    RuleClass ruleClass =
+        definitionEnvironmentHashCode == null
+            ? nativeRuleClasses.get(name)
+            : skylarkRuleClassResolver.getRuleClass(name, definitionEnvironmentHashCode);
+    if (ruleClass == null) {
+      throw new IOException("unknown rule class " + name);
+    }
+    ruleClasses.add(ruleClass);
+    return ruleClass;
+  }
+
+  /**
+   * Reads an attribute value. {@code type} is the type of the attribute, or null for the elements
+   * of a value.
+   */
+  @Nullable
+  private Object readValue(@Nullable Type<?> type) throws IOException {
+    int kind = readInt();
+    switch (kind) {
+      case NULL:
+        return null;
+      case STRING:
+        return readString();
+      case INTEGER:
+        int i = readInt();
+        return (i >>> 1) ^ -(i & 1);
+      case BOOLEAN:
+        return readBoolean();
+      case LABEL:
+        return readLabel();
+      case TRISTATE:
+        return readEnum(TriState.values());
+      case DISTRIBUTION:
+        return readEnum(DistributionType.values());
+      case LICENSE:
+        return readLicense();
+      case FILESET_ENTRY:
+        return readFilesetEntry();
+      case SELECTOR_LIST:
+        if (type == null) {
+          throw new IOException("nested select()");
+        }
+        return readSelectorList(type);
+      case GLOB_LIST:
+        ImmutableList.Builder<GlobCriteria> criteria = ImmutableList.builder();
+        for (int j = readInt(); j > 0; j--) {
+          boolean glob = readBoolean();
+          ImmutableList<String> include = ImmutableList.copyOf(readStrings());
+          ImmutableList<String> exclude = ImmutableList.copyOf(readStrings());
+          criteria.add(
+              glob ? GlobCriteria.fromGlobCall(include, exclude) : GlobCriteria.fromList(include));
+        }
+        return new GlobList<>(criteria.build(), readValues());
+      case LIST:
+        return ImmutableList.copyOf(readValues());
+      case MAP:
+        ImmutableMap.Builder<Object, Object> map = ImmutableMap.builder();
+        for (int j = readInt(); j > 0; j--) {
+          Object key = readValue(null);
+          Object value = readValue(null);
+          if (key == null || value == null) {
+            throw new IOException("map with null entries");
+          }
+          map.put(key, value);
+        }
+        return map.build();
+      case SET:
+        return ImmutableSet.copyOf(readValues());
+      default:
+        throw new IOException("unknown value kind " + kind);
+    }
+  }
+
+  private List<Object> readValues() throws IOException {
+    int size = readInt();
+    List<Object> values = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      values.add(readValue(null));
+    }
+    return values;
+  }
+
+  private <T> SelectorList<T> readSelectorList(Type<T> type) throws IOException {
+    List<Selector<T>> selectors = new ArrayList<>();
+    for (int i = readInt(); i > 0; i--) {
+      LinkedHashMap<Label, T> entries = new LinkedHashMap<>();
+      ImmutableSet.Builder<Label> conditionsWithDefaultValues = ImmutableSet.builder();
+      for (int j = readInt(); j > 0; j--) {
+        Label condition = readLabel();
+        entries.put(condition, type.cast(readValue(null)));
+        if (!readBoolean()) {
+          conditionsWithDefaultValues.add(condition);
+        }
+      }
+      String noMatchError = readString();
+      boolean hasDefault = readBoolean();
+      selectors.add(
+          new Selector<>(
+              entries, type, noMatchError, conditionsWithDefaultValues.build(), hasDefault));
+    }
+    return new SelectorList<>(selectors, type);
+  }
+
+  private FilesetEntry readFilesetEntry() throws IOException {
+    Label srcLabel = readLabel();
+    List<Label> files = readBoolean() ? readLabels() : null;
+    List<String> excludes = readBoolean() ? readStrings() : null;
+    String destDir = readString();
+    FilesetEntry.SymlinkBehavior symlinkBehavior = readEnum(FilesetEntry.SymlinkBehavior.values());
+    String stripPrefix = readString();
+    return new FilesetEntry(srcLabel, files, excludes, destDir, symlinkBehavior, stripPrefix);
+  }
+
+  private License readLicense() throws IOException {
+    List<LicenseType> types = new ArrayList<>();
+    for (int i = readInt(); i > 0; i--) {
+      types.add(readEnum(LicenseType.values()));
+    }
+    return License.of(types, readLabels());
+  }
+
+  private Set<DistributionType> readDistributions() throws IOException {
+    Set<DistributionType> distributions = EnumSet.noneOf(DistributionType.class);
+    for (int i = readInt(); i > 0; i--) {
+      distributions.add(readEnum(DistributionType.values()));
+    }
+    return distributions.equals(License.DEFAULT_DISTRIB)
+        ? License.DEFAULT_DISTRIB
+        : ImmutableSet.copyOf(distributions);
+  }
+
+  private RuleVisibility readVisibility() throws IOException {
+    try {
+      return PackageFactory.getVisibility(pkgBuilder.getBuildFileLabel(), readLabels());
+    } catch (EvalException e) {
+      throw new IOException(e);
+    }
+  }
+
+  @Nullable
+  private Location readLocation() throws IOException {
+    int kind = readInt();
+    switch (kind) {
+      case NO_LOCATION:
+        return null;
+      case BUILTIN_LOCATION:
+        return Location.BUILTIN;
+      case FILE_LOCATION:
+        PathFragment path = readPath();
+        int startOffset = readInt();
+        int endOffset = readInt();
+        LineAndColumn start = readBoolean() ? new LineAndColumn(readInt(), readInt()) : null;
+        return Location.fromPathAndStartColumn(path, startOffset, endOffset, start);
+      default:
+        throw new IOException("unknown location kind " + kind);
+    }
+  }
+
+  /** Returns the path of a location. Locations in the same file share the path. */
+  @Nullable
+  private PathFragment readPath() throws IOException {
+    String pathString = readString();
+    if (pathString == null) {
+      return null;
+    }
+    PathFragment path = paths.get(pathString);
+    if (path == null) {
+      path = PathFragment.create(pathString);
+      paths.put(pathString, path);
+    }
+    return path;
+  }
+
+  private List<Label> readLabels() throws IOException {
+    int size = readInt();
+    List<Label> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(readLabel());
+    }
+    return result;
+  }
+
+  private Label readLabel() throws IOException {
+    int reference = readInt();
+    if (reference != NEW_REFERENCE) {
+      return getReferenced(labels, reference);
+    }
+    Label label;
+    try {
+      label =
+          Label.create(
+              PackageIdentifier.create(
+                  RepositoryName.create(readString()), PathFragment.create(readString())),
+              readString());
+    } catch (LabelSyntaxException e) {
+      throw new IOException(e);
+    }
+    labels.add(label);
+    return label;
+  }
+
+  private List<String> readStrings() throws IOException {
+    int size = readInt();
+    List<String> result = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      result.add(readString());
+    }
+    return result;
+  }
+
+  @Nullable
+  private String readString() throws IOException {
+    int reference = readInt();
+    if (reference != NEW_REFERENCE) {
+      return getReferenced(strings, reference);
+    }
+    int length = readInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException("invalid string length " + length);
+    }
+    String string = new String(in.array(), in.position(), length, UTF_8);
+    in.position(in.position() + length);
+    strings.add(string);
+    return string;
+  }
+
+  /** Returns the value of a reference that isn't {@link PackageSerializer#NEW_REFERENCE}. */
+  @Nullable
+  private static <T> T getReferenced(List<T> values, int reference) throws IOException {
+    if (reference == NULL_REFERENCE) {
+      return null;
+    }
+    int index = reference - FIRST_INDEX;
+    if (index < 0 || index >= values.size()) {
+      throw new IOException("invalid reference " + reference);
+    }
+    return values.get(index);
+  }
+
+  private <E extends Enum<E>> E readEnum(E[] values) throws IOException {
+    int ordinal = readInt();
+    if (ordinal < 0 || ordinal >= values.length) {
+      throw new IOException("invalid ordinal " + ordinal);
+    }
+    return values[ordinal];
+  }
+
+  private boolean readBoolean() {
+    return in.get() != 0;
+  }
+
+  private int readInt() {
+    return VarInt.getVarInt(in);
+  }
+
+  /** The recorded attribute values of a rule, which are already natively typed. */
+  private static final class RecordedAttributeValues implements AttributeValuesMap {
+    private final Map<String, Object> values = new LinkedHashMap<>();
+    private final Set<String> explicitlySpecified = new HashSet<>();
+
+    void put(String name, Object value, boolean explicit) {
+      values.put(name, value);
+      if (explicit) {
+        explicitlySpecified.add(name);
+      }
+    }
+
+    @Override
+    public boolean valuesAreBuildLanguageTyped() {
+      return false;
+    }
+
+    @Override
+    public Iterable<String> getAttributeNames() {
+      return values.keySet();
+    }
+
+    @Override
+    public Object getAttributeValue(String attributeName) {
+      return values.get(attributeName);
+    }
+
+    @Override
+    public boolean isAttributeExplicitlySpecified(String attributeName) {
+      return explicitlySpecified.contains(attributeName);
+    }
+  }
+}
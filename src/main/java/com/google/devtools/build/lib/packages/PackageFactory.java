@@ -1410,6 +1410,33 @@ public final class PackageFactory {
     }
   }
 
+  /**
+   * Recreates a package from the bytes written by {@link PackageSerializer}, instead of evaluating
+   * its BUILD file. The package is set up as by {@link #evaluateBuildFile}, and then filled in by
+   * {@link PackageDeserializer}.
+   *
+   * @throws IOException if {@code serializedPackage} can't be deserialized; the BUILD file should
+   *     then be evaluated as usual
+   */
+  public Package.Builder deserializePackage(
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFile,
+      byte[] serializedPackage,
+      PackageDeserializer.SkylarkRuleClassResolver skylarkRuleClassResolver)
+      throws IOException, InterruptedException {
+    Package.Builder pkgBuilder = new Package.Builder(packageBuilderHelper.createFreshPackage(
+        packageId, ruleClassProvider.getRunfilesPrefix()));
+    pkgBuilder.setFilename(buildFile).setWorkspaceName(workspaceName);
+    PackageDeserializer.deserialize(
+        serializedPackage,
+        pkgBuilder,
+        ruleClassProvider.getRuleClassMap(),
+        skylarkRuleClassResolver,
+        ruleFactory.getAttributeContainerFactory());
+    return pkgBuilder;
+  }
+
   @VisibleForTesting
   public Package.Builder newExternalPackageBuilder(Path workspacePath, String runfilesPrefix) {
     return Package.newExternalPackageBuilder(packageBuilderHelper, workspacePath, runfilesPrefix);
@@ -0,0 +1,468 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.Location.LineAndColumn;
+import com.google.devtools.build.lib.packages.BuildType.Selector;
+import com.google.devtools.build.lib.packages.BuildType.SelectorList;
+import com.google.devtools.build.lib.packages.License.DistributionType;
+import com.google.devtools.build.lib.packages.License.LicenseType;
+import com.google.devtools.build.lib.packages.MakeEnvironment.Binding;
+import com.google.devtools.build.lib.syntax.GlobCriteria;
+import com.google.devtools.build.lib.syntax.GlobList;
+import com.google.devtools.build.lib.util.VarInt;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Writes a {@link Package} in a compact binary format, from which {@link PackageDeserializer}
+ * recreates an equivalent package without evaluating its BUILD file.
+ *
+ * <p>The format records the package-level state set by the BUILD file (defaults, "Make"
+ * variables, features, the Skylark files it depends on and the events reported while loading it)
+ * and its targets. Rules are recorded as their rule class, location, and the values and locations
+ * of their explicitly specified attributes, plus {@code licenses} and {@code distribs}, whose
+ * defaults depend on where the rule appears in the BUILD file. Everything else about a rule is
+ * computed again when it's recreated, as is done when the BUILD file is evaluated. Output files
+ * aren't recorded either, since they're created by their rules.
+ *
+ * <p>Strings and labels are written once and referred to by index afterwards. Locations keep their
+ * path, offsets and start line and column, which is all that's printed of them.
+ *
+ * <p>Only packages that loaded without errors can be written, and only if all their attribute
+ * values are of the types produced by {@link BuildType#selectableConvert}.
+ */
+public final class PackageSerializer {
+
+  static final int MAGIC = 0x425a504b;
+
+  /** Bumped whenever the format changes. */
+  static final int VERSION = 1;
+
+  // Kinds of targets.
+  static final int INPUT_FILE = 0;
+  static final int RULE = 1;
+  static final int PACKAGE_GROUP = 2;
+  static final int ENVIRONMENT_GROUP = 3;
+
+  // Kinds of attribute values.
+  static final int NULL = 0;
+  static final int STRING = 1;
+  static final int INTEGER = 2;
+  static final int BOOLEAN = 3;
+  static final int LABEL = 4;
+  static final int TRISTATE = 5;
+  static final int DISTRIBUTION = 6;
+  static final int LICENSE = 7;
+  static final int FILESET_ENTRY = 8;
+  static final int SELECTOR_LIST = 9;
+  static final int GLOB_LIST = 10;
+  static final int LIST = 11;
+  static final int MAP = 12;
+  static final int SET = 13;
+
+  // Kinds of locations.
+  static final int NO_LOCATION = 0;
+  static final int BUILTIN_LOCATION = 1;
+  static final int FILE_LOCATION = 2;
+
+  // References to strings, labels and rule classes are 0 for null, 1 for a new value that follows,
+  // or the index of a value that was already written plus FIRST_INDEX.
+  static final int NULL_REFERENCE = 0;
+  static final int NEW_REFERENCE = 1;
+  static final int FIRST_INDEX = 2;
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+  private final Map<String, Integer> strings = new HashMap<>();
+  private final Map<Label, Integer> labels = new HashMap<>();
+  private final Map<RuleClass, Integer> ruleClasses = new IdentityHashMap<>();
+
+  private PackageSerializer() {}
+
+  /**
+   * Returns the serialized form of {@code pkg}.
+   *
+   * @throws NotSerializableException if the package can't be written, e.g. because it contains
+   *     errors
+   */
+  public static byte[] serialize(Package pkg) throws NotSerializableException {
+    if (pkg.containsErrors()) {
+      throw new NotSerializableException("package " + pkg.getName() + " contains errors");
+    }
+    if (!pkg.getSubincludeLabels().isEmpty()) {
+      throw new NotSerializableException("package " + pkg.getName() + " uses subinclude()");
+    }
+    if (pkg.getPackageIdentifier().equals(Label.EXTERNAL_PACKAGE_IDENTIFIER)) {
+      throw new NotSerializableException("the external package isn't supported");
+    }
+    PackageSerializer serializer = new PackageSerializer();
+    try {
+      serializer.writePackage(pkg);
+    } catch (NotSerializableException e) {
+      throw e;
+    } catch (IOException e) {
+      // This can't happen when writing to a ByteArrayOutputStream.
+      throw new AssertionError(e);
+    }
+    return serializer.out.toByteArray();
+  }
+
+  private void writePackage(Package pkg) throws IOException {
+    writeInt(MAGIC);
+    writeInt(VERSION);
+    writeString(pkg.getPackageIdentifier().getRepository().getName());
+    writeString(pkg.getPackageIdentifier().getPackageFragment().getPathString());
+
+    writeLabels(pkg.getDefaultVisibility().getDeclaredLabels());
+    writeBoolean(pkg.isDefaultVisibilitySet());
+    writeBoolean(pkg.getDefaultTestOnly());
+    writeString(pkg.getDefaultDeprecation());
+    writeString(pkg.isDefaultHdrsCheckSet() ? pkg.getDefaultHdrsCheck() : null);
+    writeStrings(pkg.getDefaultCopts());
+    writeStrings(pkg.getFeatures());
+    writeLicense(pkg.getDefaultLicense());
+    writeDistributions(pkg.getDefaultDistribs());
+    writeLabels(pkg.getDefaultCompatibleWith());
+    writeLabels(pkg.getDefaultRestrictedTo());
+
+    Map<String, ImmutableList<Binding>> makeBindings = pkg.getMakeEnvironment().getBindings();
+    writeInt(makeBindings.size());
+    for (Map.Entry<String, ImmutableList<Binding>> entry : makeBindings.entrySet()) {
+      writeString(entry.getKey());
+      writeInt(entry.getValue().size());
+      for (Binding binding : entry.getValue()) {
+        writeString(binding.getValue());
+        writeString(binding.getPlatformSetRegexp());
+      }
+    }
+
+    writeLabels(pkg.getSkylarkFileDependencies());
+
+    writeInt(pkg.getEvents().size());
+    for (Event event : pkg.getEvents()) {
+      writeString(event.getKind().name());
+      writeLocation(event.getLocation());
+      writeString(event.getMessage());
+      writeString(event.getTag());
+    }
+
+    int targetCount = 0;
+    for (Target target : pkg.getTargets().values()) {
+      if (!(target instanceof OutputFile)) {
+        targetCount++;
+      }
+    }
+    writeInt(targetCount);
+    for (Target target : pkg.getTargets().values()) {
+      if (target instanceof InputFile) {
+        writeInputFile((InputFile) target);
+      } else if (target instanceof Rule) {
+        writeRule((Rule) target);
+      } else if (target instanceof PackageGroup) {
+        writePackageGroup((PackageGroup) target);
+      } else if (target instanceof EnvironmentGroup) {
+        writeEnvironmentGroup((EnvironmentGroup) target);
+      } else if (!(target instanceof OutputFile)) {
+        throw new NotSerializableException(target.getClass().getName());
+      }
+    }
+  }
+
+  private void writeInputFile(InputFile inputFile) throws IOException {
+    writeInt(INPUT_FILE);
+    writeString(inputFile.getName());
+    writeLocation(inputFile.getLocation());
+    // The visibility and license are only recorded if they were set by exports_files(). An
+    // unspecified license reads as the package's default.
+    writeBoolean(inputFile.isVisibilitySpecified());
+    if (inputFile.isVisibilitySpecified()) {
+      writeLabels(inputFile.getVisibility().getDeclaredLabels());
+      License license = inputFile.getLicense();
+      boolean licenseRecorded =
+          inputFile.isLicenseSpecified() || license != inputFile.getPackage().getDefaultLicense();
+      writeBoolean(licenseRecorded);
+      if (licenseRecorded) {
+        writeLicense(license);
+      }
+    }
+  }
+
+  private void writeRule(Rule rule) throws IOException {
+    RuleClass ruleClass = rule.getRuleClassObject();
+    if (rule.getImplicitOutputsFunction() != ruleClass.getDefaultImplicitOutputsFunction()) {
+      throw new NotSerializableException(
+          rule.getLabel() + " overrides the implicit outputs of its rule class");
+    }
+    writeInt(RULE);
+    writeRuleClass(ruleClass);
+    writeString(rule.getName());
+    writeLocation(rule.getLocation());
+
+    AttributeContainer attributes = rule.getAttributeContainer();
+    int count = 0;
+    for (Attribute attribute : ruleClass.getAttributes()) {
+      if (isRecorded(rule, attribute)) {
+        count++;
+      }
+    }
+    writeInt(count);
+    for (Attribute attribute : ruleClass.getAttributes()) {
+      if (isRecorded(rule, attribute)) {
+        String name = attribute.getName();
+        writeString(name);
+        writeBoolean(attributes.isAttributeValueExplicitlySpecified(attribute));
+        writeValue(attributes.getAttr(name));
+        writeLocation(attributes.getAttributeLocation(name));
+      }
+    }
+  }
+
+  private static boolean isRecorded(Rule rule, Attribute attribute) {
+    String name = attribute.getName();
+    return rule.isAttributeValueExplicitlySpecified(attribute)
+        || name.equals("licenses")
+        || name.equals("distribs");
+  }
+
+  private void writeRuleClass(RuleClass ruleClass) throws IOException {
+    Integer index = ruleClasses.get(ruleClass);
+    if (index != null) {
+      writeInt(index + FIRST_INDEX);
+      return;
+    }
+    ruleClasses.put(ruleClass, ruleClasses.size());
+    writeInt(NEW_REFERENCE);
+    writeString(ruleClass.getName());
+    // Skylark rule classes are identified by the hash of the environment that defines them, as
+    // there can be several with the same name.
+    writeString(ruleClass.isSkylark() ? ruleClass.getRuleDefinitionEnvironmentHashCode() : null);
+  }
+
+  private void writePackageGroup(PackageGroup packageGroup) throws IOException {
+    writeInt(PACKAGE_GROUP);
+    writeString(packageGroup.getName());
+    writeLocation(packageGroup.getLocation());
+    writeStrings(packageGroup.getContainedPackages());
+    writeLabels(packageGroup.getIncludes());
+  }
+
+  private void writeEnvironmentGroup(EnvironmentGroup environmentGroup) throws IOException {
+    writeInt(ENVIRONMENT_GROUP);
+    writeString(environmentGroup.getName());
+    writeLocation(environmentGroup.getLocation());
+    writeLabels(environmentGroup.getEnvironments());
+    writeLabels(environmentGroup.getDefaults());
+  }
+
+  private void writeValue(@Nullable Object value) throws IOException {
+    if (value == null) {
+      writeInt(NULL);
+    } else if (value instanceof String) {
+      writeInt(STRING);
+      writeString((String) value);
+    } else if (value instanceof Integer) {
+      writeInt(INTEGER);
+      int i = (Integer) value;
+      writeInt((i << 1) ^ (i >> 31));
+    } else if (value instanceof Boolean) {
+      writeInt(BOOLEAN);
+      writeBoolean((Boolean) value);
+    } else if (value instanceof Label) {
+      writeInt(LABEL);
+      writeLabel((Label) value);
+    } else if (value instanceof TriState) {
+      writeInt(TRISTATE);
+      writeInt(((TriState) value).ordinal());
+    } else if (value instanceof DistributionType) {
+      writeInt(DISTRIBUTION);
+      writeInt(((DistributionType) value).ordinal());
+    } else if (value instanceof License) {
+      writeInt(LICENSE);
+      writeLicense((License) value);
+    } else if (value instanceof FilesetEntry) {
+      writeInt(FILESET_ENTRY);
+      writeFilesetEntry((FilesetEntry) value);
+    } else if (value instanceof SelectorList<?>) {
+      writeInt(SELECTOR_LIST);
+      writeSelectorList((SelectorList<?>) value);
+    } else if (value instanceof GlobList<?>) {
+      writeInt(GLOB_LIST);
+      List<GlobCriteria> criteria = ((GlobList<?>) value).getCriteria();
+      writeInt(criteria.size());
+      for (GlobCriteria criterion : criteria) {
+        writeBoolean(criterion.isGlob());
+        writeStrings(criterion.getIncludePatterns());
+        writeStrings(criterion.getExcludePatterns());
+      }
+      writeValues((List<?>) value);
+    } else if (value instanceof List<?>) {
+      writeInt(LIST);
+      writeValues((List<?>) value);
+    } else if (value instanceof Map<?, ?>) {
+      writeInt(MAP);
+      Map<?, ?> map = (Map<?, ?>) value;
+      writeInt(map.size());
+      for (Map.Entry<?, ?> entry : map.entrySet()) {
+        if (entry.getKey() == null || entry.getValue() == null) {
+          throw new NotSerializableException("map with null entries: " + map);
+        }
+        writeValue(entry.getKey());
+        writeValue(entry.getValue());
+      }
+    } else if (value instanceof Set<?>) {
+      writeInt(SET);
+      writeValues((Set<?>) value);
+    } else {
+      throw new NotSerializableException(value.getClass().getName());
+    }
+  }
+
+  private void writeValues(Collection<?> values) throws IOException {
+    writeInt(values.size());
+    for (Object value : values) {
+      writeValue(value);
+    }
+  }
+
+  private void writeSelectorList(SelectorList<?> selectorList) throws IOException {
+    writeInt(selectorList.getSelectors().size());
+    for (Selector<?> selector : selectorList.getSelectors()) {
+      writeInt(selector.getEntries().size());
+      for (Map.Entry<Label, ?> entry : selector.getEntries().entrySet()) {
+        writeLabel(entry.getKey());
+        writeValue(entry.getValue());
+        writeBoolean(selector.isValueSet(entry.getKey()));
+      }
+      writeString(selector.getNoMatchError());
+      writeBoolean(selector.hasDefault());
+    }
+  }
+
+  private void writeFilesetEntry(FilesetEntry entry) throws IOException {
+    writeLabel(entry.getSrcLabel());
+    writeBoolean(entry.getFiles() != null);
+    if (entry.getFiles() != null) {
+      writeLabels(entry.getFiles());
+    }
+    writeBoolean(entry.getExcludes() != null);
+    if (entry.getExcludes() != null) {
+      writeStrings(entry.getExcludes());
+    }
+    writeString(entry.getDestDir().getPathString());
+    writeInt(entry.getSymlinkBehavior().ordinal());
+    writeString(entry.getStripPrefix());
+  }
+
+  private void writeLicense(License license) throws IOException {
+    writeInt(license.getLicenseTypes().size());
+    for (LicenseType type : license.getLicenseTypes()) {
+      writeInt(type.ordinal());
+    }
+    writeLabels(license.getExceptions());
+  }
+
+  private void writeDistributions(Set<DistributionType> distributions) throws IOException {
+    writeInt(distributions.size());
+    for (DistributionType distribution : distributions) {
+      writeInt(distribution.ordinal());
+    }
+  }
+
+  private void writeLocation(@Nullable Location location) throws IOException {
+    if (location == null) {
+      writeInt(NO_LOCATION);
+    } else if (location == Location.BUILTIN) {
+      writeInt(BUILTIN_LOCATION);
+    } else {
+      writeInt(FILE_LOCATION);
+      PathFragment path = location.getPath();
+      writeString(path == null ? null : path.getPathString());
+      writeInt(location.getStartOffset());
+      writeInt(location.getEndOffset());
+      LineAndColumn start = location.getStartLineAndColumn();
+      writeBoolean(start != null);
+      if (start != null) {
+        writeInt(start.getLine());
+        writeInt(start.getColumn());
+      }
+    }
+  }
+
+  private void writeLabels(Collection<Label> labels) throws IOException {
+    writeInt(labels.size());
+    for (Label label : labels) {
+      writeLabel(label);
+    }
+  }
+
+  private void writeLabel(Label label) throws IOException {
+    Integer index = labels.get(label);
+    if (index != null) {
+      writeInt(index + FIRST_INDEX);
+      return;
+    }
+    labels.put(label, labels.size());
+    writeInt(NEW_REFERENCE);
+    writeString(label.getPackageIdentifier().getRepository().getName());
+    writeString(label.getPackageName());
+    writeString(label.getName());
+  }
+
+  private void writeStrings(Collection<String> strings) throws IOException {
+    writeInt(strings.size());
+    for (String string : strings) {
+      writeString(string);
+    }
+  }
+
+  private void writeString(@Nullable String string) throws IOException {
+    if (string == null) {
+      writeInt(NULL_REFERENCE);
+      return;
+    }
+    Integer index = strings.get(string);
+    if (index != null) {
+      writeInt(index + FIRST_INDEX);
+      return;
+    }
+    strings.put(string, strings.size());
+    writeInt(NEW_REFERENCE);
+    byte[] bytes = string.getBytes(UTF_8);
+    writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  private void writeBoolean(boolean b) {
+    out.write(b ? 1 : 0);
+  }
+
+  private void writeInt(int i) throws IOException {
+    VarInt.putVarInt(i, out);
+  }
+}
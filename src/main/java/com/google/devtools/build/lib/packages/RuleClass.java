@@ -27,10 +27,12 @@ import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Interner;
 import com.google.common.collect.Ordering;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.concurrent.BlazeInterners;
 import com.google.devtools.build.lib.events.EventHandler;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.NullEventHandler;
@@ -111,6 +113,14 @@ public class RuleClass {
 
   public static final PathFragment THIRD_PARTY_PREFIX = PathFragment.create("third_party");
 
+  /**
+   * Canonical instances of the list values of attributes. Equal lists (e.g. the same {@code
+   * visibility}, {@code copts} or {@code deps} repeated across rules and packages) are retained
+   * only once.
+   */
+  static final Interner<ImmutableList<?>> LIST_VALUE_INTERNER =
+      BlazeInterners.newWeakInterner();
+
   /**
    * A constraint for the package name of the Rule instances.
    */
@@ -1811,7 +1821,8 @@ public class RuleClass {
   /**
    * Converts the build-language-typed {@code buildLangValue} to a native value via {@link
    * BuildType#selectableConvert}. Canonicalizes the value's order if it is a {@link List} type
-   * (but not a {@link GlobList}) and {@code attr.isOrderIndependent()} returns {@code true}.
+   * (but not a {@link GlobList}) and {@code attr.isOrderIndependent()} returns {@code true}. Such
+   * lists are also interned, so that equal values are shared between rules.
    *
    * <p>Throws {@link ConversionException} if the conversion fails, or if {@code buildLangValue}
    * is a selector expression but {@code attr.isConfigurable()} is {@code false}.
@@ -1835,7 +1846,7 @@ public class RuleClass {
         List<? extends Comparable<?>> list = (List<? extends Comparable<?>>) converted;
         converted = Ordering.natural().sortedCopy(list);
       }
-      converted = ImmutableList.copyOf((List<?>) converted);
+      converted = LIST_VALUE_INTERNER.intern(ImmutableList.copyOf((List<?>) converted));
     }
 
     return converted;
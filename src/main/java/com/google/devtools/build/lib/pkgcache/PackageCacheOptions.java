@@ -136,6 +136,49 @@ public class PackageCacheOptions extends OptionsBase {
   )
   public int maxDirectoriesToEagerlyVisitInGlobbing;
 
+  @Option(
+    name = "experimental_ast_disk_cache",
+    defaultValue = "false",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "If true, the parsed ASTs of BUILD and .bzl files are stored in the output base, keyed by "
+            + "the digest of their contents, and reused instead of parsing the files again after "
+            + "a server restart."
+  )
+  public boolean astDiskCache;
+
+  @Option(
+    name = "experimental_ast_disk_cache_max_size_mb",
+    defaultValue = "1024",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "The size limit of the cache enabled by --experimental_ast_disk_cache. When the cache is "
+            + "set up, the least recently used ASTs are deleted until it is within the limit."
+  )
+  public int astDiskCacheMaxSizeMb;
+
+  @Option(
+    name = "experimental_package_disk_cache",
+    defaultValue = "false",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "If true, loaded packages are stored in the output base, keyed by the contents of their "
+            + "BUILD file and of the .bzl files it loads, and reused instead of evaluating the "
+            + "BUILD file again after a server restart, as long as its globs match the same files."
+  )
+  public boolean packageDiskCache;
+
+  @Option(
+    name = "experimental_package_disk_cache_max_size_mb",
+    defaultValue = "1024",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "The size limit of the cache enabled by --experimental_package_disk_cache. When the cache "
+            + "is set up, the least recently used packages are deleted until it is within the "
+            + "limit."
+  )
+  public int packageDiskCacheMaxSizeMb;
+
   @Option(
     name = "fetch",
     defaultValue = "true",
@@ -37,10 +37,13 @@ import com.google.devtools.build.lib.pkgcache.TargetProvider;
 import com.google.devtools.build.lib.pkgcache.TransitivePackageLoader;
 import com.google.devtools.build.lib.query2.engine.Callback;
 import com.google.devtools.build.lib.query2.engine.DigraphQueryEvalResult;
+import com.google.devtools.build.lib.query2.engine.ElementIds;
 import com.google.devtools.build.lib.query2.engine.MinDepthUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.BitmapUniquifier;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.DenseMinDepthUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.MinDepthUniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.SkyframeRestartQueryException;
@@ -58,6 +61,7 @@ import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import javax.annotation.Nullable;
 
 /**
  * The environment of a Blaze query. Not thread-safe.
@@ -81,6 +85,7 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   protected final int loadingPhaseThreads;
 
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
+  @Nullable private final ElementIds<Target> elementIds;
 
   /**
    * Note that the correct operation of this class critically depends on the Reporter being a
@@ -112,6 +117,10 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     this.errorObserver = new ErrorPrintingTargetEdgeErrorObserver(this.eventHandler);
     this.loadingPhaseThreads = loadingPhaseThreads;
     this.labelVisitor = new LabelVisitor(targetProvider, dependencyFilter);
+    this.elementIds =
+        settings.contains(Setting.BITMAP_SETS)
+            ? new ElementIds<>(TargetKeyExtractor.INSTANCE)
+            : null;
   }
 
   @Override
@@ -290,12 +299,21 @@ public class BlazeQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   @Override
   public Uniquifier<Target> createUniquifier() {
-    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE);
+    return elementIds != null
+        ? new BitmapUniquifier<>(elementIds)
+        : new UniquifierImpl<>(TargetKeyExtractor.INSTANCE);
   }
 
   @Override
   public MinDepthUniquifier<Target> createMinDepthUniquifier() {
-    return new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, /*concurrencyLevel=*/ 1);
+    return elementIds != null
+        ? new DenseMinDepthUniquifier<>(elementIds)
+        : new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, /*concurrencyLevel=*/ 1);
+  }
+
+  @Override
+  public ElementIds<Target> getElementIds() {
+    return elementIds;
   }
 
   private void preloadTransitiveClosure(Set<Target> targets, int maxDepth)
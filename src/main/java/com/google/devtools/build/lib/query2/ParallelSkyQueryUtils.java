@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.query2;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableList;
@@ -24,15 +25,19 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
+import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.concurrent.MultisetSemaphore;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.KeyExtractor;
+import com.google.devtools.build.lib.query2.engine.MinDepthUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryTaskFuture;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.Uniquifier;
 import com.google.devtools.build.lib.query2.engine.VariableContext;
 import com.google.devtools.build.lib.skyframe.PackageValue;
@@ -40,11 +45,19 @@ import com.google.devtools.build.lib.skyframe.SkyFunctions;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.skyframe.SkyKey;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
+import java.util.Deque;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicReference;
+import javax.annotation.Nullable;
 
 /**
  * Parallel implementations of various functionality in {@link SkyQueryEnvironment}.
@@ -80,6 +93,90 @@ class ParallelSkyQueryUtils {
             new AllRdepsUnboundedVisitor.Factory(env, callback, packageSemaphore)));
   }
 
+  /**
+   * Specialized parallel variant of 'deps', with or without a depth bound. {@code caller} is the
+   * 'deps' expression, whose transitive closure errors are reported like in {@link
+   * SkyQueryEnvironment#buildTransitiveClosure}.
+   */
+  static QueryTaskFuture<Void> getDepsParallel(
+      final SkyQueryEnvironment env,
+      final QueryExpression caller,
+      QueryExpression expression,
+      VariableContext<Target> context,
+      Callback<Target> callback,
+      final int depth,
+      MultisetSemaphore<PackageIdentifier> packageSemaphore) {
+    final Callback<Target> visitorCallback =
+        ParallelVisitor.createParallelVisitorCallback(
+            new DepsVisitor.Factory(env, callback, depth, packageSemaphore));
+    return env.eval(
+        expression,
+        context,
+        new Callback<Target>() {
+          @Override
+          public void process(Iterable<Target> partialResult)
+              throws QueryException, InterruptedException {
+            env.buildTransitiveClosure(caller, ImmutableSet.copyOf(partialResult), depth);
+            visitorCallback.process(partialResult);
+          }
+        });
+  }
+
+  /** Specialized parallel variant of 'somepath', which searches from both ends at once. */
+  static void getSomePathParallel(
+      SkyQueryEnvironment env,
+      Set<Target> from,
+      Set<Target> to,
+      Callback<Target> callback,
+      MultisetSemaphore<PackageIdentifier> packageSemaphore)
+      throws QueryException, InterruptedException {
+    ImmutableSet<SkyKey> fromKeys =
+        ImmutableSet.copyOf(SkyQueryEnvironment.makeTransitiveTraversalKeysStrict(from));
+    ImmutableSet<SkyKey> toKeys =
+        ImmutableSet.copyOf(SkyQueryEnvironment.makeTransitiveTraversalKeysStrict(to));
+    SomePathVisitor visitor =
+        new SomePathVisitor(env, fromKeys, toKeys, callback, packageSemaphore);
+    visitor.visitAndWaitForCompletion(Sets.union(fromKeys, toKeys));
+    List<SkyKey> path = visitor.getPath();
+    callback.process(
+        path == null ? ImmutableList.<Target>of() : env.makeTargetsFromSkyKeysInOrder(path));
+  }
+
+  /**
+   * Specialized parallel variant of 'allpaths'. Computes the forward transitive closure of "from",
+   * then the reverse transitive closure of "to" within it, which is the result.
+   */
+  static void getAllPathsParallel(
+      SkyQueryEnvironment env,
+      Set<Target> from,
+      Set<Target> to,
+      Callback<Target> callback,
+      MultisetSemaphore<PackageIdentifier> packageSemaphore)
+      throws QueryException, InterruptedException {
+    final Set<SkyKey> reachableKeys =
+        Collections.newSetFromMap(new ConcurrentHashMap<SkyKey, Boolean>());
+    Callback<Target> reachableCallback =
+        new Callback<Target>() {
+          @Override
+          public void process(Iterable<Target> partialResult) {
+            Iterables.addAll(
+                reachableKeys,
+                SkyQueryEnvironment.makeTransitiveTraversalKeysStrict(partialResult));
+          }
+        };
+    new DepsVisitor(
+            env,
+            new MinDepthKeyUniquifier(env.createMinDepthSkyKeyUniquifier()),
+            env.createSkyKeyUniquifier(),
+            reachableCallback,
+            Integer.MAX_VALUE,
+            packageSemaphore)
+        .visitAndWaitForCompletion(SkyQueryEnvironment.makeTransitiveTraversalKeysStrict(from));
+    new RdepsWithinVisitor(
+            env, env.createSkyKeyUniquifier(), callback, reachableKeys, packageSemaphore)
+        .visitAndWaitForCompletion(SkyQueryEnvironment.makeTransitiveTraversalKeysStrict(to));
+  }
+
   /** Specialized parallel variant of {@link SkyQueryEnvironment#getRBuildFiles}. */
   static void getRBuildFilesParallel(
       SkyQueryEnvironment env,
@@ -211,6 +308,13 @@ class ParallelSkyQueryUtils {
     protected Visit getVisitResult(Iterable<Pair<SkyKey, SkyKey>> keys)
         throws InterruptedException {
       Collection<SkyKey> filteredKeys = new ArrayList<>();
+      if (env.reverseDepsAreFiltered()) {
+        // The pairs only hold allowed deps, so there is nothing to targetify yet.
+        for (Pair<SkyKey, SkyKey> reverseDepPair : keys) {
+          filteredKeys.add(Preconditions.checkNotNull(reverseDepPair.second));
+        }
+        return getVisitResultOfFilteredKeys(filteredKeys);
+      }
 
       // Build a raw reverse dep map from pairs of SkyKeys to filter out the disallowed deps.
       Map<SkyKey, Collection<SkyKey>> reverseDepsMap = Maps.newHashMap();
@@ -252,9 +356,14 @@ class ParallelSkyQueryUtils {
         packageSemaphore.releaseAll(pkgIdsNeededForTargetification);
       }
 
+      return getVisitResultOfFilteredKeys(filteredKeys);
+    }
+
+    private Visit getVisitResultOfFilteredKeys(Collection<SkyKey> filteredKeys)
+        throws InterruptedException {
       // Retrieve the reverse deps as SkyKeys and defer the targetification and filtering to next
       // recursive visitation.
-      Map<SkyKey, Iterable<SkyKey>> unfilteredReverseDeps = env.graph.getReverseDeps(filteredKeys);
+      Map<SkyKey, Iterable<SkyKey>> unfilteredReverseDeps = env.getReverseDepsOfKeys(filteredKeys);
 
       ImmutableList.Builder<Pair<SkyKey, SkyKey>> builder = ImmutableList.builder();
       for (Map.Entry<SkyKey, Iterable<SkyKey>> rdeps : unfilteredReverseDeps.entrySet()) {
@@ -273,20 +382,7 @@ class ParallelSkyQueryUtils {
     protected void processResultantTargets(
         Iterable<SkyKey> keysToUseForResult, Callback<Target> callback)
             throws QueryException, InterruptedException {
-      Multimap<SkyKey, SkyKey> packageKeyToTargetKeyMap =
-          env.makePackageKeyToTargetKeyMap(keysToUseForResult);
-      Set<PackageIdentifier> pkgIdsNeededForResult =
-          ImmutableSet.copyOf(
-            Iterables.transform(
-                packageKeyToTargetKeyMap.keySet(),
-                SkyQueryEnvironment.PACKAGE_SKYKEY_TO_PACKAGE_IDENTIFIER));
-      packageSemaphore.acquireAll(pkgIdsNeededForResult);
-      try {
-        callback.process(
-            env.makeTargetsFromPackageKeyToTargetKeyMap(packageKeyToTargetKeyMap).values());
-      } finally {
-        packageSemaphore.releaseAll(pkgIdsNeededForResult);
-      }
+      processTargetKeys(env, keysToUseForResult, callback, packageSemaphore);
     }
 
     @Override
@@ -330,5 +426,381 @@ class ParallelSkyQueryUtils {
       return builder.build();
     }
   }
-}
 
+  /**
+   * A helper class that computes 'deps(<blah>)' and 'deps(<blah>, <depth>)' via BFS.
+   *
+   * <p>Keys are visited along with their depth, so that with a depth bound a key found again at a
+   * smaller depth than before is visited again. Without a depth bound, all the depths are 0 and
+   * each key is visited once.
+   */
+  private static class DepsVisitor extends ParallelVisitor<Pair<SkyKey, Integer>> {
+    private final SkyQueryEnvironment env;
+    private final Uniquifier<SkyKey> resultUniquifier;
+    private final int depthBound;
+    private final MultisetSemaphore<PackageIdentifier> packageSemaphore;
+
+    private DepsVisitor(
+        SkyQueryEnvironment env,
+        Uniquifier<Pair<SkyKey, Integer>> uniquifier,
+        Uniquifier<SkyKey> resultUniquifier,
+        Callback<Target> callback,
+        int depthBound,
+        MultisetSemaphore<PackageIdentifier> packageSemaphore) {
+      super(uniquifier, callback, VISIT_BATCH_SIZE);
+      this.env = env;
+      this.resultUniquifier = resultUniquifier;
+      this.depthBound = depthBound;
+      this.packageSemaphore = packageSemaphore;
+    }
+
+    /**
+     * A {@link Factory} for {@link DepsVisitor} instances, which share their {@link Uniquifier}s
+     * like those of {@link AllRdepsUnboundedVisitor.Factory}.
+     */
+    private static class Factory implements ParallelVisitor.Factory {
+      private final SkyQueryEnvironment env;
+      private final Uniquifier<Pair<SkyKey, Integer>> uniquifier;
+      private final Uniquifier<SkyKey> resultUniquifier;
+      private final Callback<Target> callback;
+      private final int depthBound;
+      private final MultisetSemaphore<PackageIdentifier> packageSemaphore;
+
+      private Factory(
+          SkyQueryEnvironment env,
+          Callback<Target> callback,
+          int depthBound,
+          MultisetSemaphore<PackageIdentifier> packageSemaphore) {
+        this.env = env;
+        this.uniquifier = new MinDepthKeyUniquifier(env.createMinDepthSkyKeyUniquifier());
+        this.resultUniquifier = env.createSkyKeyUniquifier();
+        this.callback = callback;
+        this.depthBound = depthBound;
+        this.packageSemaphore = packageSemaphore;
+      }
+
+      @Override
+      public ParallelVisitor<Pair<SkyKey, Integer>> create() {
+        return new DepsVisitor(
+            env, uniquifier, resultUniquifier, callback, depthBound, packageSemaphore);
+      }
+    }
+
+    @Override
+    protected Visit getVisitResult(Iterable<Pair<SkyKey, Integer>> keys)
+        throws InterruptedException {
+      ListMultimap<Integer, SkyKey> keysByDepth = ArrayListMultimap.create();
+      for (Pair<SkyKey, Integer> key : keys) {
+        keysByDepth.put(key.second, key.first);
+      }
+      ImmutableList.Builder<Pair<SkyKey, Integer>> keysToVisit = ImmutableList.builder();
+      for (int depth : keysByDepth.keySet()) {
+        if (depth >= depthBound) {
+          continue;
+        }
+        int depDepth = depthBound == Integer.MAX_VALUE ? 0 : depth + 1;
+        for (Collection<Target> deps :
+            getFwdDepsOfEach(env, keysByDepth.get(depth), packageSemaphore).values()) {
+          for (Target dep : deps) {
+            keysToVisit.add(Pair.of(SkyQueryEnvironment.TARGET_TO_SKY_KEY.apply(dep), depDepth));
+          }
+        }
+      }
+      // A key visited again at a smaller depth is already in the result.
+      return new Visit(
+          /*keysToUseForResult=*/ resultUniquifier.unique(keysByDepth.values()),
+          /*keysToVisit=*/ keysToVisit.build());
+    }
+
+    @Override
+    protected void processResultantTargets(
+        Iterable<SkyKey> keysToUseForResult, Callback<Target> callback)
+        throws QueryException, InterruptedException {
+      processTargetKeys(env, keysToUseForResult, callback, packageSemaphore);
+    }
+
+    @Override
+    protected Iterable<Pair<SkyKey, Integer>> preprocessInitialVisit(Iterable<SkyKey> keys) {
+      return Iterables.transform(
+          keys,
+          new Function<SkyKey, Pair<SkyKey, Integer>>() {
+            @Override
+            public Pair<SkyKey, Integer> apply(SkyKey key) {
+              return Pair.of(key, 0);
+            }
+          });
+    }
+  }
+
+  /**
+   * A helper class that computes 'somepath(<from>, <to>)' via BFS from both ends at once: forward
+   * from "from" and backward from "to", until some key is reached from both sides.
+   *
+   * <p>Each side records the key it first reached each key from, so that the path through the
+   * meeting key can be read back towards both ends. The visitation stops at the first meeting.
+   */
+  private static class SomePathVisitor extends ParallelVisitor<PathStep> {
+    private final SkyQueryEnvironment env;
+    private final Set<SkyKey> fromKeys;
+    private final Set<SkyKey> toKeys;
+    private final MultisetSemaphore<PackageIdentifier> packageSemaphore;
+    // The key each visited key was reached from on either side. The keys of "from" and "to" map to
+    // themselves.
+    private final ConcurrentMap<SkyKey, SkyKey> forwardParents = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SkyKey, SkyKey> backwardParents = new ConcurrentHashMap<>();
+    private final AtomicReference<SkyKey> meetingKey = new AtomicReference<>();
+
+    private SomePathVisitor(
+        SkyQueryEnvironment env,
+        Set<SkyKey> fromKeys,
+        Set<SkyKey> toKeys,
+        Callback<Target> callback,
+        MultisetSemaphore<PackageIdentifier> packageSemaphore) {
+      super(
+          new UniquifierImpl<>(
+              PathStepKeyExtractor.INSTANCE, SkyQueryEnvironment.DEFAULT_THREAD_COUNT),
+          callback,
+          VISIT_BATCH_SIZE);
+      this.env = env;
+      this.fromKeys = fromKeys;
+      this.toKeys = toKeys;
+      this.packageSemaphore = packageSemaphore;
+    }
+
+    @Override
+    protected Visit getVisitResult(Iterable<PathStep> steps) throws InterruptedException {
+      List<SkyKey> forwardKeys = new ArrayList<>();
+      List<SkyKey> backwardKeys = new ArrayList<>();
+      for (PathStep step : steps) {
+        Map<SkyKey, SkyKey> parents = step.forward ? forwardParents : backwardParents;
+        Map<SkyKey, SkyKey> otherParents = step.forward ? backwardParents : forwardParents;
+        parents.put(step.key, step.parent);
+        // Both sides record a key before checking the other side, so at least one finds a key
+        // reached from both.
+        if (otherParents.containsKey(step.key)) {
+          meetingKey.compareAndSet(null, step.key);
+          stopVisitation();
+          return new Visit(ImmutableList.<SkyKey>of(), ImmutableList.<PathStep>of());
+        }
+        (step.forward ? forwardKeys : backwardKeys).add(step.key);
+      }
+
+      ImmutableList.Builder<PathStep> keysToVisit = ImmutableList.builder();
+      if (!forwardKeys.isEmpty()) {
+        for (Map.Entry<Target, Collection<Target>> entry :
+            getFwdDepsOfEach(env, forwardKeys, packageSemaphore).entrySet()) {
+          SkyKey key = SkyQueryEnvironment.TARGET_TO_SKY_KEY.apply(entry.getKey());
+          for (Target dep : entry.getValue()) {
+            keysToVisit.add(
+                new PathStep(SkyQueryEnvironment.TARGET_TO_SKY_KEY.apply(dep), key, true));
+          }
+        }
+      }
+      if (!backwardKeys.isEmpty()) {
+        for (Map.Entry<SkyKey, Collection<Target>> entry :
+            env.getReverseDepsOfEach(backwardKeys).entrySet()) {
+          for (Target rdep : entry.getValue()) {
+            keysToVisit.add(
+                new PathStep(
+                    SkyQueryEnvironment.TARGET_TO_SKY_KEY.apply(rdep), entry.getKey(), false));
+          }
+        }
+      }
+      return new Visit(ImmutableList.<SkyKey>of(), keysToVisit.build());
+    }
+
+    /** Returns the keys on the path that was found, or null if there is no path. */
+    @Nullable
+    private List<SkyKey> getPath() {
+      SkyKey meeting = meetingKey.get();
+      if (meeting == null) {
+        return null;
+      }
+      Deque<SkyKey> path = new ArrayDeque<>();
+      path.add(meeting);
+      for (SkyKey key = meeting; !forwardParents.get(key).equals(key); ) {
+        key = forwardParents.get(key);
+        path.addFirst(key);
+      }
+      for (SkyKey key = meeting; !backwardParents.get(key).equals(key); ) {
+        key = backwardParents.get(key);
+        path.addLast(key);
+      }
+      return ImmutableList.copyOf(path);
+    }
+
+    @Override
+    protected void processResultantTargets(
+        Iterable<SkyKey> keysToUseForResult, Callback<Target> callback)
+        throws QueryException, InterruptedException {
+      processTargetKeys(env, keysToUseForResult, callback, packageSemaphore);
+    }
+
+    @Override
+    protected Iterable<PathStep> preprocessInitialVisit(Iterable<SkyKey> keys) {
+      ImmutableList.Builder<PathStep> steps = ImmutableList.builder();
+      for (SkyKey key : keys) {
+        if (fromKeys.contains(key)) {
+          steps.add(new PathStep(key, key, true));
+        }
+        if (toKeys.contains(key)) {
+          steps.add(new PathStep(key, key, false));
+        }
+      }
+      return steps.build();
+    }
+  }
+
+  /** A key to visit by {@link SomePathVisitor} on one side, with the key it was reached from. */
+  private static final class PathStep {
+    private final SkyKey key;
+    private final SkyKey parent;
+    private final boolean forward;
+
+    private PathStep(SkyKey key, SkyKey parent, boolean forward) {
+      this.key = key;
+      this.parent = parent;
+      this.forward = forward;
+    }
+  }
+
+  /** A {@link KeyExtractor} that tells apart the visits of a key on either side. */
+  private static class PathStepKeyExtractor
+      implements KeyExtractor<PathStep, Pair<SkyKey, Boolean>> {
+    private static final PathStepKeyExtractor INSTANCE = new PathStepKeyExtractor();
+
+    private PathStepKeyExtractor() {
+    }
+
+    @Override
+    public Pair<SkyKey, Boolean> extractKey(PathStep element) {
+      return Pair.of(element.key, element.forward);
+    }
+  }
+
+  /**
+   * A helper class that computes the reverse transitive closure of keys within a given set of
+   * keys via BFS, for 'allpaths'.
+   */
+  private static class RdepsWithinVisitor extends ParallelVisitor<SkyKey> {
+    private final SkyQueryEnvironment env;
+    private final Set<SkyKey> withinKeys;
+    private final MultisetSemaphore<PackageIdentifier> packageSemaphore;
+
+    private RdepsWithinVisitor(
+        SkyQueryEnvironment env,
+        Uniquifier<SkyKey> uniquifier,
+        Callback<Target> callback,
+        Set<SkyKey> withinKeys,
+        MultisetSemaphore<PackageIdentifier> packageSemaphore) {
+      super(uniquifier, callback, VISIT_BATCH_SIZE);
+      this.env = env;
+      this.withinKeys = withinKeys;
+      this.packageSemaphore = packageSemaphore;
+    }
+
+    @Override
+    protected Visit getVisitResult(Iterable<SkyKey> keys) throws InterruptedException {
+      ImmutableList.Builder<SkyKey> keysToVisit = ImmutableList.builder();
+      for (Target rdep : env.getReverseDepsOfTransitiveTraversalKeys(keys)) {
+        SkyKey rdepKey = SkyQueryEnvironment.TARGET_TO_SKY_KEY.apply(rdep);
+        if (withinKeys.contains(rdepKey)) {
+          keysToVisit.add(rdepKey);
+        }
+      }
+      return new Visit(/*keysToUseForResult=*/ keys, /*keysToVisit=*/ keysToVisit.build());
+    }
+
+    @Override
+    protected void processResultantTargets(
+        Iterable<SkyKey> keysToUseForResult, Callback<Target> callback)
+        throws QueryException, InterruptedException {
+      processTargetKeys(env, keysToUseForResult, callback, packageSemaphore);
+    }
+
+    @Override
+    protected Iterable<SkyKey> preprocessInitialVisit(Iterable<SkyKey> keys) {
+      return Iterables.filter(keys, Predicates.in(withinKeys));
+    }
+  }
+
+  /**
+   * A {@link Uniquifier} of keys visited at a depth, which lets a key through again if it's
+   * visited at a smaller depth than before.
+   */
+  private static class MinDepthKeyUniquifier implements Uniquifier<Pair<SkyKey, Integer>> {
+    private final MinDepthUniquifier<SkyKey> minDepthUniquifier;
+
+    private MinDepthKeyUniquifier(MinDepthUniquifier<SkyKey> minDepthUniquifier) {
+      this.minDepthUniquifier = minDepthUniquifier;
+    }
+
+    @Override
+    public boolean unique(Pair<SkyKey, Integer> newElement) {
+      return !minDepthUniquifier
+          .uniqueAtDepthLessThanOrEqualTo(ImmutableList.of(newElement.first), newElement.second)
+          .isEmpty();
+    }
+
+    @Override
+    public ImmutableList<Pair<SkyKey, Integer>> unique(
+        Iterable<Pair<SkyKey, Integer>> newElements) {
+      ImmutableList.Builder<Pair<SkyKey, Integer>> result = ImmutableList.builder();
+      for (Pair<SkyKey, Integer> element : newElements) {
+        if (unique(element)) {
+          result.add(element);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * Returns the deps of each of the targets of the given keys, holding permits for the packages of
+   * the targets while looking them up.
+   */
+  private static Map<Target, Collection<Target>> getFwdDepsOfEach(
+      SkyQueryEnvironment env,
+      Iterable<SkyKey> keys,
+      MultisetSemaphore<PackageIdentifier> packageSemaphore)
+      throws InterruptedException {
+    Multimap<SkyKey, SkyKey> packageKeyToTargetKeyMap = env.makePackageKeyToTargetKeyMap(keys);
+    Set<PackageIdentifier> pkgIdsNeededForTargetification =
+        ImmutableSet.copyOf(
+            Iterables.transform(
+                packageKeyToTargetKeyMap.keySet(),
+                SkyQueryEnvironment.PACKAGE_SKYKEY_TO_PACKAGE_IDENTIFIER));
+    packageSemaphore.acquireAll(pkgIdsNeededForTargetification);
+    try {
+      return env.getFwdDepsOfEach(
+          env.makeTargetsFromPackageKeyToTargetKeyMap(packageKeyToTargetKeyMap).values());
+    } finally {
+      packageSemaphore.releaseAll(pkgIdsNeededForTargetification);
+    }
+  }
+
+  /**
+   * Passes the targets of the given keys to {@code callback}, holding permits for their packages
+   * meanwhile.
+   */
+  private static void processTargetKeys(
+      SkyQueryEnvironment env,
+      Iterable<SkyKey> keys,
+      Callback<Target> callback,
+      MultisetSemaphore<PackageIdentifier> packageSemaphore)
+      throws QueryException, InterruptedException {
+    Multimap<SkyKey, SkyKey> packageKeyToTargetKeyMap = env.makePackageKeyToTargetKeyMap(keys);
+    Set<PackageIdentifier> pkgIdsNeededForResult =
+        ImmutableSet.copyOf(
+            Iterables.transform(
+                packageKeyToTargetKeyMap.keySet(),
+                SkyQueryEnvironment.PACKAGE_SKYKEY_TO_PACKAGE_IDENTIFIER));
+    packageSemaphore.acquireAll(pkgIdsNeededForResult);
+    try {
+      callback.process(
+          env.makeTargetsFromPackageKeyToTargetKeyMap(packageKeyToTargetKeyMap).values());
+    } finally {
+      packageSemaphore.releaseAll(pkgIdsNeededForResult);
+    }
+  }
+}
@@ -51,6 +51,9 @@ public abstract class ParallelVisitor<T> {
   /** A queue to store pending visits. */
   private final LinkedBlockingQueue<T> processingQueue = new LinkedBlockingQueue<>();
 
+  /** Whether {@link #stopVisitation} was called. */
+  private volatile boolean stopped = false;
+
   /**
    * The max time interval between two scheduling passes in milliseconds. A scheduling pass is
    * defined as the scheduler thread determining whether to drain all pending visits from the queue
@@ -158,6 +161,14 @@ public abstract class ParallelVisitor<T> {
   /** Gets the first {@link Visit} representing the entry-level SkyKeys. */
   protected abstract Iterable<T> preprocessInitialVisit(Iterable<SkyKey> keys);
 
+  /**
+   * Stops the visitation before all the keys are visited, for visitations that found what they
+   * were looking for. Visits in progress complete, but no new ones start.
+   */
+  protected void stopVisitation() {
+    stopped = true;
+  }
+
   /** Gets tasks to visit pending keys. */
   protected Iterable<Task> getVisitTasks(Collection<T> pendingKeysToVisit) {
     ImmutableList.Builder<Task> builder = ImmutableList.builder();
@@ -194,6 +205,9 @@ public abstract class ParallelVisitor<T> {
 
     @Override
     void process() throws InterruptedException {
+      if (stopped) {
+        return;
+      }
       ImmutableList<T> uniqueKeys = uniquifier.unique(keysToVisit);
       if (uniqueKeys.isEmpty()) {
         return;
@@ -242,7 +256,10 @@ public abstract class ParallelVisitor<T> {
       // 1. Errors (QueryException or InterruptedException) occurred and visitations should fail
       //    fast.
       // 2. There is no pending visit in the queue and no pending task running.
-      while (!mustJobsBeStopped() && (!processingQueue.isEmpty() || getTaskCount() > 0)) {
+      // 3. The visitation was stopped early.
+      while (!mustJobsBeStopped()
+          && !stopped
+          && (!processingQueue.isEmpty() || getTaskCount() > 0)) {
         // To achieve maximum efficiency, queue is drained in either of the following two
         // conditions:
         //
@@ -0,0 +1,287 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.Weigher;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.common.collect.Ordering;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.DelegatingEventHandler;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.EventKind;
+import com.google.devtools.build.lib.events.ExtendedEventHandler;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.BinaryOperatorExpression;
+import com.google.devtools.build.lib.query2.engine.Lexer;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * Caches the results of the queries evaluated by {@link SkyQueryEnvironment}s against the graph of
+ * a graph factory, so that repeating a query is only a lookup.
+ *
+ * <p>Results are keyed by the universe, the query settings and the normalized query expression. A
+ * {@link SkyQueryEnvironment} only answers queries from its universe's part of the graph, so its
+ * results stay valid as long as the universe is up to date: any change to a package, file or
+ * target of the universe dirties it. The cache of a graph factory is cleared as soon as a universe
+ * is found out of date.
+ *
+ * <p>Results are cached as the labels of their targets, which are looked up in the graph again on a
+ * hit, so that the cache doesn't keep packages that are no longer in the graph alive. The warnings
+ * reported while evaluating a query are cached with its result, to be reported again on a hit.
+ */
+final class QueryResultCache {
+
+  /** The maximum total number of targets and warnings in the results cached for a graph factory. */
+  private static final int MAX_CACHED_TARGETS = 1 << 20;
+
+  private static final ConcurrentMap<WalkableGraphFactory, QueryResultCache> CACHES =
+      new MapMaker().weakKeys().makeMap();
+
+  private final Cache<Key, Result> results =
+      CacheBuilder.newBuilder()
+          .maximumWeight(MAX_CACHED_TARGETS)
+          .weigher(
+              new Weigher<Key, Result>() {
+                @Override
+                public int weigh(Key key, Result result) {
+                  return result.labels.size() + result.warnings.size() + 1;
+                }
+              })
+          .build();
+
+  /** Returns the cache of the results of queries against the graph of {@code graphFactory}. */
+  static QueryResultCache forGraphFactory(WalkableGraphFactory graphFactory) {
+    QueryResultCache cache = CACHES.get(graphFactory);
+    if (cache == null) {
+      QueryResultCache newCache = new QueryResultCache();
+      cache = CACHES.putIfAbsent(graphFactory, newCache);
+      if (cache == null) {
+        cache = newCache;
+      }
+    }
+    return cache;
+  }
+
+  /** Drops the cached results of queries against the graph of {@code graphFactory}. */
+  static void invalidate(WalkableGraphFactory graphFactory) {
+    CACHES.remove(graphFactory);
+  }
+
+  /** Returns the cached result of a query, or null. */
+  @Nullable
+  Result get(Key key) {
+    return results.getIfPresent(key);
+  }
+
+  /**
+   * Returns a callback that forwards to {@code callback} and records the targets it's given, so
+   * that they can be cached with {@link #put} once evaluation succeeds.
+   */
+  RecordingCallback record(ThreadSafeOutputFormatterCallback<Target> callback) {
+    return new RecordingCallback(callback);
+  }
+
+  /**
+   * Caches the targets recorded by {@code callback}, unless there were too many, along with the
+   * warnings reported while evaluating the query.
+   */
+  void put(Key key, RecordingCallback callback, ImmutableList<Event> warnings) {
+    ImmutableList<Label> labels = callback.getRecorded();
+    if (labels != null) {
+      results.put(key, new Result(labels, warnings));
+    }
+  }
+
+  /** The cached result of a query. */
+  static final class Result {
+    private final ImmutableList<Label> labels;
+    private final ImmutableList<Event> warnings;
+
+    private Result(ImmutableList<Label> labels, ImmutableList<Event> warnings) {
+      this.labels = labels;
+      this.warnings = warnings;
+    }
+
+    /** Returns the labels of the targets of the result, in the order they were first output. */
+    ImmutableList<Label> getLabels() {
+      return labels;
+    }
+
+    /** Returns the warnings reported while evaluating the query. */
+    ImmutableList<Event> getWarnings() {
+      return warnings;
+    }
+  }
+
+  /** The key of the result of a query. */
+  static final class Key {
+    private final SkyKey universeKey;
+    private final ImmutableSet<Setting> settings;
+    private final String expression;
+
+    Key(SkyKey universeKey, Set<Setting> settings, QueryExpression expression) {
+      this.universeKey = universeKey;
+      this.settings = ImmutableSet.copyOf(settings);
+      this.expression = expression.getMapped(NORMALIZER).toString();
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Key)) {
+        return false;
+      }
+      Key that = (Key) other;
+      return universeKey.equals(that.universeKey)
+          && settings.equals(that.settings)
+          && expression.equals(that.expression);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hash(universeKey, settings, expression);
+    }
+
+    @Override
+    public String toString() {
+      return expression;
+    }
+  }
+
+  /**
+   * Rewrites expressions with the same value to the same string: operators are spelled as words,
+   * and the operands of unions and intersections are sorted.
+   */
+  private static final QueryExpressionMapper NORMALIZER =
+      new QueryExpressionMapper() {
+        @Override
+        public QueryExpression map(BinaryOperatorExpression binaryOperatorExpression) {
+          BinaryOperatorExpression mapped =
+              (BinaryOperatorExpression) super.map(binaryOperatorExpression);
+          List<QueryExpression> operands = mapped.getOperands();
+          Lexer.TokenKind operator;
+          switch (mapped.getOperator()) {
+            case PLUS:
+            case UNION:
+              operator = Lexer.TokenKind.UNION;
+              operands = Ordering.usingToString().sortedCopy(operands);
+              break;
+            case CARET:
+            case INTERSECT:
+              operator = Lexer.TokenKind.INTERSECT;
+              operands = Ordering.usingToString().sortedCopy(operands);
+              break;
+            default:
+              operator = Lexer.TokenKind.EXCEPT;
+              break;
+          }
+          return new BinaryOperatorExpression(operator, operands);
+        }
+      };
+
+  /** Forwards the results of a query to another callback, and records their labels. */
+  static final class RecordingCallback extends ThreadSafeOutputFormatterCallback<Target> {
+    private final ThreadSafeOutputFormatterCallback<Target> callback;
+    // Null once more than MAX_CACHED_TARGETS targets were recorded. Guarded by this.
+    @Nullable private List<Label> recorded = new ArrayList<>();
+
+    private RecordingCallback(ThreadSafeOutputFormatterCallback<Target> callback) {
+      this.callback = callback;
+    }
+
+    @Override
+    public void start() throws IOException {
+      callback.start();
+    }
+
+    @Override
+    public void processOutput(Iterable<Target> partialResult)
+        throws IOException, InterruptedException {
+      synchronized (this) {
+        if (recorded != null) {
+          for (Target target : partialResult) {
+            recorded.add(target.getLabel());
+          }
+          if (recorded.size() > MAX_CACHED_TARGETS) {
+            recorded = null;
+          }
+        }
+      }
+      callback.processOutput(partialResult);
+    }
+
+    @Override
+    public void close(boolean failFast) throws InterruptedException, IOException {
+      callback.close(failFast);
+    }
+
+    @Nullable
+    private synchronized ImmutableList<Label> getRecorded() {
+      return recorded == null ? null : ImmutableList.copyOf(recorded);
+    }
+  }
+
+  /**
+   * Forwards events to another handler, and records the warnings among them while a query is
+   * evaluated, so that they can be cached with its result.
+   */
+  static final class WarningRecorder extends DelegatingEventHandler {
+    // Null unless recording. Guarded by this.
+    @Nullable private List<Event> warnings;
+
+    WarningRecorder(ExtendedEventHandler delegate) {
+      super(delegate);
+    }
+
+    @Override
+    public void handle(Event e) {
+      if (e.getKind() == EventKind.WARNING) {
+        synchronized (this) {
+          if (warnings != null) {
+            warnings.add(e);
+          }
+        }
+      }
+      super.handle(e);
+    }
+
+    /** Starts recording warnings, dropping those recorded before. */
+    synchronized void startRecording() {
+      warnings = new ArrayList<>();
+    }
+
+    /** Stops recording warnings, and returns those recorded since {@link #startRecording}. */
+    synchronized ImmutableList<Event> stopRecording() {
+      ImmutableList<Event> result =
+          warnings == null ? ImmutableList.<Event>of() : ImmutableList.copyOf(warnings);
+      warnings = null;
+      return result;
+    }
+  }
+}
@@ -0,0 +1,259 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.MapMaker;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentMap;
+import javax.annotation.Nullable;
+
+/**
+ * The reverse deps of the nodes of a query universe, stored compactly so that reverse
+ * dependency queries don't need to ask the graph for the reverse deps of each node and filter them
+ * again.
+ *
+ * <p>Nodes are numbered, and the reverse deps of node {@code i} are the nodes whose numbers are in
+ * {@code rdeps[offsets[i]]} to {@code rdeps[offsets[i + 1] - 1]}, each once. The numbers of the
+ * keys are found in an open-addressed table of ints rather than a map of boxed integers. Only the
+ * edges allowed by the dependency filter of the query settings the index was built for are stored.
+ *
+ * <p>An index is immutable and only valid for the universe and settings it was built for, as long
+ * as the universe is up to date in the graph it was built from.
+ */
+final class ReverseDepIndex {
+
+  /**
+   * The index last built from the graph of each graph factory. Later queries reuse it as long as
+   * its universe stays up to date in the graph.
+   */
+  private static final ConcurrentMap<WalkableGraphFactory, ReverseDepIndex> INDEXES =
+      new MapMaker().weakKeys().makeMap();
+
+  private final SkyKey universeKey;
+  private final ImmutableSet<Setting> settings;
+  private final SkyKey[] keys;
+  private final int[] table;
+  private final int[] offsets;
+  private final int[] rdeps;
+
+  private ReverseDepIndex(
+      SkyKey universeKey,
+      ImmutableSet<Setting> settings,
+      SkyKey[] keys,
+      int[] table,
+      int[] offsets,
+      int[] rdeps) {
+    this.universeKey = universeKey;
+    this.settings = settings;
+    this.keys = keys;
+    this.table = table;
+    this.offsets = offsets;
+    this.rdeps = rdeps;
+  }
+
+  /**
+   * Returns the index last built from the graph of {@code graphFactory} if it was built for the
+   * given universe and settings, or null.
+   */
+  @Nullable
+  static ReverseDepIndex getCached(
+      WalkableGraphFactory graphFactory, SkyKey universeKey, Set<Setting> settings) {
+    ReverseDepIndex index = INDEXES.get(graphFactory);
+    return index != null && index.isFor(universeKey, settings) ? index : null;
+  }
+
+  /** Records {@code index} as the index last built from the graph of {@code graphFactory}. */
+  static void cache(WalkableGraphFactory graphFactory, ReverseDepIndex index) {
+    INDEXES.put(graphFactory, index);
+  }
+
+  /** Drops the index built from the graph of {@code graphFactory}, whose edges may change. */
+  static void invalidate(WalkableGraphFactory graphFactory) {
+    INDEXES.remove(graphFactory);
+  }
+
+  /** Whether this index was built for the given universe and settings. */
+  boolean isFor(SkyKey universeKey, Set<Setting> settings) {
+    return this.universeKey.equals(universeKey) && this.settings.equals(settings);
+  }
+
+  /** The number of nodes in the index. */
+  int size() {
+    return keys.length;
+  }
+
+  /**
+   * Returns the reverse deps of those of the given keys that are in the index, like {@link
+   * com.google.devtools.build.skyframe.WalkableGraph#getReverseDeps}.
+   */
+  Map<SkyKey, Iterable<SkyKey>> getReverseDeps(Iterable<SkyKey> keys) {
+    Map<SkyKey, Iterable<SkyKey>> result = new HashMap<>();
+    for (SkyKey key : keys) {
+      int id = table[findSlot(this.keys, table, key)] - 1;
+      if (id >= 0) {
+        result.put(key, new ReverseDeps(offsets[id], offsets[id + 1]));
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Returns the slot of {@code table} holding the number plus one of {@code key} in {@code keys},
+   * or the empty slot where it belongs. The table has a power-of-two size and is never full.
+   */
+  private static int findSlot(SkyKey[] keys, int[] table, SkyKey key) {
+    int mask = table.length - 1;
+    int hash = key.hashCode() * 0x9E3779B9;
+    for (int slot = (hash ^ (hash >>> 16)) & mask; ; slot = (slot + 1) & mask) {
+      int id = table[slot] - 1;
+      if (id < 0 || keys[id].equals(key)) {
+        return slot;
+      }
+    }
+  }
+
+  /** A view of a range of {@link #rdeps}. */
+  private final class ReverseDeps extends AbstractList<SkyKey> {
+    private final int start;
+    private final int end;
+
+    private ReverseDeps(int start, int end) {
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public SkyKey get(int index) {
+      if (index < 0 || index >= size()) {
+        throw new IndexOutOfBoundsException(index + " of " + size());
+      }
+      return keys[rdeps[start + index]];
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+
+  /** Collects the nodes and edges of an index. Not thread-safe. */
+  static final class Builder {
+    private final SkyKey universeKey;
+    private final ImmutableSet<Setting> settings;
+    private SkyKey[] keys = new SkyKey[512];
+    private int size = 0;
+    // Kept at most half full.
+    private int[] table = new int[1024];
+    // The edges, as pairs of node numbers: a node at even indices, then one of its deps.
+    private int[] edges = new int[1024];
+    private int edgeCount = 0;
+
+    Builder(SkyKey universeKey, Set<Setting> settings) {
+      this.universeKey = Preconditions.checkNotNull(universeKey);
+      this.settings = ImmutableSet.copyOf(settings);
+    }
+
+    /** Adds a node, if it's not in the index yet. Returns whether it was added. */
+    boolean addNode(SkyKey key) {
+      int oldSize = size;
+      getOrAddId(key);
+      return size > oldSize;
+    }
+
+    /** Returns the number of {@code key}, numbering it first if it has none. */
+    private int getOrAddId(SkyKey key) {
+      int slot = findSlot(keys, table, key);
+      if (table[slot] != 0) {
+        return table[slot] - 1;
+      }
+      if (size == keys.length) {
+        keys = Arrays.copyOf(keys, size * 2);
+        table = rehash(keys, size, table.length * 2);
+        slot = findSlot(keys, table, key);
+      }
+      keys[size] = key;
+      table[slot] = ++size;
+      return size - 1;
+    }
+
+    private static int[] rehash(SkyKey[] keys, int size, int tableSize) {
+      int[] table = new int[tableSize];
+      for (int id = 0; id < size; id++) {
+        table[findSlot(keys, table, keys[id])] = id + 1;
+      }
+      return table;
+    }
+
+    /**
+     * Adds an edge from {@code key} to its dep {@code dep}, adding the nodes as needed. Adding an
+     * edge again has no effect.
+     */
+    void addEdge(SkyKey key, SkyKey dep) {
+      int keyId = getOrAddId(key);
+      int depId = getOrAddId(dep);
+      if (edgeCount == edges.length / 2) {
+        edges = Arrays.copyOf(edges, edges.length * 2);
+      }
+      edges[2 * edgeCount] = keyId;
+      edges[2 * edgeCount + 1] = depId;
+      edgeCount++;
+    }
+
+    ReverseDepIndex build() {
+      int[] offsets = new int[size + 1];
+      for (int i = 0; i < edgeCount; i++) {
+        offsets[edges[2 * i + 1] + 1]++;
+      }
+      for (int i = 0; i < size; i++) {
+        offsets[i + 1] += offsets[i];
+      }
+      int[] next = Arrays.copyOf(offsets, size);
+      int[] rdeps = new int[edgeCount];
+      for (int i = 0; i < edgeCount; i++) {
+        rdeps[next[edges[2 * i + 1]]++] = edges[2 * i];
+      }
+      // Drops the edges that were added more than once, moving the ranges down over the gaps.
+      int[] lastSeenFor = new int[size];
+      int count = 0;
+      for (int id = 0; id < size; id++) {
+        int start = offsets[id];
+        offsets[id] = count;
+        for (int i = start; i < offsets[id + 1]; i++) {
+          int rdep = rdeps[i];
+          if (lastSeenFor[rdep] != id + 1) {
+            lastSeenFor[rdep] = id + 1;
+            rdeps[count++] = rdep;
+          }
+        }
+      }
+      offsets[size] = count;
+      return new ReverseDepIndex(
+          universeKey,
+          settings,
+          Arrays.copyOf(keys, size),
+          table,
+          offsets,
+          count == rdeps.length ? rdeps : Arrays.copyOf(rdeps, count));
+    }
+  }
+}
@@ -47,6 +47,7 @@ import com.google.devtools.build.lib.concurrent.BlockingStack;
 import com.google.devtools.build.lib.concurrent.MultisetSemaphore;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
 import com.google.devtools.build.lib.events.DelegatingEventHandler;
+import com.google.devtools.build.lib.events.ErrorSensingEventHandler;
 import com.google.devtools.build.lib.events.Event;
 import com.google.devtools.build.lib.events.EventKind;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
@@ -64,6 +65,7 @@ import com.google.devtools.build.lib.pkgcache.TargetPatternEvaluator;
 import com.google.devtools.build.lib.profiler.AutoProfiler;
 import com.google.devtools.build.lib.query2.engine.AllRdepsFunction;
 import com.google.devtools.build.lib.query2.engine.Callback;
+import com.google.devtools.build.lib.query2.engine.ElementIds;
 import com.google.devtools.build.lib.query2.engine.FunctionExpression;
 import com.google.devtools.build.lib.query2.engine.KeyExtractor;
 import com.google.devtools.build.lib.query2.engine.MinDepthUniquifier;
@@ -72,6 +74,8 @@ import com.google.devtools.build.lib.query2.engine.QueryEvalResult;
 import com.google.devtools.build.lib.query2.engine.QueryException;
 import com.google.devtools.build.lib.query2.engine.QueryExpression;
 import com.google.devtools.build.lib.query2.engine.QueryExpressionMapper;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.BitmapUniquifier;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.DenseMinDepthUniquifier;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.MinDepthUniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.QueryUtil.UniquifierImpl;
 import com.google.devtools.build.lib.query2.engine.RdepsFunction;
@@ -144,7 +148,16 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   private static final int MAX_QUERY_EXPRESSION_LOG_CHARS = 1000;
   private static final Logger LOG = Logger.getLogger(SkyQueryEnvironment.class.getName());
 
+  /** The functions of the nodes through which the universe key depends on its targets. */
+  private static final ImmutableSet<SkyFunctionName> UNIVERSE_PATTERN_FUNCTIONS =
+      ImmutableSet.of(
+          SkyFunctions.PREPARE_DEPS_OF_PATTERN,
+          SkyFunctions.PREPARE_DEPS_OF_TARGETS_UNDER_DIRECTORY,
+          SkyFunctions.COLLECT_TARGETS_IN_PACKAGE);
+
   private final BlazeTargetAccessor accessor = new BlazeTargetAccessor(this);
+  private final QueryResultCache.WarningRecorder warningRecorder;
+  @Nullable private final ElementIds<Target> elementIds;
   protected final int loadingPhaseThreads;
   protected final WalkableGraphFactory graphFactory;
   protected final ImmutableList<String> universeScope;
@@ -159,6 +172,8 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   private MultisetSemaphore<PackageIdentifier> packageSemaphore;
   protected WalkableGraph graph;
   private InterruptibleSupplier<ImmutableSet<PathFragment>> blacklistPatternsSupplier;
+  // Null unless Setting.REVERSE_DEP_INDEX is enabled.
+  @Nullable private InterruptibleSupplier<ReverseDepIndex> reverseDepIndexSupplier;
   private GraphBackedRecursivePackageProvider graphBackedRecursivePackageProvider;
   private ListeningExecutorService executor;
   private RecursivePackageProviderBackedTargetPatternResolver resolver;
@@ -211,6 +226,9 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         eventHandler,
         settings,
         extraFunctions);
+    // Records the warnings of queries whose results are cached, to report them again on hits.
+    this.warningRecorder = new QueryResultCache.WarningRecorder(eventHandler);
+    this.eventHandler = new ErrorSensingEventHandler(warningRecorder);
     this.loadingPhaseThreads = loadingPhaseThreads;
     this.graphFactory = graphFactory;
     this.pkgPath = pkgPath;
@@ -228,10 +246,30 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     this.universeTargetPatternKeys =
         PrepareDepsOfPatternsFunction.getTargetPatternKeys(
             PrepareDepsOfPatternsFunction.getSkyKeys(universeKey, eventHandler));
+    this.elementIds =
+        settings.contains(Setting.BITMAP_SETS)
+            ? new ElementIds<>(TargetKeyExtractor.INSTANCE)
+            : null;
+  }
+
+  /**
+   * Returns whether {@code universeKey} is up to date in the graph of {@code graphFactory}. If it
+   * isn't, drops what was cached from the graph, since the universe is about to be evaluated again
+   * and its edges may change.
+   */
+  @VisibleForTesting
+  static boolean checkUpToDate(WalkableGraphFactory graphFactory, SkyKey universeKey) {
+    if (graphFactory.isUpToDate(universeKey)) {
+      return true;
+    }
+    ReverseDepIndex.invalidate(graphFactory);
+    QueryResultCache.invalidate(graphFactory);
+    return false;
   }
 
   private void beforeEvaluateQuery() throws InterruptedException {
-    if (graph == null || !graphFactory.isUpToDate(universeKey)) {
+    boolean upToDate = checkUpToDate(graphFactory, universeKey);
+    if (graph == null || !upToDate) {
       // If this environment is uninitialized or the graph factory needs to evaluate, do so. We
       // assume here that this environment cannot be initialized-but-stale if the factory is up
       // to date.
@@ -245,6 +283,9 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       packageSemaphore = makeFreshPackageMultisetSemaphore();
       graph = result.getWalkableGraph();
       blacklistPatternsSupplier = InterruptibleSupplier.Memoize.of(new BlacklistSupplier(graph));
+      if (isSettingEnabled(Setting.REVERSE_DEP_INDEX)) {
+        reverseDepIndexSupplier = InterruptibleSupplier.Memoize.of(new ReverseDepIndexSupplier());
+      }
 
       graphBackedRecursivePackageProvider =
           new GraphBackedRecursivePackageProvider(graph, universeTargetPatternKeys, pkgPath);
@@ -394,6 +435,28 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     eventHandler.resetErrors();
     beforeEvaluateQuery();
 
+    QueryResultCache resultCache = null;
+    QueryResultCache.Key cacheKey = null;
+    QueryResultCache.RecordingCallback recordingCallback = null;
+    if (isSettingEnabled(Setting.QUERY_RESULT_CACHE)) {
+      resultCache = QueryResultCache.forGraphFactory(graphFactory);
+      cacheKey = new QueryResultCache.Key(universeKey, settings, expr);
+      QueryResultCache.Result cachedResult = resultCache.get(cacheKey);
+      ImmutableList<Target> cachedTargets =
+          cachedResult != null ? getTargetsInOrder(cachedResult.getLabels()) : null;
+      if (cachedTargets != null) {
+        LOG.info("Found the result of query '" + cacheKey + "' in the cache");
+        for (Event warning : cachedResult.getWarnings()) {
+          eventHandler.handle(warning);
+        }
+        OutputFormatterCallback.processAllTargets(callback, cachedTargets);
+        return new QueryEvalResult(/*success=*/ true, cachedTargets.isEmpty());
+      }
+      recordingCallback = resultCache.record(callback);
+      callback = recordingCallback;
+      warningRecorder.startRecording();
+    }
+
     // SkyQueryEnvironment batches callback invocations using a BatchStreamedCallback, created here
     // so that there's one per top-level evaluateQuery call. The batch size is large enough that
     // per-call costs of calling the original callback are amortized over a good number of targets,
@@ -401,8 +464,37 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     //
     // This flushes the batched callback prior to constructing the QueryEvalResult in the unlikely
     // case of a race between the original callback and the eventHandler.
-    BatchStreamedCallback batchCallback = new BatchStreamedCallback(callback, BATCH_CALLBACK_SIZE);
-    return super.evaluateQuery(expr, batchCallback);
+    BatchStreamedCallback batchCallback =
+        new BatchStreamedCallback(callback, BATCH_CALLBACK_SIZE, createTargetUniquifier());
+    QueryEvalResult result;
+    ImmutableList<Event> warnings = ImmutableList.of();
+    try {
+      result = super.evaluateQuery(expr, batchCallback);
+    } finally {
+      if (resultCache != null) {
+        warnings = warningRecorder.stopRecording();
+      }
+    }
+    // Only results without errors are cached, since cache hits don't report any.
+    if (resultCache != null && result.getSuccess()) {
+      resultCache.put(cacheKey, recordingCallback, warnings);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the targets with the given labels in the graph, in the same order, or null if some of
+   * them aren't there.
+   */
+  @Nullable
+  private ImmutableList<Target> getTargetsInOrder(List<Label> labels)
+      throws InterruptedException {
+    List<SkyKey> keys = new ArrayList<>(labels.size());
+    for (Label label : labels) {
+      keys.add(TransitiveTraversalValue.key(label));
+    }
+    ImmutableList<Target> targets = makeTargetsFromSkyKeysInOrder(keys);
+    return targets.size() == keys.size() ? targets : null;
   }
 
   private Map<SkyKey, Collection<Target>> targetifyValues(
@@ -460,7 +552,120 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
 
   private Map<SkyKey, Collection<Target>> getRawReverseDeps(
       Iterable<SkyKey> transitiveTraversalKeys) throws InterruptedException {
-    return targetifyValues(graph.getReverseDeps(transitiveTraversalKeys));
+    return targetifyValues(getReverseDepsOfKeys(transitiveTraversalKeys));
+  }
+
+  /**
+   * Returns the reverse deps of the given {@link TransitiveTraversalValue} keys, from the
+   * reverse-dep index if it's enabled and from the graph otherwise.
+   */
+  @ThreadSafe
+  Map<SkyKey, Iterable<SkyKey>> getReverseDepsOfKeys(Iterable<SkyKey> transitiveTraversalKeys)
+      throws InterruptedException {
+    return reverseDepIndexSupplier != null
+        ? reverseDepIndexSupplier.get().getReverseDeps(transitiveTraversalKeys)
+        : graph.getReverseDeps(transitiveTraversalKeys);
+  }
+
+  /**
+   * Whether the reverse deps returned by {@link #getReverseDepsOfKeys} are only those allowed by
+   * the dependency filter, so that they don't need to be filtered again.
+   */
+  boolean reverseDepsAreFiltered() {
+    return reverseDepIndexSupplier != null;
+  }
+
+  private class ReverseDepIndexSupplier implements InterruptibleSupplier<ReverseDepIndex> {
+    @Override
+    public ReverseDepIndex get() throws InterruptedException {
+      ReverseDepIndex index = ReverseDepIndex.getCached(graphFactory, universeKey, settings);
+      if (index == null) {
+        try (AutoProfiler p = AutoProfiler.logged("building reverse-dep index", LOG)) {
+          index = buildReverseDepIndex();
+        }
+        LOG.info("Reverse-dep index of " + universeScope + " has " + index.size() + " targets");
+        ReverseDepIndex.cache(graphFactory, index);
+      }
+      return index;
+    }
+  }
+
+  /**
+   * Indexes the reverse deps of the {@link TransitiveTraversalValue} nodes of the universe. Only
+   * the edges allowed by the dependency filter are kept.
+   */
+  private ReverseDepIndex buildReverseDepIndex() throws InterruptedException {
+    final ReverseDepIndex.Builder builder = new ReverseDepIndex.Builder(universeKey, settings);
+    visitUniverseTargets(
+        new UniverseTargetVisitor() {
+          @Override
+          public void visit(SkyKey key, @Nullable Target target, Iterable<SkyKey> deps)
+              throws InterruptedException {
+            builder.addNode(key);
+            // Like processRawReverseDeps, keeps the edges of rules that their attributes allow and
+            // those of other targets, and drops the edges of nodes that can't be targetified.
+            if (target == null) {
+              return;
+            }
+            Set<Label> allowedDeps =
+                target instanceof Rule && dependencyFilter != DependencyFilter.ALL_DEPS
+                    ? getAllowedDeps((Rule) target)
+                    : null;
+            for (SkyKey dep : deps) {
+              if (allowedDeps == null || allowedDeps.contains(SKYKEY_TO_LABEL.apply(dep))) {
+                builder.addEdge(key, dep);
+              }
+            }
+          }
+        });
+    return builder.build();
+  }
+
+  /** Receives the targets of the universe from {@link #visitUniverseTargets}. */
+  private interface UniverseTargetVisitor {
+    /**
+     * Receives the {@link TransitiveTraversalValue} key of a target, the target unless it can't be
+     * targetified, and the keys of the {@link TransitiveTraversalValue} nodes it depends on.
+     */
+    void visit(SkyKey key, @Nullable Target target, Iterable<SkyKey> deps)
+        throws InterruptedException;
+  }
+
+  /**
+   * Visits each of the {@link TransitiveTraversalValue} nodes of the universe once. They are found
+   * through the nodes that prepared the deps of the universe's target patterns.
+   */
+  private void visitUniverseTargets(UniverseTargetVisitor visitor) throws InterruptedException {
+    Set<SkyKey> visitedKeys = new HashSet<>();
+    List<SkyKey> current = ImmutableList.of(universeKey);
+    while (!current.isEmpty()) {
+      List<SkyKey> next = new ArrayList<>();
+      for (List<SkyKey> batch : Iterables.partition(current, BATCH_CALLBACK_SIZE)) {
+        Map<SkyKey, Target> targets = makeTargetsFromSkyKeys(batch);
+        for (Map.Entry<SkyKey, Iterable<SkyKey>> entry : graph.getDirectDeps(batch).entrySet()) {
+          SkyKey key = entry.getKey();
+          boolean isTarget = key.functionName().equals(Label.TRANSITIVE_TRAVERSAL);
+          List<SkyKey> targetDeps = new ArrayList<>();
+          for (SkyKey dep : entry.getValue()) {
+            SkyFunctionName depFunctionName = dep.functionName();
+            if (depFunctionName.equals(Label.TRANSITIVE_TRAVERSAL)) {
+              targetDeps.add(dep);
+              if (visitedKeys.add(dep)) {
+                next.add(dep);
+              }
+            } else if (!isTarget
+                && UNIVERSE_PATTERN_FUNCTIONS.contains(depFunctionName)
+                && visitedKeys.add(dep)) {
+              next.add(dep);
+            }
+          }
+          if (isTarget) {
+            visitor.visit(key, targets.get(key), targetDeps);
+          }
+        }
+      }
+      current = next;
+    }
   }
 
   private Set<Label> getAllowedDeps(Rule rule) throws InterruptedException {
@@ -498,12 +703,22 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @Override
   public Collection<Target> getFwdDeps(Iterable<Target> targets) throws InterruptedException {
     Set<Target> result = new HashSet<>();
+    for (Collection<Target> deps : getFwdDepsOfEach(targets).values()) {
+      result.addAll(deps);
+    }
+    return result;
+  }
+
+  /** Returns the deps of each of the given targets, filtered like {@link #getFwdDeps}. */
+  Map<Target, Collection<Target>> getFwdDepsOfEach(Iterable<Target> targets)
+      throws InterruptedException {
     Map<Target, Collection<Target>> rawFwdDeps = getRawFwdDeps(targets);
     warnIfMissingTargets(targets, rawFwdDeps.keySet());
+    ImmutableMap.Builder<Target, Collection<Target>> result = ImmutableMap.builder();
     for (Map.Entry<Target, Collection<Target>> entry : rawFwdDeps.entrySet()) {
-      result.addAll(filterFwdDeps(entry.getKey(), entry.getValue()));
+      result.put(entry.getKey(), filterFwdDeps(entry.getKey(), entry.getValue()));
     }
-    return result;
+    return result.build();
   }
 
   @Override
@@ -517,6 +732,39 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     return processRawReverseDeps(rawReverseDeps);
   }
 
+  /**
+   * Returns the reverse deps of each of the given {@link TransitiveTraversalValue} keys, filtered
+   * like {@link #getReverseDeps}.
+   */
+  Map<SkyKey, Collection<Target>> getReverseDepsOfEach(Iterable<SkyKey> transitiveTraversalKeys)
+      throws InterruptedException {
+    Map<SkyKey, Collection<Target>> rawReverseDeps = getRawReverseDeps(transitiveTraversalKeys);
+    if (dependencyFilter == DependencyFilter.ALL_DEPS || reverseDepsAreFiltered()) {
+      return rawReverseDeps;
+    }
+    Map<Rule, Set<Label>> allowedDepsOfRules = new HashMap<>();
+    ImmutableMap.Builder<SkyKey, Collection<Target>> result = ImmutableMap.builder();
+    for (Map.Entry<SkyKey, Collection<Target>> entry : rawReverseDeps.entrySet()) {
+      Label label = SKYKEY_TO_LABEL.apply(entry.getKey());
+      List<Target> parents = new ArrayList<>(entry.getValue().size());
+      for (Target parent : entry.getValue()) {
+        if (parent instanceof Rule) {
+          Set<Label> allowedDeps = allowedDepsOfRules.get(parent);
+          if (allowedDeps == null) {
+            allowedDeps = getAllowedDeps((Rule) parent);
+            allowedDepsOfRules.put((Rule) parent, allowedDeps);
+          }
+          if (!allowedDeps.contains(label)) {
+            continue;
+          }
+        }
+        parents.add(parent);
+      }
+      result.put(entry.getKey(), parents);
+    }
+    return result.build();
+  }
+
   /** Targetify SkyKeys of reverse deps and filter out targets whose deps are not allowed. */
   Collection<Target> filterRawReverseDepsOfTransitiveTraversalKeys(
       Map<SkyKey, ? extends Iterable<SkyKey>> rawReverseDeps,
@@ -535,7 +783,9 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     for (Collection<Target> parentCollection : rawReverseDeps.values()) {
       for (Target parent : parentCollection) {
         if (visited.add(parent)) {
-          if (parent instanceof Rule && dependencyFilter != DependencyFilter.ALL_DEPS) {
+          if (parent instanceof Rule
+              && dependencyFilter != DependencyFilter.ALL_DEPS
+              && !reverseDepsAreFiltered()) {
             for (Label label : getAllowedDeps((Rule) parent)) {
               if (keys.contains(label)) {
                 result.add(parent);
@@ -660,12 +910,21 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
   @ThreadSafe
   @Override
   public MinDepthUniquifier<Target> createMinDepthUniquifier() {
-    return new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
+    return elementIds != null
+        ? new DenseMinDepthUniquifier<>(elementIds)
+        : new MinDepthUniquifierImpl<>(TargetKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
   }
 
   @ThreadSafe
   Uniquifier<Target> createTargetUniquifier() {
-    return new UniquifierImpl<>(TargetKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
+    return elementIds != null
+        ? new BitmapUniquifier<>(elementIds)
+        : new UniquifierImpl<>(TargetKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
+  }
+
+  @Override
+  public ElementIds<Target> getElementIds() {
+    return elementIds;
   }
 
   @ThreadSafe
@@ -673,6 +932,11 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     return new UniquifierImpl<>(SkyKeyKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
   }
 
+  @ThreadSafe
+  MinDepthUniquifier<SkyKey> createMinDepthSkyKeyUniquifier() {
+    return new MinDepthUniquifierImpl<>(SkyKeyKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
+  }
+
   @ThreadSafe
   Uniquifier<Pair<SkyKey, SkyKey>> createReverseDepSkyKeyUniquifier() {
     return new UniquifierImpl<>(ReverseDepSkyKeyKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
@@ -939,6 +1203,25 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     return makeTargetsFromPackageKeyToTargetKeyMap(makePackageKeyToTargetKeyMap(keys));
   }
 
+  /**
+   * Returns the targets of the given keys, in the same order as the keys. Unlike {@link
+   * #makeTargetsFromSkyKeys}, whose result is grouped by package, this preserves orderings that are
+   * meaningful to the user, like those of paths. Keys without a target are skipped.
+   */
+  @ThreadSafe
+  ImmutableList<Target> makeTargetsFromSkyKeysInOrder(List<SkyKey> keys)
+      throws InterruptedException {
+    Map<SkyKey, Target> targets = makeTargetsFromSkyKeys(keys);
+    ImmutableList.Builder<Target> result = ImmutableList.builder();
+    for (SkyKey key : keys) {
+      Target target = targets.get(key);
+      if (target != null) {
+        result.add(target);
+      }
+    }
+    return result.build();
+  }
+
   @ThreadSafe
   public Map<SkyKey, Target> makeTargetsFromPackageKeyToTargetKeyMap(
       Multimap<SkyKey, SkyKey> packageKeyToTargetKeyMap) throws InterruptedException {
@@ -1244,17 +1527,18 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
     // memory. We should have a threshold for when to invoke the callback with a batch, and also a
     // separate, larger, bound on the number of targets being processed at the same time.
     private final ThreadSafeOutputFormatterCallback<Target> callback;
-    private final Uniquifier<Target> uniquifier =
-        new UniquifierImpl<>(TargetKeyExtractor.INSTANCE, DEFAULT_THREAD_COUNT);
+    private final Uniquifier<Target> uniquifier;
     private final Object pendingLock = new Object();
     private List<Target> pending = new ArrayList<>();
     private int batchThreshold;
 
     private BatchStreamedCallback(
         ThreadSafeOutputFormatterCallback<Target> callback,
-        int batchThreshold) {
+        int batchThreshold,
+        Uniquifier<Target> uniquifier) {
       this.callback = callback;
       this.batchThreshold = batchThreshold;
+      this.uniquifier = uniquifier;
     }
 
     @Override
@@ -1304,6 +1588,32 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
         this, expression, context, callback, packageSemaphore);
   }
 
+  @ThreadSafe
+  @Override
+  public QueryTaskFuture<Void> getDepsParallel(
+      QueryExpression caller,
+      QueryExpression expression,
+      VariableContext<Target> context,
+      Callback<Target> callback,
+      int depth) {
+    return ParallelSkyQueryUtils.getDepsParallel(
+        this, caller, expression, context, callback, depth, packageSemaphore);
+  }
+
+  @ThreadSafe
+  @Override
+  public void getSomePathParallel(Set<Target> from, Set<Target> to, Callback<Target> callback)
+      throws QueryException, InterruptedException {
+    ParallelSkyQueryUtils.getSomePathParallel(this, from, to, callback, packageSemaphore);
+  }
+
+  @ThreadSafe
+  @Override
+  public void getAllPathsParallel(Set<Target> from, Set<Target> to, Callback<Target> callback)
+      throws QueryException, InterruptedException {
+    ParallelSkyQueryUtils.getAllPathsParallel(this, from, to, callback, packageSemaphore);
+  }
+
   @ThreadSafe
   @Override
   public QueryTaskFuture<Void> getAllRdeps(
@@ -1368,7 +1678,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       // have a reference to their entire Package, which is really memory expensive.
       Queue<Map.Entry<SkyKey, Iterable<SkyKey>>> reverseDepsQueue = new LinkedList<>();
       reverseDepsQueue.addAll(
-          graph.getReverseDeps(makeTransitiveTraversalKeys(uniqueTargets)).entrySet());
+          getReverseDepsOfKeys(makeTransitiveTraversalKeys(uniqueTargets)).entrySet());
 
       // In each iteration, we populate a size-limited (no more than batchSize) number of
       // SkyKey mappings to targets, and append the SkyKey rdeps mappings to the queue. Once
@@ -1462,7 +1772,7 @@ public class SkyQueryEnvironment extends AbstractBlazeQueryEnvironment<Target>
       if (!uniqueChildren.isEmpty()) {
         callback.process(uniqueChildren);
         reverseDepsQueue.addAll(
-            graph.getReverseDeps(makeTransitiveTraversalKeys(uniqueChildren)).entrySet());
+            getReverseDepsOfKeys(makeTransitiveTraversalKeys(uniqueChildren)).entrySet());
       }
     }
   }
@@ -78,6 +78,12 @@ public class AllPathsFunction implements QueryFunction {
 
             env.buildTransitiveClosure(expression, fromValue, Integer.MAX_VALUE);
 
+            if (env instanceof StreamableQueryEnvironment<?>) {
+              ((StreamableQueryEnvironment<T>) env)
+                  .getAllPathsParallel(fromValue, toValue, callback);
+              return null;
+            }
+
             Set<T> reachableFromX = env.getTransitiveClosure(fromValue);
             Predicate<T> reachable = Predicates.in(reachableFromX);
             Uniquifier<T> uniquifier = env.createUniquifier();
@@ -58,16 +58,21 @@ public class BinaryOperatorExpression extends QueryExpression {
   @Override
   public <T> QueryTaskFuture<Void> eval(
       QueryEnvironment<T> env, VariableContext<T> context, Callback<T> callback) {
+    ElementIds<T> ids = env.getElementIds();
     switch (operator) {
       case PLUS:
       case UNION:
         return evalPlus(operands, env, context, callback);
       case MINUS:
       case EXCEPT:
-        return evalMinus(operands, env, context, callback);
+        return ids != null
+            ? evalWithBitmaps(env, context, callback, ids)
+            : evalMinus(operands, env, context, callback);
       case INTERSECT:
       case CARET:
-        return evalIntersect(env, context, callback);
+        return ids != null
+            ? evalWithBitmaps(env, context, callback, ids)
+            : evalIntersect(env, context, callback);
       default:
         throw new IllegalStateException(operator.toString());
     }
@@ -176,6 +181,52 @@ public class BinaryOperatorExpression extends QueryExpression {
         });
   }
 
+  /**
+   * Evaluates an expression of the form "e1 - e2 - ... - eK" or "e1 ^ e2 ^ ... ^ eK" with the
+   * values of the subexpressions represented as bitmaps of the ids of their elements. These are
+   * small enough that all the subexpressions are evaluated in parallel.
+   */
+  private <T> QueryTaskFuture<Void> evalWithBitmaps(
+      QueryEnvironment<T> env,
+      VariableContext<T> context,
+      final Callback<T> callback,
+      final ElementIds<T> ids) {
+    final List<CompressedBitSet> values = new ArrayList<>(operands.size());
+    List<QueryTaskFuture<Void>> queryTasks = new ArrayList<>(operands.size());
+    for (QueryExpression operand : operands) {
+      final CompressedBitSet value = new CompressedBitSet();
+      values.add(value);
+      Callback<T> bitmapCallback =
+          new Callback<T>() {
+            @Override
+            public void process(Iterable<T> partialResult) {
+              CompressedBitSet partialValue = ids.getOrAssign(partialResult);
+              synchronized (value) {
+                value.or(partialValue);
+              }
+            }
+          };
+      queryTasks.add(env.eval(operand, context, bitmapCallback));
+    }
+    return env.whenAllSucceedCall(
+        queryTasks,
+        new QueryTaskCallable<Void>() {
+          @Override
+          public Void call() throws QueryException, InterruptedException {
+            CompressedBitSet result = values.get(0);
+            for (CompressedBitSet value : values.subList(1, values.size())) {
+              if (operator == Lexer.TokenKind.INTERSECT || operator == Lexer.TokenKind.CARET) {
+                result.and(value);
+              } else {
+                result.andNot(value);
+              }
+            }
+            callback.process(ids.getAll(result));
+            return null;
+          }
+        });
+  }
+
   @Override
   public void collectTargetPatterns(Collection<String> literals) {
     for (QueryExpression subExpression : operands) {
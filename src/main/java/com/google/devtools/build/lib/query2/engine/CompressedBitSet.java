@@ -0,0 +1,349 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.Arrays;
+import java.util.NoSuchElementException;
+import java.util.PrimitiveIterator;
+
+/**
+ * A set of non-negative ints, compressed like a roaring bitmap.
+ *
+ * <p>The ints are grouped into chunks by their upper 16 bits. Each chunk holds the lower 16 bits of
+ * its ints either as a sorted array, if it has few of them, or as a bitmap of 2^16 bits. Set
+ * operations work chunk by chunk, with word-level operations between bitmaps.
+ *
+ * <p>Not thread-safe.
+ */
+public final class CompressedBitSet {
+
+  /** Chunks with more ints than this are bitmaps, at which size both take 8kB. */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private static final int WORDS = (1 << 16) / 64;
+
+  // The upper 16 bits of the ints of each chunk, sorted.
+  private char[] keys = new char[4];
+  // Either a char[], whose used length is in sizes, or a long[WORDS].
+  private Object[] chunks = new Object[4];
+  private int[] sizes = new int[4];
+  private int chunkCount = 0;
+
+  /** Adds {@code value}. Returns whether it wasn't already in the set. */
+  public boolean add(int value) {
+    Preconditions.checkArgument(value >= 0, value);
+    char key = (char) (value >>> 16);
+    char low = (char) value;
+    int index = Arrays.binarySearch(keys, 0, chunkCount, key);
+    if (index < 0) {
+      index = -index - 1;
+      insertChunk(index, key, new char[] {low}, 1);
+      return true;
+    }
+    Object chunk = chunks[index];
+    if (chunk instanceof long[]) {
+      long[] words = (long[]) chunk;
+      long bit = 1L << low;
+      if ((words[low >>> 6] & bit) != 0) {
+        return false;
+      }
+      words[low >>> 6] |= bit;
+      sizes[index]++;
+      return true;
+    }
+    char[] values = (char[]) chunk;
+    int size = sizes[index];
+    int position = Arrays.binarySearch(values, 0, size, low);
+    if (position >= 0) {
+      return false;
+    }
+    position = -position - 1;
+    if (size == MAX_ARRAY_SIZE) {
+      long[] words = toBitmap(values, size);
+      words[low >>> 6] |= 1L << low;
+      chunks[index] = words;
+    } else {
+      if (size == values.length) {
+        values = Arrays.copyOf(values, Math.min(2 * size, MAX_ARRAY_SIZE));
+        chunks[index] = values;
+      }
+      System.arraycopy(values, position, values, position + 1, size - position);
+      values[position] = low;
+    }
+    sizes[index]++;
+    return true;
+  }
+
+  public boolean contains(int value) {
+    if (value < 0) {
+      return false;
+    }
+    int index = Arrays.binarySearch(keys, 0, chunkCount, (char) (value >>> 16));
+    return index >= 0 && chunkContains(chunks[index], sizes[index], (char) value);
+  }
+
+  /** Returns the number of ints in the set. */
+  public int size() {
+    int size = 0;
+    for (int i = 0; i < chunkCount; i++) {
+      size += sizes[i];
+    }
+    return size;
+  }
+
+  public boolean isEmpty() {
+    return chunkCount == 0;
+  }
+
+  /** Adds the ints of {@code other} to this set. */
+  public void or(CompressedBitSet other) {
+    CompressedBitSet result = new CompressedBitSet();
+    int i = 0;
+    int j = 0;
+    while (i < chunkCount || j < other.chunkCount) {
+      if (j == other.chunkCount || (i < chunkCount && keys[i] < other.keys[j])) {
+        result.appendChunk(keys[i], chunks[i], sizes[i]);
+        i++;
+      } else if (i == chunkCount || other.keys[j] < keys[i]) {
+        result.appendChunk(other.keys[j], copy(other.chunks[j]), other.sizes[j]);
+        j++;
+      } else {
+        long[] words = toBitmap(chunks[i], sizes[i]);
+        Object otherChunk = other.chunks[j];
+        if (otherChunk instanceof long[]) {
+          long[] otherWords = (long[]) otherChunk;
+          for (int w = 0; w < WORDS; w++) {
+            words[w] |= otherWords[w];
+          }
+        } else {
+          char[] otherValues = (char[]) otherChunk;
+          for (int v = 0; v < other.sizes[j]; v++) {
+            words[otherValues[v] >>> 6] |= 1L << otherValues[v];
+          }
+        }
+        result.appendNormalizedChunk(keys[i], words);
+        i++;
+        j++;
+      }
+    }
+    replaceWith(result);
+  }
+
+  /** Removes the ints that aren't in {@code other} from this set. */
+  public void and(CompressedBitSet other) {
+    retain(other, /*inOther=*/ true);
+  }
+
+  /** Removes the ints of {@code other} from this set. */
+  public void andNot(CompressedBitSet other) {
+    retain(other, /*inOther=*/ false);
+  }
+
+  /** Keeps the ints whose presence in {@code other} is {@code inOther}. */
+  private void retain(CompressedBitSet other, boolean inOther) {
+    CompressedBitSet result = new CompressedBitSet();
+    int j = 0;
+    for (int i = 0; i < chunkCount; i++) {
+      while (j < other.chunkCount && other.keys[j] < keys[i]) {
+        j++;
+      }
+      boolean overlaps = j < other.chunkCount && other.keys[j] == keys[i];
+      if (!overlaps) {
+        if (!inOther) {
+          result.appendChunk(keys[i], chunks[i], sizes[i]);
+        }
+        continue;
+      }
+      Object chunk = chunks[i];
+      Object otherChunk = other.chunks[j];
+      if (chunk instanceof long[] && otherChunk instanceof long[]) {
+        long[] words = (long[]) chunk;
+        long[] otherWords = (long[]) otherChunk;
+        for (int w = 0; w < WORDS; w++) {
+          words[w] = inOther ? words[w] & otherWords[w] : words[w] & ~otherWords[w];
+        }
+        result.appendNormalizedChunk(keys[i], words);
+      } else if (chunk instanceof long[]) {
+        long[] words = (long[]) chunk;
+        char[] otherValues = (char[]) otherChunk;
+        if (inOther) {
+          char[] values = new char[other.sizes[j]];
+          int size = 0;
+          for (int v = 0; v < other.sizes[j]; v++) {
+            if ((words[otherValues[v] >>> 6] & (1L << otherValues[v])) != 0) {
+              values[size++] = otherValues[v];
+            }
+          }
+          result.appendChunk(keys[i], values, size);
+        } else {
+          for (int v = 0; v < other.sizes[j]; v++) {
+            words[otherValues[v] >>> 6] &= ~(1L << otherValues[v]);
+          }
+          result.appendNormalizedChunk(keys[i], words);
+        }
+      } else {
+        char[] values = (char[]) chunk;
+        int size = 0;
+        for (int v = 0; v < sizes[i]; v++) {
+          if (chunkContains(otherChunk, other.sizes[j], values[v]) == inOther) {
+            values[size++] = values[v];
+          }
+        }
+        result.appendChunk(keys[i], values, size);
+      }
+    }
+    replaceWith(result);
+  }
+
+  /** Returns an iterator over the ints of the set, in increasing order. */
+  public PrimitiveIterator.OfInt iterator() {
+    return new PrimitiveIterator.OfInt() {
+      private int chunk = 0;
+      // The next position in an array chunk, or the next bit to look at in a bitmap chunk.
+      private int position = 0;
+
+      @Override
+      public boolean hasNext() {
+        while (chunk < chunkCount) {
+          Object current = chunks[chunk];
+          if (current instanceof long[]) {
+            position = nextSetBit((long[]) current, position);
+            if (position >= 0) {
+              return true;
+            }
+          } else if (position < sizes[chunk]) {
+            return true;
+          }
+          chunk++;
+          position = 0;
+        }
+        return false;
+      }
+
+      @Override
+      public int nextInt() {
+        if (!hasNext()) {
+          throw new NoSuchElementException();
+        }
+        int high = keys[chunk] << 16;
+        Object current = chunks[chunk];
+        return current instanceof long[]
+            ? high | position++
+            : high | ((char[]) current)[position++];
+      }
+    };
+  }
+
+  @Override
+  public String toString() {
+    StringBuilder result = new StringBuilder("{");
+    for (PrimitiveIterator.OfInt it = iterator(); it.hasNext(); ) {
+      result.append(it.nextInt());
+      if (it.hasNext()) {
+        result.append(", ");
+      }
+    }
+    return result.append("}").toString();
+  }
+
+  private void insertChunk(int index, char key, Object chunk, int size) {
+    if (chunkCount == keys.length) {
+      keys = Arrays.copyOf(keys, 2 * chunkCount);
+      chunks = Arrays.copyOf(chunks, 2 * chunkCount);
+      sizes = Arrays.copyOf(sizes, 2 * chunkCount);
+    }
+    System.arraycopy(keys, index, keys, index + 1, chunkCount - index);
+    System.arraycopy(chunks, index, chunks, index + 1, chunkCount - index);
+    System.arraycopy(sizes, index, sizes, index + 1, chunkCount - index);
+    keys[index] = key;
+    chunks[index] = chunk;
+    sizes[index] = size;
+    chunkCount++;
+  }
+
+  /** Appends a chunk after all the others, unless it's empty. */
+  private void appendChunk(char key, Object chunk, int size) {
+    if (size > 0) {
+      insertChunk(chunkCount, key, chunk, size);
+    }
+  }
+
+  /** Appends a bitmap chunk, as an array if it has few enough ints. */
+  private void appendNormalizedChunk(char key, long[] words) {
+    int size = 0;
+    for (long word : words) {
+      size += Long.bitCount(word);
+    }
+    if (size > MAX_ARRAY_SIZE) {
+      appendChunk(key, words, size);
+      return;
+    }
+    char[] values = new char[size];
+    int v = 0;
+    for (int bit = nextSetBit(words, 0); bit >= 0; bit = nextSetBit(words, bit + 1)) {
+      values[v++] = (char) bit;
+    }
+    appendChunk(key, values, size);
+  }
+
+  private void replaceWith(CompressedBitSet other) {
+    keys = other.keys;
+    chunks = other.chunks;
+    sizes = other.sizes;
+    chunkCount = other.chunkCount;
+  }
+
+  private static boolean chunkContains(Object chunk, int size, char low) {
+    if (chunk instanceof long[]) {
+      return (((long[]) chunk)[low >>> 6] & (1L << low)) != 0;
+    }
+    return Arrays.binarySearch((char[]) chunk, 0, size, low) >= 0;
+  }
+
+  /** Returns the chunk as a bitmap, which is the chunk itself if it already is one. */
+  private static long[] toBitmap(Object chunk, int size) {
+    if (chunk instanceof long[]) {
+      return (long[]) chunk;
+    }
+    char[] values = (char[]) chunk;
+    long[] words = new long[WORDS];
+    for (int v = 0; v < size; v++) {
+      words[values[v] >>> 6] |= 1L << values[v];
+    }
+    return words;
+  }
+
+  private static Object copy(Object chunk) {
+    return chunk instanceof long[] ? ((long[]) chunk).clone() : ((char[]) chunk).clone();
+  }
+
+  /** Returns the first set bit at or after {@code from}, or -1. */
+  private static int nextSetBit(long[] words, int from) {
+    int w = from >>> 6;
+    if (w >= WORDS) {
+      return -1;
+    }
+    long word = words[w] & (-1L << from);
+    while (true) {
+      if (word != 0) {
+        return (w << 6) + Long.numberOfTrailingZeros(word);
+      }
+      if (++w == WORDS) {
+        return -1;
+      }
+      word = words[w];
+    }
+  }
+}
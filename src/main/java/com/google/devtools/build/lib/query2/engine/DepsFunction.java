@@ -60,6 +60,10 @@ final class DepsFunction implements QueryFunction {
       List<Argument> args,
       final Callback<T> callback) {
     final int depthBound = args.size() > 1 ? args.get(1).getInteger() : Integer.MAX_VALUE;
+    if (env instanceof StreamableQueryEnvironment<?>) {
+      return ((StreamableQueryEnvironment<T>) env)
+          .getDepsParallel(expression, args.get(0).getExpression(), context, callback, depthBound);
+    }
     final MinDepthUniquifier<T> minDepthUniquifier = env.createMinDepthUniquifier();
     return env.eval(args.get(0).getExpression(), context, new Callback<T>() {
       @Override
@@ -0,0 +1,109 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.Iterator;
+import java.util.PrimitiveIterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Assigns dense int ids to the elements of a {@link QueryEnvironment}, so that sets of elements can
+ * be represented as {@link CompressedBitSet}s of their ids.
+ *
+ * <p>Elements with the same key, as given by a {@link KeyExtractor}, have the same id. Ids are
+ * assigned in increasing order from 0 and never reassigned, so a single instance is meant to be
+ * shared by all the sets of an environment.
+ */
+@ThreadSafe
+public final class ElementIds<T> {
+
+  private final KeyExtractor<T, ?> extractor;
+  private final ConcurrentMap<Object, Integer> ids = new ConcurrentHashMap<>();
+  // The first element assigned each id.
+  private final IdPages<AtomicReferenceArray<Object>> elements =
+      new IdPages<AtomicReferenceArray<Object>>() {
+        @Override
+        protected AtomicReferenceArray<Object> newPage() {
+          return new AtomicReferenceArray<>(PAGE_SIZE);
+        }
+      };
+  private final AtomicInteger nextId = new AtomicInteger();
+
+  public ElementIds(KeyExtractor<T, ?> extractor) {
+    this.extractor = Preconditions.checkNotNull(extractor);
+  }
+
+  /** Returns the id of {@code element}, assigning it one if it has none yet. */
+  public int getOrAssign(T element) {
+    Object key = extractor.extractKey(element);
+    Integer id = ids.get(key);
+    return id != null ? id : ids.computeIfAbsent(key, k -> assign(element));
+  }
+
+  /** Returns the set of the ids of {@code elements}, assigning them ids as needed. */
+  public CompressedBitSet getOrAssign(Iterable<T> elements) {
+    CompressedBitSet result = new CompressedBitSet();
+    for (T element : elements) {
+      result.add(getOrAssign(element));
+    }
+    return result;
+  }
+
+  /** Returns the element with the given id. */
+  @SuppressWarnings("unchecked")
+  public T get(int id) {
+    return (T) elements.get(id).get(IdPages.offset(id));
+  }
+
+  /** Returns the elements with the ids in {@code set}. The set must not change afterwards. */
+  public Iterable<T> getAll(final CompressedBitSet set) {
+    return new Iterable<T>() {
+      @Override
+      public Iterator<T> iterator() {
+        final PrimitiveIterator.OfInt ids = set.iterator();
+        return new Iterator<T>() {
+          @Override
+          public boolean hasNext() {
+            return ids.hasNext();
+          }
+
+          @Override
+          public T next() {
+            return get(ids.nextInt());
+          }
+        };
+      }
+    };
+  }
+
+  /** Returns the number of ids assigned so far. */
+  public int size() {
+    return ids.size();
+  }
+
+  /**
+   * Assigns the next id to {@code element}. Called at most once per key, by {@link #ids}, but by
+   * several threads at once for different keys.
+   */
+  private int assign(T element) {
+    int id = nextId.getAndIncrement();
+    elements.getOrCreate(id).set(IdPages.offset(id), element);
+    return id;
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadSafe;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The pages of an array indexed by the ids of an {@link ElementIds}, each covering {@link
+ * #PAGE_SIZE} consecutive ids and allocated when first asked for.
+ *
+ * <p>The directory of pages is copied on write and replaced with a compare-and-set, so threads
+ * never wait for each other; a page allocated by a thread that loses the race is dropped. Updates
+ * within a page are up to the page type, typically an atomic array.
+ */
+@ThreadSafe
+abstract class IdPages<P> {
+
+  static final int PAGE_BITS = 12;
+  static final int PAGE_SIZE = 1 << PAGE_BITS;
+
+  private final AtomicReference<Object[]> directory = new AtomicReference<>(new Object[0]);
+
+  /** Returns a new, empty page. */
+  protected abstract P newPage();
+
+  /** Returns the index of the id in its page. */
+  static int offset(int id) {
+    return id & (PAGE_SIZE - 1);
+  }
+
+  /** Returns the page of {@code id}, allocating it if needed. */
+  @SuppressWarnings("unchecked")
+  final P getOrCreate(int id) {
+    int index = id >>> PAGE_BITS;
+    P page = null;
+    while (true) {
+      Object[] current = directory.get();
+      if (index < current.length && current[index] != null) {
+        return (P) current[index];
+      }
+      if (page == null) {
+        page = newPage();
+      }
+      Object[] grown = Arrays.copyOf(current, Math.max(current.length, index + 1));
+      grown[index] = page;
+      if (directory.compareAndSet(current, grown)) {
+        return page;
+      }
+    }
+  }
+
+  /** Returns the page of {@code id}, which must have been allocated. */
+  @SuppressWarnings("unchecked")
+  final P get(int id) {
+    return (P) directory.get()[id >>> PAGE_BITS];
+  }
+}
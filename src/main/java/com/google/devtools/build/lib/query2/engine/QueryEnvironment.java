@@ -21,6 +21,7 @@ import java.util.List;
 import java.util.Set;
 import java.util.concurrent.Callable;
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 
 /**
  * The environment of a Blaze query. Implementations do not need to be thread-safe. The generic type
@@ -349,6 +350,14 @@ public interface QueryEnvironment<T> {
    */
   MinDepthUniquifier<T> createMinDepthUniquifier();
 
+  /**
+   * Returns the ids with which set operations and uniquifiers represent sets of elements as
+   * {@link CompressedBitSet}s, or null if they should use hash sets of elements. See {@link
+   * Setting#BITMAP_SETS}.
+   */
+  @Nullable
+  ElementIds<T> getElementIds();
+
   void reportBuildFileError(QueryExpression expression, String msg) throws QueryException;
 
   /**
@@ -407,7 +416,27 @@ public interface QueryEnvironment<T> {
     /**
      * Do not consider nodep attributes when traversing dependency edges.
      */
-    NO_NODEP_DEPS;
+    NO_NODEP_DEPS,
+
+    /**
+     * Answer reverse dependency queries from an index of the reverse deps of the universe, which
+     * is built on first use and kept for later queries until the universe changes. Only has an
+     * effect on environments with a prepopulated universe.
+     */
+    REVERSE_DEP_INDEX,
+
+    /**
+     * Represent the intermediate results of set operations, and the elements seen by uniquifiers,
+     * as compressed bitmaps of dense element ids rather than as hash sets of elements.
+     */
+    BITMAP_SETS,
+
+    /**
+     * Reuse the results of earlier evaluations of the same query in the same universe, for as long
+     * as the universe is unchanged. Only has an effect on environments with a prepopulated
+     * universe.
+     */
+    QUERY_RESULT_CACHE;
   }
 
   /**
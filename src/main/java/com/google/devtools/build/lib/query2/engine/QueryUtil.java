@@ -24,6 +24,8 @@ import java.util.Collections;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLongArray;
 
 /** Several query utilities to make easier to work with query callbacks and uniquifiers. */
 public final class QueryUtil {
@@ -173,4 +175,102 @@ public final class QueryUtil {
       return result.build();
     }
   }
+
+  /**
+   * A {@link Uniquifier} that records the elements it has seen as bits indexed by their ids. Bits
+   * are set with a compare-and-set of their word, so threads don't wait for each other.
+   */
+  public static class BitmapUniquifier<T> implements Uniquifier<T> {
+    private final ElementIds<T> ids;
+    private final IdPages<AtomicLongArray> alreadySeen =
+        new IdPages<AtomicLongArray>() {
+          @Override
+          protected AtomicLongArray newPage() {
+            return new AtomicLongArray(IdPages.PAGE_SIZE / 64);
+          }
+        };
+
+    public BitmapUniquifier(ElementIds<T> ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    public boolean unique(T element) {
+      int id = ids.getOrAssign(element);
+      AtomicLongArray words = alreadySeen.getOrCreate(id);
+      int w = IdPages.offset(id) >>> 6;
+      long bit = 1L << id;
+      while (true) {
+        long word = words.get(w);
+        if ((word & bit) != 0) {
+          return false;
+        }
+        if (words.compareAndSet(w, word, word | bit)) {
+          return true;
+        }
+      }
+    }
+
+    @Override
+    public ImmutableList<T> unique(Iterable<T> newElements) {
+      ImmutableList.Builder<T> result = ImmutableList.builder();
+      for (T element : newElements) {
+        if (unique(element)) {
+          result.add(element);
+        }
+      }
+      return result.build();
+    }
+  }
+
+  /**
+   * A {@link MinDepthUniquifier} that records the depths at which it has seen elements in arrays
+   * indexed by their ids. Depths are lowered with a compare-and-set, so threads don't wait for each
+   * other.
+   */
+  public static class DenseMinDepthUniquifier<T> implements MinDepthUniquifier<T> {
+    private final ElementIds<T> ids;
+    // One more than the minimum depth at which each element was seen, or 0 if it wasn't.
+    private final IdPages<AtomicIntegerArray> depths =
+        new IdPages<AtomicIntegerArray>() {
+          @Override
+          protected AtomicIntegerArray newPage() {
+            return new AtomicIntegerArray(IdPages.PAGE_SIZE);
+          }
+        };
+
+    public DenseMinDepthUniquifier(ElementIds<T> ids) {
+      this.ids = ids;
+    }
+
+    @Override
+    public final ImmutableList<T> uniqueAtDepthLessThanOrEqualTo(
+        Iterable<T> newElements, int depth) {
+      ImmutableList.Builder<T> result = ImmutableList.builder();
+      for (T element : newElements) {
+        if (lowerDepth(ids.getOrAssign(element), depth)) {
+          result.add(element);
+        }
+      }
+      return result.build();
+    }
+
+    /**
+     * Records that {@code id} was seen at {@code depth} and returns true, unless it was already
+     * seen at most that deep.
+     */
+    private boolean lowerDepth(int id, int depth) {
+      AtomicIntegerArray page = depths.getOrCreate(id);
+      int offset = IdPages.offset(id);
+      while (true) {
+        int previousDepth = page.get(offset) - 1;
+        if (previousDepth >= 0 && depth >= previousDepth) {
+          return false;
+        }
+        if (page.compareAndSet(offset, previousDepth + 1, depth + 1)) {
+          return true;
+        }
+      }
+    }
+  }
 }
@@ -77,6 +77,12 @@ class SomePathFunction implements QueryFunction {
 
             env.buildTransitiveClosure(expression, fromValue, Integer.MAX_VALUE);
 
+            if (env instanceof StreamableQueryEnvironment<?>) {
+              ((StreamableQueryEnvironment<T>) env)
+                  .getSomePathParallel(fromValue, toValue, callback);
+              return null;
+            }
+
             // This set contains all nodes whose TC does not intersect "toValue".
             Uniquifier<T> uniquifier = env.createUniquifier();
 
@@ -14,6 +14,7 @@
 package com.google.devtools.build.lib.query2.engine;
 
 import com.google.common.base.Predicate;
+import java.util.Set;
 
 /**
  * The environment of a Blaze query which supports predefined streaming operations.
@@ -38,4 +39,29 @@ public interface StreamableQueryEnvironment<T> extends QueryEnvironment<T> {
       QueryExpression expression,
       VariableContext<T> context,
       Callback<T> callback);
+
+  /**
+   * Retrieves and processes the deps of the given expression up to {@code depth} edges away, in
+   * parallel. {@code caller} is the expression whose evaluation needs them.
+   */
+  QueryTaskFuture<Void> getDepsParallel(
+      QueryExpression caller,
+      QueryExpression expression,
+      VariableContext<T> context,
+      Callback<T> callback,
+      int depth);
+
+  /**
+   * Processes the nodes on some path from a node of {@code from} to a node of {@code to}, found by
+   * searching from both ends in parallel, or no nodes if there is no such path.
+   */
+  void getSomePathParallel(Set<T> from, Set<T> to, Callback<T> callback)
+      throws QueryException, InterruptedException;
+
+  /**
+   * Processes the nodes on all the paths from a node of {@code from} to a node of {@code to},
+   * found in parallel.
+   */
+  void getAllPathsParallel(Set<T> from, Set<T> to, Callback<T> callback)
+      throws QueryException, InterruptedException;
 }
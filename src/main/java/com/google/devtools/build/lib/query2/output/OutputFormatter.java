@@ -22,6 +22,7 @@ import com.google.common.collect.Sets;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.collect.CompactHashSet;
 import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.graph.Node;
 import com.google.devtools.build.lib.packages.AggregatingAttributeMapper;
@@ -48,14 +49,9 @@ import java.io.Serializable;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
-import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
-import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Map;
 import java.util.Set;
-import javax.annotation.Nullable;
 
 /**
  * Interface for classes which order, format and print the result of a Blaze
@@ -78,6 +74,8 @@ public abstract class OutputFormatter implements Serializable {
     XML,
     PROTO,
     RECORD,
+    STREAMED_PROTO,
+    STREAMED_JSONPROTO,
   }
 
   /**
@@ -115,7 +113,9 @@ public abstract class OutputFormatter implements Serializable {
         new LocationOutputFormatter(),
         new GraphOutputFormatter(),
         new XmlOutputFormatter(),
-        new ProtoOutputFormatter());
+        new ProtoOutputFormatter(),
+        new StreamedProtoOutputFormatter(/*json=*/ false),
+        new StreamedProtoOutputFormatter(/*json=*/ true));
   }
 
   public static String formatterNames(Iterable<OutputFormatter> formatters) {
@@ -213,11 +213,11 @@ public abstract class OutputFormatter implements Serializable {
 
     protected Iterable<Target> getOrderedTargets(
         Digraph<Target> result, QueryOptions options) {
-      Iterable<Node<Target>> orderedResult =
+      CompactDigraph<Target> graph =
           options.orderOutput == OrderOutput.DEPS
-              ? result.getTopologicalOrder()
-              : result.getTopologicalOrder(new TargetOrdering());
-      return Iterables.transform(orderedResult, EXTRACT_NODE_LABEL);
+              ? CompactDigraph.copyOf(result)
+              : CompactDigraph.copyOf(result, new TargetOrdering());
+      return graph.getLabels(graph.getTopologicalOrder());
     }
 
     @Override
@@ -564,19 +564,6 @@ public abstract class OutputFormatter implements Serializable {
       return "minrank";
     }
 
-    private static void outputToStreamOrSave(
-        int rank,
-        Label label,
-        PrintStream out,
-        @Nullable List<RankAndLabel> toSave,
-        final String lineTerminator) {
-      if (toSave != null) {
-        toSave.add(new RankAndLabel(rank, label));
-      } else {
-        out.print(rank + " " + label.getDefaultCanonicalForm() + lineTerminator);
-      }
-    }
-
     @Override
     public void output(
         QueryOptions options,
@@ -584,47 +571,8 @@ public abstract class OutputFormatter implements Serializable {
         OutputStream out,
         AspectResolver aspectResolver)
             throws IOException {
-      PrintStream printStream = new PrintStream(out);
-      // getRoots() isn't defined for cyclic graphs, so in order to handle
-      // cycles correctly, we need work on the strong component graph, as
-      // cycles should be treated a "clump" of nodes all on the same rank.
-      // Graphs may contain cycles because there are errors in BUILD files.
-
-      List<RankAndLabel> outputToOrder =
-          options.orderOutput == OrderOutput.FULL ? new ArrayList<RankAndLabel>() : null;
-      Digraph<Set<Node<Target>>> scGraph = result.getStrongComponentGraph();
-      Set<Node<Set<Node<Target>>>> rankNodes = scGraph.getRoots();
-      Set<Node<Set<Node<Target>>>> seen = new HashSet<>();
-      seen.addAll(rankNodes);
-      final String lineTerm = options.getLineTerminator();
-      for (int rank = 0; !rankNodes.isEmpty(); rank++) {
-        // Print out this rank:
-        for (Node<Set<Node<Target>>> xScc : rankNodes) {
-          for (Node<Target> x : xScc.getLabel()) {
-            outputToStreamOrSave(
-                rank, x.getLabel().getLabel(), printStream, outputToOrder, lineTerm);
-          }
-        }
-
-        // Find the next rank:
-        Set<Node<Set<Node<Target>>>> nextRankNodes = new LinkedHashSet<>();
-        for (Node<Set<Node<Target>>> x : rankNodes) {
-          for (Node<Set<Node<Target>>> y : x.getSuccessors()) {
-            if (seen.add(y)) {
-              nextRankNodes.add(y);
-            }
-          }
-        }
-        rankNodes = nextRankNodes;
-      }
-      if (outputToOrder != null) {
-        Collections.sort(outputToOrder);
-        for (RankAndLabel item : outputToOrder) {
-          printStream.printf("%s%s", item, lineTerm);
-        }
-      }
-
-      flushAndCheckError(printStream);
+      CompactDigraph<Target> graph = CompactDigraph.copyOf(result);
+      outputRanks(options, graph, graph.getMinRanks(), out);
     }
   }
 
@@ -653,59 +601,41 @@ public abstract class OutputFormatter implements Serializable {
         OutputStream out,
         AspectResolver aspectResolver)
             throws IOException {
-      // In order to handle cycles correctly, we need work on the strong
-      // component graph, as cycles should be treated a "clump" of nodes all on
-      // the same rank. Graphs may contain cycles because there are errors in BUILD files.
-
-      // Dynamic programming algorithm:
-      // rank(x) = max(rank(p)) + 1 foreach p in preds(x)
-      // TODO(bazel-team): Move to Digraph.
-      class DP {
-        final Map<Node<Set<Node<Target>>>, Integer> ranks = new HashMap<>();
-
-        int rank(Node<Set<Node<Target>>> node) {
-          Integer rank = ranks.get(node);
-          if (rank == null) {
-            int maxPredRank = -1;
-            for (Node<Set<Node<Target>>> p : node.getPredecessors()) {
-              maxPredRank = Math.max(maxPredRank, rank(p));
+      CompactDigraph<Target> graph = CompactDigraph.copyOf(result);
+      outputRanks(options, graph, graph.getMaxRanks(), out);
+    }
+  }
+
+  /**
+   * Prints the labels of the nodes of {@code graph} preceded by their ranks, in rank order. With
+   * --order_output=full, ties are broken alphabetically.
+   */
+  private static void outputRanks(
+      QueryOptions options, CompactDigraph<Target> graph, int[] ranks, OutputStream out)
+      throws IOException {
+    List<RankAndLabel> output = new ArrayList<>(ranks.length);
+    for (int node = 0; node < ranks.length; node++) {
+      output.add(new RankAndLabel(ranks[node], graph.getLabel(node).getLabel()));
+    }
+    if (options.orderOutput == OrderOutput.FULL) {
+      // Use the natural order for RankAndLabels, which breaks ties alphabetically.
+      Collections.sort(output);
+    } else {
+      Collections.sort(
+          output,
+          new Comparator<RankAndLabel>() {
+            @Override
+            public int compare(RankAndLabel o1, RankAndLabel o2) {
+              return o1.rank - o2.rank;
             }
-            rank = maxPredRank + 1;
-            ranks.put(node, rank);
-          }
-          return rank;
-        }
-      }
-      DP dp = new DP();
-
-      // Now sort by rank...
-      List<RankAndLabel> output = new ArrayList<>();
-      for (Node<Set<Node<Target>>> x : result.getStrongComponentGraph().getNodes()) {
-        int rank = dp.rank(x);
-        for (Node<Target> y : x.getLabel()) {
-          output.add(new RankAndLabel(rank, y.getLabel().getLabel()));
-        }
-      }
-      if (options.orderOutput == OrderOutput.FULL) {
-        // Use the natural order for RankAndLabels, which breaks ties alphabetically.
-        Collections.sort(output);
-      } else {
-        Collections.sort(
-            output,
-            new Comparator<RankAndLabel>() {
-              @Override
-              public int compare(RankAndLabel o1, RankAndLabel o2) {
-                return o1.rank - o2.rank;
-              }
-            });
-      }
-      final String lineTerm = options.getLineTerminator();
-      PrintStream printStream = new PrintStream(out);
-      for (RankAndLabel item : output) {
-        printStream.printf("%s%s", item, lineTerm);
-      }
-      flushAndCheckError(printStream);
+          });
+    }
+    final String lineTerm = options.getLineTerminator();
+    PrintStream printStream = new PrintStream(out);
+    for (RankAndLabel item : output) {
+      printStream.printf("%s%s", item, lineTerm);
     }
+    flushAndCheckError(printStream);
   }
 
   /**
@@ -0,0 +1,130 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.common.base.Throwables;
+import com.google.common.collect.Iterables;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.util.Preconditions;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * A callback that serializes chunks of targets on a pool of threads, and writes them in the order
+ * of their targets from the thread calling {@link #processOutput}. Not thread-safe.
+ *
+ * <p>At most {@code maxPendingChunksPerThread} chunks per thread are being serialized or waiting
+ * to be written: {@link #processOutput} blocks until the first of them is written when there are
+ * more.
+ */
+class ParallelChunkedOutputCallback extends OutputFormatterCallback<Target> {
+
+  /** Serializes the targets of a chunk. Called on several threads at once. */
+  interface ChunkSerializer {
+    byte[] serialize(List<Target> targets) throws IOException, InterruptedException;
+  }
+
+  private final OutputStream out;
+  private final ChunkSerializer serializer;
+  private final int threads;
+  private final int targetsPerChunk;
+  private final int maxPendingChunks;
+  // The chunks being serialized or waiting to be written, in the order of their targets.
+  private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+  private ExecutorService executor;
+
+  ParallelChunkedOutputCallback(
+      OutputStream out,
+      ChunkSerializer serializer,
+      int threads,
+      int targetsPerChunk,
+      int maxPendingChunksPerThread) {
+    Preconditions.checkArgument(threads > 0, threads);
+    Preconditions.checkArgument(targetsPerChunk > 0, targetsPerChunk);
+    Preconditions.checkArgument(maxPendingChunksPerThread > 0, maxPendingChunksPerThread);
+    this.out = out;
+    this.serializer = serializer;
+    this.threads = threads;
+    this.targetsPerChunk = targetsPerChunk;
+    this.maxPendingChunks = threads * maxPendingChunksPerThread;
+  }
+
+  @Override
+  public void start() {
+    executor =
+        Executors.newFixedThreadPool(
+            threads,
+            new ThreadFactoryBuilder()
+                .setNameFormat("streamed-proto-output-%d")
+                .setDaemon(true)
+                .build());
+  }
+
+  @Override
+  public void processOutput(Iterable<Target> partialResult)
+      throws IOException, InterruptedException {
+    for (final List<Target> chunk : Iterables.partition(partialResult, targetsPerChunk)) {
+      while (pending.size() >= maxPendingChunks) {
+        writeFirstPending();
+      }
+      pending.add(
+          executor.submit(
+              new Callable<byte[]>() {
+                @Override
+                public byte[] call() throws IOException, InterruptedException {
+                  return serializer.serialize(chunk);
+                }
+              }));
+      // Write what's already done, so that output keeps up with evaluation.
+      while (!pending.isEmpty() && pending.peek().isDone()) {
+        writeFirstPending();
+      }
+    }
+  }
+
+  @Override
+  public void close(boolean failFast) throws IOException, InterruptedException {
+    try {
+      while (!failFast && !pending.isEmpty()) {
+        writeFirstPending();
+      }
+    } finally {
+      for (Future<byte[]> future : pending) {
+        future.cancel(true);
+      }
+      pending.clear();
+      executor.shutdownNow();
+    }
+  }
+
+  private void writeFirstPending() throws IOException, InterruptedException {
+    byte[] bytes;
+    try {
+      bytes = pending.remove().get();
+    } catch (ExecutionException e) {
+      Throwables.propagateIfPossible(e.getCause(), IOException.class, InterruptedException.class);
+      throw new IllegalStateException(e.getCause());
+    }
+    out.write(bytes);
+  }
+}
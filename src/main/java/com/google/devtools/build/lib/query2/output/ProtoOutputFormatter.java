@@ -27,6 +27,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.graph.CompactDigraph;
 import com.google.devtools.build.lib.graph.Digraph;
 import com.google.devtools.build.lib.packages.Attribute;
 import com.google.devtools.build.lib.packages.AttributeFormatter;
@@ -138,8 +139,8 @@ public class ProtoOutputFormatter extends AbstractUnorderedFormatter {
   }
 
   private static Iterable<Target> getSortedLabels(Digraph<Target> result) {
-    return Iterables.transform(
-        result.getTopologicalOrder(new TargetOrdering()), EXTRACT_NODE_LABEL);
+    CompactDigraph<Target> graph = CompactDigraph.copyOf(result, new TargetOrdering());
+    return graph.getLabels(graph.getTopologicalOrder());
   }
 
   @Override
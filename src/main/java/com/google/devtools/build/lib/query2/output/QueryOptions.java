@@ -47,7 +47,8 @@ public class QueryOptions extends OptionsBase {
     category = "query",
     help =
         "The format in which the query results should be printed. Allowed values are: "
-            + "label, label_kind, minrank, maxrank, package, location, graph, xml, proto, record."
+            + "label, label_kind, minrank, maxrank, package, location, graph, xml, proto, record, "
+            + "streamed_proto, streamed_jsonproto."
   )
   public String outputFormat;
 
@@ -276,6 +277,38 @@ public class QueryOptions extends OptionsBase {
             + "line. It is an error to specify a file here as well as a command-line query."
   )
   public String queryFile;
+
+  @Option(
+    name = "experimental_reverse_dep_index",
+    defaultValue = "false",
+    category = "query",
+    help =
+        "If true, reverse dependency queries with --universe_scope are answered from an index of "
+            + "the reverse dependencies of the universe. The index is built by the first such "
+            + "query and reused by later ones until the universe changes."
+  )
+  public boolean reverseDepIndex;
+
+  @Option(
+    name = "experimental_bitmap_sets",
+    defaultValue = "false",
+    category = "query",
+    help =
+        "If true, the intermediate results of 'except' and 'intersect' and the targets already "
+            + "visited by query functions are kept as compressed bitmaps of target ids rather "
+            + "than as hash sets of targets."
+  )
+  public boolean bitmapSets;
+
+  @Option(
+    name = "experimental_query_result_cache",
+    defaultValue = "false",
+    category = "query",
+    help =
+        "If true, the results of queries with --universe_scope are kept in the server and "
+            + "reused by later identical queries in the same universe, until the universe changes."
+  )
+  public boolean queryResultCache;
   
   /** Ugly workaround since line terminator option default has to be constant expression. */
   public String getLineTerminator() {
@@ -298,6 +331,15 @@ public class QueryOptions extends OptionsBase {
     if (!includeImplicitDeps) {
       settings.add(Setting.NO_IMPLICIT_DEPS);
     }
+    if (reverseDepIndex) {
+      settings.add(Setting.REVERSE_DEP_INDEX);
+    }
+    if (bitmapSets) {
+      settings.add(Setting.BITMAP_SETS);
+    }
+    if (queryResultCache) {
+      settings.add(Setting.QUERY_RESULT_CACHE);
+    }
     return settings;
   }
 }
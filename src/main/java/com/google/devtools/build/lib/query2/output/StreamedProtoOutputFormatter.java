@@ -0,0 +1,101 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.SynchronizedDelegatingOutputFormatterCallback;
+import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.protobuf.util.JsonFormat;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+/**
+ * An output formatter that outputs each target of a query result as its own {@link Build.Target}
+ * message, as soon as the target is found.
+ *
+ * <p>Unlike {@link ProtoOutputFormatter}, which builds a single {@link Build.QueryResult} holding
+ * all the targets before writing it, this formatter never holds more than a bounded number of
+ * messages: targets are converted and serialized in chunks on several threads, and the chunks are
+ * written in the order their targets were given, so that ordered output stays ordered. The caller
+ * is blocked while too many chunks are waiting to be written.
+ *
+ * <p>Messages are either length-delimited, as written by {@link
+ * com.google.protobuf.MessageLite#writeDelimitedTo}, or printed as JSON, one per line.
+ */
+class StreamedProtoOutputFormatter extends ProtoOutputFormatter {
+
+  /** The number of targets serialized together. */
+  private static final int TARGETS_PER_CHUNK = 1000;
+
+  /** The maximum number of chunks per thread that are serialized or waiting to be written. */
+  private static final int MAX_PENDING_CHUNKS_PER_THREAD = 4;
+
+  private static final JsonFormat.Printer JSON_PRINTER =
+      JsonFormat.printer().omittingInsignificantWhitespace();
+
+  private final boolean json;
+
+  StreamedProtoOutputFormatter(boolean json) {
+    this.json = json;
+  }
+
+  @Override
+  public String getName() {
+    return json ? "streamed_jsonproto" : "streamed_proto";
+  }
+
+  @Override
+  public OutputFormatterCallback<Target> createPostFactoStreamCallback(
+      OutputStream out, QueryOptions options) {
+    return new ParallelChunkedOutputCallback(
+        out,
+        new ParallelChunkedOutputCallback.ChunkSerializer() {
+          @Override
+          public byte[] serialize(List<Target> targets) throws IOException, InterruptedException {
+            return StreamedProtoOutputFormatter.this.serialize(targets);
+          }
+        },
+        Runtime.getRuntime().availableProcessors(),
+        TARGETS_PER_CHUNK,
+        MAX_PENDING_CHUNKS_PER_THREAD);
+  }
+
+  @Override
+  public ThreadSafeOutputFormatterCallback<Target> createStreamCallback(
+      OutputStream out, QueryOptions options, QueryEnvironment<?> env) {
+    return new SynchronizedDelegatingOutputFormatterCallback<>(
+        createPostFactoStreamCallback(out, options));
+  }
+
+  /** Serializes the messages of {@code targets}. */
+  private byte[] serialize(List<Target> targets) throws IOException, InterruptedException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    for (Target target : targets) {
+      Build.Target targetPb = toTargetProtoBuffer(target);
+      if (json) {
+        bytes.write(JSON_PRINTER.print(targetPb).getBytes(StandardCharsets.UTF_8));
+        bytes.write('\n');
+      } else {
+        targetPb.writeDelimitedTo(bytes);
+      }
+    }
+    return bytes.toByteArray();
+  }
+}
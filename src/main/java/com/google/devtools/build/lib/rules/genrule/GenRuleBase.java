@@ -122,7 +122,7 @@ public abstract class GenRuleBase implements RuleConfiguredTargetFactory {
       ruleContext.attributeError("outs", "Genrules without outputs don't make sense");
     }
     if (ruleContext.attributes().get("executable", Type.BOOLEAN)
-        && Iterables.size(filesToBuild) > 1) {
+        && filesToBuild.memoizedFlattenAndGetSize() > 1) {
       ruleContext.attributeError(
           "executable",
           "if genrules produce executables, they are allowed only one output. "
@@ -251,7 +251,7 @@ public abstract class GenRuleBase implements RuleConfiguredTargetFactory {
     if (!ruleContext.attributes().get("executable", Type.BOOLEAN)) {
       return null;
     }
-    if (Iterables.size(filesToBuild) == 1) {
+    if (filesToBuild.memoizedFlattenAndGetSize() == 1) {
       return Iterables.getOnlyElement(filesToBuild);
     }
     return null;
@@ -325,7 +325,7 @@ public abstract class GenRuleBase implements RuleConfiguredTargetFactory {
         // multiple filenames, this variable instead expands to the
         // package's root directory in the genfiles tree, even if all the
         // generated files belong to the same subdirectory!
-        if (Iterables.size(filesToBuild) == 1) {
+        if (filesToBuild.memoizedFlattenAndGetSize() == 1) {
           Artifact outputFile = Iterables.getOnlyElement(filesToBuild);
           PathFragment relativeOutputFile = outputFile.getExecPath();
           if (relativeOutputFile.segmentCount() <= 1) {
@@ -20,7 +20,6 @@ import static com.google.devtools.build.lib.rules.objc.ObjcProvider.LIBRARY;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
-import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.analysis.ConfiguredTarget;
 import com.google.devtools.build.lib.analysis.RuleConfiguredTarget.Mode;
@@ -229,8 +228,8 @@ abstract class BinaryLinkingTargetFactory implements RuleConfiguredTargetFactory
 
   private void assertLibraryOrSources(ObjcProvider objcProvider, RuleContext ruleContext)
       throws RuleErrorException {
-    if (Iterables.isEmpty(objcProvider.get(LIBRARY)) // Includes sources from this target.
-        && Iterables.isEmpty(objcProvider.get(IMPORTED_LIBRARY))) {
+    if (objcProvider.get(LIBRARY).isEmpty() // Includes sources from this target.
+        && objcProvider.get(IMPORTED_LIBRARY).isEmpty()) {
       ruleContext.throwWithRuleError(REQUIRES_AT_LEAST_ONE_LIBRARY_OR_SOURCE_FILE);
     }
   }
@@ -259,10 +259,10 @@ final class Bundling {
     }
 
     private Optional<Artifact> combinedArchitectureBinary() {
-      if (!Iterables.isEmpty(objcProvider.get(MULTI_ARCH_LINKED_BINARIES))) {
+      if (!objcProvider.get(MULTI_ARCH_LINKED_BINARIES).isEmpty()) {
         return Optional.of(Iterables.getOnlyElement(objcProvider.get(MULTI_ARCH_LINKED_BINARIES)));
-      } else if (!Iterables.isEmpty(objcProvider.get(LIBRARY))
-          || !Iterables.isEmpty(objcProvider.get(IMPORTED_LIBRARY))) {
+      } else if (!objcProvider.get(LIBRARY).isEmpty()
+          || !objcProvider.get(IMPORTED_LIBRARY).isEmpty()) {
         return Optional.of(intermediateArtifacts.combinedArchitectureBinary());
       }
       return Optional.absent();
@@ -270,7 +270,7 @@ final class Bundling {
 
     private Optional<Artifact> actoolzipOutput() {
       Optional<Artifact> actoolzipOutput = Optional.absent();
-      if (!Iterables.isEmpty(objcProvider.get(ASSET_CATALOG))) {
+      if (!objcProvider.get(ASSET_CATALOG).isEmpty()) {
         actoolzipOutput = Optional.of(intermediateArtifacts.actoolzipOutput());
       }
       return actoolzipOutput;
@@ -45,7 +45,7 @@ public class LipoSupport {
    */
   public LipoSupport registerCombineArchitecturesAction(NestedSet<Artifact> inputBinaries,
       Artifact outputBinary, Platform platform) {
-    if (inputBinaries.toList().size() > 1) {
+    if (inputBinaries.memoizedFlattenAndGetSize() > 1) {
       ruleContext.registerAction(ObjcRuleClasses.spawnAppleEnvActionBuilder(
               ruleContext.getFragment(AppleConfiguration.class), platform)
           .setMnemonic("ObjcCombiningArchitectures")
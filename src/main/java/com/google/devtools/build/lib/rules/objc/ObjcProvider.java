@@ -588,7 +588,7 @@ public final class ObjcProvider extends SkylarkClassObject implements Transitive
    * Indicates whether {@code flag} is set on this provider.
    */
   public boolean is(Flag flag) {
-    return Iterables.contains(get(FLAG), flag);
+    return get(FLAG).anyMatch(Predicates.equalTo(flag));
   }
 
   /**
@@ -21,6 +21,7 @@ import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.SubscriberExceptionHandler;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
 import com.google.devtools.build.lib.actions.cache.CompactPersistentActionCache;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.WorkspaceStatusAction;
 import com.google.devtools.build.lib.analysis.config.BinTools;
@@ -61,6 +62,7 @@ public final class BlazeWorkspace {
   private final SkyframeExecutor skyframeExecutor;
   /** The action cache is loaded lazily on the first build command. */
   private ActionCache actionCache;
+  private ResourceUsageHistory resourceUsageHistory;
   /** The execution time range of the previous build command in this server, if any. */
   @Nullable private Range<Long> lastExecutionRange = null;
 
@@ -222,6 +224,7 @@ public final class BlazeWorkspace {
   public void clearCaches() throws IOException {
     skyframeExecutor.resetEvaluator();
     actionCache = null;
+    resourceUsageHistory = null;
     FileSystemUtils.deleteTree(getCacheDirectory());
   }
 
@@ -254,6 +257,21 @@ public final class BlazeWorkspace {
     return actionCache;
   }
 
+  /**
+   * Returns reference to the lazily instantiated history of measured resource usage, which is
+   * stored next to the persistent action cache.
+   */
+  public ResourceUsageHistory getResourceUsageHistory() throws IOException {
+    if (resourceUsageHistory == null) {
+      try (AutoProfiler p =
+          profiledAndLogged("Loading resource usage history", ProfilerTask.INFO, LOG)) {
+        FileSystemUtils.createDirectoryAndParents(getCacheDirectory());
+        resourceUsageHistory = ResourceUsageHistory.load(getCacheDirectory());
+      }
+    }
+    return resourceUsageHistory;
+  }
+
   /**
    * Generates a README file in the output base directory. This README file
    * contains the name of the workspace directory, so that users can figure out
@@ -22,6 +22,7 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.EventBus;
 import com.google.devtools.build.lib.actions.PackageRootResolver;
 import com.google.devtools.build.lib.actions.cache.ActionCache;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory;
 import com.google.devtools.build.lib.analysis.BlazeDirectories;
 import com.google.devtools.build.lib.analysis.BuildView;
 import com.google.devtools.build.lib.analysis.SkyframePackageRootResolver;
@@ -374,6 +375,10 @@ public final class CommandEnvironment {
     return workspace.getPersistentActionCache(reporter);
   }
 
+  public ResourceUsageHistory getResourceUsageHistory() throws IOException {
+    return workspace.getResourceUsageHistory();
+  }
+
   /**
    * An array of String values useful if Blaze crashes. For now, just returns the build id as soon
    * as it is determined.
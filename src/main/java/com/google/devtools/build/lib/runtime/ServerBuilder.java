@@ -62,9 +62,13 @@ public final class ServerBuilder {
   }
 
   Function<RuleClass, AttributeContainer> getAttributeContainerFactory() {
-    return attributeContainerFactory == null
-        ? AttributeContainer.ATTRIBUTE_CONTAINER_FACTORY
-        : attributeContainerFactory;
+    if (attributeContainerFactory != null) {
+      return attributeContainerFactory;
+    }
+    // Set with --host_jvm_args=-Dbazel.CompactAttributeContainers=true.
+    return Boolean.getBoolean("bazel.CompactAttributeContainers")
+        ? AttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY
+        : AttributeContainer.ATTRIBUTE_CONTAINER_FACTORY;
   }
 
   ImmutableMap<String, InfoItem> getInfoItems() {
@@ -137,7 +141,8 @@ public final class ServerBuilder {
 
   /**
    * Sets a factory for creating {@link AttributeContainer} instances. Only one factory per server
-   * is allowed. If none is set, the server uses the default implementation.
+   * is allowed. If none is set, the server uses the default implementation, or the compact one
+   * if the {@code bazel.CompactAttributeContainers} system property is true.
    */
   public ServerBuilder setAttributeContainerFactory(
       Function<RuleClass, AttributeContainer> attributeContainerFactory) {
@@ -15,6 +15,7 @@
 package com.google.devtools.build.lib.skyframe;
 
 import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.StoredEventHandler;
 import com.google.devtools.build.lib.packages.BuildFileNotFoundException;
 import com.google.devtools.build.lib.packages.RuleClassProvider;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
@@ -31,6 +32,7 @@ import com.google.devtools.build.skyframe.SkyFunctionException.Transience;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import java.io.IOException;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -44,9 +46,20 @@ import javax.annotation.Nullable;
 public class ASTFileLookupFunction implements SkyFunction {
 
   private final RuleClassProvider ruleClassProvider;
+  private final AtomicReference<AstDiskCache> astDiskCache;
 
   public ASTFileLookupFunction(RuleClassProvider ruleClassProvider) {
+    this(ruleClassProvider, new AtomicReference<AstDiskCache>());
+  }
+
+  /**
+   * Creates a function that looks up the ASTs of files in the cache held by {@code astDiskCache}
+   * before parsing them, if the reference is set.
+   */
+  public ASTFileLookupFunction(
+      RuleClassProvider ruleClassProvider, AtomicReference<AstDiskCache> astDiskCache) {
     this.ruleClassProvider = ruleClassProvider;
+    this.astDiskCache = astDiskCache;
   }
 
   @Override
@@ -108,8 +121,23 @@ public class ASTFileLookupFunction implements SkyFunction {
     //
     BuildFileAST ast = null;
     Path path = rootedPath.asPath();
+    AstDiskCache diskCache = astDiskCache.get();
+    String diskCacheKey = null;
     try {
+      if (diskCache != null) {
+        byte[] digest = fileValue.getDigest();
+        diskCacheKey =
+            diskCache.key(
+                digest != null ? digest : path.getDigest(),
+                path.asFragment(),
+                "bzl " + fileLabel + " " + skylarkSemantics.cacheKey());
+        ast = diskCache.get(diskCacheKey);
+        if (ast != null) {
+          return ASTFileLookupValue.withFile(ast);
+        }
+      }
       long astFileSize = fileValue.getSize();
+      StoredEventHandler eventHandler = new StoredEventHandler();
       try (Mutability mutability = Mutability.create("validate")) {
           ValidationEnvironment validationEnv =
               new ValidationEnvironment(
@@ -118,15 +146,19 @@ public class ASTFileLookupFunction implements SkyFunction {
                           fileLabel,
                           mutability,
                           skylarkSemantics,
-                          env.getListener(),
+                          eventHandler,
                           // the two below don't matter for extracting the ValidationEnvironment:
                           /*astFileContentHashCode=*/ null,
                           /*importMap=*/ null)
                       .setupDynamic(Runtime.PKG_NAME, Runtime.NONE)
                       .setupDynamic(Runtime.REPOSITORY_NAME, Runtime.NONE));
-          ast = BuildFileAST.parseSkylarkFile(path, astFileSize, env.getListener());
-          ast = ast.validate(validationEnv, env.getListener());
+          ast = BuildFileAST.parseSkylarkFile(path, astFileSize, eventHandler);
+          ast = ast.validate(validationEnv, eventHandler);
         }
+      eventHandler.replayOn(env.getListener());
+      if (diskCache != null && eventHandler.isEmpty() && !ast.containsErrors()) {
+        diskCache.put(diskCacheKey, ast);
+      }
     } catch (IOException e) {
       throw new ASTLookupFunctionException(new ErrorReadingSkylarkExtensionException(e),
           Transience.TRANSIENT);
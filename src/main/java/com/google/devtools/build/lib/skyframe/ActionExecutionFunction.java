@@ -156,11 +156,11 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
     }
     Pair<Map<Artifact, FileArtifactValue>, Map<Artifact, Collection<Artifact>>> checkedInputs =
         null;
+    Map<SkyKey, ValueOrException2<MissingInputFileException, ActionExecutionException>> inputDeps;
     try {
       // Declare deps on known inputs to action. We do this unconditionally to maintain our
       // invariant of asking for the same deps each build.
-      Map<SkyKey, ValueOrException2<MissingInputFileException, ActionExecutionException>> inputDeps
-          = env.getValuesOrThrow(toKeys(state.allInputs.getAllInputs(),
+      inputDeps = env.getValuesOrThrow(toKeys(state.allInputs.getAllInputs(),
               action.discoversInputs() ? action.getMandatoryInputs() : null),
           MissingInputFileException.class, ActionExecutionException.class);
 
@@ -178,6 +178,9 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
       // There was missing artifact metadata in the graph. Wait for it to be present.
       // We must check this and return here before attempting to establish any Skyframe dependencies
       // of the action; see establishSkyframeDependencies why.
+      if (skyframeActionExecutor.isPrefetchingInputs()) {
+        prefetchAvailableInputs(inputDeps);
+      }
       return null;
     }
 
@@ -572,6 +575,38 @@ public class ActionExecutionFunction implements SkyFunction, CompletionReceiver
     }
   }
 
+  /**
+   * Hands the inputs that are already built to the input prefetcher. The action is waiting only for
+   * its remaining inputs, so fetching the others now overlaps their transfer with the execution of
+   * the actions it is waiting for.
+   */
+  private void prefetchAvailableInputs(
+      Map<SkyKey, ValueOrException2<MissingInputFileException, ActionExecutionException>>
+          inputDeps) {
+    List<Artifact> available = new ArrayList<>();
+    for (Map.Entry<SkyKey, ValueOrException2<MissingInputFileException,
+        ActionExecutionException>> depsEntry : inputDeps.entrySet()) {
+      SkyValue value;
+      try {
+        value = depsEntry.getValue().get();
+      } catch (MissingInputFileException | ActionExecutionException e) {
+        // Reported by checkInputs.
+        continue;
+      }
+      if (value instanceof TreeArtifactValue) {
+        available.addAll(((TreeArtifactValue) value).getChildValues().keySet());
+      } else if (value instanceof FileArtifactValue) {
+        Artifact input = ArtifactSkyKey.artifact(depsEntry.getKey());
+        if (!input.isMiddlemanArtifact()) {
+          available.add(input);
+        }
+      }
+    }
+    if (!available.isEmpty()) {
+      skyframeActionExecutor.prefetchInputs(available);
+    }
+  }
+
   /**
    * Declare dependency on all known inputs of action. Throws exception if any are known to be
    * missing. Some inputs may not yet be in the graph, in which case the builder should abort.
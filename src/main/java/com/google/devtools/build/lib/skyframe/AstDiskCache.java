@@ -0,0 +1,104 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of the ASTs of BUILD and .bzl files, so that they don't have to be parsed again
+ * after a server restart.
+ *
+ * <p>Entries are keyed by the digest of the contents of the file, its path (which is recorded in
+ * the locations of the AST), a description of how the AST was produced, and a salt identifying the
+ * binary that wrote them. Only ASTs whose parsing and validation reported no events are stored, so
+ * that a hit is indistinguishable from parsing the file again.
+ *
+ * <p>Each entry is a file of a {@link DiskCacheDirectory} holding the Java serialization of the
+ * AST.
+ */
+public final class AstDiskCache {
+
+  private static final Logger LOG = Logger.getLogger(AstDiskCache.class.getName());
+
+  /** Bumped whenever the format of the entries changes. */
+  private static final int VERSION = 1;
+
+  private final DiskCacheDirectory directory;
+
+  AstDiskCache(DiskCacheDirectory directory) {
+    this.directory = Preconditions.checkNotNull(directory);
+  }
+
+  DiskCacheDirectory getDirectory() {
+    return directory;
+  }
+
+  /**
+   * Returns the cache key of a file.
+   *
+   * @param digest the digest of the contents of the file, or the contents themselves
+   * @param path the path of the file, as recorded in the locations of its AST
+   * @param kind describes everything else the AST depends on, e.g. the options it was validated
+   *     with
+   */
+  String key(byte[] digest, PathFragment path, String kind) {
+    return directory
+        .newKey(VERSION)
+        .addBytes(digest)
+        .addPath(path)
+        .addString(kind)
+        .hexDigestAndReset();
+  }
+
+  /** Returns the AST stored for the given key, or null if there is none. */
+  @Nullable
+  BuildFileAST get(String key) {
+    return directory.read(key, AST_READER);
+  }
+
+  private static final DiskCacheDirectory.EntryReader<BuildFileAST> AST_READER =
+      new DiskCacheDirectory.EntryReader<BuildFileAST>() {
+        @Override
+        public BuildFileAST read(byte[] bytes) throws IOException {
+          try (ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes))) {
+            return (BuildFileAST) in.readObject();
+          } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+          }
+        }
+      };
+
+  /** Stores an AST. The AST must not contain errors. */
+  void put(String key, BuildFileAST ast) {
+    Preconditions.checkArgument(!ast.containsErrors(), key);
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (ObjectOutputStream out = new ObjectOutputStream(bytes)) {
+      out.writeObject(ast);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to serialize the AST of " + key, e);
+      return;
+    }
+    directory.write(key, bytes.toByteArray());
+  }
+}
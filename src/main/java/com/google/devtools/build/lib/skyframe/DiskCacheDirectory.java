@@ -0,0 +1,134 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * The directory of an on-disk cache, like {@link AstDiskCache} or {@link PackageDiskCache}, which
+ * stores each entry in its own file.
+ *
+ * <p>Entries are keyed by hex digests, which should include the salt of the directory (see {@link
+ * #newKey}) so that entries written by another binary are never read. Entries are written under a
+ * unique temporary name and renamed, so that readers never see a partial entry, and are marked as
+ * used when they're read. Failures to read or write an entry are logged and treated as misses.
+ *
+ * <p>The directory is kept under a size limit by {@link DiskCacheTrimmer}: it is trimmed when
+ * {@link #trim} is called, and again whenever an eighth of the limit has been written since.
+ */
+final class DiskCacheDirectory {
+
+  private static final Logger LOG = Logger.getLogger(DiskCacheDirectory.class.getName());
+
+  /** The fraction of the size limit that may be written between two trims. */
+  private static final int TRIM_FRACTION = 8;
+
+  /** Parses the contents of an entry. */
+  interface EntryReader<T> {
+    /** Returns the entry stored in {@code bytes}, or throws if they're corrupt. */
+    T read(byte[] bytes) throws IOException;
+  }
+
+  private final Path directory;
+  private final String salt;
+  private final long maxSizeBytes;
+  private final AtomicLong bytesWrittenSinceTrim = new AtomicLong();
+
+  /**
+   * Creates a cache directory at {@code directory}. Entries whose keys were created with another
+   * {@code salt} are never read.
+   */
+  DiskCacheDirectory(Path directory, String salt, long maxSizeBytes) {
+    this.directory = Preconditions.checkNotNull(directory);
+    this.salt = Preconditions.checkNotNull(salt);
+    this.maxSizeBytes = maxSizeBytes;
+  }
+
+  long getMaxSizeBytes() {
+    return maxSizeBytes;
+  }
+
+  /** Returns a fingerprint holding the salt, to which the rest of a key is added. */
+  Fingerprint newKey(int version) {
+    return new Fingerprint().addInt(version).addString(salt);
+  }
+
+  /** Evicts the least recently used entries until the cache is within its size limit. */
+  void trim() {
+    bytesWrittenSinceTrim.set(0);
+    DiskCacheTrimmer.trim(directory, maxSizeBytes);
+  }
+
+  /**
+   * Returns the entry stored for the given key, or null if there is none or it can't be read.
+   * Entries that {@code reader} fails to parse are deleted.
+   */
+  @Nullable
+  <T> T read(String key, EntryReader<T> reader) {
+    Path entry = entryPath(key);
+    T result = null;
+    try {
+      if (entry.exists()) {
+        result = reader.read(FileSystemUtils.readContent(entry));
+        DiskCacheTrimmer.touch(entry);
+      }
+    } catch (IOException | RuntimeException e) {
+      LOG.log(Level.WARNING, "Failed to read disk cache entry " + entry, e);
+      delete(entry);
+    }
+    return result;
+  }
+
+  /** Stores an entry, replacing any entry stored for the same key. */
+  void write(String key, byte[] bytes) {
+    Path entry = entryPath(key);
+    Path temp = entry.getParentDirectory().getChild(key + "." + UUID.randomUUID());
+    try {
+      FileSystemUtils.createDirectoryAndParents(entry.getParentDirectory());
+      FileSystemUtils.writeContent(temp, bytes);
+      temp.renameTo(entry);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to write disk cache entry " + entry, e);
+      delete(temp);
+      return;
+    }
+    if (bytesWrittenSinceTrim.addAndGet(bytes.length) > maxSizeBytes / TRIM_FRACTION) {
+      trim();
+    }
+  }
+
+  @VisibleForTesting
+  Path entryPath(String key) {
+    // Spread the entries over subdirectories to keep directories small.
+    return directory.getChild(key.substring(0, 2)).getChild(key.substring(2));
+  }
+
+  private static void delete(Path path) {
+    try {
+      path.delete();
+    } catch (IOException e) {
+      // Nothing else to do.
+    }
+  }
+}
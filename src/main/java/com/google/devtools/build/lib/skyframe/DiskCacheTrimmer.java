@@ -0,0 +1,127 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.devtools.build.lib.vfs.FileStatus;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounds the size of an on-disk cache whose entries are files in subdirectories of the cache
+ * directory, like {@link AstDiskCache}.
+ *
+ * <p>Entries are evicted in the order of their modification times, which the caches update when an
+ * entry is used, so the least recently used entries go first. Files whose names contain a dot are
+ * entries being written; they are only deleted once they're old enough to have been abandoned.
+ */
+final class DiskCacheTrimmer {
+
+  private static final Logger LOG = Logger.getLogger(DiskCacheTrimmer.class.getName());
+
+  private static final long ABANDONED_TEMP_FILE_AGE_MILLIS = TimeUnit.HOURS.toMillis(1);
+
+  private DiskCacheTrimmer() {}
+
+  private static final class CachedFile {
+    private final Path path;
+    private final long size;
+    private final long lastModifiedTime;
+
+    private CachedFile(Path path, long size, long lastModifiedTime) {
+      this.path = path;
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+    }
+  }
+
+  /**
+   * Deletes the least recently used entries under {@code directory} until their total size is at
+   * most {@code maxSizeBytes}, and deletes abandoned temporary files. Returns the total size of the
+   * remaining entries.
+   */
+  static long trim(Path directory, long maxSizeBytes) {
+    List<CachedFile> entries = new ArrayList<>();
+    long totalSize = 0;
+    long now = System.currentTimeMillis();
+    try {
+      if (!directory.isDirectory()) {
+        return 0;
+      }
+      for (Path subdirectory : directory.getDirectoryEntries()) {
+        if (!subdirectory.isDirectory()) {
+          continue;
+        }
+        for (Path file : subdirectory.getDirectoryEntries()) {
+          FileStatus status = file.statNullable();
+          if (status == null || !status.isFile()) {
+            continue;
+          }
+          if (file.getBaseName().indexOf('.') >= 0) {
+            if (now - status.getLastModifiedTime() > ABANDONED_TEMP_FILE_AGE_MILLIS) {
+              delete(file);
+            }
+            continue;
+          }
+          entries.add(new CachedFile(file, status.getSize(), status.getLastModifiedTime()));
+          totalSize += status.getSize();
+        }
+      }
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to list disk cache " + directory, e);
+      return totalSize;
+    }
+    if (totalSize <= maxSizeBytes) {
+      return totalSize;
+    }
+    Collections.sort(entries, new Comparator<CachedFile>() {
+      @Override
+      public int compare(CachedFile a, CachedFile b) {
+        return Long.compare(a.lastModifiedTime, b.lastModifiedTime);
+      }
+    });
+    for (CachedFile entry : entries) {
+      if (totalSize <= maxSizeBytes) {
+        break;
+      }
+      if (delete(entry.path)) {
+        totalSize -= entry.size;
+      }
+    }
+    return totalSize;
+  }
+
+  /** Marks an entry as used, so that it's evicted after the entries that weren't. */
+  static void touch(Path entry) {
+    try {
+      entry.setLastModifiedTime(-1L);
+    } catch (IOException e) {
+      // Only makes the entry more likely to be evicted.
+    }
+  }
+
+  private static boolean delete(Path path) {
+    try {
+      return path.delete();
+    } catch (IOException e) {
+      return false;
+    }
+  }
+}
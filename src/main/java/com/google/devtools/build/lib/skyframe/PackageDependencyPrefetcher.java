@@ -0,0 +1,159 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.LabelSyntaxException;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.syntax.Argument;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Expression;
+import com.google.devtools.build.lib.syntax.FuncallExpression;
+import com.google.devtools.build.lib.syntax.IntegerLiteral;
+import com.google.devtools.build.lib.syntax.ListLiteral;
+import com.google.devtools.build.lib.syntax.SkylarkImport;
+import com.google.devtools.build.lib.syntax.StringLiteral;
+import com.google.devtools.build.lib.syntax.SyntaxTreeVisitor;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import javax.annotation.Nullable;
+
+/**
+ * Finds the Skyframe dependencies of a package that can be known from its BUILD file's AST alone,
+ * before the file is evaluated: the {@link GlobValue}s of the {@code glob()} calls whose arguments
+ * are literals, and the {@link SkylarkImportLookupValue}s of the {@code load()}s of labels.
+ *
+ * <p>{@link PackageFunction} requests them all together as soon as the AST is parsed, so that
+ * Skyframe computes them in parallel, and the package is evaluated after a single restart instead
+ * of one restart per kind of missing dependency. This is the same idea as the glob prefetching
+ * done with a {@link com.google.devtools.build.lib.packages.PackageFactory.LegacyGlobber}, except
+ * that the results go to Skyframe, and the BUILD file isn't executed to find the globs.
+ *
+ * <p>Globs whose arguments are computed, globs called from macros, and loads of absolute paths
+ * aren't found; they're handled as before when the package is evaluated.
+ */
+final class PackageDependencyPrefetcher {
+
+  private PackageDependencyPrefetcher() {}
+
+  /** Returns the keys of the patterns of the globs of {@code ast} whose arguments are literals. */
+  static ImmutableList<SkyKey> getGlobKeys(
+      BuildFileAST ast, final PackageIdentifier packageId, final Path packageRoot) {
+    final Set<SkyKey> globKeys = new LinkedHashSet<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(FuncallExpression node) {
+        super.visit(node);
+        if (node.getObject() == null && node.getFunction().getName().equals("glob")) {
+          addGlobKeys(node, packageId, packageRoot, globKeys);
+        }
+      }
+    }.visit(ast);
+    return ImmutableList.copyOf(globKeys);
+  }
+
+  private static void addGlobKeys(
+      FuncallExpression glob, PackageIdentifier packageId, Path packageRoot, Set<SkyKey> globKeys) {
+    List<String> includes = null;
+    List<String> excludes = ImmutableList.of();
+    boolean excludeDirs = true;
+    for (Argument.Passed argument : glob.getArguments()) {
+      // Only the first argument may be positional.
+      String name =
+          argument.isPositional() ? (includes == null ? "include" : null) : argument.getName();
+      if (name == null) {
+        // A second positional argument, *args or **kwargs.
+        return;
+      }
+      switch (name) {
+        case "include":
+          includes = getStrings(argument.getValue());
+          if (includes == null) {
+            return;
+          }
+          break;
+        case "exclude":
+          excludes = getStrings(argument.getValue());
+          if (excludes == null) {
+            return;
+          }
+          break;
+        case "exclude_directories":
+          if (!(argument.getValue() instanceof IntegerLiteral)) {
+            return;
+          }
+          excludeDirs = ((IntegerLiteral) argument.getValue()).getValue() != 0;
+          break;
+        default:
+          return;
+      }
+    }
+    if (includes == null) {
+      return;
+    }
+    // Like SkyframeHybridGlobber, includes and excludes are globbed separately.
+    for (String pattern : Iterables.concat(includes, excludes)) {
+      try {
+        globKeys.add(
+            GlobValue.key(
+                packageId, packageRoot, pattern, excludeDirs, PathFragment.EMPTY_FRAGMENT));
+      } catch (InvalidGlobPatternException e) {
+        // Reported when the package is evaluated.
+      }
+    }
+  }
+
+  /** Returns the values of a list of string literals, or null if it's something else. */
+  @Nullable
+  private static List<String> getStrings(Expression expression) {
+    if (!(expression instanceof ListLiteral)) {
+      return null;
+    }
+    ImmutableList.Builder<String> strings = ImmutableList.builder();
+    for (Expression element : ((ListLiteral) expression).getElements()) {
+      if (!(element instanceof StringLiteral)) {
+        return null;
+      }
+      strings.add(((StringLiteral) element).getValue());
+    }
+    return strings.build();
+  }
+
+  /** Returns the keys of the .bzl files loaded by label from {@code ast}. */
+  static ImmutableList<SkyKey> getImportKeys(
+      BuildFileAST ast, PackageIdentifier packageId, boolean inWorkspace) {
+    Label buildFileLabel;
+    try {
+      buildFileLabel = Label.create(packageId, "BUILD");
+    } catch (LabelSyntaxException e) {
+      // Shouldn't happen; the Label is well-formed by construction.
+      throw new IllegalStateException(e);
+    }
+    ImmutableList.Builder<SkyKey> importKeys = ImmutableList.builder();
+    for (SkylarkImport skylarkImport : ast.getImports()) {
+      if (!skylarkImport.hasAbsolutePath()) {
+        importKeys.add(
+            SkylarkImportLookupValue.key(skylarkImport.getLabel(buildFileLabel), inWorkspace));
+      }
+    }
+    return importKeys.build();
+  }
+}
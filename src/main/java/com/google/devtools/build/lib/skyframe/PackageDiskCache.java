@@ -0,0 +1,264 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.PackageSerializer;
+import com.google.devtools.build.lib.packages.RuleVisibility;
+import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
+import com.google.devtools.build.lib.syntax.Environment.Extension;
+import com.google.devtools.build.lib.syntax.SkylarkSemanticsOptions;
+import com.google.devtools.build.lib.util.Fingerprint;
+import com.google.devtools.build.lib.util.Preconditions;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+
+/**
+ * An on-disk cache of loaded packages, so that BUILD files don't have to be evaluated again after a
+ * server restart, or by another server sharing the cache directory.
+ *
+ * <p>Entries are keyed by everything the evaluation of a BUILD file depends on other than the
+ * filesystem: the contents and path of the BUILD file, the options and prelude it was evaluated
+ * with, the transitive contents of the .bzl files it loads, and a salt identifying the binary that
+ * wrote them. The results of the globs of the package are validated separately: an entry records
+ * the globs and a digest of their matches, and is only used if the globs still match the same
+ * files.
+ *
+ * <p>Each entry is a file of a {@link DiskCacheDirectory}. The packages themselves are stored in
+ * the format of {@link PackageSerializer}.
+ */
+public final class PackageDiskCache {
+
+  private static final Logger LOG = Logger.getLogger(PackageDiskCache.class.getName());
+
+  /** Bumped whenever the format of the entries or of the keys changes. */
+  private static final int VERSION = 1;
+
+  private final DiskCacheDirectory directory;
+
+  PackageDiskCache(DiskCacheDirectory directory) {
+    this.directory = Preconditions.checkNotNull(directory);
+  }
+
+  DiskCacheDirectory getDirectory() {
+    return directory;
+  }
+
+  /** A cached package, along with the globs it was loaded with. */
+  static final class Entry {
+    private final ImmutableList<SkyKey> globKeys;
+    private final byte[] globDigest;
+    private final byte[] serializedPackage;
+
+    private Entry(ImmutableList<SkyKey> globKeys, byte[] globDigest, byte[] serializedPackage) {
+      this.globKeys = globKeys;
+      this.globDigest = globDigest;
+      this.serializedPackage = serializedPackage;
+    }
+
+    /** Returns the keys of the globs of the package. */
+    ImmutableList<SkyKey> getGlobKeys() {
+      return globKeys;
+    }
+
+    /** Returns true iff the globs of the package match the same files as when it was stored. */
+    boolean globsMatch(Map<SkyKey, GlobValue> globValues) {
+      return Arrays.equals(globDigest(globKeys, globValues), globDigest);
+    }
+
+    /** Returns the package, as returned by {@link PackageSerializer#serialize}. */
+    byte[] getSerializedPackage() {
+      return serializedPackage;
+    }
+  }
+
+  /**
+   * Returns the part of the key of a package that is known before its imports are loaded.
+   *
+   * @param buildFileDigest the digest of the contents of the BUILD file, or the contents themselves
+   * @param preludeHashCode the content hash code of the prelude, or the empty string if there is
+   *     none
+   */
+  String buildFileKey(
+      byte[] buildFileDigest,
+      PathFragment buildFilePath,
+      PackageIdentifier packageId,
+      String workspaceName,
+      RuleVisibility defaultVisibility,
+      SkylarkSemanticsOptions skylarkSemantics,
+      String preludeHashCode) {
+    Fingerprint fp = directory
+        .newKey(VERSION)
+        .addBytes(buildFileDigest)
+        .addPath(buildFilePath)
+        .addString(packageId.getRepository().getName())
+        .addPath(packageId.getPackageFragment())
+        .addString(workspaceName)
+        .addString(skylarkSemantics.cacheKey())
+        .addString(preludeHashCode);
+    List<Label> visibility = defaultVisibility.getDeclaredLabels();
+    fp.addInt(visibility.size());
+    for (Label label : visibility) {
+      fp.addString(label.toString());
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  /**
+   * Returns the key of a package, given the result of {@link #buildFileKey} and the .bzl files the
+   * BUILD file loads.
+   *
+   * @param importMap the extensions loaded by the BUILD file, by import string
+   * @param fileDependencies the labels of the .bzl files the BUILD file loads, transitively
+   */
+  String key(
+      String buildFileKey, Map<String, Extension> importMap, List<Label> fileDependencies) {
+    Fingerprint fp = new Fingerprint().addString(buildFileKey);
+    // Sorted, since the map's iteration order isn't stable.
+    Map<String, Extension> sortedImports = new TreeMap<>(importMap);
+    fp.addInt(sortedImports.size());
+    for (Map.Entry<String, Extension> entry : sortedImports.entrySet()) {
+      fp.addString(entry.getKey());
+      fp.addString(entry.getValue().getTransitiveContentHashCode());
+    }
+    fp.addInt(fileDependencies.size());
+    for (Label label : fileDependencies) {
+      fp.addString(label.toString());
+    }
+    return fp.hexDigestAndReset();
+  }
+
+  /**
+   * Returns a digest of the matches of the given globs, in order, or null if some of them are
+   * missing.
+   */
+  @Nullable
+  static byte[] globDigest(List<SkyKey> globKeys, Map<SkyKey, GlobValue> globValues) {
+    Fingerprint fp = new Fingerprint();
+    fp.addInt(globKeys.size());
+    for (SkyKey globKey : globKeys) {
+      GlobValue globValue = globValues.get(globKey);
+      if (globValue == null) {
+        return null;
+      }
+      for (PathFragment match : globValue.getMatches()) {
+        fp.addPath(match);
+      }
+      // Separates the matches of consecutive globs.
+      fp.addInt(-1);
+    }
+    return fp.digestAndReset();
+  }
+
+  /** Returns the entry stored for the given key of a package, or null if there is none. */
+  @Nullable
+  Entry get(String key, final PackageIdentifier packageId, final Path packageRoot) {
+    return directory.read(
+        key,
+        new DiskCacheDirectory.EntryReader<Entry>() {
+          @Override
+          public Entry read(byte[] bytes) throws IOException {
+            DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes));
+            try {
+              return readEntry(in, packageId, packageRoot);
+            } catch (InvalidGlobPatternException e) {
+              throw new IOException(e);
+            }
+          }
+        });
+  }
+
+  private static Entry readEntry(DataInputStream in, PackageIdentifier packageId, Path packageRoot)
+      throws IOException, InvalidGlobPatternException {
+    if (in.readInt() != VERSION) {
+      throw new IOException("unexpected version");
+    }
+    int globCount = in.readInt();
+    ImmutableList.Builder<SkyKey> globKeys = ImmutableList.builder();
+    for (int i = 0; i < globCount; i++) {
+      String pattern = in.readUTF();
+      boolean excludeDirs = in.readBoolean();
+      PathFragment subdir = PathFragment.create(in.readUTF());
+      globKeys.add(GlobValue.key(packageId, packageRoot, pattern, excludeDirs, subdir));
+    }
+    byte[] globDigest = readBytes(in);
+    byte[] serializedPackage = readBytes(in);
+    if (in.read() != -1) {
+      throw new IOException("unexpected data after the package");
+    }
+    return new Entry(globKeys.build(), globDigest, serializedPackage);
+  }
+
+  private static byte[] readBytes(DataInputStream in) throws IOException {
+    int length = in.readInt();
+    if (length < 0 || length > in.available()) {
+      throw new IOException("invalid length " + length);
+    }
+    byte[] bytes = new byte[length];
+    in.readFully(bytes);
+    return bytes;
+  }
+
+  /**
+   * Stores a package.
+   *
+   * @param serializedPackage the package, as returned by {@link PackageSerializer#serialize}
+   * @param globKeys the keys of the globs of the package
+   * @param globValues the values of the globs of the package
+   */
+  void put(
+      String key,
+      byte[] serializedPackage,
+      List<SkyKey> globKeys,
+      Map<SkyKey, GlobValue> globValues) {
+    byte[] globDigest = globDigest(globKeys, globValues);
+    if (globDigest == null) {
+      return;
+    }
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream out = new DataOutputStream(bytes)) {
+      out.writeInt(VERSION);
+      out.writeInt(globKeys.size());
+      for (SkyKey globKey : globKeys) {
+        GlobDescriptor glob = (GlobDescriptor) globKey.argument();
+        out.writeUTF(glob.getPattern());
+        out.writeBoolean(glob.excludeDirs());
+        out.writeUTF(glob.getSubdir().getPathString());
+      }
+      out.writeInt(globDigest.length);
+      out.write(globDigest);
+      out.writeInt(serializedPackage.length);
+      out.write(serializedPackage);
+    } catch (IOException e) {
+      LOG.log(Level.WARNING, "Failed to serialize the package cache entry " + key, e);
+      return;
+    }
+    directory.write(key, bytes.toByteArray());
+  }
+}
@@ -36,13 +36,17 @@ import com.google.devtools.build.lib.packages.Globber;
 import com.google.devtools.build.lib.packages.InvalidPackageNameException;
 import com.google.devtools.build.lib.packages.NoSuchPackageException;
 import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageDeserializer;
 import com.google.devtools.build.lib.packages.PackageFactory;
 import com.google.devtools.build.lib.packages.PackageFactory.LegacyGlobber;
+import com.google.devtools.build.lib.packages.PackageSerializer;
 import com.google.devtools.build.lib.packages.Preprocessor.AstAfterPreprocessing;
+import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.packages.RuleVisibility;
 import com.google.devtools.build.lib.packages.Target;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import com.google.devtools.build.lib.rules.SkylarkRuleClassFunctions.RuleFunction;
 import com.google.devtools.build.lib.skyframe.GlobValue.InvalidGlobPatternException;
 import com.google.devtools.build.lib.skyframe.SkylarkImportLookupFunction.SkylarkImportFailedException;
 import com.google.devtools.build.lib.syntax.BuildFileAST;
@@ -67,6 +71,7 @@ import com.google.devtools.build.skyframe.ValueOrException2;
 import com.google.devtools.build.skyframe.ValueOrException3;
 import com.google.devtools.build.skyframe.ValueOrException4;
 import java.io.IOException;
+import java.io.NotSerializableException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -80,6 +85,7 @@ import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 import javax.annotation.Nullable;
 
 /**
@@ -95,6 +101,8 @@ public class PackageFunction implements SkyFunction {
   private final AtomicBoolean showLoadingProgress;
   private final AtomicInteger numPackagesLoaded;
   @Nullable private final PackageProgressReceiver packageProgress;
+  private final AtomicReference<AstDiskCache> astDiskCache;
+  private final AtomicReference<PackageDiskCache> packageDiskCache;
   private final Profiler profiler = Profiler.instance();
   private final Label preludeLabel;
 
@@ -111,7 +119,9 @@ public class PackageFunction implements SkyFunction {
       Cache<PackageIdentifier, CacheEntryWithGlobDeps<AstAfterPreprocessing>> astCache,
       AtomicInteger numPackagesLoaded,
       @Nullable SkylarkImportLookupFunction skylarkImportLookupFunctionForInlining,
-      @Nullable PackageProgressReceiver packageProgress) {
+      @Nullable PackageProgressReceiver packageProgress,
+      AtomicReference<AstDiskCache> astDiskCache,
+      AtomicReference<PackageDiskCache> packageDiskCache) {
     this.skylarkImportLookupFunctionForInlining = skylarkImportLookupFunctionForInlining;
     // Can be null in tests.
     this.preludeLabel = packageFactory == null
@@ -124,6 +134,8 @@ public class PackageFunction implements SkyFunction {
     this.astCache = astCache;
     this.numPackagesLoaded = numPackagesLoaded;
     this.packageProgress = packageProgress;
+    this.astDiskCache = astDiskCache;
+    this.packageDiskCache = packageDiskCache;
   }
 
   public PackageFunction(
@@ -142,7 +154,9 @@ public class PackageFunction implements SkyFunction {
         astCache,
         numPackagesLoaded,
         skylarkImportLookupFunctionForInlining,
-        null);
+        null,
+        new AtomicReference<AstDiskCache>(),
+        new AtomicReference<PackageDiskCache>());
   }
 
   public void setSkylarkImportLookupFunctionForInliningForTesting(
@@ -156,12 +170,22 @@ public class PackageFunction implements SkyFunction {
     private final Set<SkyKey> globDepKeys;
     @Nullable
     private final LegacyGlobber legacyGlobber;
+    // The key of the package in the PackageDiskCache, if it should be stored there. Entries of the
+    // AST cache hold the part of the key that is known before the imports are loaded.
+    @Nullable
+    private final String diskCacheKey;
 
     private CacheEntryWithGlobDeps(T value, Set<SkyKey> globDepKeys,
         @Nullable LegacyGlobber legacyGlobber) {
+      this(value, globDepKeys, legacyGlobber, null);
+    }
+
+    private CacheEntryWithGlobDeps(T value, Set<SkyKey> globDepKeys,
+        @Nullable LegacyGlobber legacyGlobber, @Nullable String diskCacheKey) {
       this.value = value;
       this.globDepKeys = globDepKeys;
       this.legacyGlobber = legacyGlobber;
+      this.diskCacheKey = diskCacheKey;
     }
   }
 
@@ -506,6 +530,8 @@ public class PackageFunction implements SkyFunction {
     List<Statement> preludeStatements =
         astLookupValue.lookupSuccessful()
             ? astLookupValue.getAST().getStatements() : ImmutableList.<Statement>of();
+    String preludeHashCode =
+        astLookupValue.lookupSuccessful() ? astLookupValue.getAST().getContentHashCode() : "";
     CacheEntryWithGlobDeps<Package.Builder> packageBuilderAndGlobDeps =
         loadPackage(
             workspaceName,
@@ -516,6 +542,7 @@ public class PackageFunction implements SkyFunction {
             defaultVisibility,
             skylarkSemantics,
             preludeStatements,
+            preludeHashCode,
             packageLookupValue.getRoot(),
             env);
     if (packageBuilderAndGlobDeps == null) {
@@ -565,6 +592,10 @@ public class PackageFunction implements SkyFunction {
     // We know this SkyFunction will not be called again, so we can remove the cache entry.
     packageFunctionCache.invalidate(packageId);
 
+    if (packageBuilderAndGlobDeps.diskCacheKey != null) {
+      storeInPackageDiskCache(packageBuilderAndGlobDeps.diskCacheKey, pkg, globKeys, env);
+    }
+
     packageFactory.afterDoneLoadingPackage(pkg);
     return new PackageValue(pkg);
   }
@@ -1101,6 +1132,71 @@ public class PackageFunction implements SkyFunction {
     }
   }
 
+  /**
+   * Parses a BUILD file, going through the AST disk cache if it is enabled and the contents of the
+   * file are known.
+   */
+  private BuildFileAST parseBuildFile(
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      @Nullable byte[] buildFileBytes,
+      ParserInputSource input,
+      List<Statement> preludeStatements,
+      StoredEventHandler eventHandler) {
+    AstDiskCache diskCache = astDiskCache.get();
+    if (diskCache != null && buildFileBytes != null) {
+      String key = diskCache.key(buildFileBytes, buildFilePath.asFragment(), "BUILD");
+      BuildFileAST ast = diskCache.get(key);
+      if (ast == null) {
+        StoredEventHandler fileEventHandler = new StoredEventHandler();
+        ast =
+            PackageFactory.parseBuildFile(
+                packageId, input, ImmutableList.<Statement>of(), fileEventHandler);
+        if (fileEventHandler.isEmpty() && !ast.containsErrors()) {
+          diskCache.put(key, ast);
+        } else {
+          // Parse again below, so that the events are reported with the prelude as usual.
+          ast = null;
+        }
+      }
+      if (ast != null) {
+        return ast.prependStatements(preludeStatements, eventHandler);
+      }
+    }
+    return PackageFactory.parseBuildFile(packageId, input, preludeStatements, eventHandler);
+  }
+
+  /**
+   * Requests the globs and imports of a package that {@link PackageDependencyPrefetcher} finds in
+   * its AST, all at once, so that Skyframe computes them in parallel. Returns true iff some are
+   * missing, in which case the package should be evaluated after the restart, when they're all
+   * available.
+   */
+  private boolean prefetchDependencies(
+      PackageIdentifier packageId,
+      Path packageRoot,
+      Path buildFilePath,
+      BuildFileAST ast,
+      Environment env)
+      throws InterruptedException {
+    // Errors are ignored here. They're handled when the values are requested again during
+    // evaluation.
+    env.getValuesOrThrow(
+        PackageDependencyPrefetcher.getGlobKeys(ast, packageId, packageRoot),
+        IOException.class,
+        BuildFileNotFoundException.class,
+        FileSymlinkCycleException.class,
+        InconsistentFilesystemException.class);
+    if (skylarkImportLookupFunctionForInlining == null) {
+      boolean inWorkspace = buildFilePath.getBaseName().endsWith("WORKSPACE");
+      env.getValuesOrThrow(
+          PackageDependencyPrefetcher.getImportKeys(ast, packageId, inWorkspace),
+          SkylarkImportFailedException.class,
+          InconsistentFilesystemException.class);
+    }
+    return env.valuesMissing();
+  }
+
   /**
    * Constructs a {@link Package} object for the given package using legacy package loading.
    * Note that the returned package may be in error.
@@ -1111,6 +1207,10 @@ public class PackageFunction implements SkyFunction {
    * non-{@code null}. The former indicates that we have a faux BUILD file with the given contents
    * and the latter indicates that we have a legitimate BUILD file and should actually do
    * preprocessing.
+   *
+   * <p>{@code preludeHashCode} is the content hash code of the prelude, or the empty string if
+   * there is no prelude. It's null if the prelude's AST has no content hash code, in which case the
+   * package isn't looked up in the {@link PackageDiskCache}.
    */
   @Nullable
   private CacheEntryWithGlobDeps<Package.Builder> loadPackage(
@@ -1122,6 +1222,7 @@ public class PackageFunction implements SkyFunction {
       RuleVisibility defaultVisibility,
       SkylarkSemanticsOptions skylarkSemantics,
       List<Statement> preludeStatements,
+      @Nullable String preludeHashCode,
       Path packageRoot,
       Environment env)
       throws InterruptedException, PackageFunctionException {
@@ -1146,10 +1247,11 @@ public class PackageFunction implements SkyFunction {
           SkyframeHybridGlobber skyframeGlobber = new SkyframeHybridGlobber(packageId, packageRoot,
               env, legacyGlobber);
           ParserInputSource input;
+          byte[] buildFileBytes = null;
           if (replacementContents == null) {
             Preconditions.checkNotNull(buildFileValue, packageId);
             try {
-              byte[] buildFileBytes =
+              buildFileBytes =
                   buildFileValue.isSpecialFile()
                       ? FileSystemUtils.readContent(buildFilePath)
                       : FileSystemUtils.readWithKnownFileSize(
@@ -1169,19 +1271,45 @@ public class PackageFunction implements SkyFunction {
           }
           StoredEventHandler astParsingEventHandler = new StoredEventHandler();
           BuildFileAST ast =
-              PackageFactory.parseBuildFile(
-                  packageId, input, preludeStatements, astParsingEventHandler);
+              parseBuildFile(
+                  packageId,
+                  buildFilePath,
+                  buildFileBytes,
+                  input,
+                  preludeStatements,
+                  astParsingEventHandler);
           // If no globs were fetched during preprocessing, then there's no need to reuse the
           // legacy globber instance during BUILD file evaluation since the performance argument
           // below does not apply.
           Set<SkyKey> globDepsRequested = skyframeGlobber.getGlobDepsRequested();
           LegacyGlobber legacyGlobberToStore = globDepsRequested.isEmpty() ? null : legacyGlobber;
+          // Packages loaded with inlined imports aren't cached on disk, since their imports aren't
+          // Skyframe values that a cached package could be checked against.
+          PackageDiskCache diskCache = packageDiskCache.get();
+          String buildFileKey =
+              diskCache != null
+                      && buildFileBytes != null
+                      && preludeHashCode != null
+                      && skylarkImportLookupFunctionForInlining == null
+                  ? diskCache.buildFileKey(
+                      buildFileBytes,
+                      buildFilePath.asFragment(),
+                      packageId,
+                      workspaceName,
+                      defaultVisibility,
+                      skylarkSemantics,
+                      preludeHashCode)
+                  : null;
           astCacheEntry =
               new CacheEntryWithGlobDeps<>(
                   new AstAfterPreprocessing(ast, astParsingEventHandler),
                   globDepsRequested,
-                  legacyGlobberToStore);
+                  legacyGlobberToStore,
+                  buildFileKey);
           astCache.put(packageId, astCacheEntry);
+          if (prefetchDependencies(packageId, packageRoot, buildFilePath, ast, env)) {
+            return null;
+          }
         }
         AstAfterPreprocessing astAfterPreprocessing = astCacheEntry.value;
         Set<SkyKey> globDepsRequestedDuringPreprocessing = astCacheEntry.globDepKeys;
@@ -1203,6 +1331,32 @@ public class PackageFunction implements SkyFunction {
         if (importResult == null) {
           return null;
         }
+        String diskCacheKey = null;
+        PackageDiskCache diskCache = packageDiskCache.get();
+        if (diskCache != null && astCacheEntry.diskCacheKey != null) {
+          diskCacheKey =
+              diskCache.key(
+                  astCacheEntry.diskCacheKey,
+                  importResult.importMap,
+                  importResult.fileDependencies);
+          CacheEntryWithGlobDeps<Package.Builder> cachedPackage =
+              loadFromPackageDiskCache(
+                  diskCache,
+                  diskCacheKey,
+                  workspaceName,
+                  packageId,
+                  buildFilePath,
+                  packageRoot,
+                  importResult,
+                  env);
+          if (cachedPackage != null) {
+            astCache.invalidate(packageId);
+            return putPackageFunctionCacheEntry(packageId, cachedPackage);
+          }
+          if (env.valuesMissing()) {
+            return null;
+          }
+        }
         astCache.invalidate(packageId);
         // If a legacy globber was used to evaluate globs during preprocessing, it's important that
         // we reuse that globber during BUILD file evaluation for performance, in the case that
@@ -1228,12 +1382,9 @@ public class PackageFunction implements SkyFunction {
             .addAll(skyframeGlobber.getGlobDepsRequested())
             .build();
         packageFunctionCacheEntry =
-            new CacheEntryWithGlobDeps<>(pkgBuilder, globDepsRequested, null);
-        numPackagesLoaded.incrementAndGet();
-        if (packageProgress != null) {
-          packageProgress.doneReadPackage(packageId);
-        }
-        packageFunctionCache.put(packageId, packageFunctionCacheEntry);
+            putPackageFunctionCacheEntry(
+                packageId,
+                new CacheEntryWithGlobDeps<>(pkgBuilder, globDepsRequested, null, diskCacheKey));
       } finally {
         profiler.completeTask(ProfilerTask.CREATE_PACKAGE);
       }
@@ -1241,6 +1392,121 @@ public class PackageFunction implements SkyFunction {
     return packageFunctionCacheEntry;
   }
 
+  private CacheEntryWithGlobDeps<Package.Builder> putPackageFunctionCacheEntry(
+      PackageIdentifier packageId, CacheEntryWithGlobDeps<Package.Builder> entry) {
+    numPackagesLoaded.incrementAndGet();
+    if (packageProgress != null) {
+      packageProgress.doneReadPackage(packageId);
+    }
+    packageFunctionCache.put(packageId, entry);
+    return entry;
+  }
+
+  /**
+   * Returns the package stored in the {@link PackageDiskCache} under {@code key}, or null if there
+   * is none, if it was loaded with globs that now match different files, or if some dependencies
+   * needed to check that are missing, in which case {@code env.valuesMissing()} is true.
+   */
+  @Nullable
+  private CacheEntryWithGlobDeps<Package.Builder> loadFromPackageDiskCache(
+      PackageDiskCache diskCache,
+      String key,
+      String workspaceName,
+      PackageIdentifier packageId,
+      Path buildFilePath,
+      Path packageRoot,
+      SkylarkImportResult importResult,
+      Environment env)
+      throws InterruptedException {
+    PackageDiskCache.Entry entry = diskCache.get(key, packageId, packageRoot);
+    if (entry == null) {
+      return null;
+    }
+    Map<SkyKey, GlobValue> globValues = getGlobValues(entry.getGlobKeys(), env);
+    // The rule classes of Skylark rules are looked up in all the .bzl files the package depends
+    // on, which have all been loaded along with the imports of the BUILD file.
+    List<SkyKey> importLookupKeys =
+        Lists.newArrayListWithExpectedSize(importResult.fileDependencies.size());
+    for (Label importLabel : importResult.fileDependencies) {
+      importLookupKeys.add(SkylarkImportLookupValue.key(importLabel, /*inWorkspace=*/ false));
+    }
+    Map<SkyKey, SkyValue> importLookupValues = env.getValues(importLookupKeys);
+    if (env.valuesMissing() || !entry.globsMatch(globValues)) {
+      return null;
+    }
+    final Map<String, RuleClass> skylarkRuleClasses = new HashMap<>();
+    for (SkyValue value : importLookupValues.values()) {
+      Extension extension = ((SkylarkImportLookupValue) value).getEnvironmentExtension();
+      for (Object binding : extension.getBindings().values()) {
+        if (binding instanceof RuleFunction && ((RuleFunction) binding).isExported()) {
+          RuleClass ruleClass = ((RuleFunction) binding).getRuleClass();
+          skylarkRuleClasses.put(
+              ruleClass.getName() + " " + ruleClass.getRuleDefinitionEnvironmentHashCode(),
+              ruleClass);
+        }
+      }
+    }
+    Package.Builder pkgBuilder;
+    try {
+      pkgBuilder =
+          packageFactory.deserializePackage(
+              workspaceName,
+              packageId,
+              buildFilePath,
+              entry.getSerializedPackage(),
+              new PackageDeserializer.SkylarkRuleClassResolver() {
+                @Override
+                public RuleClass getRuleClass(String name, String definitionEnvironmentHashCode) {
+                  return skylarkRuleClasses.get(name + " " + definitionEnvironmentHashCode);
+                }
+              });
+    } catch (IOException e) {
+      // The BUILD file is evaluated instead, and the entry replaced.
+      return null;
+    }
+    return new CacheEntryWithGlobDeps<>(
+        pkgBuilder, ImmutableSet.copyOf(entry.getGlobKeys()), null);
+  }
+
+  /** Stores a package that was just evaluated in the {@link PackageDiskCache}, if it can be. */
+  private void storeInPackageDiskCache(
+      String key, Package pkg, Set<SkyKey> globKeys, Environment env)
+      throws InterruptedException {
+    PackageDiskCache diskCache = packageDiskCache.get();
+    if (diskCache == null || pkg.containsErrors()) {
+      return;
+    }
+    byte[] serializedPackage;
+    try {
+      serializedPackage = PackageSerializer.serialize(pkg);
+    } catch (NotSerializableException e) {
+      return;
+    }
+    List<SkyKey> globKeyList = ImmutableList.copyOf(globKeys);
+    diskCache.put(key, serializedPackage, globKeyList, getGlobValues(globKeyList, env));
+  }
+
+  /** Returns the values of the given globs, leaving out those in error. */
+  private static Map<SkyKey, GlobValue> getGlobValues(
+      Iterable<SkyKey> globKeys, Environment env) throws InterruptedException {
+    Map<SkyKey, GlobValue> globValues = new HashMap<>();
+    for (Map.Entry<SkyKey, ValueOrException4<IOException, BuildFileNotFoundException,
+        FileSymlinkException, InconsistentFilesystemException>> entry :
+        env.getValuesOrThrow(globKeys, IOException.class, BuildFileNotFoundException.class,
+            FileSymlinkException.class, InconsistentFilesystemException.class).entrySet()) {
+      try {
+        GlobValue globValue = (GlobValue) entry.getValue().get();
+        if (globValue != null) {
+          globValues.put(entry.getKey(), globValue);
+        }
+      } catch (IOException | BuildFileNotFoundException | FileSymlinkException
+          | InconsistentFilesystemException e) {
+        // Left out, so that the globs don't match.
+      }
+    }
+    return globValues;
+  }
+
   private static class InternalInconsistentFilesystemException extends Exception {
     private boolean isTransient;
 
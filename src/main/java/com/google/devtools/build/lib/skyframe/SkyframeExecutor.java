@@ -35,6 +35,7 @@ import com.google.common.collect.Maps;
 import com.google.common.collect.Multimap;
 import com.google.common.collect.Range;
 import com.google.common.eventbus.EventBus;
+import com.google.common.hash.HashCode;
 import com.google.devtools.build.lib.actions.ActionAnalysisMetadata;
 import com.google.devtools.build.lib.actions.ActionCacheChecker;
 import com.google.devtools.build.lib.actions.ActionExecutionContextFactory;
@@ -79,6 +80,7 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.ThreadCompatible;
 import com.google.devtools.build.lib.events.ExtendedEventHandler;
 import com.google.devtools.build.lib.events.Reporter;
+import com.google.devtools.build.lib.exec.ActionInputPrefetcher;
 import com.google.devtools.build.lib.exec.OutputService;
 import com.google.devtools.build.lib.packages.AspectDescriptor;
 import com.google.devtools.build.lib.packages.Attribute;
@@ -225,6 +227,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
   protected final AtomicReference<ImmutableSet<PackageIdentifier>> deletedPackages =
       new AtomicReference<>(ImmutableSet.<PackageIdentifier>of());
   private final AtomicReference<EventBus> eventBus = new AtomicReference<>();
+  private final AtomicReference<AstDiskCache> astDiskCache = new AtomicReference<>();
+  private final AtomicReference<PackageDiskCache> packageDiskCache = new AtomicReference<>();
   protected final AtomicReference<TimestampGranularityMonitor> tsgm =
       new AtomicReference<>();
   protected final AtomicReference<Map<String, String>> clientEnv = new AtomicReference<>();
@@ -366,7 +370,8 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         new PackageLookupFunction(
             deletedPackages, crossRepositoryLabelViolationStrategy, buildFilesByPriority));
     map.put(SkyFunctions.CONTAINING_PACKAGE_LOOKUP, new ContainingPackageLookupFunction());
-    map.put(SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider));
+    map.put(
+        SkyFunctions.AST_FILE_LOOKUP, new ASTFileLookupFunction(ruleClassProvider, astDiskCache));
     map.put(
         SkyFunctions.SKYLARK_IMPORTS_LOOKUP,
         newSkylarkImportLookupFunction(ruleClassProvider, pkgFactory));
@@ -472,7 +477,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
         astCache,
         numPackagesLoaded,
         null,
-        packageProgress);
+        packageProgress,
+        astDiskCache,
+        packageDiskCache);
   }
 
   protected SkyFunction newSkylarkImportLookupFunction(
@@ -513,6 +520,14 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.skyframeActionExecutor.setFileCache(fileCache);
   }
 
+  /**
+   * Sets the prefetcher that is given the available inputs of actions that are still waiting for
+   * other inputs. Must not block; use {@link ActionInputPrefetcher#NONE} to disable.
+   */
+  public void setActionInputPrefetcher(ActionInputPrefetcher prefetcher) {
+    this.skyframeActionExecutor.setActionInputPrefetcher(prefetcher);
+  }
+
   public void dump(boolean summarize, PrintStream out) {
     memoizingEvaluator.dump(summarize, out);
   }
@@ -741,6 +756,63 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     showLoadingProgress.set(showLoadingProgressValue);
   }
 
+  private void setAstDiskCache(boolean enabled, int maxSizeMb) {
+    AstDiskCache cache = astDiskCache.get();
+    DiskCacheDirectory directory =
+        setUpDiskCacheDirectory(
+            enabled, "ast_cache", maxSizeMb, cache == null ? null : cache.getDirectory());
+    if (directory == null) {
+      astDiskCache.set(null);
+    } else if (cache == null || cache.getDirectory() != directory) {
+      astDiskCache.set(new AstDiskCache(directory));
+    }
+  }
+
+  private void setPackageDiskCache(boolean enabled, int maxSizeMb) {
+    PackageDiskCache cache = packageDiskCache.get();
+    DiskCacheDirectory directory =
+        setUpDiskCacheDirectory(
+            enabled, "package_cache", maxSizeMb, cache == null ? null : cache.getDirectory());
+    if (directory == null) {
+      packageDiskCache.set(null);
+    } else if (cache == null || cache.getDirectory() != directory) {
+      packageDiskCache.set(new PackageDiskCache(directory));
+    }
+  }
+
+  /**
+   * Returns the directory of a disk cache in the output base, trimmed to its size limit, or null if
+   * the cache is disabled.
+   *
+   * <p>The entries are salted with the install MD5, so that they are never shared between binaries.
+   * Without one, the cache is disabled. The directory is trimmed whenever a command starts, since
+   * other servers may share it.
+   *
+   * @param previous the directory the cache used so far, which is kept if its size limit didn't
+   *     change
+   */
+  @Nullable
+  private DiskCacheDirectory setUpDiskCacheDirectory(
+      boolean enabled, String name, int maxSizeMb, @Nullable DiskCacheDirectory previous) {
+    if (!enabled) {
+      return null;
+    }
+    HashCode installMD5 = directories.getInstallMD5();
+    if (installMD5 == null) {
+      LOG.warning("Not using the " + name + " disk cache, since there is no install MD5");
+      return null;
+    }
+    long maxSizeBytes = maxSizeMb * 1024L * 1024L;
+    DiskCacheDirectory directory = previous;
+    if (directory == null || directory.getMaxSizeBytes() != maxSizeBytes) {
+      directory =
+          new DiskCacheDirectory(
+              directories.getOutputBase().getChild(name), installMD5.toString(), maxSizeBytes);
+    }
+    directory.trim();
+    return directory;
+  }
+
   @VisibleForTesting
   public void setCommandId(UUID commandId) {
     PrecomputedValue.BUILD_ID.set(injectable(), commandId);
@@ -969,6 +1041,9 @@ public abstract class SkyframeExecutor implements WalkableGraphFactory {
     this.clientEnv.set(clientEnv);
     setBlacklistedPackagePrefixesFile(getBlacklistedPackagePrefixesFile());
     setShowLoadingProgress(packageCacheOptions.showLoadingProgress);
+    setAstDiskCache(packageCacheOptions.astDiskCache, packageCacheOptions.astDiskCacheMaxSizeMb);
+    setPackageDiskCache(
+        packageCacheOptions.packageDiskCache, packageCacheOptions.packageDiskCacheMaxSizeMb);
     setDefaultVisibility(packageCacheOptions.defaultVisibility);
     setSkylarkSemantics(skylarkSemanticsOptions);
     setupDefaultPackage(defaultsPackageContents);
@@ -118,8 +118,20 @@ public final class BinaryOperatorExpression extends Expression {
       }
     }
 
-    Object rval = rhs.eval(env);
+    return applyOperator(operator, lval, rhs.eval(env), env, location, isAugmented);
+  }
 
+  /**
+   * Applies a binary operator other than {@code and} and {@code or} to already evaluated operands.
+   */
+  static Object applyOperator(
+      Operator operator,
+      Object lval,
+      Object rval,
+      Environment env,
+      Location location,
+      boolean isAugmented)
+      throws EvalException, InterruptedException {
     switch (operator) {
       case PLUS:
         return plus(lval, rval, env, location, isAugmented);
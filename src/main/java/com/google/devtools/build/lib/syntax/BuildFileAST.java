@@ -86,6 +86,27 @@ public class BuildFileAST extends ASTNode {
         skylarkImports.second);
   }
 
+  /**
+   * Returns an AST with the given statements in front of the statements of this one, as if they
+   * had been passed to {@link #parseBuildFile(ParserInputSource, List, EventHandler)}.
+   */
+  public BuildFileAST prependStatements(
+      List<Statement> preludeStatements, EventHandler eventHandler) {
+    if (preludeStatements.isEmpty()) {
+      return this;
+    }
+    ImmutableList<Statement> stmts =
+        ImmutableList.<Statement>builder().addAll(preludeStatements).addAll(this.stmts).build();
+    Pair<Boolean, ImmutableList<SkylarkImport>> skylarkImports = fetchLoads(stmts, eventHandler);
+    return new BuildFileAST(
+        stmts,
+        containsErrors || skylarkImports.first,
+        contentHashCode,
+        getLocation(),
+        comments,
+        skylarkImports.second);
+  }
+
   /**
    * Extract a subtree containing only statements from {@code firstStatement} (included) up to
    * {@code lastStatement} excluded.
@@ -0,0 +1,120 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+/**
+ * Base class of the classes generated by the {@link SkylarkCompiler} for the bodies of {@link
+ * UserDefinedFunction}s.
+ *
+ * <p>The generated classes are defined by their own class loader, so they cannot access the
+ * package-private parts of this package. The protected methods of this class give them the
+ * operations of the interpreter they need. Every method that can fail attaches the same AST node to
+ * the error as the interpreter does, so that errors and stack traces are the same for compiled and
+ * interpreted code.
+ *
+ * <p>The methods refer to AST nodes and literal values by their index in the constants of the
+ * generated class. This class is public only so that it can be extended by generated code.
+ */
+public abstract class CompiledFunction {
+
+  private final Object[] constants;
+
+  protected CompiledFunction(Object[] constants) {
+    this.constants = constants;
+  }
+
+  /**
+   * Executes the function body. The scope of the function must have been entered, and its
+   * parameters must have been bound.
+   */
+  protected abstract Object call(Environment env) throws EvalException, InterruptedException;
+
+  /** Returns the constant with the given index. */
+  protected final Object constant(int index) {
+    return constants[index];
+  }
+
+  /** Returns the values of the local variables of the function being evaluated. */
+  protected static Object[] localSlots(Environment env) {
+    return env.getLocalSlots();
+  }
+
+  /** Evaluates an expression with the interpreter. */
+  protected final Object eval(int expression, Environment env)
+      throws EvalException, InterruptedException {
+    return ((Expression) constants[expression]).eval(env);
+  }
+
+  /** Executes a statement with the interpreter. */
+  protected final void exec(int statement, Environment env)
+      throws EvalException, InterruptedException {
+    ((Statement) constants[statement]).exec(env);
+  }
+
+  /** Applies the operator of a binary expression other than {@code and} and {@code or}. */
+  protected final Object binaryOperator(int expression, Object lval, Object rval, Environment env)
+      throws EvalException, InterruptedException {
+    BinaryOperatorExpression node = (BinaryOperatorExpression) constants[expression];
+    try {
+      return BinaryOperatorExpression.applyOperator(
+          node.getOperator(), lval, rval, env, node.getLocation(), /*isAugmented=*/ false);
+    } catch (EvalException e) {
+      throw node.maybeTransformException(e);
+    }
+  }
+
+  protected static boolean isTrue(Object value) {
+    return EvalUtils.toBoolean(value);
+  }
+
+  protected static Object not(Object value) {
+    return !EvalUtils.toBoolean(value);
+  }
+
+  /**
+   * Assigns a value to the left-hand side of an assignment or to the variable of a for loop, as
+   * the interpreter would.
+   */
+  protected final void assign(int statement, Object value, Environment env)
+      throws EvalException, InterruptedException {
+    Statement node = (Statement) constants[statement];
+    LValue lvalue =
+        node instanceof ForStatement
+            ? ((ForStatement) node).getVariable()
+            : ((AssignmentStatement) node).getLValue();
+    try {
+      lvalue.assign(env, node.getLocation(), value);
+    } catch (EvalException e) {
+      throw node.maybeTransformException(e);
+    }
+  }
+
+  /** Returns the elements of the collection of a for loop and locks the collection. */
+  protected final Iterable<?> startLoop(int statement, Object collection) throws EvalException {
+    ForStatement node = (ForStatement) constants[statement];
+    Iterable<?> elements;
+    try {
+      elements = EvalUtils.toIterable(collection, node.getLocation());
+    } catch (EvalException e) {
+      throw node.maybeTransformException(e);
+    }
+    EvalUtils.lock(collection, node.getLocation());
+    return elements;
+  }
+
+  /** Unlocks the collection of a for loop. */
+  protected final void endLoop(int statement, Object collection) {
+    EvalUtils.unlock(collection, ((ForStatement) constants[statement]).getLocation());
+  }
+}
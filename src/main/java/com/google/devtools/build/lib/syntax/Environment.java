@@ -270,19 +270,29 @@ public final class Environment implements Freezable {
     /** The set of known global variables of the caller. */
     @Nullable Set<String> knownGlobalVariables;
 
+    /** The slot-indexed local variables of the caller. */
+    @Nullable Resolver.Scope localScope;
+
+    /** The values of the slot-indexed local variables of the caller. */
+    @Nullable Object[] localSlots;
+
     Continuation(
         Continuation continuation,
         BaseFunction function,
         FuncallExpression caller,
         Frame lexicalFrame,
         Frame globalFrame,
-        Set<String> knownGlobalVariables) {
+        Set<String> knownGlobalVariables,
+        Resolver.Scope localScope,
+        Object[] localSlots) {
       this.continuation = continuation;
       this.function = function;
       this.caller = caller;
       this.lexicalFrame = lexicalFrame;
       this.globalFrame = globalFrame;
       this.knownGlobalVariables = knownGlobalVariables;
+      this.localScope = localScope;
+      this.localSlots = localSlots;
     }
   }
 
@@ -393,6 +403,15 @@ public final class Environment implements Freezable {
    */
   @Nullable private Set<String> knownGlobalVariables;
 
+  /**
+   * When in the body of a function resolved by the {@link Resolver}, the local variables of the
+   * function. Their values are kept in {@link #localSlots} rather than in the lexical Frame.
+   */
+  @Nullable private Resolver.Scope localScope;
+
+  /** The values of the variables of {@link #localScope}; null for unassigned variables. */
+  @Nullable private Object[] localSlots;
+
   /**
    * When in a lexical (Skylark) frame, this lists the names of the functions in the call stack.
    * We currently use it to artificially disable recursion.
@@ -413,15 +432,39 @@ public final class Environment implements Freezable {
    * @param globals the global Frame that this function closes over from its definition Environment
    */
   void enterScope(BaseFunction function, FuncallExpression caller, Frame globals) {
+    enterScope(function, caller, globals, null);
+  }
+
+  /**
+   * Enters a scope by saving state to a new Continuation
+   * @param function the function whose scope to enter
+   * @param caller the source AST node for the caller
+   * @param globals the global Frame that this function closes over from its definition Environment
+   * @param scope the slot-indexed local variables of the function, or null if it wasn't resolved
+   */
+  void enterScope(
+      BaseFunction function,
+      FuncallExpression caller,
+      Frame globals,
+      @Nullable Resolver.Scope scope) {
     continuation =
         new Continuation(
-            continuation, function, caller, lexicalFrame, globalFrame, knownGlobalVariables);
+            continuation,
+            function,
+            caller,
+            lexicalFrame,
+            globalFrame,
+            knownGlobalVariables,
+            localScope,
+            localSlots);
     // TODO(bazel-team): What if instead of tracking both the lexical and global frames from the
     // Environment, we instead just tracked the current lexical frame, and made the global frame its
     // parent?
     lexicalFrame = new Frame(mutability(), null);
     globalFrame = globals;
     knownGlobalVariables = new HashSet<>();
+    localScope = scope;
+    localSlots = scope == null ? null : new Object[scope.size()];
   }
 
   /**
@@ -432,6 +475,8 @@ public final class Environment implements Freezable {
     lexicalFrame = continuation.lexicalFrame;
     globalFrame = continuation.globalFrame;
     knownGlobalVariables = continuation.knownGlobalVariables;
+    localScope = continuation.localScope;
+    localSlots = continuation.localSlots;
     continuation = continuation.continuation;
   }
 
@@ -673,7 +718,7 @@ public final class Environment implements Freezable {
           String.format("Trying to bind dynamic variable '%s' but it is already bound",
               varname));
     }
-    if (lexicalFrame != null && lexicalFrame.get(varname) != null) {
+    if (lexicalFrame != null && lookupSlot(varname) != null) {
       throw new AssertionError(
           String.format("Trying to bind dynamic variable '%s' but it is already bound lexically",
               varname));
@@ -717,6 +762,13 @@ public final class Environment implements Freezable {
       throw new EvalException(
           null, String.format("Trying to update read-only global variable '%s'", varname));
     }
+    if (localScope != null) {
+      int slot = localScope.indexOf(varname);
+      if (slot >= 0) {
+        localSlots[slot] = value;
+        return this;
+      }
+    }
     try {
       currentFrame().put(this, varname, Preconditions.checkNotNull(value));
     } catch (MutabilityException e) {
@@ -771,7 +823,7 @@ public final class Environment implements Freezable {
   public Object lookup(String varname) {
     // Lexical frame takes precedence, then globals, then dynamics.
     if (lexicalFrame != null) {
-      Object lexicalValue = lexicalFrame.get(varname);
+      Object lexicalValue = lookupSlot(varname);
       if (lexicalValue != null) {
         return lexicalValue;
       }
@@ -790,6 +842,55 @@ public final class Environment implements Freezable {
     return dynamicValue;
   }
 
+  /** Looks up a local variable in the slots of the current function, then in the lexical Frame. */
+  @Nullable
+  private Object lookupSlot(String varname) {
+    if (localScope != null) {
+      int slot = localScope.indexOf(varname);
+      if (slot >= 0) {
+        return localSlots[slot];
+      }
+    }
+    return lexicalFrame.get(varname);
+  }
+
+  /**
+   * Looks up a variable that the {@link Resolver} assigned to the given slot of the given scope.
+   * Equivalent to {@link #lookup}, but avoids hashing when the variable is a bound local variable
+   * of the function being evaluated.
+   */
+  Object lookupLocal(Resolver.Scope scope, int slot, String varname) {
+    if (scope == localScope) {
+      Object value = localSlots[slot];
+      if (value != null) {
+        return value;
+      }
+    }
+    return lookup(varname);
+  }
+
+  /**
+   * Returns the array holding the values of the slot-indexed local variables of the function being
+   * evaluated, for use by compiled code; see {@link SkylarkCompiler}.
+   */
+  Object[] getLocalSlots() {
+    return Preconditions.checkNotNull(localSlots);
+  }
+
+  /**
+   * Rebinds a variable that the {@link Resolver} assigned to the given slot of the given scope, if
+   * it is already bound. Returns false, without doing anything, if the variable has to be bound
+   * with {@link #update}.
+   */
+  boolean updateBoundLocal(Resolver.Scope scope, int slot, Object value) {
+    // A bound local variable can neither be dynamic nor a known global.
+    if (scope != localScope || localSlots[slot] == null) {
+      return false;
+    }
+    localSlots[slot] = value;
+    return true;
+  }
+
   /**
    * @return true if varname is a known global variable,
    * because it has been read in the context of the current function.
@@ -812,6 +913,13 @@ public final class Environment implements Freezable {
     if (lexicalFrame != null) {
       vars.addAll(lexicalFrame.getTransitiveBindings().keySet());
     }
+    if (localScope != null) {
+      for (int slot = 0; slot < localSlots.length; slot++) {
+        if (localSlots[slot] != null) {
+          vars.add(localScope.getNames().get(slot));
+        }
+      }
+    }
     vars.addAll(globalFrame.getTransitiveBindings().keySet());
     vars.addAll(dynamicFrame.getTransitiveBindings().keySet());
     return vars;
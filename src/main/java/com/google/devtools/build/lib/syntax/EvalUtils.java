@@ -409,7 +409,7 @@ public final class EvalUtils {
       return ((SkylarkList<?>) arg).size();
     } else if (arg instanceof SkylarkNestedSet) {
       // TODO(bazel-team): Add a deprecation warning: don't implicitly flatten depsets.
-      return ((SkylarkNestedSet) arg).toCollection().size();
+      return ((SkylarkNestedSet) arg).size();
     } else if (arg instanceof Iterable) {
       // Iterables.size() checks if arg is a Collection so it's efficient in that sense.
       return Iterables.size((Iterable<?>) arg);
@@ -32,12 +32,14 @@ import com.google.devtools.build.lib.syntax.Runtime.NoneType;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
 import com.google.devtools.build.lib.util.StringUtilities;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
 import java.lang.reflect.Modifier;
 import java.util.Collections;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -58,6 +60,9 @@ public final class FuncallExpression extends Expression {
     private final Method method;
     private final SkylarkCallable annotation;
 
+    // Computed on first use, see getCallPlan. Racy but idempotent.
+    @Nullable private CallPlan callPlan;
+
     private MethodDescriptor(Method method, SkylarkCallable annotation) {
       this.method = method;
       this.annotation = annotation;
@@ -73,6 +78,75 @@ public final class FuncallExpression extends Expression {
     public SkylarkCallable getAnnotation() {
       return annotation;
     }
+
+    private CallPlan getCallPlan() {
+      CallPlan plan = callPlan;
+      if (plan == null) {
+        try {
+          plan = new CallPlan(method, annotation);
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException("method " + method + " is not accessible: " + e);
+        }
+        callPlan = plan;
+      }
+      return plan;
+    }
+  }
+
+  /**
+   * What is needed to call a method, computed once from its signature and annotation: the types of
+   * its parameters, their default values and a method handle that takes the receiver and the array
+   * of arguments.
+   */
+  private static final class CallPlan {
+    private final MethodHandle handle;
+    private final Class<?>[] parameterTypes;
+    private final int mandatoryPositionals;
+    private final Param[] params;
+    /** The types of the parameters in {@link #params}, including None if they are noneable. */
+    private final SkylarkType[] types;
+    /** The default values of the parameters in {@link #params}, or null if they have none. */
+    private final Object[] defaultValues;
+
+    private CallPlan(Method method, SkylarkCallable callable) throws IllegalAccessException {
+      this.parameterTypes = method.getParameterTypes();
+      this.params = callable.parameters();
+      int mandatoryPositionals = callable.mandatoryPositionals();
+      if (mandatoryPositionals < 0) {
+        if (params.length > 0) {
+          mandatoryPositionals = 0;
+        } else {
+          mandatoryPositionals = parameterTypes.length;
+        }
+      }
+      this.mandatoryPositionals = mandatoryPositionals;
+      this.types = new SkylarkType[params.length];
+      this.defaultValues = new Object[params.length];
+      for (int i = 0; i < params.length; i++) {
+        Param param = params[i];
+        SkylarkType type = getType(param);
+        if (param.noneable()) {
+          type = SkylarkType.Union.of(type, SkylarkType.NONE);
+        }
+        types[i] = type;
+        if (!param.defaultValue().isEmpty()) {
+          // Default values are frozen, so they can be shared by all calls.
+          defaultValues[i] = SkylarkSignatureProcessor.getDefaultValue(param, null);
+        }
+      }
+
+      // This happens when the interface is public but the implementation classes
+      // have reduced visibility.
+      method.setAccessible(true);
+      MethodHandle handle = MethodHandles.lookup().unreflect(method);
+      if (Modifier.isStatic(method.getModifiers())) {
+        handle = MethodHandles.dropArguments(handle, 0, Object.class);
+      }
+      this.handle =
+          handle
+              .asSpreader(Object[].class, parameterTypes.length)
+              .asType(MethodType.methodType(Object.class, Object.class, Object[].class));
+    }
   }
 
   private static final LoadingCache<Class<?>, Map<String, List<MethodDescriptor>>> methodCache =
@@ -149,15 +223,15 @@ public final class FuncallExpression extends Expression {
   }
 
   private static class ArgumentListConversionResult {
-    private final ImmutableList<Object> arguments;
+    private final Object[] arguments;
     private final String error;
 
-    private ArgumentListConversionResult(ImmutableList<Object> arguments, String error) {
+    private ArgumentListConversionResult(Object[] arguments, String error) {
       this.arguments = arguments;
       this.error = error;
     }
 
-    public static ArgumentListConversionResult fromArgumentList(ImmutableList<Object> arguments) {
+    public static ArgumentListConversionResult fromArgumentList(Object[] arguments) {
       return new ArgumentListConversionResult(arguments, null);
     }
 
@@ -169,11 +243,43 @@ public final class FuncallExpression extends Expression {
       return error;
     }
 
-    public ImmutableList<Object> getArguments() {
+    public Object[] getArguments() {
       return arguments;
     }
   }
 
+  /**
+   * A monomorphic inline cache for {@link #invokeObjectMethod}: what the lookup of the method found
+   * for the last class of receiver seen at a call site. Immutable, so that it can be shared between
+   * threads without synchronization.
+   */
+  private static final class CallSiteCache {
+    private final Class<?> receiverClass;
+    /** The builtin function for the method, or null if there is none for the receiver class. */
+    @Nullable private final BaseFunction function;
+    private final boolean isNamespace;
+    /**
+     * The Java method to call, if the receiver class has a single candidate that is not a struct
+     * field. Null until the first successful call of a Java method.
+     */
+    @Nullable private final MethodDescriptor javaMethod;
+
+    private CallSiteCache(
+        Class<?> receiverClass,
+        @Nullable BaseFunction function,
+        boolean isNamespace,
+        @Nullable MethodDescriptor javaMethod) {
+      this.receiverClass = receiverClass;
+      this.function = function;
+      this.isNamespace = isNamespace;
+      this.javaMethod = javaMethod;
+    }
+
+    private CallSiteCache withJavaMethod(MethodDescriptor javaMethod) {
+      return new CallSiteCache(receiverClass, function, isNamespace, javaMethod);
+    }
+  }
+
   /**
    * An exception class to handle exceptions in direct Java API calls.
    */
@@ -192,6 +298,8 @@ public final class FuncallExpression extends Expression {
 
   private final int numPositionalArgs;
 
+  @Nullable private transient volatile CallSiteCache callSiteCache;
+
   public FuncallExpression(@Nullable Expression obj, Identifier func,
                            List<Argument.Passed> args) {
     this.obj = obj;
@@ -288,62 +396,51 @@ public final class FuncallExpression extends Expression {
 
   static Object callMethod(MethodDescriptor methodDescriptor, String methodName, Object obj,
       Object[] args, Location loc, Environment env) throws EvalException {
+    Method method = methodDescriptor.getMethod();
+    if (obj == null && !Modifier.isStatic(method.getModifiers())) {
+      throw new EvalException(loc, "method '" + methodName + "' is not static");
+    }
+    Object result;
     try {
-      Method method = methodDescriptor.getMethod();
-      if (obj == null && !Modifier.isStatic(method.getModifiers())) {
-        throw new EvalException(loc, "method '" + methodName + "' is not static");
-      }
-      // This happens when the interface is public but the implementation classes
-      // have reduced visibility.
-      method.setAccessible(true);
-      Object result = method.invoke(obj, args);
-      if (method.getReturnType().equals(Void.TYPE)) {
+      result = (Object) methodDescriptor.getCallPlan().handle.invokeExact(obj, args);
+    } catch (FuncallException e) {
+      throw new EvalException(loc, e.getMessage());
+    } catch (Throwable e) {
+      throw new EvalExceptionWithJavaCause(loc, e);
+    }
+    if (method.getReturnType().equals(Void.TYPE)) {
+      return Runtime.NONE;
+    }
+    if (result == null) {
+      if (methodDescriptor.getAnnotation().allowReturnNones()) {
         return Runtime.NONE;
-      }
-      if (result == null) {
-        if (methodDescriptor.getAnnotation().allowReturnNones()) {
-          return Runtime.NONE;
-        } else {
-          throw new EvalException(
-              loc,
-              "method invocation returned None, please file a bug report: "
-                  + methodName
-                  + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
-        }
-      }
-      // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
-      result = SkylarkType.convertToSkylark(result, method, env);
-      if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      } else {
         throw new EvalException(
             loc,
-            Printer.format(
-                "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
-      }
-      return result;
-    } catch (IllegalAccessException e) {
-      // TODO(bazel-team): Print a nice error message. Maybe the method exists
-      // and an argument is missing or has the wrong type.
-      throw new EvalException(loc, "Method invocation failed: " + e);
-    } catch (InvocationTargetException e) {
-      if (e.getCause() instanceof FuncallException) {
-        throw new EvalException(loc, e.getCause().getMessage());
-      } else if (e.getCause() != null) {
-        throw new EvalExceptionWithJavaCause(loc, e.getCause());
-      } else {
-        // This is unlikely to happen
-        throw new EvalException(loc, "method invocation failed: " + e);
+            "method invocation returned None, please file a bug report: "
+                + methodName
+                + Printer.listString(ImmutableList.copyOf(args), "(", ", ", ")", null));
       }
     }
+    // TODO(bazel-team): get rid of this, by having everyone use the Skylark data structures
+    result = SkylarkType.convertToSkylark(result, method, env);
+    if (result != null && !EvalUtils.isSkylarkAcceptable(result.getClass())) {
+      throw new EvalException(
+          loc,
+          Printer.format(
+              "method '%s' returns an object of invalid type %r", methodName, result.getClass()));
+    }
+    return result;
   }
 
   // TODO(bazel-team): If there's exactly one usable method, this works. If there are multiple
   // matching methods, it still can be a problem. Figure out how the Java compiler does it
   // exactly and copy that behaviour.
   // Throws an EvalException when it cannot find a matching function.
-  private Pair<MethodDescriptor, List<Object>> findJavaMethod(
+  private Pair<MethodDescriptor, Object[]> findJavaMethod(
       Class<?> objClass, String methodName, List<Object> args, Map<String, Object> kwargs)
       throws EvalException {
-    Pair<MethodDescriptor, List<Object>> matchingMethod = null;
+    Pair<MethodDescriptor, Object[]> matchingMethod = null;
     List<MethodDescriptor> methods = getMethods(objClass, methodName);
     ArgumentListConversionResult argumentListConversionResult = null;
     if (methods != null) {
@@ -351,11 +448,12 @@ public final class FuncallExpression extends Expression {
         if (method.getAnnotation().structField()) {
           return new Pair<>(method, null);
         } else {
-          argumentListConversionResult = convertArgumentList(args, kwargs, method);
+          argumentListConversionResult =
+              convertArgumentList(args, kwargs, method.getCallPlan());
           if (argumentListConversionResult.getArguments() != null) {
             if (matchingMethod == null) {
               matchingMethod =
-                  new Pair<MethodDescriptor, List<Object>>(
+                  new Pair<MethodDescriptor, Object[]>(
                       method, argumentListConversionResult.getArguments());
             } else {
               throw new EvalException(
@@ -404,50 +502,34 @@ public final class FuncallExpression extends Expression {
    * Constructs the parameters list to actually pass to the method, filling with default values if
    * any. If there is a type or argument mismatch, returns a result containing an error message.
    */
-  private ArgumentListConversionResult convertArgumentList(
-      List<Object> args, Map<String, Object> kwargs, MethodDescriptor method) {
-    ImmutableList.Builder<Object> builder = ImmutableList.builder();
-    Class<?>[] params = method.getMethod().getParameterTypes();
-    SkylarkCallable callable = method.getAnnotation();
-    int mandatoryPositionals = callable.mandatoryPositionals();
-    if (mandatoryPositionals < 0) {
-      if (callable.parameters().length > 0) {
-        mandatoryPositionals = 0;
-      } else {
-        mandatoryPositionals = params.length;
-      }
-    }
+  private static ArgumentListConversionResult convertArgumentList(
+      List<Object> args, Map<String, Object> kwargs, CallPlan plan) {
+    Object[] arguments = new Object[plan.parameterTypes.length];
+    int mandatoryPositionals = plan.mandatoryPositionals;
     if (mandatoryPositionals > args.size()
-        || args.size() > mandatoryPositionals + callable.parameters().length) {
+        || args.size() > mandatoryPositionals + plan.params.length) {
       return ArgumentListConversionResult.fromError("too many arguments");
     }
     // First process the legacy positional parameters.
     int i = 0;
-    if (mandatoryPositionals > 0) {
-      for (Class<?> param : params) {
-        Object value = args.get(i);
-        if (!param.isAssignableFrom(value.getClass())) {
-          return ArgumentListConversionResult.fromError(
-              String.format(
-                  "Cannot convert parameter at position %d from type %s to type %s",
-                  i, EvalUtils.getDataTypeName(value), param.toString()));
-        }
-        builder.add(value);
-        i++;
-        if (mandatoryPositionals >= 0 && i >= mandatoryPositionals) {
-          // Stops for specified parameters instead.
-          break;
-        }
+    for (; i < mandatoryPositionals; i++) {
+      Class<?> param = plan.parameterTypes[i];
+      Object value = args.get(i);
+      if (!param.isAssignableFrom(value.getClass())) {
+        return ArgumentListConversionResult.fromError(
+            String.format(
+                "Cannot convert parameter at position %d from type %s to type %s",
+                i, EvalUtils.getDataTypeName(value), param.toString()));
       }
+      arguments[i] = value;
     }
 
     // Then the parameters specified in callable.parameters()
-    Set<String> keys = new HashSet<>(kwargs.keySet());
-    for (Param param : callable.parameters()) {
-      SkylarkType type = getType(param);
-      if (param.noneable()) {
-        type = SkylarkType.Union.of(type, SkylarkType.NONE);
-      }
+    int argumentIndex = i;
+    int namedArguments = 0;
+    for (int p = 0; p < plan.params.length; p++) {
+      Param param = plan.params[p];
+      SkylarkType type = plan.types[p];
       Object value = null;
       if (i < args.size()) {
         value = args.get(i);
@@ -460,9 +542,10 @@ public final class FuncallExpression extends Expression {
                   "Cannot convert parameter '%s' to type %s", param.name(), type.toString()));
         }
         i++;
-      } else if (param.named() && keys.remove(param.name())) {
+      } else if (param.named() && kwargs.containsKey(param.name())) {
         // Named parameters
         value = kwargs.get(param.name());
+        namedArguments++;
         if (!type.contains(value)) {
           return ArgumentListConversionResult.fromError(
               String.format(
@@ -470,22 +553,22 @@ public final class FuncallExpression extends Expression {
         }
       } else {
         // Use default value
-        if (param.defaultValue().isEmpty()) {
+        value = plan.defaultValues[p];
+        if (value == null) {
           return ArgumentListConversionResult.fromError(
               String.format("parameter '%s' has no default value", param.name()));
         }
-        value = SkylarkSignatureProcessor.getDefaultValue(param, null);
       }
-      builder.add(value);
+      arguments[argumentIndex++] = value;
       if (!param.noneable() && value instanceof NoneType) {
         return ArgumentListConversionResult.fromError(
             String.format("parameter '%s' cannot be None", param.name()));
       }
     }
-    if (i < args.size() || !keys.isEmpty()) {
+    if (i < args.size() || namedArguments < kwargs.size()) {
       return ArgumentListConversionResult.fromError("too many arguments");
     }
-    return ArgumentListConversionResult.fromArgumentList(builder.build());
+    return ArgumentListConversionResult.fromArgumentList(arguments);
   }
 
   private String formatMethod(List<Object> args, Map<String, Object> kwargs) {
@@ -608,24 +691,33 @@ public final class FuncallExpression extends Expression {
     Location location = call.getLocation();
     Object value = positionals.get(0);
     ImmutableList<Object> positionalArgs = positionals.subList(1, positionals.size());
-    BaseFunction function = Runtime.getFunction(EvalUtils.getSkylarkType(value.getClass()), method);
+    Class<?> valueClass = value.getClass();
+    CallSiteCache cache = call.callSiteCache;
+    if (cache == null || cache.receiverClass != valueClass) {
+      cache =
+          new CallSiteCache(
+              valueClass,
+              Runtime.getFunction(EvalUtils.getSkylarkType(valueClass), method),
+              isNamespace(valueClass),
+              /*javaMethod=*/ null);
+      call.callSiteCache = cache;
+    }
+    BaseFunction function = cache.function;
     Object fieldValue =
         (value instanceof ClassObject) ? ((ClassObject) value).getValue(method) : null;
     if (function != null) {
-      if (!isNamespace(value.getClass())) {
+      if (!cache.isNamespace) {
         // Use self as an implicit parameter in front.
         positionalArgs = positionals;
       }
-      return function.call(
-          positionalArgs, ImmutableMap.<String, Object>copyOf(keyWordArgs), call, env);
+      return function.call(positionalArgs, keyWordArgs, call, env);
     } else if (fieldValue != null) {
       if (!(fieldValue instanceof BaseFunction)) {
         throw new EvalException(
             location, String.format("struct field '%s' is not a function", method));
       }
       function = (BaseFunction) fieldValue;
-      return function.call(
-          positionalArgs, ImmutableMap.<String, Object>copyOf(keyWordArgs), call, env);
+      return function.call(positionalArgs, keyWordArgs, call, env);
     } else {
       // When calling a Java method, the name is not in the Environment,
       // so evaluating 'func' would fail.
@@ -637,9 +729,18 @@ public final class FuncallExpression extends Expression {
         objClass = (Class<?>) value;
       } else {
         obj = value;
-        objClass = value.getClass();
+        objClass = valueClass;
+      }
+      if (cache.javaMethod != null) {
+        Object[] arguments =
+            convertArgumentList(positionalArgs, keyWordArgs, cache.javaMethod.getCallPlan())
+                .getArguments();
+        if (arguments != null) {
+          return callMethod(cache.javaMethod, method, obj, arguments, location, env);
+        }
+        // Let the lookup below report the error.
       }
-      Pair<MethodDescriptor, List<Object>> javaMethod =
+      Pair<MethodDescriptor, Object[]> javaMethod =
           call.findJavaMethod(objClass, method, positionalArgs, keyWordArgs);
       if (javaMethod.first.getAnnotation().structField()) {
         // Not a method but a callable attribute
@@ -658,7 +759,11 @@ public final class FuncallExpression extends Expression {
           }
         }
       }
-      return callMethod(javaMethod.first, method, obj, javaMethod.second.toArray(), location, env);
+      if (obj != null && getMethods(objClass, method).size() == 1) {
+        // Without overloads, the method found is the only one that can match the next calls.
+        call.callSiteCache = cache.withJavaMethod(javaMethod.first);
+      }
+      return callMethod(javaMethod.first, method, obj, javaMethod.second, location, env);
     }
   }
 
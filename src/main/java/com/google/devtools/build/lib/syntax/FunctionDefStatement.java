@@ -16,6 +16,7 @@ package com.google.devtools.build.lib.syntax;
 import com.google.common.collect.ImmutableList;
 import java.util.ArrayList;
 import java.util.List;
+import javax.annotation.Nullable;
 
 /**
  * Syntax node for a function definition.
@@ -26,6 +27,7 @@ public final class FunctionDefStatement extends Statement {
   private final FunctionSignature.WithValues<Expression, Expression> signature;
   private final ImmutableList<Statement> statements;
   private final ImmutableList<Parameter<Expression, Expression>> parameters;
+  @Nullable private Resolver.Scope scope;
 
   public FunctionDefStatement(Identifier ident,
       Iterable<Parameter<Expression, Expression>> parameters,
@@ -65,7 +67,8 @@ public final class FunctionDefStatement extends Statement {
             ident,
             FunctionSignature.WithValues.<Object, SkylarkType>create(sig, defaultValues, types),
             statements,
-            env.getGlobals()));
+            env.getGlobals(),
+            scope));
   }
 
   @Override
@@ -89,6 +92,16 @@ public final class FunctionDefStatement extends Statement {
     return signature;
   }
 
+  /** Sets the slot-indexed local variables of this function; see {@link Resolver}. */
+  void setScope(Resolver.Scope scope) {
+    this.scope = scope;
+  }
+
+  @Nullable
+  Resolver.Scope getScope() {
+    return scope;
+  }
+
   @Override
   public void accept(SyntaxTreeVisitor visitor) {
     visitor.visit(this);
@@ -22,9 +22,6 @@ import javax.annotation.Nullable;
 // (1) intern the strings, so we can use == to compare, and have .equals use the assumption.
 // Then have Argument and Parameter use Identifier again instead of String as keys.
 // (2) Use Identifier, not String, as keys in the Environment, which will be cleaner.
-// (3) For performance, avoid doing HashMap lookups at runtime, and compile local variable access
-// into array reference with a constant index. Variable lookups are currently a speed bottleneck,
-// as previously measured in an experiment.
 /**
  *  Syntax node for an identifier.
  */
@@ -32,10 +29,29 @@ public final class Identifier extends Expression {
 
   private final String name;
 
+  // If this identifier refers to a local variable of a function, the scope of the function and the
+  // slot of the variable in it, as assigned by the Resolver.
+  @Nullable private Resolver.Scope scope;
+  private int slot = -1;
+
   public Identifier(String name) {
     this.name = name;
   }
 
+  void setSlot(Resolver.Scope scope, int slot) {
+    this.scope = scope;
+    this.slot = slot;
+  }
+
+  @Nullable
+  Resolver.Scope getScope() {
+    return scope;
+  }
+
+  int getSlot() {
+    return slot;
+  }
+
   /**
    *  Returns the name of the Identifier.
    */
@@ -68,7 +84,7 @@ public final class Identifier extends Expression {
 
   @Override
   Object doEval(Environment env) throws EvalException {
-    Object value = env.lookup(name);
+    Object value = scope != null ? env.lookupLocal(scope, slot, name) : env.lookup(name);
     if (value == null) {
       throw createInvalidIdentifierException(env.getVariableNames());
     }
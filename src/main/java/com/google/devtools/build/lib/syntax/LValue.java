@@ -166,6 +166,10 @@ public class LValue extends ASTNode {
   private static void assign(Environment env, Location loc, Identifier ident, Object result)
       throws EvalException, InterruptedException {
     Preconditions.checkNotNull(result, "trying to assign null to %s", ident);
+    if (ident.getScope() != null
+        && env.updateBoundLocal(ident.getScope(), ident.getSlot(), result)) {
+      return;
+    }
 
     // The variable may have been referenced successfully if a global variable
     // with the same name exists. In this case an Exception needs to be thrown.
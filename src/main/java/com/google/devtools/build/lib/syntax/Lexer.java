@@ -14,7 +14,6 @@
 
 package com.google.devtools.build.lib.syntax;
 
-import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
@@ -25,6 +24,7 @@ import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -42,20 +42,35 @@ import java.util.Stack;
  */
 public final class Lexer {
 
-  // Characters that can come immediately prior to an '=' character to generate
-  // a different token
-  private static final ImmutableMap<Character, TokenKind> EQUAL_TOKENS =
-      ImmutableMap.<Character, TokenKind>builder()
-          .put('=', TokenKind.EQUALS_EQUALS)
-          .put('!', TokenKind.NOT_EQUALS)
-          .put('>', TokenKind.GREATER_EQUALS)
-          .put('<', TokenKind.LESS_EQUALS)
-          .put('+', TokenKind.PLUS_EQUALS)
-          .put('-', TokenKind.MINUS_EQUALS)
-          .put('*', TokenKind.STAR_EQUALS)
-          .put('/', TokenKind.SLASH_EQUALS)
-          .put('%', TokenKind.PERCENT_EQUALS)
-          .build();
+  /**
+   * Returns the token for a character that generates a different token when it comes immediately
+   * prior to an '=' character, or null.
+   */
+  private static TokenKind equalToken(char c) {
+    // A switch rather than a map: this is called for every character followed by '='.
+    switch (c) {
+      case '=':
+        return TokenKind.EQUALS_EQUALS;
+      case '!':
+        return TokenKind.NOT_EQUALS;
+      case '>':
+        return TokenKind.GREATER_EQUALS;
+      case '<':
+        return TokenKind.LESS_EQUALS;
+      case '+':
+        return TokenKind.PLUS_EQUALS;
+      case '-':
+        return TokenKind.MINUS_EQUALS;
+      case '*':
+        return TokenKind.STAR_EQUALS;
+      case '/':
+        return TokenKind.SLASH_EQUALS;
+      case '%':
+        return TokenKind.PERCENT_EQUALS;
+      default:
+        return null;
+    }
+  }
 
   private final EventHandler eventHandler;
 
@@ -92,6 +107,8 @@ public final class Lexer {
 
   private boolean containsErrors;
 
+  private final SymbolTable symbols = new SymbolTable();
+
   /**
    * Constructs a lexer which tokenizes the contents of the specified InputBuffer. Any errors during
    * lexing are reported on "handler".
@@ -572,10 +589,10 @@ public final class Lexer {
           pos++;
           break;
        default:
-          return bufferSlice(oldPos, pos);
+          return symbols.intern(buffer, oldPos, pos);
       }
     }
-    return bufferSlice(oldPos, pos);
+    return symbols.intern(buffer, oldPos, pos);
   }
 
   private String scanInteger() {
@@ -655,7 +672,7 @@ public final class Lexer {
     char c2 = buffer[pos + 1];
     TokenKind tok = null;
     if (c2 == '=') {
-      tok = EQUAL_TOKENS.get(c1);
+      tok = equalToken(c1);
     } else if (c2 == '*' && c1 == '*') {
       tok = TokenKind.STAR_STAR;
     }
@@ -850,6 +867,80 @@ public final class Lexer {
     return bufferSlice(offsets.first, offsets.second);
   }
 
+  /**
+   * A table of the identifiers of a file. The same names appear many times in a file (think of
+   * {@code name}, {@code deps} or {@code cc_library} in a large BUILD file); the table gives all
+   * their occurrences the same String instance, which is only allocated the first time the name is
+   * seen, and whose hash code is computed only once for the keyword lookup.
+   *
+   * <p>It is an open-addressing hash table that is looked up by the characters of the buffer
+   * directly, using the same hash function as {@link String#hashCode} so that the hash codes of
+   * the Strings in the table are computed only once.
+   */
+  private static final class SymbolTable {
+    private String[] symbols = new String[1024];
+    // The characters of the symbols, which are faster to compare than those of Strings.
+    private char[][] chars = new char[1024][];
+    private int size;
+
+    String intern(char[] buffer, int start, int end) {
+      int hash = 0;
+      for (int i = start; i < end; i++) {
+        hash = 31 * hash + buffer[i];
+      }
+      int mask = symbols.length - 1;
+      for (int i = spread(hash) & mask; ; i = (i + 1) & mask) {
+        String symbol = symbols[i];
+        if (symbol == null) {
+          symbol = new String(buffer, start, end - start);
+          symbols[i] = symbol;
+          chars[i] = Arrays.copyOfRange(buffer, start, end);
+          if (++size * 2 > symbols.length) {
+            grow();
+          }
+          return symbol;
+        }
+        if (symbol.hashCode() == hash && matches(chars[i], buffer, start, end)) {
+          return symbol;
+        }
+      }
+    }
+
+    private static boolean matches(char[] symbol, char[] buffer, int start, int end) {
+      if (symbol.length != end - start) {
+        return false;
+      }
+      for (int i = start; i < end; i++) {
+        if (symbol[i - start] != buffer[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    private void grow() {
+      String[] oldSymbols = symbols;
+      char[][] oldChars = chars;
+      symbols = new String[oldSymbols.length * 2];
+      chars = new char[oldSymbols.length * 2][];
+      int mask = symbols.length - 1;
+      for (int j = 0; j < oldSymbols.length; j++) {
+        if (oldSymbols[j] != null) {
+          int i = spread(oldSymbols[j].hashCode()) & mask;
+          while (symbols[i] != null) {
+            i = (i + 1) & mask;
+          }
+          symbols[i] = oldSymbols[j];
+          chars[i] = oldChars[j];
+        }
+      }
+    }
+
+    private static int spread(int hash) {
+      return hash ^ (hash >>> 16);
+    }
+  }
+
   /**
    * Returns parts of the source buffer based on offsets
    *
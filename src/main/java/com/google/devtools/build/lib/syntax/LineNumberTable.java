@@ -19,7 +19,6 @@ import com.google.devtools.build.lib.concurrent.ThreadSafety.Immutable;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.util.Pair;
 import com.google.devtools.build.lib.util.Preconditions;
-import com.google.devtools.build.lib.util.StringUtilities;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import java.io.Serializable;
 import java.nio.CharBuffer;
@@ -60,9 +59,27 @@ public abstract class LineNumberTable implements Serializable {
     // If #line appears within a BUILD file, we assume it has been preprocessed
     // by gconfig2blaze.  We ignore all actual newlines and compute the logical
     // LNT based only on the presence of #line markers.
-    return StringUtilities.containsSubarray(buffer, "\n#line ".toCharArray())
-        ? new HashLine(buffer, path)
-        : new Regular(buffer, path);
+    return containsHashLine(buffer) ? new HashLine(buffer, path) : new Regular(buffer, path);
+  }
+
+  private static final char[] HASH_LINE = "#line ".toCharArray();
+
+  /** Returns whether a line other than the first one starts with "#line ". */
+  private static boolean containsHashLine(char[] buffer) {
+    // Only look at the characters following newlines, this is called on every file.
+    int end = buffer.length - HASH_LINE.length;
+    for (int i = 0; i < end; i++) {
+      if (buffer[i] == '\n' && buffer[i + 1] == '#') {
+        int j = 1;
+        while (j < HASH_LINE.length && buffer[i + 1 + j] == HASH_LINE[j]) {
+          j++;
+        }
+        if (j == HASH_LINE.length) {
+          return true;
+        }
+      }
+    }
+    return false;
   }
 
   /**
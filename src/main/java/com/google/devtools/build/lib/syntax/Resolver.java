@@ -0,0 +1,164 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import java.io.Serializable;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A static pass, run on validated ASTs, that assigns the local variables of each function to slots
+ * of an array.
+ *
+ * <p>The local variables of a function are its parameters and every name bound in its body by an
+ * assignment, a for loop or a comprehension. Each {@link FunctionDefStatement} is given a {@link
+ * Scope} listing them, and every {@link Identifier} in the body that refers to one of them is given
+ * its slot. When the function is called, the {@link Environment} keeps the values of the locals in
+ * an array, so that reading a local is an array access instead of a walk through the hash maps of
+ * the lexical, global and dynamic frames.
+ *
+ * <p>Resolution doesn't change semantics. A slot that hasn't been assigned yet is treated as
+ * missing and the lookup falls back to looking the name up in the enclosing frames, and the first
+ * assignment of a slot goes through all the checks of {@link Environment#update}. ASTs that have
+ * not been resolved are evaluated by name as before.
+ */
+final class Resolver {
+
+  /** The slot-indexed local variables of a function. Immutable. */
+  static final class Scope implements Serializable {
+    private final ImmutableMap<String, Integer> slots;
+
+    private Scope(Set<String> names) {
+      ImmutableMap.Builder<String, Integer> builder = ImmutableMap.builder();
+      int slot = 0;
+      for (String name : names) {
+        builder.put(name, slot++);
+      }
+      this.slots = builder.build();
+    }
+
+    /** Returns the number of slots. */
+    int size() {
+      return slots.size();
+    }
+
+    /** Returns the slot of the given name, or -1 if it is not a local variable. */
+    int indexOf(String name) {
+      Integer slot = slots.get(name);
+      return slot == null ? -1 : slot;
+    }
+
+    /** Returns the names of the local variables, in slot order. */
+    ImmutableList<String> getNames() {
+      return slots.keySet().asList();
+    }
+
+    @Override
+    public String toString() {
+      return slots.keySet().toString();
+    }
+  }
+
+  private Resolver() {}
+
+  /** Resolves the local variables of all functions defined by the given top-level statements. */
+  static void resolve(List<Statement> statements) {
+    for (Statement statement : statements) {
+      if (statement instanceof FunctionDefStatement) {
+        resolve((FunctionDefStatement) statement);
+      }
+    }
+  }
+
+  static void resolve(FunctionDefStatement function) {
+    Set<String> names = new LinkedHashSet<>();
+    // Parameters come first, in signature order, so that arguments fill the first slots.
+    names.addAll(function.getSignature().getSignature().getNames());
+    BoundNamesCollector collector = new BoundNamesCollector(names);
+    collector.visitAll(function.getStatements());
+
+    Scope scope = new Scope(names);
+    new SlotAssigner(scope).visitAll(function.getStatements());
+    function.setScope(scope);
+  }
+
+  /** Collects the names bound in a function body. */
+  private static final class BoundNamesCollector extends SyntaxTreeVisitor {
+    private final Set<String> names;
+
+    BoundNamesCollector(Set<String> names) {
+      this.names = names;
+    }
+
+    @Override
+    public void visit(LValue node) {
+      names.addAll(node.boundNames());
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(ForStatement node) {
+      names.addAll(node.getVariable().boundNames());
+      super.visit(node);
+    }
+
+    @Override
+    public void visit(FunctionDefStatement node) {
+      // Nested functions are rejected by the parser; just record the binding.
+      names.add(node.getIdent().getName());
+    }
+  }
+
+  /** Assigns slots to the identifiers in a function body that refer to local variables. */
+  private static final class SlotAssigner extends SyntaxTreeVisitor {
+    private final Scope scope;
+
+    SlotAssigner(Scope scope) {
+      this.scope = scope;
+    }
+
+    @Override
+    public void visit(Identifier node) {
+      int slot = scope.indexOf(node.getName());
+      if (slot >= 0) {
+        node.setSlot(scope, slot);
+      }
+    }
+
+    @Override
+    public void visit(DotExpression node) {
+      // The field is not a variable.
+      visit(node.getObj());
+    }
+
+    @Override
+    public void visit(FuncallExpression node) {
+      if (node.getObject() != null) {
+        // The function is the name of a method, not a variable.
+        visit(node.getObject());
+      } else {
+        visit(node.getFunction());
+      }
+      visitAll(node.getArguments());
+    }
+
+    @Override
+    public void visit(FunctionDefStatement node) {
+      // Nested functions are rejected by the parser.
+    }
+  }
+}
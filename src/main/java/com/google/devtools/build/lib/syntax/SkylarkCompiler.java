@@ -0,0 +1,502 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static org.objectweb.asm.Opcodes.AALOAD;
+import static org.objectweb.asm.Opcodes.AASTORE;
+import static org.objectweb.asm.Opcodes.ACC_FINAL;
+import static org.objectweb.asm.Opcodes.ACC_PROTECTED;
+import static org.objectweb.asm.Opcodes.ACC_PUBLIC;
+import static org.objectweb.asm.Opcodes.ACC_SUPER;
+import static org.objectweb.asm.Opcodes.ALOAD;
+import static org.objectweb.asm.Opcodes.ARETURN;
+import static org.objectweb.asm.Opcodes.ASTORE;
+import static org.objectweb.asm.Opcodes.ATHROW;
+import static org.objectweb.asm.Opcodes.BIPUSH;
+import static org.objectweb.asm.Opcodes.DUP;
+import static org.objectweb.asm.Opcodes.GOTO;
+import static org.objectweb.asm.Opcodes.ICONST_0;
+import static org.objectweb.asm.Opcodes.IFEQ;
+import static org.objectweb.asm.Opcodes.IFNE;
+import static org.objectweb.asm.Opcodes.IFNONNULL;
+import static org.objectweb.asm.Opcodes.IFNULL;
+import static org.objectweb.asm.Opcodes.INVOKEINTERFACE;
+import static org.objectweb.asm.Opcodes.INVOKESPECIAL;
+import static org.objectweb.asm.Opcodes.INVOKESTATIC;
+import static org.objectweb.asm.Opcodes.INVOKEVIRTUAL;
+import static org.objectweb.asm.Opcodes.POP;
+import static org.objectweb.asm.Opcodes.RETURN;
+import static org.objectweb.asm.Opcodes.SIPUSH;
+import static org.objectweb.asm.Opcodes.V1_8;
+
+import com.google.devtools.build.lib.util.Preconditions;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import javax.annotation.Nullable;
+import org.objectweb.asm.ClassWriter;
+import org.objectweb.asm.Label;
+import org.objectweb.asm.MethodVisitor;
+import org.objectweb.asm.Type;
+import org.objectweb.asm.commons.TryCatchBlockSorter;
+
+/**
+ * Compiles the bodies of {@link UserDefinedFunction}s to JVM bytecode.
+ *
+ * <p>Each function body becomes a subclass of {@link CompiledFunction}. The control flow of the
+ * body (if statements, for loops, break, continue and return), the slot-indexed local variables
+ * assigned by the {@link Resolver}, literals and the boolean and arithmetic operators are
+ * translated to bytecode. This removes the dispatch on AST nodes as well as the exceptions the
+ * interpreter uses for {@code break}, {@code continue} and {@code return}. All other expressions
+ * and statements, such as function calls, are evaluated by calling back into the interpreter.
+ *
+ * <p>The compiled code has the same semantics as the interpreter, including the order of
+ * evaluation, the locking of collections during iteration, and the location and stack trace of
+ * errors. Function bodies that contain statements the compiler does not know about are not
+ * compiled and stay interpreted.
+ */
+final class SkylarkCompiler {
+
+  private static final Logger logger = Logger.getLogger(SkylarkCompiler.class.getName());
+
+  private static final String PACKAGE = "com/google/devtools/build/lib/syntax/compiled/";
+
+  private static final AtomicInteger classCount = new AtomicInteger();
+
+  private static final String SUPER = Type.getInternalName(CompiledFunction.class);
+  private static final String ENVIRONMENT = Type.getDescriptor(Environment.class);
+  private static final String OBJECT = Type.getDescriptor(Object.class);
+  private static final String ITERABLE = Type.getInternalName(Iterable.class);
+  private static final String ITERATOR = Type.getInternalName(Iterator.class);
+
+  // Locals of the generated call method.
+  private static final int THIS = 0;
+  private static final int ENV = 1;
+  private static final int SLOTS = 2;
+  private static final int TEMP = 3;
+
+  /** Thrown when a function body contains a statement the compiler does not support. */
+  private static final class UnsupportedStatementException extends Exception {
+    UnsupportedStatementException(Statement statement) {
+      super(statement.getClass().getSimpleName() + " at " + statement.getLocation());
+    }
+  }
+
+  /** An enclosing for loop of the statement being compiled. */
+  private static final class Loop {
+    @Nullable final Loop outer;
+    final int statement;
+    final int collection;
+    final Label next = new Label();
+    final Label exit = new Label();
+
+    Loop(@Nullable Loop outer, int statement, int collection) {
+      this.outer = outer;
+      this.statement = statement;
+      this.collection = collection;
+    }
+  }
+
+  /** Defines each generated class in its own class loader, so that it can be unloaded. */
+  private static final class Loader extends ClassLoader {
+    Loader() {
+      super(CompiledFunction.class.getClassLoader());
+    }
+
+    Class<?> define(String name, byte[] bytecode) {
+      return defineClass(name, bytecode, 0, bytecode.length);
+    }
+  }
+
+  private final Resolver.Scope scope;
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+  private MethodVisitor mv;
+  private int nextLocal = TEMP + 1;
+
+  private SkylarkCompiler(Resolver.Scope scope) {
+    this.scope = scope;
+  }
+
+  /**
+   * Compiles the body of a function, or returns null if it cannot be compiled.
+   *
+   * @param name the name of the function, used in the name of the generated class
+   * @param statements the body of the function
+   * @param scope the local variables of the function, as assigned by the {@link Resolver}
+   */
+  @Nullable
+  static CompiledFunction compile(String name, List<Statement> statements, Resolver.Scope scope) {
+    SkylarkCompiler compiler = new SkylarkCompiler(Preconditions.checkNotNull(scope));
+    String className = PACKAGE + sanitize(name) + "$" + classCount.incrementAndGet();
+    try {
+      byte[] bytecode = compiler.generate(className, statements);
+      Class<?> generated = new Loader().define(className.replace('/', '.'), bytecode);
+      Object[] constants = compiler.constants.toArray();
+      return (CompiledFunction)
+          generated.getConstructor(Object[].class).newInstance((Object) constants);
+    } catch (UnsupportedStatementException e) {
+      return null;
+    } catch (ReflectiveOperationException | LinkageError | RuntimeException e) {
+      logger.log(Level.WARNING, "Failed to compile Skylark function " + name, e);
+      return null;
+    }
+  }
+
+  private static String sanitize(String name) {
+    StringBuilder result = new StringBuilder(name.length());
+    for (int i = 0; i < name.length(); i++) {
+      char c = name.charAt(i);
+      result.append(Character.isLetterOrDigit(c) ? c : '_');
+    }
+    return result.toString();
+  }
+
+  private byte[] generate(String className, List<Statement> statements)
+      throws UnsupportedStatementException {
+    ClassWriter cw =
+        new ClassWriter(ClassWriter.COMPUTE_FRAMES) {
+          @Override
+          protected String getCommonSuperClass(String type1, String type2) {
+            // The generated code never relies on the precise type of a merged value. Answering
+            // here also avoids loading classes through the wrong class loader.
+            return "java/lang/Object";
+          }
+        };
+    cw.visit(V1_8, ACC_PUBLIC | ACC_FINAL | ACC_SUPER, className, null, SUPER, null);
+
+    String constructorDescriptor = "([" + OBJECT + ")V";
+    MethodVisitor init = cw.visitMethod(ACC_PUBLIC, "<init>", constructorDescriptor, null, null);
+    init.visitCode();
+    init.visitVarInsn(ALOAD, 0);
+    init.visitVarInsn(ALOAD, 1);
+    init.visitMethodInsn(INVOKESPECIAL, SUPER, "<init>", constructorDescriptor, false);
+    init.visitInsn(RETURN);
+    init.visitMaxs(0, 0);
+    init.visitEnd();
+
+    String callDescriptor = "(" + ENVIRONMENT + ")" + OBJECT;
+    String[] exceptions = {
+      Type.getInternalName(EvalException.class), Type.getInternalName(InterruptedException.class)
+    };
+    // Handlers of nested loops have to come before those of the enclosing loops.
+    mv =
+        new TryCatchBlockSorter(
+            cw.visitMethod(ACC_PROTECTED, "call", callDescriptor, null, exceptions),
+            ACC_PROTECTED,
+            "call",
+            callDescriptor,
+            null,
+            exceptions);
+    mv.visitCode();
+    mv.visitVarInsn(ALOAD, ENV);
+    mv.visitMethodInsn(
+        INVOKESTATIC, SUPER, "localSlots", "(" + ENVIRONMENT + ")[" + OBJECT, false);
+    mv.visitVarInsn(ASTORE, SLOTS);
+    compileStatements(statements, null);
+    loadConstant(Runtime.NONE);
+    mv.visitInsn(ARETURN);
+    mv.visitMaxs(0, 0);
+    mv.visitEnd();
+
+    cw.visitEnd();
+    return cw.toByteArray();
+  }
+
+  private void compileStatements(List<Statement> statements, @Nullable Loop loop)
+      throws UnsupportedStatementException {
+    for (Statement statement : statements) {
+      compileStatement(statement, loop);
+    }
+  }
+
+  private void compileStatement(Statement statement, @Nullable Loop loop)
+      throws UnsupportedStatementException {
+    if (statement instanceof ExpressionStatement) {
+      compileExpression(((ExpressionStatement) statement).getExpression());
+      mv.visitInsn(POP);
+    } else if (statement instanceof AssignmentStatement) {
+      AssignmentStatement assignment = (AssignmentStatement) statement;
+      compileExpression(assignment.getExpression());
+      storeTo(assignment.getLValue(), addConstant(assignment));
+    } else if (statement instanceof AugmentedAssignmentStatement) {
+      callHelper("exec", "(I" + ENVIRONMENT + ")V", addConstant(statement));
+    } else if (statement instanceof IfStatement) {
+      compileIf((IfStatement) statement, loop);
+    } else if (statement instanceof ForStatement) {
+      compileFor((ForStatement) statement, loop);
+    } else if (statement instanceof ReturnStatement) {
+      compileExpression(((ReturnStatement) statement).getReturnExpression());
+      if (loop != null) {
+        // Unlock the collections of all enclosing loops, as their finally blocks would.
+        mv.visitVarInsn(ASTORE, TEMP);
+        for (Loop enclosing = loop; enclosing != null; enclosing = enclosing.outer) {
+          endLoop(enclosing);
+        }
+        mv.visitVarInsn(ALOAD, TEMP);
+      }
+      mv.visitInsn(ARETURN);
+    } else if (statement instanceof FlowStatement && loop != null) {
+      FlowStatement.Kind kind = ((FlowStatement) statement).getKind();
+      mv.visitJumpInsn(GOTO, kind == FlowStatement.Kind.BREAK ? loop.exit : loop.next);
+    } else {
+      throw new UnsupportedStatementException(statement);
+    }
+  }
+
+  private void compileIf(IfStatement statement, @Nullable Loop loop)
+      throws UnsupportedStatementException {
+    Label end = new Label();
+    for (IfStatement.ConditionalStatements block : statement.getThenBlocks()) {
+      Label next = new Label();
+      compileExpression(block.getCondition());
+      isTrue();
+      mv.visitJumpInsn(IFEQ, next);
+      compileStatements(block.getStmts(), loop);
+      mv.visitJumpInsn(GOTO, end);
+      mv.visitLabel(next);
+    }
+    compileStatements(statement.getElseBlock(), loop);
+    mv.visitLabel(end);
+  }
+
+  /**
+   * Compiles a for loop to the equivalent of
+   *
+   * <pre>
+   * Object collection = ...;
+   * Iterable&lt;?> elements = startLoop(statement, collection);
+   * try {
+   *   for (Iterator&lt;?> it = elements.iterator(); it.hasNext(); ) {
+   *     variable = it.next();
+   *     ...
+   *   }
+   * } finally {
+   *   endLoop(statement, collection);
+   * }
+   * </pre>
+   */
+  private void compileFor(ForStatement statement, @Nullable Loop outer)
+      throws UnsupportedStatementException {
+    int index = addConstant(statement);
+    int collection = nextLocal++;
+    int elements = nextLocal++;
+    int iterator = nextLocal++;
+    Loop loop = new Loop(outer, index, collection);
+
+    compileExpression(statement.getCollection());
+    mv.visitVarInsn(ASTORE, collection);
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(index);
+    mv.visitVarInsn(ALOAD, collection);
+    mv.visitMethodInsn(
+        INVOKEVIRTUAL, SUPER, "startLoop", "(I" + OBJECT + ")L" + ITERABLE + ";", false);
+    mv.visitVarInsn(ASTORE, elements);
+
+    Label tryStart = new Label();
+    Label tryEnd = new Label();
+    Label handler = new Label();
+    Label end = new Label();
+    mv.visitTryCatchBlock(tryStart, tryEnd, handler, null);
+
+    mv.visitLabel(tryStart);
+    mv.visitVarInsn(ALOAD, elements);
+    mv.visitMethodInsn(INVOKEINTERFACE, ITERABLE, "iterator", "()L" + ITERATOR + ";", true);
+    mv.visitVarInsn(ASTORE, iterator);
+    mv.visitLabel(loop.next);
+    mv.visitVarInsn(ALOAD, iterator);
+    mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "hasNext", "()Z", true);
+    mv.visitJumpInsn(IFEQ, loop.exit);
+    mv.visitVarInsn(ALOAD, iterator);
+    mv.visitMethodInsn(INVOKEINTERFACE, ITERATOR, "next", "()" + OBJECT, true);
+    storeTo(statement.getVariable(), index);
+    compileStatements(statement.block(), loop);
+    mv.visitJumpInsn(GOTO, loop.next);
+    mv.visitLabel(tryEnd);
+
+    mv.visitLabel(loop.exit);
+    endLoop(loop);
+    mv.visitJumpInsn(GOTO, end);
+
+    mv.visitLabel(handler);
+    int exception = nextLocal++;
+    mv.visitVarInsn(ASTORE, exception);
+    endLoop(loop);
+    mv.visitVarInsn(ALOAD, exception);
+    mv.visitInsn(ATHROW);
+
+    mv.visitLabel(end);
+  }
+
+  private void endLoop(Loop loop) {
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(loop.statement);
+    mv.visitVarInsn(ALOAD, loop.collection);
+    mv.visitMethodInsn(INVOKEVIRTUAL, SUPER, "endLoop", "(I" + OBJECT + ")V", false);
+  }
+
+  /**
+   * Assigns the value on top of the stack to an lvalue. Local variables that are already bound are
+   * written directly; everything else goes through {@link LValue#assign}, with the given statement
+   * as the culprit of errors.
+   */
+  private void storeTo(LValue lvalue, int statement) {
+    mv.visitVarInsn(ASTORE, TEMP);
+    Label slow = new Label();
+    Label done = new Label();
+    int slot = localSlot(lvalue.getExpression());
+    if (slot >= 0) {
+      mv.visitVarInsn(ALOAD, SLOTS);
+      pushInt(slot);
+      mv.visitInsn(AALOAD);
+      mv.visitJumpInsn(IFNULL, slow);
+      mv.visitVarInsn(ALOAD, SLOTS);
+      pushInt(slot);
+      mv.visitVarInsn(ALOAD, TEMP);
+      mv.visitInsn(AASTORE);
+      mv.visitJumpInsn(GOTO, done);
+    }
+    mv.visitLabel(slow);
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(statement);
+    mv.visitVarInsn(ALOAD, TEMP);
+    mv.visitVarInsn(ALOAD, ENV);
+    mv.visitMethodInsn(
+        INVOKEVIRTUAL, SUPER, "assign", "(I" + OBJECT + ENVIRONMENT + ")V", false);
+    mv.visitLabel(done);
+  }
+
+  /** Leaves the value of an expression on the stack. */
+  private void compileExpression(Expression expression) {
+    if (expression instanceof Literal) {
+      loadConstant(((Literal<?>) expression).getValue());
+    } else if (expression instanceof Identifier && localSlot(expression) >= 0) {
+      // Read the slot; if the variable is not bound yet, let the interpreter look it up.
+      Label bound = new Label();
+      mv.visitVarInsn(ALOAD, SLOTS);
+      pushInt(localSlot(expression));
+      mv.visitInsn(AALOAD);
+      mv.visitInsn(DUP);
+      mv.visitJumpInsn(IFNONNULL, bound);
+      mv.visitInsn(POP);
+      eval(expression);
+      mv.visitLabel(bound);
+    } else if (expression instanceof BinaryOperatorExpression) {
+      compileBinaryOperator((BinaryOperatorExpression) expression);
+    } else if (expression instanceof NotExpression) {
+      compileExpression(((NotExpression) expression).getExpression());
+      mv.visitMethodInsn(INVOKESTATIC, SUPER, "not", "(" + OBJECT + ")" + OBJECT, false);
+    } else if (expression instanceof ConditionalExpression) {
+      ConditionalExpression conditional = (ConditionalExpression) expression;
+      Label elseCase = new Label();
+      Label end = new Label();
+      compileExpression(conditional.getCondition());
+      isTrue();
+      mv.visitJumpInsn(IFEQ, elseCase);
+      compileExpression(conditional.getThenCase());
+      mv.visitJumpInsn(GOTO, end);
+      mv.visitLabel(elseCase);
+      compileExpression(conditional.getElseCase());
+      mv.visitLabel(end);
+    } else {
+      eval(expression);
+    }
+  }
+
+  private void compileBinaryOperator(BinaryOperatorExpression expression) {
+    Operator operator = expression.getOperator();
+    if (operator == Operator.AND || operator == Operator.OR) {
+      // The value of the left operand is the result if it decides the outcome.
+      Label end = new Label();
+      compileExpression(expression.getLhs());
+      mv.visitInsn(DUP);
+      isTrue();
+      mv.visitJumpInsn(operator == Operator.AND ? IFEQ : IFNE, end);
+      mv.visitInsn(POP);
+      compileExpression(expression.getRhs());
+      mv.visitLabel(end);
+      return;
+    }
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(addConstant(expression));
+    compileExpression(expression.getLhs());
+    compileExpression(expression.getRhs());
+    mv.visitVarInsn(ALOAD, ENV);
+    mv.visitMethodInsn(
+        INVOKEVIRTUAL,
+        SUPER,
+        "binaryOperator",
+        "(I" + OBJECT + OBJECT + ENVIRONMENT + ")" + OBJECT,
+        false);
+  }
+
+  /** Returns the slot of an expression that is a local variable of the function, or -1. */
+  private int localSlot(Expression expression) {
+    if (expression instanceof Identifier) {
+      Identifier identifier = (Identifier) expression;
+      if (identifier.getScope() == scope) {
+        return identifier.getSlot();
+      }
+    }
+    return -1;
+  }
+
+  private void eval(Expression expression) {
+    callHelper("eval", "(I" + ENVIRONMENT + ")" + OBJECT, addConstant(expression));
+  }
+
+  private void callHelper(String name, String descriptor, int node) {
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(node);
+    mv.visitVarInsn(ALOAD, ENV);
+    mv.visitMethodInsn(INVOKEVIRTUAL, SUPER, name, descriptor, false);
+  }
+
+  private void isTrue() {
+    mv.visitMethodInsn(INVOKESTATIC, SUPER, "isTrue", "(" + OBJECT + ")Z", false);
+  }
+
+  private void loadConstant(Object value) {
+    mv.visitVarInsn(ALOAD, THIS);
+    pushInt(addConstant(value));
+    mv.visitMethodInsn(INVOKEVIRTUAL, SUPER, "constant", "(I)" + OBJECT, false);
+  }
+
+  private int addConstant(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+    return index;
+  }
+
+  private void pushInt(int value) {
+    if (value <= 5) {
+      mv.visitInsn(ICONST_0 + value);
+    } else if (value <= Byte.MAX_VALUE) {
+      mv.visitIntInsn(BIPUSH, value);
+    } else if (value <= Short.MAX_VALUE) {
+      mv.visitIntInsn(SIPUSH, value);
+    } else {
+      mv.visitLdcInsn(value);
+    }
+  }
+}
@@ -302,6 +302,11 @@ public final class SkylarkNestedSet implements SkylarkValue, SkylarkQueryable {
     return set.isEmpty();
   }
 
+  /** Returns the number of elements of the set, which is memoized once computed. */
+  public int size() {
+    return set.memoizedFlattenAndGetSize();
+  }
+
   public SkylarkType getContentType() {
     return contentType;
   }
@@ -86,4 +86,15 @@ public class SkylarkSemanticsOptions extends OptionsBase implements Serializable
             + "statement."
   )
   public boolean incompatibleBzlDisallowLoadAfterStatement;
+
+  @Option(
+    name = "experimental_skylark_compile_threshold",
+    defaultValue = "0",
+    optionUsageRestrictions = OptionUsageRestrictions.UNDOCUMENTED,
+    help =
+        "If positive, the body of a Skylark function is compiled to JVM bytecode once the "
+            + "function has been called this many times. Functions that cannot be compiled stay "
+            + "interpreted."
+  )
+  public int skylarkCompileThreshold;
 }
@@ -126,6 +126,8 @@ public class SyntaxTreeVisitor {
     visitAll(node.getStatements());
   }
 
+  public void visit(@SuppressWarnings("unused") FlowStatement node) {}
+
   public void visit(ReturnStatement node) {
     visit(node.getReturnExpression());
   }
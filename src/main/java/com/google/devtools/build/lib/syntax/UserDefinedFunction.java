@@ -13,10 +13,13 @@
 // limitations under the License.
 package com.google.devtools.build.lib.syntax;
 
+import com.google.common.annotations.VisibleForTesting;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Iterables;
 import com.google.devtools.build.lib.profiler.Profiler;
 import com.google.devtools.build.lib.profiler.ProfilerTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.annotation.Nullable;
 
 /**
  * The actual function registered in the environment. This function is defined in the
@@ -29,15 +32,38 @@ public class UserDefinedFunction extends BaseFunction {
   // we close over the globals at the time of definition
   private final Environment.Frame definitionGlobals;
 
+  // The slot-indexed local variables, if the function definition was resolved.
+  @Nullable private final Resolver.Scope scope;
+
+  // The number of calls so far, until the body is compiled; see SkylarkCompiler.
+  private final AtomicInteger calls = new AtomicInteger();
+
+  // The compiled body, once the function has been called often enough.
+  @Nullable private volatile CompiledFunction compiled;
+
+  // Whether the body cannot be compiled.
+  private volatile boolean interpretOnly;
+
   protected UserDefinedFunction(
       Identifier function,
       FunctionSignature.WithValues<Object, SkylarkType> signature,
       ImmutableList<Statement> statements,
       Environment.Frame definitionGlobals)
       throws EvalException {
+    this(function, signature, statements, definitionGlobals, null);
+  }
+
+  UserDefinedFunction(
+      Identifier function,
+      FunctionSignature.WithValues<Object, SkylarkType> signature,
+      ImmutableList<Statement> statements,
+      Environment.Frame definitionGlobals,
+      @Nullable Resolver.Scope scope)
+      throws EvalException {
     super(function.getName(), signature, function.getLocation());
     this.statements = statements;
     this.definitionGlobals = definitionGlobals;
+    this.scope = scope;
   }
 
   public FunctionSignature.WithValues<Object, SkylarkType> getFunctionSignature() {
@@ -62,7 +88,7 @@ public class UserDefinedFunction extends BaseFunction {
 
     Profiler.instance().startTask(ProfilerTask.SKYLARK_USER_FN, getName());
     try {
-      env.enterScope(this, ast, definitionGlobals);
+      env.enterScope(this, ast, definitionGlobals, scope);
       ImmutableList<String> names = signature.getSignature().getNames();
 
       // Registering the functions's arguments as variables in the local Environment
@@ -71,6 +97,11 @@ public class UserDefinedFunction extends BaseFunction {
         env.update(name, arguments[i++]);
       }
 
+      CompiledFunction compiledBody = maybeCompile(env);
+      if (compiledBody != null) {
+        return compiledBody.call(env);
+      }
+
       try {
         for (Statement stmt : statements) {
           if (stmt instanceof ReturnStatement) {
@@ -90,4 +121,32 @@ public class UserDefinedFunction extends BaseFunction {
       env.exitScope();
     }
   }
+
+  @VisibleForTesting
+  boolean isCompiled() {
+    return compiled != null;
+  }
+
+  /**
+   * Returns the compiled body of this function, compiling it if the function has been called
+   * often enough, or null if the body has to be interpreted.
+   */
+  @Nullable
+  private CompiledFunction maybeCompile(Environment env) {
+    CompiledFunction result = compiled;
+    if (result != null || interpretOnly || scope == null) {
+      return result;
+    }
+    int threshold = env.getSemantics().skylarkCompileThreshold;
+    if (threshold <= 0 || calls.incrementAndGet() < threshold) {
+      return null;
+    }
+    synchronized (this) {
+      if (compiled == null && !interpretOnly) {
+        compiled = SkylarkCompiler.compile(getName(), statements, scope);
+        interpretOnly = compiled == null;
+      }
+      return compiled;
+    }
+  }
 }
@@ -202,6 +202,8 @@ public final class ValidationEnvironment {
     for (Statement statement : statements) {
       statement.validate(this);
     }
+
+    Resolver.resolve(statements);
   }
 
   public boolean validateAst(List<Statement> statements, EventHandler eventHandler) {
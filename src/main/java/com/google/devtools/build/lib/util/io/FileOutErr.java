@@ -13,6 +13,8 @@
 // limitations under the License.
 package com.google.devtools.build.lib.util.io;
 
+import static java.nio.charset.StandardCharsets.ISO_8859_1;
+
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.io.ByteStreams;
 import com.google.devtools.build.lib.concurrent.ThreadSafety;
@@ -23,6 +25,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.PrintStream;
+import java.util.Arrays;
 
 /**
  * An implementation of {@link OutErr} that captures all out/err output into
@@ -51,6 +54,24 @@ public class FileOutErr extends OutErr {
     this(new FileRecordingOutputStream(stdout), new FileRecordingOutputStream(stderr));
   }
 
+  /**
+   * Create a new FileOutErr that keeps up to {@code inMemoryLimit} bytes of stdout and of stderr
+   * in memory, and only writes them to the files specified by stdout/stderr once that limit is
+   * exceeded or somebody asks for the path of a file (e.g. to hand it to a subprocess).
+   *
+   * <p>Since most actions produce no output at all, this avoids creating, checking and deleting
+   * files for them.
+   *
+   * @param stdout The file for the stdout of this outErr
+   * @param stderr The file for the stderr of this outErr
+   * @param inMemoryLimit The number of bytes per stream to keep in memory
+   */
+  public FileOutErr(Path stdout, Path stderr, int inMemoryLimit) {
+    this(
+        new BufferedFileRecordingOutputStream(stdout, inMemoryLimit),
+        new BufferedFileRecordingOutputStream(stderr, inMemoryLimit));
+  }
+
   /**
    * Creates a new FileOutErr that writes its input to the file specified by output. Both
    * stdout/stderr will be copied into the single file.
@@ -118,6 +139,8 @@ public class FileOutErr extends OutErr {
    * Returns the {@link Path} this OutErr uses to buffer stdout
    *
    * <p>The user must ensure that no other process is writing to the files at time of creation.
+   * If output is being kept in memory, it is written to the file first, and the file is used
+   * from then on.
    *
    * @return the path object with the contents of stdout
    */
@@ -286,6 +309,139 @@ public class FileOutErr extends OutErr {
     }
   }
 
+  /**
+   * An output stream that keeps its output in memory until it exceeds a limit or the path of the
+   * backing file is requested, at which point the output moves to the file. From then on it
+   * behaves like a {@link FileRecordingOutputStream}.
+   *
+   * <p>The memory buffer is allocated on the first write and grows as needed, so streams that
+   * never receive output cost nothing but the object itself.
+   */
+  @ThreadSafety.ThreadCompatible
+  private static class BufferedFileRecordingOutputStream extends FileRecordingOutputStream {
+    private static final int INITIAL_BUFFER_SIZE = 256;
+    private static final byte[] EMPTY = new byte[0];
+
+    private final int inMemoryLimit;
+    private byte[] buffer = EMPTY;
+    private int count;
+    // True once the output lives in the file, either because it grew past the limit or because
+    // the file was handed out.
+    private boolean inFile;
+
+    BufferedFileRecordingOutputStream(Path outputFile, int inMemoryLimit) {
+      super(outputFile);
+      this.inMemoryLimit = inMemoryLimit;
+    }
+
+    /** Moves the output recorded so far to the file. */
+    private synchronized void moveToFile() {
+      if (inFile) {
+        return;
+      }
+      inFile = true;
+      if (count > 0) {
+        super.write(buffer, 0, count);
+      }
+      buffer = EMPTY;
+      count = 0;
+    }
+
+    @Override
+    synchronized Path getFile() {
+      moveToFile();
+      return super.getFile();
+    }
+
+    @Override
+    void setFilter(OutputFilter outputFilter) {
+      // Filters are applied to the file stream, so everything has to go through it.
+      moveToFile();
+      super.setFilter(outputFilter);
+    }
+
+    @Override
+    synchronized boolean hasRecordedOutput() {
+      return inFile ? super.hasRecordedOutput() : count > 0;
+    }
+
+    @Override
+    synchronized String getRecordedOutput() {
+      return inFile ? super.getRecordedOutput() : new String(buffer, 0, count, ISO_8859_1);
+    }
+
+    @Override
+    synchronized void dumpOut(OutputStream out) {
+      if (inFile) {
+        super.dumpOut(out);
+        return;
+      }
+      try {
+        out.write(buffer, 0, count);
+      } catch (IOException ex) {
+        recordError(ex);
+      }
+    }
+
+    @Override
+    public synchronized void clear() throws IOException {
+      if (inFile) {
+        super.clear();
+      } else {
+        buffer = EMPTY;
+        count = 0;
+      }
+    }
+
+    @Override
+    public synchronized void write(byte[] b, int off, int len) {
+      if (len <= 0) {
+        return;
+      }
+      if (!inFile && count + len > inMemoryLimit) {
+        moveToFile();
+      }
+      if (inFile) {
+        super.write(b, off, len);
+        return;
+      }
+      ensureCapacity(count + len);
+      System.arraycopy(b, off, buffer, count, len);
+      count += len;
+    }
+
+    @Override
+    public synchronized void write(int b) {
+      write(new byte[] {(byte) b}, 0, 1);
+    }
+
+    @Override
+    public synchronized void write(byte[] b) {
+      write(b, 0, b.length);
+    }
+
+    @Override
+    public synchronized void flush() throws IOException {
+      if (inFile) {
+        super.flush();
+      }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+      if (inFile) {
+        super.close();
+      }
+    }
+
+    private void ensureCapacity(int minCapacity) {
+      if (minCapacity > buffer.length) {
+        int newCapacity = Math.max(INITIAL_BUFFER_SIZE, buffer.length * 2);
+        buffer = Arrays.copyOf(buffer, Math.min(Math.max(newCapacity, minCapacity), inMemoryLimit));
+      }
+    }
+  }
+
   /** An interface to get a filtered output stream from the original one. */
   public interface OutputFilter {
     FilterOutputStream getFilteredOutputStream(OutputStream outputStream);
@@ -16,6 +16,7 @@
 #define SRC_MAIN_TOOLS_PROCESS_TOOLS_H_
 
 #include <stdbool.h>
+#include <sys/resource.h>
 #include <sys/types.h>
 #include <string>
 
@@ -58,4 +59,8 @@ void SetTimeout(double timeout_secs);
 // "name" is used for the error message only.
 int WaitChild(pid_t pid);
 
+// Like WaitChild, but also stores the resource usage of "pid" and its waited-for
+// descendants in "rusage".
+int WaitChildWithRusage(pid_t pid, struct rusage *rusage);
+
 #endif  // PROCESS_TOOLS_H__
@@ -17,6 +17,9 @@
 // from normal termination or timeout, the subprocess (and any of its children)
 // is killed.
 //
+// If the first argument is "--stats=<file>", the resource usage of the child
+// process (as reported by wait4) is written to <file> once it exits.
+//
 // The exit status of this program is whatever the child process returned,
 // unless process-wrapper receives a signal. ie, on SIGTERM this program will
 // die with raise(SIGTERM) even if the child process handles SIGTERM with
@@ -49,6 +52,7 @@ struct Options {
   double kill_delay_secs;
   std::string stdout_path;
   std::string stderr_path;
+  std::string stats_path;
   std::vector<char *> args;
 };
 
@@ -57,8 +61,8 @@ static struct Options opt;
 // Print out a usage error and exit with EXIT_FAILURE.
 static void Usage(char *program_name) {
   fprintf(stderr,
-          "Usage: %s <timeout-secs> <kill-delay-secs> <stdout-redirect> "
-          "<stderr-redirect> <command> [args] ...\n",
+          "Usage: %s [--stats=<stats-file>] <timeout-secs> <kill-delay-secs> "
+          "<stdout-redirect> <stderr-redirect> <command> [args] ...\n",
           program_name);
   exit(EXIT_FAILURE);
 }
@@ -66,11 +70,18 @@ static void Usage(char *program_name) {
 // Parse the command line flags and return the result in an Options structure
 // passed as argument.
 static void ParseCommandLine(std::vector<char *> args) {
-  if (args.size() < 5) {
-    Usage(args.front());
+  int optind = 1;
+
+  static const char kStatsFlag[] = "--stats=";
+  if (args.size() > 1 &&
+      strncmp(args[1], kStatsFlag, sizeof(kStatsFlag) - 1) == 0) {
+    opt.stats_path.assign(args[1] + sizeof(kStatsFlag) - 1);
+    optind++;
   }
 
-  int optind = 1;
+  if (args.size() < optind + 4u) {
+    Usage(args.front());
+  }
 
   if (sscanf(args[optind++], "%lf", &opt.timeout_secs) != 1) {
     DIE("timeout_secs is not a real number.\n");
@@ -106,9 +117,36 @@ void OnSignal(int sig) {
   }
 }
 
+// Write the resource usage of the child process to stats_path, one
+// "key=value" pair per line. Failures are not fatal, since the statistics are
+// only used for scheduling heuristics.
+static void WriteStats(const std::string &stats_path,
+                       const struct rusage &rusage) {
+  FILE *stats = fopen(stats_path.c_str(), "w");
+  if (stats == NULL) {
+    return;
+  }
+  fprintf(stats, "utime_usec=%lld\n",
+          static_cast<long long>(rusage.ru_utime.tv_sec) * 1000000 +
+              rusage.ru_utime.tv_usec);
+  fprintf(stats, "stime_usec=%lld\n",
+          static_cast<long long>(rusage.ru_stime.tv_sec) * 1000000 +
+              rusage.ru_stime.tv_usec);
+  // ru_maxrss is in kilobytes on Linux, but in bytes on macOS.
+#ifdef __APPLE__
+  fprintf(stats, "maxrss_kb=%ld\n", rusage.ru_maxrss / 1024);
+#else
+  fprintf(stats, "maxrss_kb=%ld\n", rusage.ru_maxrss);
+#endif
+  fprintf(stats, "inblock=%ld\n", rusage.ru_inblock);
+  fprintf(stats, "oublock=%ld\n", rusage.ru_oublock);
+  fclose(stats);
+}
+
 // Run the command specified by the argv array and kill it after timeout
 // seconds.
-static void SpawnCommand(const std::vector<char *> &args, double timeout_secs) {
+static void SpawnCommand(const std::vector<char *> &args, double timeout_secs,
+                         const std::string &stats_path) {
   global_child_pid = fork();
   if (global_child_pid < 0) {
     DIE("fork");
@@ -139,7 +177,11 @@ static void SpawnCommand(const std::vector<char *> &args, double timeout_secs) {
       SetTimeout(timeout_secs);
     }
 
-    int status = WaitChild(global_child_pid);
+    struct rusage rusage;
+    int status = WaitChildWithRusage(global_child_pid, &rusage);
+    if (!stats_path.empty()) {
+      WriteStats(stats_path, rusage);
+    }
 
     // The child is done for, but may have grandchildren that we still have to
     // kill.
@@ -170,7 +212,7 @@ int main(int argc, char *argv[]) {
   Redirect(opt.stdout_path, STDOUT_FILENO);
   Redirect(opt.stderr_path, STDERR_FILENO);
 
-  SpawnCommand(opt.args, opt.timeout_secs);
+  SpawnCommand(opt.args, opt.timeout_secs, opt.stats_path);
 
   return 0;
 }
@@ -0,0 +1,49 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Actions}. */
+@RunWith(JUnit4.class)
+public class ActionsTest {
+
+  @Test
+  public void findShortestPrefix() {
+    Map<PathFragment, String> paths =
+        ImmutableMap.of(
+            path("out/a"), "",
+            path("out/a/b"), "",
+            path("out/a/b/c"), "",
+            path("out/ab/c"), "");
+    assertThat(Actions.findShortestPrefix(path("out/a"), paths)).isNull();
+    assertThat(Actions.findShortestPrefix(path("out/a/b"), paths)).isEqualTo(path("out/a"));
+    // Only the shortest prefix is reported, like the sorted scan reports (x,y) and (x,z) but not
+    // (y,z).
+    assertThat(Actions.findShortestPrefix(path("out/a/b/c"), paths)).isEqualTo(path("out/a"));
+    // Prefixes are made of whole segments.
+    assertThat(Actions.findShortestPrefix(path("out/ab/c"), paths)).isNull();
+  }
+
+  private static PathFragment path(String path) {
+    return PathFragment.create(path);
+  }
+}
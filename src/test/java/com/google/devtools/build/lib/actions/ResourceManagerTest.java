@@ -467,6 +467,69 @@ public class ResourceManagerTest {
     assertFalse(rm.inUse());
   }
 
+  @Test
+  public void testZeroRequestsNeverBlock() throws Exception {
+    acquire(1000, 1, 1, 2);
+    TestThread thread1 =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            rm.acquireResources(resourceOwner, ResourceSet.ZERO).close();
+            assertThat(acquireNonblocking(0, 0, 0, 0)).isNotNull();
+          }
+        };
+    thread1.start();
+    thread1.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertEquals(0, rm.getWaitCount());
+    release(1000, 1, 1, 2);
+    assertFalse(rm.inUse());
+  }
+
+  @Test
+  public void testSmallestFirstSchedulingPolicy() throws Exception {
+    rm.setSchedulingPolicy(ResourceManager.SchedulingPolicy.SMALLEST_FIRST);
+    acquire(1000, 0, 0, 0);
+
+    TestThread largeThread =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            acquire(900, 0, 0, 0); // Blocked by the main thread, then by smallThread.
+            validate(2);
+            release(900, 0, 0, 0);
+          }
+        };
+    TestThread smallThread =
+        new TestThread() {
+          @Override
+          public void runTest() throws Exception {
+            acquire(200, 0, 0, 0); // Blocked by the main thread.
+            validate(1);
+            // largeThread must still be waiting for the resources held by this thread.
+            assertEquals(1, rm.getWaitCount());
+            sync.await();
+            release(200, 0, 0, 0);
+          }
+        };
+
+    largeThread.start();
+    while (rm.getWaitCount() < 1) {
+      Thread.yield();
+    }
+    smallThread.start();
+    while (rm.getWaitCount() < 2) {
+      Thread.yield();
+    }
+
+    // Only one of the two requests fits. Although largeThread asked first, smallThread wins.
+    release(1000, 0, 0, 0);
+    sync.await(1, TimeUnit.SECONDS);
+
+    smallThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    largeThread.joinAndAssertState(TestUtils.WAIT_TIMEOUT_MILLISECONDS);
+    assertFalse(rm.inUse());
+  }
+
   private static class ResourceOwnerStub implements ActionExecutionMetadata {
 
     @Override
@@ -0,0 +1,95 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.actions.cache;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.actions.ResourceSet;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory.Measurement;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ResourceUsageHistory}. */
+@RunWith(JUnit4.class)
+public class ResourceUsageHistoryTest {
+
+  private static final ResourceSet DECLARED = ResourceSet.createWithRamCpuIo(250, 0.5, 0.1);
+
+  private final Scratch scratch = new Scratch();
+  private Path cacheRoot;
+  private ResourceUsageHistory history;
+
+  @Before
+  public final void createHistory() throws Exception {
+    cacheRoot = scratch.dir("/cache");
+    history = ResourceUsageHistory.load(cacheRoot);
+  }
+
+  private void recordSamples(String mnemonic, String target, double memoryMb, int count) {
+    for (int i = 0; i < count; i++) {
+      history.record(mnemonic, target, new Measurement(memoryMb, 2.0, 1.0));
+    }
+  }
+
+  @Test
+  public void testDeclaredResourcesWithoutEnoughSamples() {
+    recordSamples("CppLink", "//foo:bar", 1000, ResourceUsageHistory.MIN_SAMPLES - 1);
+    assertThat(history.get("CppLink", "//foo:bar")).isNull();
+    assertThat(history.estimate("CppLink", "//foo:bar", DECLARED)).isSameAs(DECLARED);
+  }
+
+  @Test
+  public void testEstimateFromMeasurements() {
+    recordSamples("CppLink", "//foo:bar", 1000, ResourceUsageHistory.MIN_SAMPLES);
+    ResourceSet estimate = history.estimate("CppLink", "//foo:bar", DECLARED);
+    assertThat(estimate.getMemoryMb()).isWithin(0.01).of(1000);
+    assertThat(estimate.getCpuUsage()).isWithin(0.01).of(2.0);
+    assertThat(estimate.getIoUsage()).isWithin(0.01).of(DECLARED.getIoUsage());
+  }
+
+  @Test
+  public void testTargetFallsBackToMnemonic() {
+    recordSamples("CppLink", "//foo:bar", 1000, ResourceUsageHistory.MIN_SAMPLES);
+    recordSamples("CppLink", "//foo:baz", 100, 1);
+    // //foo:baz does not have enough samples on its own, but the mnemonic does.
+    assertThat(history.get("CppLink", "//foo:baz").getSamples())
+        .isEqualTo(ResourceUsageHistory.MIN_SAMPLES + 1);
+    assertThat(history.get("CppLink", "//foo:bar").getSamples())
+        .isEqualTo(ResourceUsageHistory.MIN_SAMPLES);
+    assertThat(history.get("Javac", "//foo:bar")).isNull();
+  }
+
+  @Test
+  public void testPeakMemoryDecaysSlowly() {
+    recordSamples("CppLink", null, 1000, 1);
+    recordSamples("CppLink", null, 100, ResourceUsageHistory.MIN_SAMPLES);
+    double peak = history.get("CppLink", null).getPeakMemoryMb();
+    assertThat(peak).isLessThan(1000.0);
+    assertThat(peak).isGreaterThan(500.0);
+  }
+
+  @Test
+  public void testSaveAndLoad() throws Exception {
+    recordSamples("CppLink", "//foo:bar", 1000, ResourceUsageHistory.MIN_SAMPLES);
+    history.save();
+
+    ResourceUsageHistory reloaded = ResourceUsageHistory.load(cacheRoot);
+    assertThat(reloaded.size()).isEqualTo(2);
+    assertThat(reloaded.get("CppLink", "//foo:bar").getPeakMemoryMb()).isWithin(0.01).of(1000);
+  }
+}
@@ -53,6 +53,11 @@ public class BinaryFileWriteActionTest extends FileWriteActionTestCase {
     checkCanWriteExecutableFile();
   }
 
+  @Test
+  public void testInjectsDigestOfWrittenFile() throws Exception {
+    checkInjectsDigestOfWrittenFile();
+  }
+
   @Test
   public void testComputesConsistentKeys() throws Exception {
     checkComputesConsistentKeys();
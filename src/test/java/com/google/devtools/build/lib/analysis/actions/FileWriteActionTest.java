@@ -56,6 +56,11 @@ public class FileWriteActionTest extends FileWriteActionTestCase {
     checkCanWriteExecutableFile();
   }
 
+  @Test
+  public void testInjectsDigestOfWrittenFile() throws Exception {
+    checkInjectsDigestOfWrittenFile();
+  }
+
   @Test
   public void testComputesConsistentKeys() throws Exception {
     checkComputesConsistentKeys();
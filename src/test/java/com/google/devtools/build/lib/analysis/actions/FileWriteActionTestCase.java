@@ -19,6 +19,11 @@ import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.aryEq;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
 
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -28,10 +33,12 @@ import com.google.devtools.build.lib.actions.ActionExecutionContext;
 import com.google.devtools.build.lib.actions.ActionOwner;
 import com.google.devtools.build.lib.actions.Artifact;
 import com.google.devtools.build.lib.actions.Executor;
+import com.google.devtools.build.lib.actions.cache.MetadataHandler;
 import com.google.devtools.build.lib.analysis.util.ActionTester;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.exec.util.TestExecutorBuilder;
 import com.google.devtools.build.lib.util.io.FileOutErr;
+import com.google.devtools.build.lib.vfs.FileStatus;
 import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.Path;
 import java.util.Collection;
@@ -91,6 +98,16 @@ public abstract class FileWriteActionTestCase extends BuildViewTestCase {
     assertTrue(output.isExecutable());
   }
 
+  protected void checkInjectsDigestOfWrittenFile() throws Exception {
+    MetadataHandler metadataHandler = mock(MetadataHandler.class);
+    action.execute(
+        new ActionExecutionContext(executor, null, metadataHandler, new FileOutErr(),
+            ImmutableMap.<String, String>of(), null));
+    verify(metadataHandler)
+        .injectDigest(eq(outputArtifact), any(FileStatus.class), aryEq(output.getMD5Digest()));
+    assertFalse(output.isWritable());
+  }
+
   private enum KeyAttributes {
     DATA,
     MAKE_EXECUTABLE
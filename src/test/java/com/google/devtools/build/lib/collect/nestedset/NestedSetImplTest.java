@@ -15,13 +15,18 @@ package com.google.devtools.build.lib.collect.nestedset;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import com.google.common.base.Predicate;
+import com.google.common.base.Predicates;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.testing.EqualsTester;
-
+import java.util.ArrayList;
+import java.util.List;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
@@ -104,6 +109,111 @@ public class NestedSetImplTest {
     }
   }
 
+  @Test
+  public void iterationMatchesToList() {
+    for (Order order : Order.values()) {
+      NestedSet<String> shared = new NestedSetBuilder<String>(order).add("c").add("d").build();
+      NestedSet<String> set =
+          new NestedSetBuilder<String>(order)
+              .add("a")
+              .addTransitive(new NestedSetBuilder<String>(order).add("b").add("c").build())
+              .addTransitive(
+                  new NestedSetBuilder<String>(order).addTransitive(shared).add("e").build())
+              .addTransitive(shared)
+              .build();
+      // The first iteration flattens the set, later ones replay the flattening.
+      assertEquals(ImmutableList.copyOf(set), set.toList());
+      assertEquals(ImmutableList.copyOf(set), set.toList());
+      assertEquals(set.toList(), ImmutableList.copyOf(set));
+    }
+  }
+
+  @Test
+  public void memoizedSize() {
+    NestedSet<String> shared = nestedSetBuilder("b", "c").build();
+    assertEquals(0, nestedSetBuilder().build().memoizedFlattenAndGetSize());
+    assertEquals(1, nestedSetBuilder("a").build().memoizedFlattenAndGetSize());
+    assertEquals(2, shared.memoizedFlattenAndGetSize());
+
+    NestedSet<String> set =
+        nestedSetBuilder("a", "b")
+            .addTransitive(shared)
+            .addTransitive(nestedSetBuilder("d").addTransitive(shared).build())
+            .build();
+    assertEquals(4, set.memoizedFlattenAndGetSize());
+    assertEquals(4, set.memoizedFlattenAndGetSize());
+    assertEquals(4, set.toList().size());
+
+    NestedSetBuilder<Integer> large = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < 1000; i++) {
+      large.addTransitive(NestedSetBuilder.<Integer>stableOrder().add(i).add(i + 1).build());
+    }
+    NestedSet<Integer> largeSet = large.build();
+    assertEquals(1001, largeSet.toList().size());
+    assertEquals(1001, largeSet.memoizedFlattenAndGetSize());
+    assertEquals(1001, largeSet.toList().size());
+  }
+
+  @Test
+  public void largeFlatteningsAreShared() {
+    NestedSetBuilder<Integer> builder = NestedSetBuilder.stableOrder();
+    for (int i = 0; i < 1000; i++) {
+      builder.addTransitive(NestedSetBuilder.<Integer>stableOrder().add(i).add(i + 1).build());
+    }
+    NestedSet<Integer> large = builder.build();
+    List<Integer> flattened = large.toList();
+    assertSame(flattened, large.toList());
+    // Sets with the same structure share the flattening.
+    assertSame(flattened, NestedSetBuilder.compileOrder().addTransitive(large).build().toList());
+
+    NestedSet<String> small =
+        nestedSetBuilder("a").addTransitive(nestedSetBuilder("b", "c").build()).build();
+    assertEquals(small.toList(), small.toList());
+    assertNotSame(small.toList(), small.toList());
+  }
+
+  @Test
+  public void depth() {
+    NestedSet<String> leaf = nestedSetBuilder("a", "b").build();
+    assertEquals(0, nestedSetBuilder().build().getDepth());
+    assertEquals(1, nestedSetBuilder("a").build().getDepth());
+    assertEquals(1, leaf.getDepth());
+    assertEquals(1, nestedSetBuilder().addTransitive(leaf).build().getDepth());
+    // One-element subsets are inlined.
+    assertEquals(
+        1, nestedSetBuilder("a").addTransitive(nestedSetBuilder("b").build()).build().getDepth());
+
+    NestedSet<String> two = nestedSetBuilder("c").addTransitive(leaf).build();
+    assertEquals(2, two.getDepth());
+    assertEquals(
+        3, nestedSetBuilder().addTransitive(leaf).addTransitive(two).build().getDepth());
+  }
+
+  @Test
+  public void anyMatchStopsEarly() {
+    NestedSet<String> shared = nestedSetBuilder("b", "c").build();
+    NestedSet<String> set =
+        nestedSetBuilder("a")
+            .addTransitive(shared)
+            .addTransitive(nestedSetBuilder("d").addTransitive(shared).build())
+            .build();
+    final List<String> tested = new ArrayList<>();
+    Predicate<String> isB =
+        new Predicate<String>() {
+          @Override
+          public boolean apply(String s) {
+            tested.add(s);
+            return s.equals("b");
+          }
+        };
+    assertTrue(set.anyMatch(isB));
+    assertFalse(tested.containsAll(set.toList()));
+
+    assertFalse(set.anyMatch(Predicates.equalTo("e")));
+    assertFalse(nestedSetBuilder().build().anyMatch(Predicates.<String>alwaysTrue()));
+    assertTrue(nestedSetBuilder("e").build().anyMatch(Predicates.equalTo("e")));
+  }
+
   /**
    * A handy wrapper that allows us to use EqualsTester to test shallowEquals and shallowHashCode.
    */
@@ -0,0 +1,256 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.exec;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.actions.ActionInput;
+import com.google.devtools.build.lib.actions.ActionInputFileCache;
+import com.google.devtools.build.lib.actions.ActionInputHelper;
+import com.google.devtools.build.lib.actions.Artifact;
+import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.protobuf.ByteString;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PipelinedActionInputPrefetcher}. */
+@RunWith(JUnit4.class)
+public class PipelinedActionInputPrefetcherTest {
+  private static final long TIMEOUT_SECONDS = 10;
+
+  private SingleBuildFileCache fileCache;
+  private List<String> fetched;
+  private CountDownLatch releaseFetches;
+
+  /** Records the fetched inputs and blocks until {@link #releaseFetches} is counted down. */
+  private final ActionInputPrefetcher blockingFetcher =
+      new ActionInputPrefetcher() {
+        @Override
+        public void prefetchFiles(Iterable<? extends ActionInput> inputs) {
+          for (ActionInput input : inputs) {
+            fetched.add(input.getExecPathString());
+          }
+          try {
+            releaseFetches.await();
+          } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      };
+
+  @Before
+  public final void setUp() throws Exception {
+    FileSystem fs = new InMemoryFileSystem();
+    for (String name : new String[] {"a", "b", "c", "d", "e"}) {
+      FileSystemUtils.writeContentAsLatin1(fs.getPath("/" + name), "0123456789");
+    }
+    fileCache = new SingleBuildFileCache("/", fs);
+    fetched = Collections.synchronizedList(new ArrayList<String>());
+    releaseFetches = new CountDownLatch(0);
+  }
+
+  private static ImmutableList<ActionInput> inputs(String... names) {
+    ImmutableList.Builder<ActionInput> result = ImmutableList.builder();
+    for (String name : names) {
+      result.add(ActionInputHelper.fromPath(name));
+    }
+    return result.build();
+  }
+
+  private static void awaitIdle(PipelinedActionInputPrefetcher prefetcher) throws Exception {
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (!prefetcher.isIdle()) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(1);
+    }
+  }
+
+  @Test
+  public void fetchesEachInputOnce() throws Exception {
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(blockingFetcher, fileCache, 2, 1024);
+    prefetcher.prefetchFiles(inputs("a", "b"));
+    prefetcher.prefetchFiles(inputs("b", "c", "a"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(fetched).containsExactly("a", "b", "c");
+    assertThat(prefetcher.getFetchCount()).isEqualTo(3);
+  }
+
+  @Test
+  public void limitsConcurrentFetches() throws Exception {
+    final AtomicInteger running = new AtomicInteger();
+    final AtomicInteger maxRunning = new AtomicInteger();
+    ActionInputPrefetcher countingFetcher =
+        new ActionInputPrefetcher() {
+          @Override
+          public void prefetchFiles(Iterable<? extends ActionInput> inputs) {
+            int now = running.incrementAndGet();
+            synchronized (maxRunning) {
+              maxRunning.set(Math.max(maxRunning.get(), now));
+            }
+            try {
+              Thread.sleep(10);
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+            running.decrementAndGet();
+          }
+        };
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(countingFetcher, fileCache, 2, 1024);
+    prefetcher.prefetchFiles(inputs("a", "b", "c", "d", "e"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(prefetcher.getFetchCount()).isEqualTo(5);
+    assertThat(maxRunning.get()).isAtMost(2);
+  }
+
+  @Test
+  public void dropsInputsThatExceedTheBudget() throws Exception {
+    releaseFetches = new CountDownLatch(1);
+    // Each input is 10 bytes, so only one fits at a time.
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(blockingFetcher, fileCache, 2, 15);
+    prefetcher.prefetchFiles(inputs("a", "b"));
+    // One input is being fetched, and the other one was dropped.
+    long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+    while (prefetcher.getCompletedTaskCount() < 1 || fetched.isEmpty()) {
+      assertThat(System.nanoTime()).isLessThan(deadline);
+      Thread.sleep(1);
+    }
+    assertThat(fetched).hasSize(1);
+    assertThat(prefetcher.getBytesInFlight()).isEqualTo(10);
+    releaseFetches.countDown();
+    awaitIdle(prefetcher);
+
+    // The dropped input can be requested again once there is room.
+    prefetcher.prefetchFiles(inputs("a", "b"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(fetched).containsExactly("a", "b");
+  }
+
+  @Test
+  public void looksUpSizesOnWorkerThreads() throws Exception {
+    final Thread caller = Thread.currentThread();
+    final AtomicInteger sizesOnCaller = new AtomicInteger();
+    ActionInputFileCache recordingCache =
+        new DelegatingFileCache(fileCache) {
+          @Override
+          public long getSizeInBytes(ActionInput input) throws IOException {
+            if (Thread.currentThread() == caller) {
+              sizesOnCaller.incrementAndGet();
+            }
+            return super.getSizeInBytes(input);
+          }
+        };
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(blockingFetcher, recordingCache, 2, 1024);
+    prefetcher.prefetchFiles(inputs("a", "b", "c"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(fetched).containsExactly("a", "b", "c");
+    assertThat(sizesOnCaller.get()).isEqualTo(0);
+  }
+
+  /** An {@link ActionInputFileCache} that forwards to another one. */
+  private static class DelegatingFileCache implements ActionInputFileCache {
+    private final ActionInputFileCache delegate;
+
+    DelegatingFileCache(ActionInputFileCache delegate) {
+      this.delegate = delegate;
+    }
+
+    @Override
+    public byte[] getDigest(ActionInput input) throws IOException {
+      return delegate.getDigest(input);
+    }
+
+    @Override
+    public boolean isFile(Artifact input) {
+      return delegate.isFile(input);
+    }
+
+    @Override
+    public long getSizeInBytes(ActionInput input) throws IOException {
+      return delegate.getSizeInBytes(input);
+    }
+
+    @Override
+    public boolean contentsAvailableLocally(ByteString digest) {
+      return delegate.contentsAvailableLocally(digest);
+    }
+
+    @Override
+    public ActionInput getInputFromDigest(ByteString digest) {
+      return delegate.getInputFromDigest(digest);
+    }
+
+    @Override
+    public Path getInputPath(ActionInput input) {
+      return delegate.getInputPath(input);
+    }
+  }
+
+  @Test
+  public void fetchesInputLargerThanTheBudgetWhenIdle() throws Exception {
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(blockingFetcher, fileCache, 1, 5);
+    prefetcher.prefetchFiles(inputs("a"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(fetched).containsExactly("a");
+  }
+
+  @Test
+  public void failedFetchesAreRetried() throws Exception {
+    final AtomicInteger attempts = new AtomicInteger();
+    ActionInputPrefetcher flakyFetcher =
+        new ActionInputPrefetcher() {
+          @Override
+          public void prefetchFiles(Iterable<? extends ActionInput> inputs) {
+            if (attempts.incrementAndGet() == 1) {
+              throw new IllegalStateException("connection reset");
+            }
+          }
+        };
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(flakyFetcher, fileCache, 1, 1024);
+    prefetcher.prefetchFiles(inputs("a"));
+    awaitIdle(prefetcher);
+    // The failed input was forgotten before its bytes were released, so it is fetched again.
+    prefetcher.prefetchFiles(inputs("a"));
+    assertThat(prefetcher.awaitTermination(TIMEOUT_SECONDS, TimeUnit.SECONDS)).isTrue();
+    assertThat(attempts.get()).isEqualTo(2);
+  }
+
+  @Test
+  public void ignoresRequestsAfterShutdown() throws Exception {
+    PipelinedActionInputPrefetcher prefetcher =
+        new PipelinedActionInputPrefetcher(blockingFetcher, fileCache, 1, 1024);
+    prefetcher.shutdown();
+    prefetcher.prefetchFiles(inputs("a"));
+    assertThat(fetched).isEmpty();
+    assertThat(prefetcher.getBytesInFlight()).isEqualTo(0);
+  }
+}
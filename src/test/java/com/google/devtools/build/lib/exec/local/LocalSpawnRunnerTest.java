@@ -28,6 +28,7 @@ import com.google.devtools.build.lib.actions.ActionInputFileCache;
 import com.google.devtools.build.lib.actions.ResourceManager;
 import com.google.devtools.build.lib.actions.ResourceSet;
 import com.google.devtools.build.lib.actions.Spawn;
+import com.google.devtools.build.lib.actions.cache.ResourceUsageHistory;
 import com.google.devtools.build.lib.exec.ActionInputPrefetcher;
 import com.google.devtools.build.lib.exec.SpawnResult;
 import com.google.devtools.build.lib.exec.SpawnRunner.ProgressStatus;
@@ -39,6 +40,7 @@ import com.google.devtools.build.lib.shell.SubprocessBuilder;
 import com.google.devtools.build.lib.util.NetUtil;
 import com.google.devtools.build.lib.util.io.FileOutErr;
 import com.google.devtools.build.lib.vfs.FileSystem;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
 import com.google.devtools.build.lib.vfs.PathFragment;
 import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
 import com.google.devtools.common.options.Options;
@@ -52,12 +54,15 @@ import java.util.logging.Filter;
 import java.util.logging.LogRecord;
 import java.util.logging.Logger;
 import java.util.regex.Pattern;
+import javax.annotation.Nullable;
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 import org.junit.runners.JUnit4;
 import org.mockito.ArgumentCaptor;
+import org.mockito.invocation.InvocationOnMock;
+import org.mockito.stubbing.Answer;
 
 /**
  * Unit tests for {@link LocalSpawnRunner}.
@@ -232,6 +237,79 @@ public class LocalSpawnRunnerTest {
     assertThat(calledLockOutputFiles).isTrue();
   }
 
+  /** Returns a subprocess factory that writes {@code stats} like the process-wrapper would. */
+  private Subprocess.Factory statsWritingFactory(
+      ArgumentCaptor<SubprocessBuilder> captor, @Nullable final String stats) throws IOException {
+    Subprocess.Factory factory = mock(Subprocess.Factory.class);
+    when(factory.create(captor.capture())).thenAnswer(new Answer<Subprocess>() {
+      @Override
+      public Subprocess answer(InvocationOnMock invocation) throws IOException {
+        if (stats != null) {
+          FileSystemUtils.writeContentAsLatin1(fs.getPath("/out/stdout.stats"), stats);
+        }
+        return new FinishedSubprocess(0);
+      }
+    });
+    return factory;
+  }
+
+  private LocalSpawnRunner newRecordingRunner(ResourceUsageHistory history) {
+    resourceManager.setResourceUsageHistory(history);
+    LocalExecutionOptions options = Options.getDefaults(LocalExecutionOptions.class);
+    return new LocalSpawnRunner(
+        logger, execCount, fs.getPath("/execroot"), ActionInputPrefetcher.NONE, options,
+        resourceManager, USE_WRAPPER);
+  }
+
+  @Test
+  public void recordsResourceUsageFromProcessWrapper() throws Exception {
+    ArgumentCaptor<SubprocessBuilder> captor = ArgumentCaptor.forClass(SubprocessBuilder.class);
+    SubprocessBuilder.setSubprocessFactory(statsWritingFactory(captor,
+        "utime_usec=1500000\nstime_usec=500000\nmaxrss_kb=204800\ninblock=0\noublock=0\n"));
+
+    ResourceUsageHistory history = ResourceUsageHistory.load(fs.getPath("/cache"));
+    LocalSpawnRunner runner = newRecordingRunner(history);
+    outErr = new FileOutErr(fs.getPath("/out/stdout"), fs.getPath("/out/stderr"));
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/out"));
+    runner.exec(SIMPLE_SPAWN, policy);
+
+    assertThat(captor.getValue().getArgv()).contains("--stats=/out/stdout.stats");
+    assertThat(fs.getPath("/out/stdout.stats").exists()).isFalse();
+    assertThat(history.size()).isEqualTo(1);
+  }
+
+  @Test
+  public void ignoresResourceUsageLeftOverFromEarlierSpawn() throws Exception {
+    ArgumentCaptor<SubprocessBuilder> captor = ArgumentCaptor.forClass(SubprocessBuilder.class);
+    SubprocessBuilder.setSubprocessFactory(statsWritingFactory(captor, null));
+
+    ResourceUsageHistory history = ResourceUsageHistory.load(fs.getPath("/cache"));
+    LocalSpawnRunner runner = newRecordingRunner(history);
+    outErr = new FileOutErr(fs.getPath("/out/stdout"), fs.getPath("/out/stderr"));
+    // Written by an earlier spawn; this one's process-wrapper writes nothing.
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/out"));
+    FileSystemUtils.writeContentAsLatin1(
+        fs.getPath("/out/stdout.stats"), "utime_usec=1\nstime_usec=1\nmaxrss_kb=1\n");
+    runner.exec(SIMPLE_SPAWN, policy);
+
+    assertThat(history.size()).isEqualTo(0);
+  }
+
+  @Test
+  public void deletesMalformedResourceUsage() throws Exception {
+    ArgumentCaptor<SubprocessBuilder> captor = ArgumentCaptor.forClass(SubprocessBuilder.class);
+    SubprocessBuilder.setSubprocessFactory(statsWritingFactory(captor, "garbage\n"));
+
+    ResourceUsageHistory history = ResourceUsageHistory.load(fs.getPath("/cache"));
+    LocalSpawnRunner runner = newRecordingRunner(history);
+    outErr = new FileOutErr(fs.getPath("/out/stdout"), fs.getPath("/out/stderr"));
+    FileSystemUtils.createDirectoryAndParents(fs.getPath("/out"));
+    runner.exec(SIMPLE_SPAWN, policy);
+
+    assertThat(fs.getPath("/out/stdout.stats").exists()).isFalse();
+    assertThat(history.size()).isEqualTo(0);
+  }
+
   @Test
   public void noProcessWrapper() throws Exception {
     Subprocess.Factory factory = mock(Subprocess.Factory.class);
@@ -0,0 +1,132 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.devtools.build.lib.graph;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Function;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Ordering;
+import java.util.BitSet;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompactDigraph}. */
+@RunWith(JUnit4.class)
+public class CompactDigraphTest {
+
+  private static final Ordering<String> ORDER = Ordering.natural();
+
+  private static Digraph<String> digraph(String... edges) {
+    Digraph<String> graph = new Digraph<>();
+    for (String edge : edges) {
+      String[] nodes = edge.split("->");
+      graph.addEdge(nodes[0], nodes[1]);
+    }
+    return graph;
+  }
+
+  private static List<String> labels(CompactDigraph<String> graph, BitSet nodes) {
+    List<String> labels = Lists.newArrayList();
+    for (int node = nodes.nextSetBit(0); node >= 0; node = nodes.nextSetBit(node + 1)) {
+      labels.add(graph.getLabel(node));
+    }
+    return labels;
+  }
+
+  @Test
+  public void testCopy() {
+    CompactDigraph<String> graph =
+        CompactDigraph.copyOf(digraph("c->a", "a->b", "c->b", "b->d"), ORDER);
+    assertThat(graph.getLabels()).containsExactly("a", "b", "c", "d").inOrder();
+    assertThat(graph.getNodeCount()).isEqualTo(4);
+    assertThat(graph.getEdgeCount()).isEqualTo(4);
+    assertThat(graph.getId("c")).isEqualTo(2);
+    assertThat(graph.getSuccessors(graph.getId("c"))).asList().containsExactly(0, 1).inOrder();
+    assertThat(graph.getPredecessors(graph.getId("b"))).asList().containsExactly(0, 2).inOrder();
+    assertThat(graph.getSuccessors(graph.getId("d"))).isEmpty();
+  }
+
+  @Test
+  public void testTopologicalOrderMatchesDigraph() {
+    Digraph<String> digraph =
+        digraph("f->c", "f->g", "d->a", "d->b", "f->e", "f->d", "a->g", "h->a");
+    CompactDigraph<String> graph = CompactDigraph.copyOf(digraph, ORDER);
+    List<String> expected =
+        Lists.transform(
+            digraph.getTopologicalOrder(ORDER),
+            new Function<Node<String>, String>() {
+              @Override
+              public String apply(Node<String> node) {
+                return node.getLabel();
+              }
+            });
+    assertThat(graph.getLabels(graph.getTopologicalOrder()))
+        .containsExactlyElementsIn(expected)
+        .inOrder();
+  }
+
+  @Test
+  public void testIsCyclic() {
+    assertThat(CompactDigraph.copyOf(digraph("a->b", "b->c", "a->c")).isCyclic()).isFalse();
+    assertThat(CompactDigraph.copyOf(digraph("a->b", "b->c", "c->a")).isCyclic()).isTrue();
+    assertThat(CompactDigraph.copyOf(digraph("a->b", "b->b")).isCyclic()).isTrue();
+  }
+
+  @Test
+  public void testStrongComponents() {
+    CompactDigraph<String> graph =
+        CompactDigraph.copyOf(digraph("a->b", "b->c", "c->b", "c->d", "d->e", "e->d"), ORDER);
+    int[] components = graph.getStrongComponents();
+    assertThat(components).asList().containsExactly(0, 1, 1, 2, 2).inOrder();
+  }
+
+  @Test
+  public void testRanks() {
+    // a -> b -> c -> d, a -> d, with a cycle between c and e.
+    CompactDigraph<String> graph =
+        CompactDigraph.copyOf(digraph("a->b", "b->c", "c->d", "a->d", "c->e", "e->c"), ORDER);
+    assertThat(graph.getMinRanks()).asList().containsExactly(0, 1, 2, 1, 2).inOrder();
+    assertThat(graph.getMaxRanks()).asList().containsExactly(0, 1, 2, 3, 2).inOrder();
+  }
+
+  @Test
+  public void testReachability() {
+    CompactDigraph<String> graph =
+        CompactDigraph.copyOf(digraph("a->b", "b->c", "d->c", "e->a"), ORDER);
+    assertThat(labels(graph, graph.getFwdReachable(graph.getId("a"))))
+        .containsExactly("a", "b", "c");
+    assertThat(labels(graph, graph.getBackReachable(graph.getId("c"))))
+        .containsExactly("a", "b", "c", "d", "e");
+    assertThat(labels(graph, graph.getFwdReachable(graph.getId("c"), graph.getId("d"))))
+        .containsExactly("c", "d");
+  }
+
+  @Test
+  public void testShortestPath() {
+    CompactDigraph<String> graph =
+        CompactDigraph.copyOf(digraph("a->b", "b->c", "c->d", "a->c", "d->a"), ORDER);
+    assertThat(graph.getLabels(graph.getShortestPath(graph.getId("a"), graph.getId("d"))))
+        .containsExactly("a", "c", "d")
+        .inOrder();
+    assertThat(graph.getLabels(graph.getShortestPath(graph.getId("b"), graph.getId("b"))))
+        .containsExactly("b");
+    CompactDigraph<String> disconnected = CompactDigraph.copyOf(digraph("a->b", "c->d"), ORDER);
+    assertThat(disconnected.getShortestPath(disconnected.getId("a"), disconnected.getId("d")))
+        .isNull();
+  }
+}
@@ -19,6 +19,7 @@ import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
+import com.google.common.collect.ImmutableList;
 import com.google.devtools.build.lib.events.Location;
 import com.google.devtools.build.lib.events.Location.LineAndColumn;
 import com.google.devtools.build.lib.testutil.TestRuleClassProvider;
@@ -141,4 +142,62 @@ public class AttributeContainerTest {
       }
     }
   }
+
+  @Test
+  public void testCompactContainerReadsOmittedDefaults() throws Exception {
+    AttributeContainer compact =
+        AttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY.apply(ruleClass);
+    // Nothing is stored for attributes that keep their defaults.
+    assertEquals(ImmutableList.of(), compact.getAttr(attribute1.getName()));
+    assertEquals(0, compact.getAttr(attribute2.getName()));
+    compact.setAttributeValue(attribute1, ImmutableList.of(), true);
+    compact.setAttributeValue(attribute2, 0, false);
+    assertEquals(ImmutableList.of(), compact.getAttr(attribute1.getName()));
+    assertEquals(0, compact.getAttr(attribute2.getName()));
+    assertTrue(compact.isAttributeValueExplicitlySpecified(attribute1));
+    assertFalse(compact.isAttributeValueExplicitlySpecified(attribute2));
+    assertNull(compact.getAttr("nomatch"));
+  }
+
+  @Test
+  public void testCompactContainerStoresOtherValues() throws Exception {
+    AttributeContainer compact =
+        AttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY.apply(ruleClass);
+    Object someValue = new Object();
+    compact.setAttributeValue(attribute2, 42, false);
+    compact.setAttributeValue(attribute1, someValue, true);
+    assertSame(someValue, compact.getAttr(attribute1.getName()));
+    assertEquals(42, compact.getAttr(attribute2.getName()));
+    // Null isn't a default, so it's stored too.
+    compact.setAttributeValue(attribute2, null, false);
+    assertNull(compact.getAttr(attribute2.getName()));
+    // Going back to the default drops the stored value.
+    compact.setAttributeValue(attribute2, 0, false);
+    assertEquals(0, compact.getAttr(attribute2.getName()));
+    assertSame(someValue, compact.getAttr(attribute1.getName()));
+  }
+
+  @Test
+  public void testCompactContainerMatchesDefaultContainer() throws Exception {
+    AttributeContainer compact =
+        AttributeContainer.COMPACT_ATTRIBUTE_CONTAINER_FACTORY.apply(ruleClass);
+    Random rng = new Random();
+    int n = ruleClass.getAttributeCount();
+    Object someValue = new Object();
+    for (int i = 0; i < 3 * n; ++i) {
+      Attribute attribute = ruleClass.getAttribute(rng.nextInt(n));
+      Object value = rng.nextBoolean() ? someValue : attribute.getDeclaredDefaultValue();
+      if (value instanceof Attribute.LateBoundDefault<?>) {
+        continue;
+      }
+      container.setAttributeValue(attribute, value, false);
+      compact.setAttributeValue(attribute, value, false);
+    }
+    for (int i = 0; i < n; ++i) {
+      String name = ruleClass.getAttribute(i).getName();
+      if (container.getAttr(name) != null) {
+        assertSame(container.getAttr(name), compact.getAttr(name));
+      }
+    }
+  }
 }
@@ -0,0 +1,226 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.packages;
+
+import static com.google.common.truth.Truth.assertThat;
+import static com.google.devtools.build.lib.packages.Attribute.attr;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.Location;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.packages.RuleClass.Builder.RuleClassType;
+import com.google.devtools.build.lib.packages.RuleFactory.BuildLangTypedAttributeValuesMap;
+import com.google.devtools.build.lib.packages.util.PackageFactoryApparatus;
+import com.google.devtools.build.lib.syntax.BaseFunction;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.Mutability;
+import com.google.devtools.build.lib.syntax.Type;
+import com.google.devtools.build.lib.testutil.Scratch;
+import com.google.devtools.build.lib.vfs.Path;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.NotSerializableException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link PackageSerializer} and {@link PackageDeserializer}.
+ */
+@RunWith(JUnit4.class)
+public class PackageSerializerTest {
+
+  private Scratch scratch = new Scratch("/workspace");
+  private EventCollectionApparatus events = new EventCollectionApparatus();
+  private PackageFactoryApparatus packages = new PackageFactoryApparatus(events.reporter());
+
+  private static final PackageDeserializer.SkylarkRuleClassResolver NO_SKYLARK_RULE_CLASSES =
+      (name, definitionEnvironmentHashCode) -> null;
+
+  private Package deserialize(Package pkg, byte[] bytes) throws Exception {
+    return deserialize(pkg, bytes, NO_SKYLARK_RULE_CLASSES);
+  }
+
+  private Package deserialize(
+      Package pkg, byte[] bytes, PackageDeserializer.SkylarkRuleClassResolver skylarkRuleClasses)
+      throws Exception {
+    Package.Builder builder =
+        packages
+            .factory()
+            .deserializePackage(
+                pkg.getWorkspaceName(),
+                pkg.getPackageIdentifier(),
+                pkg.getFilename(),
+                bytes,
+                skylarkRuleClasses);
+    return builder.build();
+  }
+
+  /** Returns a Skylark rule class, defined in a .bzl file with the given content hash code. */
+  private static RuleClass skylarkRuleClass(String name, String contentHashCode) {
+    Environment definitionEnvironment =
+        Environment.builder(Mutability.create("test"))
+            .setFileContentHashCode(contentHashCode)
+            .build();
+    return new RuleClass.Builder(name, RuleClassType.NORMAL, /*skylark=*/ true)
+        .setConfiguredTargetFunction(new BaseFunction("impl") {})
+        .setRuleDefinitionEnvironment(definitionEnvironment)
+        .add(attr("tags", Type.STRING_LIST))
+        .add(attr("srcs", BuildType.LABEL_LIST).legacyAllowAnyFileType())
+        .build();
+  }
+
+  /** Resolves the given Skylark rule classes by name and definition environment hash code. */
+  private static PackageDeserializer.SkylarkRuleClassResolver resolver(RuleClass... ruleClasses) {
+    ImmutableMap.Builder<String, RuleClass> builder = ImmutableMap.builder();
+    for (RuleClass ruleClass : ruleClasses) {
+      builder.put(
+          ruleClass.getName() + " " + ruleClass.getRuleDefinitionEnvironmentHashCode(), ruleClass);
+    }
+    Map<String, RuleClass> byNameAndHashCode = builder.build();
+    return (name, definitionEnvironmentHashCode) ->
+        byNameAndHashCode.get(name + " " + definitionEnvironmentHashCode);
+  }
+
+  /** Returns a package holding a rule of the given class, as if a BUILD file had loaded it. */
+  private Package createPackageWithRule(RuleClass ruleClass) throws Exception {
+    Path buildFile = scratch.file("pkg/BUILD");
+    Package.Builder pkgBuilder =
+        packages
+            .factory()
+            .newPackageBuilder(PackageIdentifier.createInMainRepo("pkg"), "TESTING")
+            .setFilename(buildFile)
+            .setMakeEnv(new MakeEnvironment.Builder());
+    RuleFactory.createAndAddRule(
+        pkgBuilder,
+        ruleClass,
+        new BuildLangTypedAttributeValuesMap(
+            ImmutableMap.<String, Object>of("name", "lib", "srcs", ImmutableList.of("a.cc"))),
+        events.reporter(),
+        /*ast=*/ null,
+        Location.fromFile(buildFile),
+        /*env=*/ null,
+        new AttributeContainer(ruleClass));
+    return pkgBuilder.build();
+  }
+
+  private static String dump(Package pkg) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pkg.dump(new PrintStream(out));
+    return out.toString();
+  }
+
+  @Test
+  public void testRoundTripPreservesPackage() throws Exception {
+    scratch.file("pkg/a.cc");
+    scratch.file("pkg/b.cc");
+    Path buildFile =
+        scratch.file(
+            "pkg/BUILD",
+            "package(default_visibility = ['//visibility:public'], features = ['f'])",
+            "licenses(['notice'])",
+            "exports_files(['data.txt'], visibility = ['//other:__pkg__'])",
+            "print('loading pkg')",
+            "cc_library(",
+            "    name = 'lib',",
+            "    srcs = glob(['*.cc'], exclude = ['c.cc']),",
+            "    copts = select({",
+            "        ':opt': ['-O2'],",
+            "        '//conditions:default': [],",
+            "    }),",
+            "    tags = ['manual'],",
+            ")",
+            "config_setting(name = 'opt', values = {'compilation_mode': 'opt'})",
+            "genrule(name = 'gen', srcs = [':lib'], outs = ['gen.h'], cmd = 'touch $@')",
+            "package_group(name = 'friends', packages = ['//other/...'], includes = [':more'])",
+            "package_group(name = 'more', packages = ['//third'])",
+            "environment(name = 'e1')",
+            "environment(name = 'e2')",
+            "environment_group(name = 'envs', environments = [':e1', ':e2'], defaults = [':e1'])");
+    Package pkg = packages.createPackage("pkg", buildFile);
+    assertThat(pkg.containsErrors()).isFalse();
+
+    byte[] bytes = PackageSerializer.serialize(pkg);
+    Package copy = deserialize(pkg, bytes);
+
+    assertThat(dump(copy)).isEqualTo(dump(pkg));
+    assertThat(copy.getDefaultVisibility()).isEqualTo(pkg.getDefaultVisibility());
+    assertThat(copy.getFeatures()).isEqualTo(pkg.getFeatures());
+    assertThat(copy.getEvents().toString()).isEqualTo(pkg.getEvents().toString());
+    assertThat(copy.getRule("lib").getLocation()).isEqualTo(pkg.getRule("lib").getLocation());
+    assertThat(copy.getTarget("data.txt").getVisibility().getDeclaredLabels())
+        .isEqualTo(pkg.getTarget("data.txt").getVisibility().getDeclaredLabels());
+    // Serializing the copy gives the same bytes back.
+    assertThat(PackageSerializer.serialize(copy)).isEqualTo(bytes);
+  }
+
+  @Test
+  public void testSkylarkRuleClassesAreResolvedByDefinitionEnvironment() throws Exception {
+    RuleClass ruleClass = skylarkRuleClass("my_rule", "bzl");
+    Package pkg = createPackageWithRule(ruleClass);
+
+    byte[] bytes = PackageSerializer.serialize(pkg);
+    RuleClass otherRuleClass = skylarkRuleClass("my_rule", "other bzl");
+    Package copy = deserialize(pkg, bytes, resolver(otherRuleClass, ruleClass));
+
+    assertThat(dump(copy)).isEqualTo(dump(pkg));
+    assertThat(copy.getRule("lib").getRuleClassObject()).isSameAs(ruleClass);
+    assertThat(PackageSerializer.serialize(copy)).isEqualTo(bytes);
+  }
+
+  @Test
+  public void testSkylarkRuleClassFromAnotherDefinitionEnvironmentIsRejected() throws Exception {
+    Package pkg = createPackageWithRule(skylarkRuleClass("my_rule", "bzl"));
+    byte[] bytes = PackageSerializer.serialize(pkg);
+    try {
+      deserialize(pkg, bytes, resolver(skylarkRuleClass("my_rule", "changed bzl")));
+      fail();
+    } catch (IOException expected) {
+      assertThat(expected).hasMessageThat().contains("unknown rule class my_rule");
+    }
+  }
+
+  @Test
+  public void testPackageWithErrorsIsNotSerializable() throws Exception {
+    events.setFailFast(false);
+    Path buildFile = scratch.file("pkg/BUILD", "cc_library(name = 'lib', srcs = 3)");
+    Package pkg = packages.createPackage("pkg", buildFile);
+    assertThat(pkg.containsErrors()).isTrue();
+    try {
+      PackageSerializer.serialize(pkg);
+      fail();
+    } catch (NotSerializableException expected) {
+      assertThat(expected).hasMessageThat().contains("contains errors");
+    }
+  }
+
+  @Test
+  public void testTruncatedInputIsRejected() throws Exception {
+    Path buildFile = scratch.file("pkg/BUILD", "cc_library(name = 'lib')");
+    Package pkg = packages.createPackage("pkg", buildFile);
+    byte[] bytes = PackageSerializer.serialize(pkg);
+    try {
+      deserialize(pkg, Arrays.copyOf(bytes, bytes.length - 1));
+      fail();
+    } catch (IOException expected) {
+      // Expected.
+    }
+  }
+}
@@ -774,6 +774,26 @@ public class RuleClassTest extends PackageLoadingTestCase {
                  attributes.get("my-sorted-stringlist-attr", Type.STRING_LIST));
   }
 
+  @Test
+  public void testListAttributeValuesAreShared() throws Exception {
+    RuleClass ruleClassA = createRuleClassA();
+
+    Map<String, Object> attributeValues = new LinkedHashMap<>();
+    attributeValues.put("my-string-attr", "");
+    attributeValues.put("my-label-attr", "//project");
+    attributeValues.put("my-string-attr2", "");
+    attributeValues.put("my-labellist-attr", Collections.emptyList());
+    attributeValues.put("my-stringlist-attr", Arrays.asList("foo", "bar"));
+    Rule rule1 = createRule(ruleClassA, "testrule1", attributeValues, testRuleLocation);
+
+    attributeValues.put("my-stringlist-attr", Arrays.asList("foo", "bar"));
+    Rule rule2 = createRule(ruleClassA, "testrule2", attributeValues, testRuleLocation);
+
+    assertSame(
+        RawAttributeMapper.of(rule1).get("my-stringlist-attr", Type.STRING_LIST),
+        RawAttributeMapper.of(rule2).get("my-stringlist-attr", Type.STRING_LIST));
+  }
+
   private Rule createRule(
       RuleClass ruleClass, String name, Map<String, Object> attributeValues, Location location)
       throws LabelSyntaxException, InterruptedException, CannotPrecomputeDefaultsException {
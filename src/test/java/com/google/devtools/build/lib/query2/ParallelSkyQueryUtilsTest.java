@@ -0,0 +1,152 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryUtil;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.AggregateAllOutputFormatterCallback;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link ParallelSkyQueryUtils}, which check that the parallel implementations of the
+ * query functions used by {@link SkyQueryEnvironment} agree with the sequential ones used by
+ * {@link BlazeQueryEnvironment}.
+ */
+@RunWith(JUnit4.class)
+public class ParallelSkyQueryUtilsTest extends PackageLoadingTestCase {
+
+  @Before
+  public final void writeBuildFiles() throws Exception {
+    // The path //p:a -> //q:b -> //p:c -> //q:d alternates between packages, so grouping its
+    // targets by package changes their order. //r:e is a second path from //p:a to //p:c.
+    scratch.file(
+        "p/BUILD",
+        "sh_library(name = 'a', deps = ['//q:b', '//r:e'])",
+        "sh_library(name = 'c', deps = ['//q:d'])");
+    scratch.file(
+        "q/BUILD",
+        "sh_library(name = 'b', deps = ['//p:c'])",
+        "sh_library(name = 'd')");
+    scratch.file(
+        "r/BUILD",
+        "sh_library(name = 'e', deps = ['//p:c'])",
+        "sh_library(name = 'unrelated')");
+  }
+
+  private SkyQueryEnvironment newSkyQueryEnvironment() {
+    return new SkyQueryEnvironment(
+        /*keepGoing=*/ false,
+        /*loadingPhaseThreads=*/ 1,
+        reporter,
+        ImmutableSet.<Setting>of(),
+        ImmutableList.<QueryFunction>of(),
+        /*parserPrefix=*/ "",
+        skyframeExecutor,
+        ImmutableList.of("//..."),
+        getPackageManager().getPackagePath(),
+        /*blockUniverseEvaluationErrors=*/ false);
+  }
+
+  private BlazeQueryEnvironment newBlazeQueryEnvironment() {
+    return new BlazeQueryEnvironment(
+        getPackageManager().newTransitiveLoader(),
+        getPackageManager(),
+        getPackageManager().newTargetPatternEvaluator(),
+        /*keepGoing=*/ false,
+        /*strictScope=*/ true,
+        /*loadingPhaseThreads=*/ 1,
+        Predicates.<Label>alwaysTrue(),
+        reporter,
+        ImmutableSet.<Setting>of(),
+        ImmutableList.<QueryFunction>of());
+  }
+
+  private static List<String> evaluate(AbstractBlazeQueryEnvironment<Target> env, String query)
+      throws Exception {
+    AggregateAllOutputFormatterCallback<Target> callback =
+        QueryUtil.newOrderedAggregateAllOutputFormatterCallback();
+    assertThat(env.evaluateQuery(query, callback).getSuccess()).isTrue();
+    List<String> labels = new ArrayList<>();
+    for (Target target : callback.getResult()) {
+      labels.add(target.getLabel().toString());
+    }
+    return labels;
+  }
+
+  private List<String> evaluateParallel(String query) throws Exception {
+    return evaluate(newSkyQueryEnvironment(), query);
+  }
+
+  private List<String> evaluateSequential(String query) throws Exception {
+    return evaluate(newBlazeQueryEnvironment(), query);
+  }
+
+  private void assertSameTargets(String query) throws Exception {
+    assertThat(evaluateParallel(query)).containsExactlyElementsIn(evaluateSequential(query));
+  }
+
+  @Test
+  public void depsMatchesSequential() throws Exception {
+    assertThat(evaluateParallel("deps(//p:a)"))
+        .containsAllOf("//p:a", "//q:b", "//r:e", "//p:c", "//q:d");
+    assertSameTargets("deps(//p:a)");
+  }
+
+  @Test
+  public void boundedDepsMatchesSequential() throws Exception {
+    assertThat(evaluateParallel("deps(//p:a, 1)")).doesNotContain("//p:c");
+    assertSameTargets("deps(//p:a, 0)");
+    assertSameTargets("deps(//p:a, 1)");
+    assertSameTargets("deps(//p:a, 2)");
+  }
+
+  @Test
+  public void somePathIsInPathOrder() throws Exception {
+    List<String> expected = ImmutableList.of("//q:b", "//p:c", "//q:d");
+    assertThat(evaluateSequential("somepath(//q:b, //q:d)")).containsExactlyElementsIn(expected)
+        .inOrder();
+    assertThat(evaluateParallel("somepath(//q:b, //q:d)")).containsExactlyElementsIn(expected)
+        .inOrder();
+  }
+
+  @Test
+  public void somePathWithoutPathIsEmpty() throws Exception {
+    assertThat(evaluateSequential("somepath(//q:d, //p:a)")).isEmpty();
+    assertThat(evaluateParallel("somepath(//q:d, //p:a)")).isEmpty();
+    assertThat(evaluateParallel("somepath(//p:a, //r:unrelated)")).isEmpty();
+  }
+
+  @Test
+  public void allPathsMatchesSequential() throws Exception {
+    assertThat(evaluateParallel("allpaths(//p:a, //p:c)"))
+        .containsExactly("//p:a", "//q:b", "//r:e", "//p:c");
+    assertSameTargets("allpaths(//p:a, //p:c)");
+    assertSameTargets("allpaths(//p:a, //q:d)");
+    assertSameTargets("allpaths(//q:d, //p:a)");
+  }
+}
@@ -0,0 +1,164 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.events.Event;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.QueryFunction;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.lib.query2.engine.QueryExpression;
+import com.google.devtools.build.lib.query2.engine.ThreadSafeOutputFormatterCallback;
+import com.google.devtools.build.skyframe.LegacySkyKey;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link QueryResultCache}. */
+@RunWith(JUnit4.class)
+public class QueryResultCacheTest {
+
+  private static final SkyKey UNIVERSE =
+      LegacySkyKey.create(SkyFunctionName.create("UNIVERSE"), "//...");
+  private static final Set<Setting> SETTINGS = ImmutableSet.of(Setting.QUERY_RESULT_CACHE);
+
+  private final WalkableGraphFactory graphFactory = mock(WalkableGraphFactory.class);
+  private QueryEnvironment<?> env;
+
+  @Before
+  public final void createEnvironment() {
+    env = mock(QueryEnvironment.class);
+    when(env.getFunctions()).thenReturn(ImmutableList.<QueryFunction>of());
+  }
+
+  private QueryResultCache.Key key(String query) throws Exception {
+    return key(query, SETTINGS);
+  }
+
+  private QueryResultCache.Key key(String query, Set<Setting> settings) throws Exception {
+    return new QueryResultCache.Key(UNIVERSE, settings, QueryExpression.parse(query, env));
+  }
+
+  private static Target target(String label) throws Exception {
+    Target target = mock(Target.class);
+    when(target.getLabel()).thenReturn(Label.parseAbsolute(label));
+    return target;
+  }
+
+  /** Evaluates a fake query that outputs the given targets, and caches its result. */
+  private static void evaluateAndPut(
+      QueryResultCache cache,
+      QueryResultCache.Key key,
+      ImmutableList<Event> warnings,
+      String... labels)
+      throws Exception {
+    List<Target> output = new ArrayList<>();
+    QueryResultCache.RecordingCallback callback = cache.record(collecting(output));
+    callback.start();
+    for (String label : labels) {
+      callback.process(ImmutableList.of(target(label)));
+    }
+    callback.close(/*failFast=*/ false);
+    assertThat(output).hasSize(labels.length);
+    cache.put(key, callback, warnings);
+  }
+
+  private static ThreadSafeOutputFormatterCallback<Target> collecting(final List<Target> output) {
+    return new ThreadSafeOutputFormatterCallback<Target>() {
+      @Override
+      public void processOutput(Iterable<Target> partialResult) {
+        for (Target target : partialResult) {
+          output.add(target);
+        }
+      }
+    };
+  }
+
+  @Test
+  public void hitReturnsLabelsInOrderAndWarnings() throws Exception {
+    QueryResultCache cache = QueryResultCache.forGraphFactory(graphFactory);
+    ImmutableList<Event> warnings = ImmutableList.of(Event.warn("careful"));
+    evaluateAndPut(cache, key("//b + //a"), warnings, "//b:b", "//a:a");
+
+    QueryResultCache.Result result = cache.get(key("//b + //a"));
+    assertThat(result.getLabels())
+        .containsExactly(Label.parseAbsolute("//b:b"), Label.parseAbsolute("//a:a"))
+        .inOrder();
+    assertThat(result.getWarnings()).isEqualTo(warnings);
+    // Equivalent expressions share their result.
+    assertThat(cache.get(key("//a union //b"))).isSameAs(result);
+    assertThat(QueryResultCache.forGraphFactory(graphFactory).get(key("//a + //b")))
+        .isSameAs(result);
+  }
+
+  @Test
+  public void missForOtherQueriesAndSettings() throws Exception {
+    QueryResultCache cache = QueryResultCache.forGraphFactory(graphFactory);
+    evaluateAndPut(cache, key("//a - //b"), ImmutableList.<Event>of(), "//a:a");
+
+    assertThat(cache.get(key("//b - //a"))).isNull();
+    assertThat(cache.get(key("//a"))).isNull();
+    Set<Setting> otherSettings = ImmutableSet.of(Setting.QUERY_RESULT_CACHE, Setting.NO_HOST_DEPS);
+    assertThat(cache.get(key("//a - //b", otherSettings))).isNull();
+    WalkableGraphFactory otherGraphFactory = mock(WalkableGraphFactory.class);
+    assertThat(QueryResultCache.forGraphFactory(otherGraphFactory).get(key("//a - //b"))).isNull();
+  }
+
+  @Test
+  public void cacheIsDroppedWhenUniverseIsOutOfDate() throws Exception {
+    evaluateAndPut(
+        QueryResultCache.forGraphFactory(graphFactory),
+        key("//a"),
+        ImmutableList.<Event>of(),
+        "//a:a");
+
+    when(graphFactory.isUpToDate(UNIVERSE)).thenReturn(true);
+    assertThat(SkyQueryEnvironment.checkUpToDate(graphFactory, UNIVERSE)).isTrue();
+    assertThat(QueryResultCache.forGraphFactory(graphFactory).get(key("//a"))).isNotNull();
+
+    when(graphFactory.isUpToDate(UNIVERSE)).thenReturn(false);
+    assertThat(SkyQueryEnvironment.checkUpToDate(graphFactory, UNIVERSE)).isFalse();
+    assertThat(QueryResultCache.forGraphFactory(graphFactory).get(key("//a"))).isNull();
+  }
+
+  @Test
+  public void warningRecorderOnlyRecordsWarningsWhileRecording() {
+    StoredEventHandler delegate = new StoredEventHandler();
+    QueryResultCache.WarningRecorder recorder = new QueryResultCache.WarningRecorder(delegate);
+    recorder.handle(Event.warn("before"));
+    recorder.startRecording();
+    recorder.handle(Event.warn("during"));
+    recorder.handle(Event.info("info"));
+    ImmutableList<Event> recorded = recorder.stopRecording();
+    recorder.handle(Event.warn("after"));
+
+    assertThat(recorded).containsExactly(Event.warn("during"));
+    assertThat(delegate.getEvents()).hasSize(4);
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.devtools.build.lib.query2.engine.QueryEnvironment.Setting;
+import com.google.devtools.build.skyframe.LegacySkyKey;
+import com.google.devtools.build.skyframe.SkyFunctionName;
+import com.google.devtools.build.skyframe.SkyKey;
+import com.google.devtools.build.skyframe.WalkableGraph.WalkableGraphFactory;
+import java.util.Map;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ReverseDepIndex}. */
+@RunWith(JUnit4.class)
+public class ReverseDepIndexTest {
+
+  private static final SkyFunctionName FUNCTION = SkyFunctionName.create("NODE");
+  private static final SkyKey UNIVERSE = key("universe");
+  private static final ImmutableSet<Setting> SETTINGS = ImmutableSet.of(Setting.NO_HOST_DEPS);
+
+  private static SkyKey key(String name) {
+    return LegacySkyKey.create(FUNCTION, name);
+  }
+
+  @Test
+  public void reverseDepsAreTheInvertedEdges() {
+    ReverseDepIndex.Builder builder = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS);
+    builder.addEdge(key("a"), key("b"));
+    builder.addEdge(key("a"), key("c"));
+    builder.addEdge(key("b"), key("c"));
+    assertThat(builder.addNode(key("d"))).isTrue();
+    assertThat(builder.addNode(key("a"))).isFalse();
+    ReverseDepIndex index = builder.build();
+
+    assertThat(index.size()).isEqualTo(4);
+    Map<SkyKey, Iterable<SkyKey>> rdeps =
+        index.getReverseDeps(ImmutableList.of(key("a"), key("b"), key("c"), key("d")));
+    assertThat(rdeps.get(key("a"))).isEmpty();
+    assertThat(rdeps.get(key("b"))).containsExactly(key("a"));
+    assertThat(rdeps.get(key("c"))).containsExactly(key("a"), key("b"));
+    assertThat(rdeps.get(key("d"))).isEmpty();
+  }
+
+  @Test
+  public void keysOutsideTheIndexAreLeftOut() {
+    ReverseDepIndex.Builder builder = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS);
+    builder.addEdge(key("a"), key("b"));
+    ReverseDepIndex index = builder.build();
+
+    assertThat(index.getReverseDeps(ImmutableList.of(key("b"), key("x"))).keySet())
+        .containsExactly(key("b"));
+  }
+
+  @Test
+  public void duplicateEdgesAreStoredOnce() {
+    ReverseDepIndex.Builder builder = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS);
+    builder.addEdge(key("a"), key("c"));
+    builder.addEdge(key("b"), key("c"));
+    builder.addEdge(key("a"), key("c"));
+    builder.addEdge(key("b"), key("d"));
+    builder.addEdge(key("b"), key("d"));
+    ReverseDepIndex index = builder.build();
+
+    Map<SkyKey, Iterable<SkyKey>> rdeps =
+        index.getReverseDeps(ImmutableList.of(key("c"), key("d")));
+    assertThat(rdeps.get(key("c"))).containsExactly(key("a"), key("b"));
+    assertThat(rdeps.get(key("d"))).containsExactly(key("b"));
+  }
+
+  @Test
+  public void manyNodes() {
+    // Enough nodes to grow the table of node numbers a few times.
+    ReverseDepIndex.Builder builder = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS);
+    for (int i = 1; i < 10000; i++) {
+      builder.addEdge(key("n" + i), key("n" + (i / 2)));
+    }
+    ReverseDepIndex index = builder.build();
+
+    assertThat(index.size()).isEqualTo(10000);
+    for (int i = 1; i < 5000; i++) {
+      assertThat(index.getReverseDeps(ImmutableList.of(key("n" + i))).get(key("n" + i)))
+          .containsExactly(key("n" + (2 * i)), key("n" + (2 * i + 1)));
+    }
+  }
+
+  @Test
+  public void isForItsUniverseAndSettings() {
+    ReverseDepIndex index = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS).build();
+    assertThat(index.isFor(UNIVERSE, SETTINGS)).isTrue();
+    assertThat(index.isFor(key("other"), SETTINGS)).isFalse();
+    assertThat(index.isFor(UNIVERSE, ImmutableSet.<Setting>of())).isFalse();
+  }
+
+  @Test
+  public void indexIsDroppedWhenUniverseIsOutOfDate() {
+    WalkableGraphFactory graphFactory = mock(WalkableGraphFactory.class);
+    ReverseDepIndex index = new ReverseDepIndex.Builder(UNIVERSE, SETTINGS).build();
+    ReverseDepIndex.cache(graphFactory, index);
+    assertThat(ReverseDepIndex.getCached(graphFactory, UNIVERSE, SETTINGS)).isSameAs(index);
+    assertThat(ReverseDepIndex.getCached(graphFactory, key("other"), SETTINGS)).isNull();
+
+    when(graphFactory.isUpToDate(UNIVERSE)).thenReturn(true);
+    assertThat(SkyQueryEnvironment.checkUpToDate(graphFactory, UNIVERSE)).isTrue();
+    assertThat(ReverseDepIndex.getCached(graphFactory, UNIVERSE, SETTINGS)).isSameAs(index);
+
+    when(graphFactory.isUpToDate(UNIVERSE)).thenReturn(false);
+    assertThat(SkyQueryEnvironment.checkUpToDate(graphFactory, UNIVERSE)).isFalse();
+    assertThat(ReverseDepIndex.getCached(graphFactory, UNIVERSE, SETTINGS)).isNull();
+  }
+}
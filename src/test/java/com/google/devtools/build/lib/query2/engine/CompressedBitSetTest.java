@@ -0,0 +1,191 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PrimitiveIterator;
+import java.util.Random;
+import java.util.SortedSet;
+import java.util.TreeSet;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link CompressedBitSet}. */
+@RunWith(JUnit4.class)
+public class CompressedBitSetTest {
+
+  /** The number of ints in a chunk above which it's stored as a bitmap. */
+  private static final int MAX_ARRAY_SIZE = 4096;
+
+  private static CompressedBitSet of(Iterable<Integer> values) {
+    CompressedBitSet set = new CompressedBitSet();
+    for (int value : values) {
+      set.add(value);
+    }
+    return set;
+  }
+
+  private static List<Integer> toList(CompressedBitSet set) {
+    List<Integer> values = new ArrayList<>();
+    for (PrimitiveIterator.OfInt it = set.iterator(); it.hasNext(); ) {
+      values.add(it.nextInt());
+    }
+    return values;
+  }
+
+  /** Returns {@code count} ints spread over the chunk with the given upper 16 bits. */
+  private static SortedSet<Integer> chunk(int key, int count, int seed) {
+    Random random = new Random(seed);
+    SortedSet<Integer> values = new TreeSet<>();
+    while (values.size() < count) {
+      values.add((key << 16) | random.nextInt(1 << 16));
+    }
+    return values;
+  }
+
+  private static void assertContainsExactly(CompressedBitSet set, SortedSet<Integer> expected) {
+    assertThat(toList(set)).containsExactlyElementsIn(expected).inOrder();
+    assertThat(set.size()).isEqualTo(expected.size());
+    assertThat(set.isEmpty()).isEqualTo(expected.isEmpty());
+    for (int value : expected) {
+      assertThat(set.contains(value)).isTrue();
+    }
+  }
+
+  @Test
+  public void addAcrossArrayToBitmapSwitch() {
+    SortedSet<Integer> expected = new TreeSet<>();
+    CompressedBitSet set = new CompressedBitSet();
+    for (int value : chunk(1, MAX_ARRAY_SIZE + 2, 0)) {
+      assertThat(set.add(value)).isTrue();
+      assertThat(set.add(value)).isFalse();
+      expected.add(value);
+      if (expected.size() >= MAX_ARRAY_SIZE - 1) {
+        assertContainsExactly(set, expected);
+      }
+    }
+    assertThat(set.contains(0)).isFalse();
+    assertThat(set.contains(2 << 16)).isFalse();
+    assertThat(set.contains(-1)).isFalse();
+  }
+
+  @Test
+  public void iteratesInIncreasingOrderAcrossChunks() {
+    CompressedBitSet set = new CompressedBitSet();
+    // Added out of order, with bitmap chunks between array chunks.
+    SortedSet<Integer> expected = new TreeSet<>();
+    for (int key : new int[] {5, 0, 3, 1, 4}) {
+      SortedSet<Integer> values = chunk(key, key % 2 == 0 ? 10 : MAX_ARRAY_SIZE + 100, key);
+      expected.addAll(values);
+      for (int value : ImmutableList.copyOf(values).reverse()) {
+        set.add(value);
+      }
+    }
+    assertContainsExactly(set, expected);
+    assertThat(set.toString()).startsWith("{" + expected.first() + ", ");
+  }
+
+  @Test
+  public void sixteenBitBoundaries() {
+    ImmutableList<Integer> values =
+        ImmutableList.of(
+            0, 65535, 65536, 65537, 131071, 131072, Integer.MAX_VALUE - 1, Integer.MAX_VALUE);
+    CompressedBitSet set = new CompressedBitSet();
+    for (int value : values.reverse()) {
+      set.add(value);
+    }
+    assertContainsExactly(set, new TreeSet<>(values));
+    assertThat(set.contains(65538)).isFalse();
+    assertThat(set.contains(131073)).isFalse();
+
+    ImmutableList<Integer> otherValues = ImmutableList.of(65535, 65536, 131072, Integer.MAX_VALUE);
+    CompressedBitSet and = of(values);
+    and.and(of(otherValues));
+    assertContainsExactly(and, new TreeSet<>(otherValues));
+    CompressedBitSet andNot = of(values);
+    andNot.andNot(of(otherValues));
+    assertContainsExactly(
+        andNot, new TreeSet<>(ImmutableList.of(0, 65537, 131071, Integer.MAX_VALUE - 1)));
+  }
+
+  @Test
+  public void emptySet() {
+    CompressedBitSet empty = new CompressedBitSet();
+    assertContainsExactly(empty, new TreeSet<Integer>());
+    assertThat(empty.toString()).isEqualTo("{}");
+
+    CompressedBitSet set = of(chunk(0, 10, 0));
+    set.andNot(of(chunk(0, 10, 0)));
+    assertContainsExactly(set, new TreeSet<Integer>());
+    set.or(empty);
+    assertContainsExactly(set, new TreeSet<Integer>());
+  }
+
+  /**
+   * Checks the set operations between chunks of all the combinations of sizes around the switch
+   * from arrays to bitmaps, against {@link TreeSet}s.
+   */
+  @Test
+  public void operationsAcrossArrayToBitmapSwitch() {
+    int[] sizes = {
+      0, 1, 100, MAX_ARRAY_SIZE - 1, MAX_ARRAY_SIZE, MAX_ARRAY_SIZE + 1, 3 * MAX_ARRAY_SIZE
+    };
+    int seed = 0;
+    for (int leftSize : sizes) {
+      for (int rightSize : sizes) {
+        // The right set shares chunk 1 with the left set, and has chunks before and after it.
+        SortedSet<Integer> shared = chunk(1, leftSize, seed++);
+        SortedSet<Integer> left = new TreeSet<>(shared);
+        left.addAll(chunk(3, leftSize / 2, seed++));
+        SortedSet<Integer> right = new TreeSet<>(chunk(1, rightSize, seed++));
+        right.addAll(chunk(0, rightSize / 2, seed++));
+        right.addAll(chunk(2, rightSize, seed++));
+        // Enough overlap that intersections cross the switch too.
+        Iterables.addAll(right, Iterables.limit(shared, leftSize / 2));
+
+        CompressedBitSet or = of(left);
+        or.or(of(right));
+        assertContainsExactly(or, new TreeSet<>(Sets.union(left, right)));
+
+        CompressedBitSet and = of(left);
+        and.and(of(right));
+        assertContainsExactly(and, new TreeSet<>(Sets.intersection(left, right)));
+
+        CompressedBitSet andNot = of(left);
+        andNot.andNot(of(right));
+        assertContainsExactly(andNot, new TreeSet<>(Sets.difference(left, right)));
+      }
+    }
+  }
+
+  @Test
+  public void operationsDontChangeTheirArgument() {
+    SortedSet<Integer> values = chunk(0, MAX_ARRAY_SIZE + 1, 0);
+    CompressedBitSet other = of(values);
+    CompressedBitSet set = of(chunk(0, 10, 1));
+    set.or(other);
+    set.add(values.first() + 1);
+    set.andNot(other);
+    set.or(other);
+    set.and(of(chunk(0, 10, 1)));
+    assertContainsExactly(other, values);
+  }
+}
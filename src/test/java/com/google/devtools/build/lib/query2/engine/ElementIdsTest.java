@@ -0,0 +1,101 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ElementIds}. */
+@RunWith(JUnit4.class)
+public class ElementIdsTest {
+
+  /** Keys strings by their lowercase form, so that elements can differ but share an id. */
+  private static final KeyExtractor<String, String> LOWERCASE =
+      new KeyExtractor<String, String>() {
+        @Override
+        public String extractKey(String element) {
+          return element.toLowerCase();
+        }
+      };
+
+  @Test
+  public void idsAreDenseAndStable() {
+    ElementIds<String> ids = new ElementIds<>(LOWERCASE);
+    assertThat(ids.getOrAssign("a")).isEqualTo(0);
+    assertThat(ids.getOrAssign("b")).isEqualTo(1);
+    assertThat(ids.getOrAssign("A")).isEqualTo(0);
+    assertThat(ids.getOrAssign("c")).isEqualTo(2);
+    assertThat(ids.size()).isEqualTo(3);
+    // The first element given an id is the one returned for it.
+    assertThat(ids.get(0)).isEqualTo("a");
+    assertThat(ids.get(2)).isEqualTo("c");
+  }
+
+  @Test
+  public void setsOfIds() {
+    ElementIds<String> ids = new ElementIds<>(LOWERCASE);
+    ids.getOrAssign("x");
+    CompressedBitSet set = ids.getOrAssign(ImmutableList.of("c", "a", "X", "b", "A"));
+    assertThat(set.toString()).isEqualTo("{0, 1, 2, 3}");
+    assertThat(ids.getAll(set)).containsExactly("x", "c", "a", "b").inOrder();
+  }
+
+  @Test
+  public void concurrentAssignment() throws Exception {
+    final ElementIds<String> ids = new ElementIds<>(LOWERCASE);
+    final int count = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<int[]>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      results.add(
+          executor.submit(
+              new Callable<int[]>() {
+                @Override
+                public int[] call() {
+                  int[] assigned = new int[count];
+                  for (int i = 0; i < count; i++) {
+                    assigned[i] = ids.getOrAssign("e" + i);
+                  }
+                  return assigned;
+                }
+              }));
+    }
+    int[] expected = results.get(0).get();
+    for (Future<int[]> result : results) {
+      assertThat(result.get()).isEqualTo(expected);
+    }
+    executor.shutdown();
+
+    assertThat(ids.size()).isEqualTo(count);
+    Set<Integer> distinct = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      assertThat(expected[i]).isLessThan(count);
+      assertThat(ids.get(expected[i])).isEqualTo("e" + i);
+      distinct.add(expected[i]);
+    }
+    assertThat(distinct).hasSize(count);
+  }
+}
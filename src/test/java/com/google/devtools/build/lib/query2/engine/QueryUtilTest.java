@@ -0,0 +1,122 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.engine;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.BitmapUniquifier;
+import com.google.devtools.build.lib.query2.engine.QueryUtil.DenseMinDepthUniquifier;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the uniquifiers of {@link QueryUtil} that work on {@link ElementIds}. */
+@RunWith(JUnit4.class)
+public class QueryUtilTest {
+
+  private static final KeyExtractor<String, String> IDENTITY =
+      new KeyExtractor<String, String>() {
+        @Override
+        public String extractKey(String element) {
+          return element;
+        }
+      };
+
+  @Test
+  public void bitmapUniquifier() {
+    Uniquifier<String> uniquifier = new BitmapUniquifier<>(new ElementIds<>(IDENTITY));
+    assertThat(uniquifier.unique("a")).isTrue();
+    assertThat(uniquifier.unique("a")).isFalse();
+    assertThat(uniquifier.unique(ImmutableList.of("b", "a", "c", "b")))
+        .containsExactly("b", "c")
+        .inOrder();
+    assertThat(uniquifier.unique(ImmutableList.of("c", "d"))).containsExactly("d");
+  }
+
+  @Test
+  public void bitmapUniquifiersShareIds() {
+    ElementIds<String> ids = new ElementIds<>(IDENTITY);
+    Uniquifier<String> first = new BitmapUniquifier<>(ids);
+    Uniquifier<String> second = new BitmapUniquifier<>(ids);
+    assertThat(first.unique("a")).isTrue();
+    assertThat(second.unique("a")).isTrue();
+    assertThat(first.unique("a")).isFalse();
+  }
+
+  @Test
+  public void bitmapUniquifierAcrossPages() {
+    Uniquifier<String> uniquifier = new BitmapUniquifier<>(new ElementIds<>(IDENTITY));
+    for (int i = 0; i < 3 * IdPages.PAGE_SIZE; i++) {
+      assertThat(uniquifier.unique("e" + i)).isTrue();
+    }
+    for (int i = 0; i < 3 * IdPages.PAGE_SIZE; i++) {
+      assertThat(uniquifier.unique("e" + i)).isFalse();
+    }
+  }
+
+  @Test
+  public void concurrentBitmapUniquifierReportsEachElementOnce() throws Exception {
+    final Uniquifier<String> uniquifier = new BitmapUniquifier<>(new ElementIds<>(IDENTITY));
+    final int count = 20000;
+    ExecutorService executor = Executors.newFixedThreadPool(8);
+    List<Future<Integer>> results = new ArrayList<>();
+    for (int t = 0; t < 8; t++) {
+      results.add(
+          executor.submit(
+              new Callable<Integer>() {
+                @Override
+                public Integer call() {
+                  int unique = 0;
+                  for (int i = 0; i < count; i++) {
+                    if (uniquifier.unique("e" + i)) {
+                      unique++;
+                    }
+                  }
+                  return unique;
+                }
+              }));
+    }
+    int total = 0;
+    for (Future<Integer> result : results) {
+      total += result.get();
+    }
+    executor.shutdown();
+    assertThat(total).isEqualTo(count);
+  }
+
+  @Test
+  public void denseMinDepthUniquifier() {
+    MinDepthUniquifier<String> uniquifier =
+        new DenseMinDepthUniquifier<>(new ElementIds<>(IDENTITY));
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("a", "b", "a"), 3))
+        .containsExactly("a", "b")
+        .inOrder();
+    // Only elements seen at a shallower depth than before are returned again.
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("a", "c"), 3))
+        .containsExactly("c");
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("a", "b"), 2))
+        .containsExactly("a", "b")
+        .inOrder();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("a"), 4)).isEmpty();
+    assertThat(uniquifier.uniqueAtDepthLessThanOrEqualTo(ImmutableList.of("a"), 0))
+        .containsExactly("a");
+  }
+}
@@ -0,0 +1,233 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.packages.Target;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link ParallelChunkedOutputCallback}. */
+@RunWith(JUnit4.class)
+public class ParallelChunkedOutputCallbackTest {
+
+  private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+  private static List<Target> targets(int count) {
+    List<Target> targets = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Target target = mock(Target.class);
+      when(target.getName()).thenReturn("t" + i);
+      targets.add(target);
+    }
+    return targets;
+  }
+
+  /** Serializes the names of the targets, one per line. */
+  private static byte[] names(List<Target> targets) {
+    StringBuilder names = new StringBuilder();
+    for (Target target : targets) {
+      names.append(target.getName()).append('\n');
+    }
+    return names.toString().getBytes(UTF_8);
+  }
+
+  private String output() {
+    return new String(out.toByteArray(), UTF_8);
+  }
+
+  private static String expectedOutput(List<Target> targets) {
+    return new String(names(targets), UTF_8);
+  }
+
+  private ParallelChunkedOutputCallback createCallback(
+      ParallelChunkedOutputCallback.ChunkSerializer serializer,
+      int threads,
+      int targetsPerChunk,
+      int maxPendingChunksPerThread) {
+    ParallelChunkedOutputCallback callback =
+        new ParallelChunkedOutputCallback(
+            out, serializer, threads, targetsPerChunk, maxPendingChunksPerThread);
+    callback.start();
+    return callback;
+  }
+
+  @Test
+  public void writesChunksInTheOrderOfTheirTargets() throws Exception {
+    List<Target> targets = targets(2500);
+    ParallelChunkedOutputCallback callback =
+        createCallback(
+            chunk -> {
+              // Finish the chunks out of order.
+              Thread.sleep(ThreadLocalRandom.current().nextInt(3));
+              return names(chunk);
+            },
+            4,
+            10,
+            2);
+
+    // Batches that aren't multiples of the chunk size.
+    for (int start = 0; start < targets.size(); start += 333) {
+      callback.processOutput(targets.subList(start, Math.min(start + 333, targets.size())));
+    }
+    callback.close(false);
+
+    assertThat(output()).isEqualTo(expectedOutput(targets));
+  }
+
+  @Test
+  public void blocksWhileTooManyChunksArePending() throws Exception {
+    final List<Target> targets = targets(5);
+    final CountDownLatch release = new CountDownLatch(1);
+    final AtomicInteger serialized = new AtomicInteger();
+    final ParallelChunkedOutputCallback callback =
+        createCallback(
+            chunk -> {
+              serialized.incrementAndGet();
+              if (chunk.get(0) == targets.get(0)) {
+                release.await();
+              }
+              return names(chunk);
+            },
+            2,
+            1,
+            1);
+    final List<Exception> failures = new ArrayList<>();
+    Thread processor =
+        new Thread(
+            () -> {
+              try {
+                callback.processOutput(targets);
+              } catch (IOException | InterruptedException e) {
+                failures.add(e);
+              }
+            });
+    processor.start();
+
+    // The first two chunks are pending, and the first one can't be written until it's released.
+    while (serialized.get() < 2) {
+      Thread.sleep(1);
+    }
+    Thread.sleep(100);
+    assertThat(serialized.get()).isEqualTo(2);
+    assertThat(output()).isEmpty();
+    assertThat(processor.isAlive()).isTrue();
+
+    release.countDown();
+    processor.join();
+    callback.close(false);
+    assertThat(failures).isEmpty();
+    assertThat(output()).isEqualTo(expectedOutput(targets));
+  }
+
+  @Test
+  public void closeFailFastCancelsPendingChunks() throws Exception {
+    final CountDownLatch started = new CountDownLatch(1);
+    final CountDownLatch interrupted = new CountDownLatch(1);
+    final AtomicInteger serialized = new AtomicInteger();
+    ParallelChunkedOutputCallback callback =
+        createCallback(
+            chunk -> {
+              serialized.incrementAndGet();
+              started.countDown();
+              try {
+                new CountDownLatch(1).await();
+              } catch (InterruptedException e) {
+                interrupted.countDown();
+                throw e;
+              }
+              return names(chunk);
+            },
+            1,
+            1,
+            4);
+
+    callback.processOutput(targets(3));
+    started.await();
+    callback.close(true);
+
+    assertThat(interrupted.await(10, TimeUnit.SECONDS)).isTrue();
+    // The chunks waiting for a thread were never serialized.
+    assertThat(serialized.get()).isEqualTo(1);
+    assertThat(output()).isEmpty();
+  }
+
+  @Test
+  public void failureOfChunkIsPropagated() throws Exception {
+    List<Target> targets = targets(5);
+    ParallelChunkedOutputCallback callback =
+        createCallback(
+            chunk -> {
+              if (chunk.get(0).getName().equals("t2")) {
+                throw new IOException("failed to serialize t2");
+              }
+              return names(chunk);
+            },
+            1,
+            1,
+            4);
+
+    try {
+      callback.processOutput(targets);
+      callback.close(false);
+      fail("Expected IOException");
+    } catch (IOException e) {
+      assertThat(e).hasMessageThat().isEqualTo("failed to serialize t2");
+    }
+    callback.close(true);
+    // Only the chunks before the failed one are written.
+    assertThat(output()).isEqualTo(expectedOutput(targets.subList(0, 2)));
+  }
+
+  @Test
+  public void interruptionOfChunkIsPropagated() throws Exception {
+    List<Target> targets = targets(3);
+    ParallelChunkedOutputCallback callback =
+        createCallback(
+            chunk -> {
+              if (chunk.get(0).getName().equals("t1")) {
+                throw new InterruptedException();
+              }
+              return names(chunk);
+            },
+            1,
+            1,
+            4);
+
+    try {
+      callback.processOutput(targets);
+      callback.close(false);
+      fail("Expected InterruptedException");
+    } catch (InterruptedException e) {
+      // Expected.
+    }
+    callback.close(true);
+    assertThat(output()).isEqualTo(expectedOutput(ImmutableList.of(targets.get(0))));
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.query2.output;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Iterables;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.packages.Rule;
+import com.google.devtools.build.lib.packages.Target;
+import com.google.devtools.build.lib.packages.util.PackageLoadingTestCase;
+import com.google.devtools.build.lib.query2.engine.OutputFormatterCallback;
+import com.google.devtools.build.lib.query2.proto.proto2api.Build;
+import com.google.devtools.common.options.Options;
+import com.google.protobuf.util.JsonFormat;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link StreamedProtoOutputFormatter}. */
+@RunWith(JUnit4.class)
+public class StreamedProtoOutputFormatterTest extends PackageLoadingTestCase {
+
+  /** More targets than {@link StreamedProtoOutputFormatter} serializes in a single chunk. */
+  private static final int TARGETS = 2500;
+
+  private List<Target> targets;
+
+  @Before
+  public final void createTargets() throws Exception {
+    scratch.file("many/BUILD", "[sh_library(name = 't%d' % i) for i in range(" + TARGETS + ")]");
+    targets = new ArrayList<>();
+    for (Target target :
+        getPackageManager()
+            .getPackage(reporter, PackageIdentifier.createInMainRepo("many"))
+            .getTargets()
+            .values()) {
+      if (target instanceof Rule) {
+        targets.add(target);
+      }
+    }
+    assertThat(targets).hasSize(TARGETS);
+  }
+
+  /** Formats the targets, in batches that aren't multiples of the chunk size. */
+  private byte[] format(boolean json) throws Exception {
+    StreamedProtoOutputFormatter formatter = new StreamedProtoOutputFormatter(json);
+    formatter.setOptions(Options.getDefaults(QueryOptions.class), new NullAspectResolver());
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    OutputFormatterCallback<Target> callback = formatter.createPostFactoStreamCallback(out, null);
+    callback.start();
+    for (List<Target> batch : Iterables.partition(targets, 777)) {
+      callback.processOutput(batch);
+    }
+    callback.close(false);
+    return out.toByteArray();
+  }
+
+  private List<String> names() {
+    List<String> names = new ArrayList<>();
+    for (Target target : targets) {
+      names.add(target.getLabel().toString());
+    }
+    return names;
+  }
+
+  @Test
+  public void writesLengthDelimitedMessagesInOrder() throws Exception {
+    InputStream in = new ByteArrayInputStream(format(/*json=*/ false));
+    List<String> names = new ArrayList<>();
+    Build.Target target;
+    while ((target = Build.Target.parseDelimitedFrom(in)) != null) {
+      names.add(target.getRule().getName());
+    }
+    assertThat(names).containsExactlyElementsIn(names()).inOrder();
+  }
+
+  @Test
+  public void writesJsonMessagesOnePerLineInOrder() throws Exception {
+    BufferedReader in =
+        new BufferedReader(
+            new InputStreamReader(new ByteArrayInputStream(format(/*json=*/ true)), UTF_8));
+    List<String> names = new ArrayList<>();
+    String line;
+    while ((line = in.readLine()) != null) {
+      Build.Target.Builder target = Build.Target.newBuilder();
+      JsonFormat.parser().merge(line, target);
+      names.add(target.getRule().getName());
+    }
+    assertThat(names).containsExactlyElementsIn(names()).inOrder();
+  }
+}
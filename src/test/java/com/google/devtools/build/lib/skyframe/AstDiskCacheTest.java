@@ -0,0 +1,102 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.devtools.build.lib.events.StoredEventHandler;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.syntax.Environment;
+import com.google.devtools.build.lib.syntax.ParserInputSource;
+import com.google.devtools.build.lib.syntax.Statement;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link AstDiskCache}. */
+@RunWith(JUnit4.class)
+public class AstDiskCacheTest {
+
+  private static final String CONTENT = "load('//a:b.bzl', 'x')\ncc_library(name = x)\n";
+  private static final PathFragment BUILD_FILE = PathFragment.create("/workspace/a/BUILD");
+  private static final long MAX_SIZE_BYTES = 1 << 20;
+
+  private Path directory;
+  private AstDiskCache cache;
+
+  @Before
+  public final void createCache() throws Exception {
+    directory = new InMemoryFileSystem().getPath("/output_base/ast_cache");
+    cache = new AstDiskCache(new DiskCacheDirectory(directory, "salt", MAX_SIZE_BYTES));
+  }
+
+  @Test
+  public void storesAsts() throws Exception {
+    BuildFileAST ast = parse(CONTENT);
+    String key = cache.key(CONTENT.getBytes(UTF_8), BUILD_FILE, "BUILD");
+    assertThat(cache.get(key)).isNull();
+    cache.put(key, ast);
+
+    BuildFileAST cached = cache.get(key);
+    assertThat(cached).isNotSameAs(ast);
+    assertThat(cached.getStatements().toString()).isEqualTo(ast.getStatements().toString());
+    assertThat(cached.getImports()).isEqualTo(ast.getImports());
+    assertThat(cached.getStatements().get(1).getLocation())
+        .isEqualTo(ast.getStatements().get(1).getLocation());
+  }
+
+  @Test
+  public void keysDependOnContentsPathKindAndSalt() throws Exception {
+    byte[] content = CONTENT.getBytes(UTF_8);
+    String key = cache.key(content, BUILD_FILE, "BUILD");
+    assertThat(cache.key(content, BUILD_FILE, "BUILD")).isEqualTo(key);
+    assertThat(cache.key("x = 1".getBytes(UTF_8), BUILD_FILE, "BUILD")).isNotEqualTo(key);
+    assertThat(cache.key(content, PathFragment.create("/workspace/b/BUILD"), "BUILD"))
+        .isNotEqualTo(key);
+    assertThat(cache.key(content, BUILD_FILE, "bzl")).isNotEqualTo(key);
+    AstDiskCache otherSalt =
+        new AstDiskCache(new DiskCacheDirectory(directory, "other salt", MAX_SIZE_BYTES));
+    assertThat(otherSalt.key(content, BUILD_FILE, "BUILD")).isNotEqualTo(key);
+  }
+
+  @Test
+  public void prependedStatementsComeFirst() throws Exception {
+    BuildFileAST prelude = parse("y = 1\n");
+    BuildFileAST ast = parse(CONTENT);
+    StoredEventHandler eventHandler = new StoredEventHandler();
+    BuildFileAST withPrelude = ast.prependStatements(prelude.getStatements(), eventHandler);
+    assertThat(eventHandler.isEmpty()).isTrue();
+    assertThat(withPrelude.getStatements().toString())
+        .isEqualTo(
+            BuildFileAST.parseBuildFile(
+                    ParserInputSource.create(CONTENT, BUILD_FILE),
+                    prelude.getStatements(),
+                    eventHandler)
+                .getStatements()
+                .toString());
+    assertThat(withPrelude.getImports()).isEqualTo(ast.getImports());
+    assertThat(ast.prependStatements(ImmutableList.<Statement>of(), eventHandler)).isSameAs(ast);
+  }
+
+  private static BuildFileAST parse(String content) {
+    return BuildFileAST.parseBuildFile(
+        ParserInputSource.create(content, BUILD_FILE), Environment.FAIL_FAST_HANDLER);
+  }
+}
@@ -0,0 +1,152 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.IOException;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link DiskCacheDirectory} and {@link DiskCacheTrimmer}. */
+@RunWith(JUnit4.class)
+public class DiskCacheDirectoryTest {
+
+  private static final long MAX_SIZE_BYTES = 1 << 20;
+
+  private static final DiskCacheDirectory.EntryReader<String> STRING_READER =
+      new DiskCacheDirectory.EntryReader<String>() {
+        @Override
+        public String read(byte[] bytes) throws IOException {
+          String entry = new String(bytes, UTF_8);
+          if (entry.equals("garbage")) {
+            throw new IOException("corrupt entry");
+          }
+          return entry;
+        }
+      };
+
+  private Path path;
+  private DiskCacheDirectory directory;
+
+  @Before
+  public final void createDirectory() throws Exception {
+    path = new InMemoryFileSystem().getPath("/output_base/cache");
+    directory = new DiskCacheDirectory(path, "salt", MAX_SIZE_BYTES);
+  }
+
+  /** Returns a key, as a hex digest like the ones the caches use. */
+  private static String key(int i) {
+    return String.format("%040x", i);
+  }
+
+  /** Stores an entry that was last used at {@code time}. */
+  private void writeAt(String key, String content, long time) throws Exception {
+    directory.write(key, content.getBytes(UTF_8));
+    directory.entryPath(key).setLastModifiedTime(time);
+  }
+
+  @Test
+  public void storesEntries() throws Exception {
+    assertThat(directory.read(key(1), STRING_READER)).isNull();
+    directory.write(key(1), "entry".getBytes(UTF_8));
+
+    assertThat(directory.read(key(1), STRING_READER)).isEqualTo("entry");
+    // Only the renamed entry is left, in a subdirectory named after the start of the key.
+    Path entry = path.getRelative("00/" + key(1).substring(2));
+    assertThat(directory.entryPath(key(1))).isEqualTo(entry);
+    assertThat(entry.getParentDirectory().getDirectoryEntries()).containsExactly(entry);
+  }
+
+  @Test
+  public void keysDependOnVersionAndSalt() throws Exception {
+    String key = directory.newKey(1).addString("x").hexDigestAndReset();
+    assertThat(directory.newKey(1).addString("x").hexDigestAndReset()).isEqualTo(key);
+    assertThat(directory.newKey(2).addString("x").hexDigestAndReset()).isNotEqualTo(key);
+    DiskCacheDirectory otherSalt = new DiskCacheDirectory(path, "other salt", MAX_SIZE_BYTES);
+    assertThat(otherSalt.newKey(1).addString("x").hexDigestAndReset()).isNotEqualTo(key);
+  }
+
+  @Test
+  public void corruptEntriesAreMissesAndDeleted() throws Exception {
+    directory.write(key(1), "garbage".getBytes(UTF_8));
+
+    assertThat(directory.read(key(1), STRING_READER)).isNull();
+    assertThat(directory.entryPath(key(1)).exists()).isFalse();
+  }
+
+  @Test
+  public void trimEvictsLeastRecentlyUsedEntries() throws Exception {
+    writeAt(key(1), "entry", 1000L);
+    writeAt(key(2), "entry", 2000L);
+    writeAt(key(3), "entry", 3000L);
+    // Reading an entry makes it the most recently used one.
+    assertThat(directory.read(key(1), STRING_READER)).isNotNull();
+
+    directory = new DiskCacheDirectory(path, "salt", 2 * "entry".length());
+    directory.trim();
+    assertThat(directory.entryPath(key(1)).exists()).isTrue();
+    assertThat(directory.entryPath(key(2)).exists()).isFalse();
+    assertThat(directory.entryPath(key(3)).exists()).isTrue();
+    assertThat(directory.read(key(2), STRING_READER)).isNull();
+  }
+
+  @Test
+  public void trimKeepsCacheWithinLimit() throws Exception {
+    writeAt(key(1), "entry", 1000L);
+    directory.trim();
+    assertThat(directory.entryPath(key(1)).exists()).isTrue();
+
+    directory = new DiskCacheDirectory(path, "salt", 0);
+    directory.trim();
+    assertThat(directory.entryPath(key(1)).exists()).isFalse();
+  }
+
+  @Test
+  public void trimDeletesAbandonedTemporaryFiles() throws Exception {
+    writeAt(key(1), "entry", 1000L);
+    Path subdirectory = directory.entryPath(key(1)).getParentDirectory();
+    Path abandoned = subdirectory.getChild(key(1) + ".1");
+    Path inProgress = subdirectory.getChild(key(1) + ".2");
+    FileSystemUtils.writeContent(abandoned, "partial".getBytes(UTF_8));
+    FileSystemUtils.writeContent(inProgress, "partial".getBytes(UTF_8));
+    abandoned.setLastModifiedTime(1000L);
+
+    directory.trim();
+    assertThat(abandoned.exists()).isFalse();
+    assertThat(inProgress.exists()).isTrue();
+    assertThat(directory.entryPath(key(1)).exists()).isTrue();
+  }
+
+  @Test
+  public void writesTrimOnceAnEighthOfTheLimitWasWritten() throws Exception {
+    // Entries of 8 bytes, of which 4 fit in the limit. Each of them is more than an eighth of it.
+    directory = new DiskCacheDirectory(path, "salt", 32);
+    for (int i = 0; i < 4; i++) {
+      writeAt(key(i), "entry " + i + "!", 1000L + i);
+    }
+    assertThat(directory.entryPath(key(0)).exists()).isTrue();
+
+    directory.write(key(4), "entry 4!".getBytes(UTF_8));
+    assertThat(directory.entryPath(key(0)).exists()).isFalse();
+    assertThat(directory.entryPath(key(1)).exists()).isTrue();
+    assertThat(directory.entryPath(key(4)).exists()).isTrue();
+  }
+}
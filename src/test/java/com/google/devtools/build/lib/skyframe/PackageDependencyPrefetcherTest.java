@@ -0,0 +1,87 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.cmdline.Label;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.events.util.EventCollectionApparatus;
+import com.google.devtools.build.lib.syntax.BuildFileAST;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.SkyKey;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PackageDependencyPrefetcher}. */
+@RunWith(JUnit4.class)
+public class PackageDependencyPrefetcherTest {
+
+  private final EventCollectionApparatus events = new EventCollectionApparatus();
+  private final Path root = new InMemoryFileSystem().getPath("/workspace");
+  private final PackageIdentifier packageId = PackageIdentifier.createInMainRepo("foo");
+
+  private BuildFileAST parse(String... lines) {
+    return BuildFileAST.parseBuildString(events.reporter(), lines);
+  }
+
+  private SkyKey globKey(String pattern, boolean excludeDirs) throws Exception {
+    return GlobValue.key(packageId, root, pattern, excludeDirs, PathFragment.EMPTY_FRAGMENT);
+  }
+
+  @Test
+  public void testLiteralGlobs() throws Exception {
+    BuildFileAST ast =
+        parse(
+            "cc_library(name = 'a', srcs = glob(['*.cc'], exclude = ['x.cc']))",
+            "filegroup(name = 'b', srcs = glob(include = ['data/**'], exclude_directories = 0))",
+            "filegroup(name = 'c', srcs = glob(['*.cc']))");
+    assertThat(PackageDependencyPrefetcher.getGlobKeys(ast, packageId, root))
+        .containsExactly(
+            globKey("*.cc", true), globKey("x.cc", true), globKey("data/**", false))
+        .inOrder();
+  }
+
+  @Test
+  public void testComputedGlobsAreIgnored() throws Exception {
+    BuildFileAST ast =
+        parse(
+            "SRCS = ['*.cc']",
+            "filegroup(name = 'a', srcs = glob(SRCS))",
+            "filegroup(name = 'b', srcs = glob(['*.h'], exclude = EXCLUDES))",
+            "filegroup(name = 'c', srcs = glob(['*.txt'], exclude_directories = DIRS))",
+            "filegroup(name = 'd', srcs = glob(['*.a'], ['*.b']))",
+            "filegroup(name = 'e', srcs = glob(['*.java']) + [f for f in glob(['*.py'])])");
+    assertThat(PackageDependencyPrefetcher.getGlobKeys(ast, packageId, root))
+        .containsExactly(globKey("*.java", true), globKey("*.py", true));
+  }
+
+  @Test
+  public void testImports() throws Exception {
+    BuildFileAST ast =
+        parse(
+            "load('//pkg:a.bzl', 'x')",
+            "load(':b.bzl', 'y')",
+            "load('@repo//:c.bzl', 'z')");
+    assertThat(PackageDependencyPrefetcher.getImportKeys(ast, packageId, false))
+        .containsExactly(
+            SkylarkImportLookupValue.key(Label.parseAbsolute("//pkg:a.bzl"), false),
+            SkylarkImportLookupValue.key(Label.parseAbsolute("//foo:b.bzl"), false),
+            SkylarkImportLookupValue.key(Label.parseAbsolute("@repo//:c.bzl"), false))
+        .inOrder();
+  }
+}
@@ -0,0 +1,123 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.skyframe;
+
+import static com.google.common.truth.Truth.assertThat;
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.collect.nestedset.NestedSetBuilder;
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.PathFragment;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import com.google.devtools.build.skyframe.SkyKey;
+import java.util.Arrays;
+import java.util.Map;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link PackageDiskCache}. */
+@RunWith(JUnit4.class)
+public class PackageDiskCacheTest {
+
+  private static final PackageIdentifier PACKAGE_ID = PackageIdentifier.createInMainRepo("pkg");
+  private static final byte[] SERIALIZED_PACKAGE = "serialized package".getBytes(UTF_8);
+  private static final long MAX_SIZE_BYTES = 1 << 20;
+
+  private Path packageRoot;
+  private PackageDiskCache cache;
+  private SkyKey globKey;
+
+  @Before
+  public final void createCache() throws Exception {
+    InMemoryFileSystem fileSystem = new InMemoryFileSystem();
+    Path directory = fileSystem.getPath("/output_base/package_cache");
+    packageRoot = fileSystem.getPath("/workspace");
+    cache = new PackageDiskCache(new DiskCacheDirectory(directory, "salt", MAX_SIZE_BYTES));
+    globKey = GlobValue.key(PACKAGE_ID, packageRoot, "*.cc", false, PathFragment.EMPTY_FRAGMENT);
+  }
+
+  private static GlobValue globValue(String... matches) {
+    NestedSetBuilder<PathFragment> builder = NestedSetBuilder.stableOrder();
+    for (String match : matches) {
+      builder.add(PathFragment.create(match));
+    }
+    return new GlobValue(builder.build());
+  }
+
+  private Map<SkyKey, GlobValue> globValues(String... matches) {
+    return ImmutableMap.of(globKey, globValue(matches));
+  }
+
+  private Path entryPath(String key) {
+    return cache.getDirectory().entryPath(key);
+  }
+
+  /** Returns a key, as a hex digest like the ones of {@link PackageDiskCache#key}. */
+  private static String key(int i) {
+    return String.format("%040x", i);
+  }
+
+  private void put(String key) {
+    cache.put(key, SERIALIZED_PACKAGE, ImmutableList.of(globKey), globValues("a.cc", "b.cc"));
+  }
+
+  @Test
+  public void storesPackages() throws Exception {
+    assertThat(cache.get(key(1), PACKAGE_ID, packageRoot)).isNull();
+    put(key(1));
+
+    PackageDiskCache.Entry entry = cache.get(key(1), PACKAGE_ID, packageRoot);
+    assertThat(entry.getSerializedPackage()).isEqualTo(SERIALIZED_PACKAGE);
+    assertThat(entry.getGlobKeys()).containsExactly(globKey);
+    assertThat(entry.globsMatch(globValues("a.cc", "b.cc"))).isTrue();
+    // Only the renamed entry is left.
+    assertThat(entryPath(key(1)).getParentDirectory().getDirectoryEntries())
+        .containsExactly(entryPath(key(1)));
+  }
+
+  @Test
+  public void globsMatchOnlyTheSameFiles() throws Exception {
+    put(key(1));
+    PackageDiskCache.Entry entry = cache.get(key(1), PACKAGE_ID, packageRoot);
+
+    assertThat(entry.globsMatch(globValues("a.cc"))).isFalse();
+    assertThat(entry.globsMatch(globValues("a.cc", "c.cc"))).isFalse();
+    assertThat(entry.globsMatch(globValues("a.cc", "b.cc", "c.cc"))).isFalse();
+    assertThat(entry.globsMatch(ImmutableMap.<SkyKey, GlobValue>of())).isFalse();
+  }
+
+  @Test
+  public void packagesWithMissingGlobsAreNotStored() throws Exception {
+    Map<SkyKey, GlobValue> noGlobValues = ImmutableMap.of();
+    cache.put(key(1), SERIALIZED_PACKAGE, ImmutableList.of(globKey), noGlobValues);
+    assertThat(entryPath(key(1)).exists()).isFalse();
+  }
+
+  @Test
+  public void truncatedEntriesAreMissesAndDeleted() throws Exception {
+    put(key(1));
+    byte[] bytes = FileSystemUtils.readContent(entryPath(key(1)));
+    FileSystemUtils.writeContent(entryPath(key(1)), Arrays.copyOf(bytes, bytes.length - 1));
+
+    assertThat(cache.get(key(1), PACKAGE_ID, packageRoot)).isNull();
+    assertThat(entryPath(key(1)).exists()).isFalse();
+  }
+
+}
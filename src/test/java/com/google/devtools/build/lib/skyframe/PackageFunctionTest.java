@@ -25,14 +25,23 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
+import com.google.devtools.build.lib.analysis.BlazeDirectories;
+import com.google.devtools.build.lib.analysis.ServerDirectories;
 import com.google.devtools.build.lib.analysis.util.BuildViewTestCase;
 import com.google.devtools.build.lib.cmdline.Label;
 import com.google.devtools.build.lib.cmdline.PackageIdentifier;
+import com.google.devtools.build.lib.cmdline.RepositoryName;
 import com.google.devtools.build.lib.packages.ConstantRuleVisibility;
 import com.google.devtools.build.lib.packages.NoSuchTargetException;
+import com.google.devtools.build.lib.packages.Package;
+import com.google.devtools.build.lib.packages.PackageFactory;
+import com.google.devtools.build.lib.packages.PackageFactory.EnvironmentExtension;
+import com.google.devtools.build.lib.packages.RuleClass;
 import com.google.devtools.build.lib.pkgcache.PackageCacheOptions;
 import com.google.devtools.build.lib.pkgcache.PathPackageLocator;
+import com.google.devtools.build.lib.rules.repository.RepositoryDelegatorFunction;
 import com.google.devtools.build.lib.skyframe.util.SkyframeExecutorTestUtils;
+import com.google.devtools.build.lib.syntax.Environment;
 import com.google.devtools.build.lib.syntax.SkylarkSemanticsOptions;
 import com.google.devtools.build.lib.testutil.ManualClock;
 import com.google.devtools.build.lib.util.BlazeClock;
@@ -52,13 +61,16 @@ import com.google.devtools.build.skyframe.RecordingDifferencer;
 import com.google.devtools.build.skyframe.SkyKey;
 import com.google.devtools.build.skyframe.SkyValue;
 import com.google.devtools.common.options.Options;
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
 import javax.annotation.Nullable;
 import org.junit.Test;
 import org.junit.runner.RunWith;
@@ -665,6 +677,184 @@ public class PackageFunctionTest extends BuildViewTestCase {
     }
   }
 
+  private static final String INSTALL_MD5 = "0123456789abcdef0123456789abcdef";
+
+  /** Counts the BUILD files that are evaluated, as opposed to restored from a disk cache. */
+  private static final class EvaluationCounter extends PackageFactory.EmptyEnvironmentExtension {
+    private final AtomicInteger evaluations = new AtomicInteger();
+
+    @Override
+    public void update(Environment environment) {
+      evaluations.incrementAndGet();
+    }
+  }
+
+  private final EvaluationCounter evaluationCounter = new EvaluationCounter();
+
+  @Override
+  protected Iterable<EnvironmentExtension> getEnvironmentExtensions() {
+    return ImmutableList.<EnvironmentExtension>of(evaluationCounter);
+  }
+
+  /**
+   * Returns a new executor with the package disk cache enabled, which shares the output base of
+   * the test like a new server would.
+   */
+  private SkyframeExecutor newExecutorWithPackageDiskCache() {
+    BlazeDirectories directoriesWithInstallMD5 =
+        new BlazeDirectories(
+            new ServerDirectories(outputBase, outputBase, INSTALL_MD5),
+            rootDirectory,
+            analysisMock.getProductName());
+    SkyframeExecutor executor =
+        SequencedSkyframeExecutor.create(
+            pkgFactory,
+            directoriesWithInstallMD5,
+            binTools,
+            workspaceStatusActionFactory,
+            ruleClassProvider.getBuildInfoFactories(),
+            ImmutableList.<DiffAwareness.Factory>of(),
+            Predicates.<PathFragment>alwaysFalse(),
+            analysisMock.getSkyFunctions(),
+            ImmutableList.<PrecomputedValue.Injected>of(),
+            ImmutableList.<SkyValueDirtinessChecker>of(),
+            analysisMock.getProductName(),
+            PackageLookupFunction.CrossRepositoryLabelViolationStrategy.ERROR,
+            ImmutableList.of(
+                PackageLookupValue.BuildFileName.BUILD_DOT_BAZEL,
+                PackageLookupValue.BuildFileName.BUILD));
+    executor.injectExtraPrecomputedValues(
+        ImmutableList.of(
+            PrecomputedValue.injected(
+                RepositoryDelegatorFunction.REPOSITORY_OVERRIDES,
+                ImmutableMap.<RepositoryName, PathFragment>of())));
+    PackageCacheOptions packageCacheOptions = Options.getDefaults(PackageCacheOptions.class);
+    packageCacheOptions.defaultVisibility = ConstantRuleVisibility.PUBLIC;
+    packageCacheOptions.packageDiskCache = true;
+    executor.preparePackageLoading(
+        new PathPackageLocator(outputBase, ImmutableList.of(rootDirectory)),
+        packageCacheOptions,
+        Options.getDefaults(SkylarkSemanticsOptions.class),
+        "",
+        UUID.randomUUID(),
+        ImmutableMap.<String, String>of(),
+        ImmutableMap.<String, String>of(),
+        new TimestampGranularityMonitor(BlazeClock.instance()));
+    return executor;
+  }
+
+  /** Loads a package with a new executor using the package disk cache. */
+  private Package loadWithPackageDiskCache(String packageName) throws Exception {
+    SkyKey skyKey = PackageValue.key(PackageIdentifier.createInMainRepo(packageName));
+    EvaluationResult<PackageValue> result =
+        SkyframeExecutorTestUtils.evaluate(
+            newExecutorWithPackageDiskCache(), skyKey, /*keepGoing=*/ false, reporter);
+    if (result.hasError()) {
+      fail(result.getError(skyKey).getException().getMessage());
+    }
+    return result.get(skyKey).getPackage();
+  }
+
+  /** Returns whether loading the package evaluated its BUILD file. */
+  private boolean loadEvaluatesBuildFile(String packageName) throws Exception {
+    int evaluations = evaluationCounter.evaluations.get();
+    loadWithPackageDiskCache(packageName);
+    return evaluationCounter.evaluations.get() != evaluations;
+  }
+
+  private static String dump(Package pkg) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    pkg.dump(new PrintStream(out));
+    return out.toString();
+  }
+
+  private void writePackageWithSkylarkRule() throws Exception {
+    scratch.file(
+        "pkg/rules.bzl",
+        "def _impl(ctx):",
+        "  pass",
+        "my_rule = rule(",
+        "    implementation = _impl,",
+        "    attrs = {'srcs': attr.label_list(allow_files = True)},",
+        ")");
+    scratch.file("pkg/a.txt");
+    scratch.file("pkg/b.txt");
+    scratch.file(
+        "pkg/BUILD",
+        "load('//pkg:rules.bzl', 'my_rule')",
+        "print('loading pkg')",
+        "my_rule(name = 'custom', srcs = glob(['*.txt']))",
+        "sh_library(name = 'lib', srcs = glob(['*.sh']))");
+  }
+
+  @Test
+  public void testPackageDiskCacheRestoresEvaluatedPackage() throws Exception {
+    writePackageWithSkylarkRule();
+    eventCollector.clear();
+    int evaluations = evaluationCounter.evaluations.get();
+    Package evaluated = loadWithPackageDiskCache("pkg");
+    assertThat(evaluationCounter.evaluations.get()).isGreaterThan(evaluations);
+    assertContainsEventWithFrequency("loading pkg", 1);
+
+    eventCollector.clear();
+    evaluations = evaluationCounter.evaluations.get();
+    Package restored = loadWithPackageDiskCache("pkg");
+
+    assertThat(evaluationCounter.evaluations.get()).isEqualTo(evaluations);
+    assertThat(restored).isNotSameAs(evaluated);
+    assertThat(dump(restored)).isEqualTo(dump(evaluated));
+    // The events of the package are replayed once, as when it is evaluated.
+    assertContainsEventWithFrequency("loading pkg", 1);
+  }
+
+  @Test
+  public void testPackageDiskCacheResolvesSkylarkRuleClassesOfCurrentBzlFiles() throws Exception {
+    writePackageWithSkylarkRule();
+    Package evaluated = loadWithPackageDiskCache("pkg");
+    Package restored = loadWithPackageDiskCache("pkg");
+
+    // The rule class is the one defined by the .bzl file loaded by the new executor, with the same
+    // definition environment as the one the package was evaluated with.
+    RuleClass evaluatedRuleClass = evaluated.getRule("custom").getRuleClassObject();
+    RuleClass restoredRuleClass = restored.getRule("custom").getRuleClassObject();
+    assertThat(restoredRuleClass).isNotSameAs(evaluatedRuleClass);
+    assertThat(restoredRuleClass.getName()).isEqualTo("my_rule");
+    assertThat(restoredRuleClass.getRuleDefinitionEnvironmentHashCode())
+        .isEqualTo(evaluatedRuleClass.getRuleDefinitionEnvironmentHashCode());
+  }
+
+  @Test
+  public void testPackageDiskCacheReevaluatesPackageWhenGlobMatchesChange() throws Exception {
+    writePackageWithSkylarkRule();
+    assertThat(loadEvaluatesBuildFile("pkg")).isTrue();
+    assertThat(loadEvaluatesBuildFile("pkg")).isFalse();
+
+    scratch.file("pkg/c.txt");
+    assertThat(loadEvaluatesBuildFile("pkg")).isTrue();
+    assertThat(loadWithPackageDiskCache("pkg").getTarget("c.txt").getName()).isEqualTo("c.txt");
+    // The entry was replaced by one matching the new files.
+    assertThat(loadEvaluatesBuildFile("pkg")).isFalse();
+  }
+
+  @Test
+  public void testPackageDiskCacheReevaluatesPackageWhenBzlFileChanges() throws Exception {
+    writePackageWithSkylarkRule();
+    assertThat(loadEvaluatesBuildFile("pkg")).isTrue();
+    assertThat(loadEvaluatesBuildFile("pkg")).isFalse();
+
+    // Changes the transitive content hash of the .bzl file, and so the key of the package.
+    scratch.overwriteFile(
+        "pkg/rules.bzl",
+        "def _impl(ctx):",
+        "  pass",
+        "my_rule = rule(",
+        "    implementation = _impl,",
+        "    attrs = {'srcs': attr.label_list(allow_files = True)},",
+        ")",
+        "# changed");
+    assertThat(loadEvaluatesBuildFile("pkg")).isTrue();
+  }
+
   private static class CustomInMemoryFs extends InMemoryFileSystem {
     private abstract static class FileStatusOrException {
       abstract FileStatus get() throws IOException;
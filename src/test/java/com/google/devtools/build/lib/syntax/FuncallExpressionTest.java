@@ -0,0 +1,158 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import com.google.devtools.build.lib.skylarkinterface.Param;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkCallable;
+import com.google.devtools.build.lib.skylarkinterface.SkylarkModule;
+import com.google.devtools.build.lib.syntax.FuncallExpression.FuncallException;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for the calls of Java methods by {@link FuncallExpression}, and their inline caches. */
+@RunWith(JUnit4.class)
+public class FuncallExpressionTest {
+
+  /** A class with Java methods callable from Skylark. */
+  @SkylarkModule(name = "First", doc = "")
+  public static class First {
+    @SkylarkCallable(
+      name = "get",
+      doc = "",
+      parameters = {
+        @Param(name = "x", type = Integer.class),
+        @Param(name = "y", type = String.class, defaultValue = "'first'", named = true)
+      }
+    )
+    public String get(Integer x, String y) {
+      return y + x;
+    }
+
+    @SkylarkCallable(name = "fail", doc = "")
+    public void fail(Boolean fail) throws FuncallException {
+      if (fail) {
+        throw new FuncallException("failed on purpose");
+      }
+    }
+
+    @SkylarkCallable(name = "overloaded", doc = "")
+    public String overloaded(String s) {
+      return "string";
+    }
+
+    @SkylarkCallable(name = "overloaded", doc = "")
+    public String overloaded(Integer i) {
+      return "int";
+    }
+
+    @SkylarkCallable(name = "twice", doc = "")
+    public static Integer twice(Integer i) {
+      return 2 * i;
+    }
+  }
+
+  /** Another class with a method of the same name as {@link First}. */
+  @SkylarkModule(name = "Second", doc = "")
+  public static class Second {
+    @SkylarkCallable(
+      name = "get",
+      doc = "",
+      parameters = {@Param(name = "x", type = Integer.class)}
+    )
+    public String get(Integer x) {
+      return "second" + x;
+    }
+  }
+
+  @Test
+  public void callsJavaMethodsOfSeveralClassesAtTheSameCallSite() throws Exception {
+    assertThat(
+            eval("result = str([o.get(1) for o in [first, first, second, first, second]])"))
+        .isEqualTo("[\"first1\", \"first1\", \"second1\", \"first1\", \"second1\"]");
+  }
+
+  @Test
+  public void usesDefaultAndNamedArguments() throws Exception {
+    assertThat(
+            eval(
+                "def f(y):",
+                "  return first.get(2) if y == None else first.get(2, y=y)",
+                "result = str([f(y) for y in [None, 'a', None, 'b']])"))
+        .isEqualTo("[\"first2\", \"a2\", \"first2\", \"b2\"]");
+  }
+
+  @Test
+  public void reportsArgumentErrorsAfterCacheHits() throws Exception {
+    assertThat(evalError("[first.get(x) for x in [1, 2, 'a']]"))
+        .isEqualTo(evalError("first.get('a')"));
+    assertThat(evalError("first.get('a')"))
+        .isEqualTo("Cannot convert parameter 'x' to type int, in method get(string) of 'First'");
+  }
+
+  @Test
+  public void reportsExceptionsOfJavaMethods() throws Exception {
+    assertThat(evalError("[first.fail(x) for x in [False, False, True]]"))
+        .isEqualTo("failed on purpose");
+  }
+
+  @Test
+  public void resolvesOverloadsAtEachCall() throws Exception {
+    assertThat(eval("result = str([first.overloaded(x) for x in ['a', 1, 'b']])"))
+        .isEqualTo("[\"string\", \"int\", \"string\"]");
+  }
+
+  @Test
+  public void callsStaticMethods() throws Exception {
+    assertThat(eval("result = [First.twice(x) for x in [1, 2]] + [first.twice(3)]").toString())
+        .isEqualTo("[2, 4, 6]");
+  }
+
+  @Test
+  public void callsBuiltinMethodsOfSeveralTypesAtTheSameCallSite() throws Exception {
+    assertThat(eval("result = str([x.index('b') for x in ['ab', ['a', 'b'], 'bc']])"))
+        .isEqualTo("[1, 1, 0]");
+  }
+
+  private static Object eval(String... lines) throws Exception {
+    try (Mutability mutability = Mutability.create("test")) {
+      Environment env = newEnvironment(mutability);
+      BuildFileAST.eval(env, lines);
+      return env.lookup("result");
+    }
+  }
+
+  private static String evalError(String... lines) throws Exception {
+    try {
+      eval(lines);
+      fail();
+      return null;
+    } catch (EvalException e) {
+      return e.getMessage();
+    }
+  }
+
+  private static Environment newEnvironment(Mutability mutability) throws Exception {
+    return Environment.builder(mutability)
+        .setGlobals(Environment.SKYLARK)
+        .setEventHandler(Environment.FAIL_FAST_HANDLER)
+        .build()
+        .update("first", new First())
+        .update("second", new Second())
+        .update("First", First.class);
+  }
+}
@@ -15,6 +15,8 @@ package com.google.devtools.build.lib.syntax;
 
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
 import static org.junit.Assert.assertTrue;
 
 import com.google.common.eventbus.EventBus;
@@ -489,4 +491,20 @@ public class LexerTest {
     assertEquals("STRING NEWLINE EOF", names(tokens("r'\\")));
     assertEquals("/some/path.txt:1: unterminated string literal at eof", lastError);
   }
+
+  @Test
+  public void testIdentifiersAreInterned() throws Exception {
+    StringBuilder input = new StringBuilder();
+    for (int i = 0; i < 2000; i++) {
+      input.append("name_").append(i).append(" = name\n");
+    }
+    Token[] tokens = tokens(input.toString());
+    // IDENTIFIER(name_i) EQUALS IDENTIFIER(name) NEWLINE, for each line.
+    assertEquals("name", tokens[2].value);
+    assertEquals("name_1999", tokens[4 * 1999].value);
+    assertSame(tokens[2].value, tokens[4 * 1999 + 2].value);
+    assertNotSame(tokens[2].value, tokens(input.toString())[2].value);
+    assertEquals("IDENTIFIER(a) IDENTIFIER(ab) IDENTIFIER(a) IDENTIFIER(b) NEWLINE EOF",
+                 values(tokens("a ab a b")));
+  }
 }
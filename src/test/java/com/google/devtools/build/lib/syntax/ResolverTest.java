@@ -0,0 +1,128 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/** Tests for {@link Resolver}. */
+@RunWith(JUnit4.class)
+public class ResolverTest {
+
+  @Test
+  public void parametersComeFirst() throws Exception {
+    FunctionDefStatement function = resolve("def f(a, b, *args, c=1, **kwargs):", "  x = a");
+    assertThat(function.getScope().getNames())
+        .containsExactly("a", "b", "c", "args", "kwargs", "x")
+        .inOrder();
+  }
+
+  @Test
+  public void boundNamesAreLocal() throws Exception {
+    FunctionDefStatement function =
+        resolve(
+            "def f():",
+            "  x, [y] = 1, [2]",
+            "  z += 1",
+            "  for i in []:",
+            "    if i:",
+            "      break",
+            "  return [j for j in []]");
+    assertThat(function.getScope().getNames()).containsExactly("x", "y", "z", "i", "j");
+  }
+
+  @Test
+  public void onlyLocalIdentifiersGetSlots() throws Exception {
+    FunctionDefStatement function = resolve("def f(x):", "  return x.append(len(x.y))");
+    final List<String> resolved = new ArrayList<>();
+    final List<String> unresolved = new ArrayList<>();
+    new SyntaxTreeVisitor() {
+      @Override
+      public void visit(Identifier node) {
+        (node.getScope() != null ? resolved : unresolved).add(node.getName());
+      }
+    }.visitAll(function.getStatements());
+    assertThat(resolved).containsExactly("x", "x");
+    assertThat(unresolved).containsExactly("append", "len", "y");
+  }
+
+  @Test
+  public void localsAreEvaluated() throws Exception {
+    assertThat(
+            eval(
+                "def f(n, step=1):",
+                "  total = 0",
+                "  for i in range(0, n, step):",
+                "    total += i",
+                "  squares = [k * k for k in range(n)]",
+                "  return total, squares",
+                "result = str(f(4))"))
+        .isEqualTo("(6, [0, 1, 4, 9])");
+  }
+
+  @Test
+  public void globalsAreVisibleInFunctions() throws Exception {
+    assertThat(eval("a = 5", "def f(x):", "  return a + x", "result = f(1)")).isEqualTo(6);
+  }
+
+  @Test
+  public void readGlobalThenAssignLocal() throws Exception {
+    try {
+      eval("a = 5", "def f():", "  b = a", "  a = 2", "  return b", "result = f()");
+      fail();
+    } catch (EvalException e) {
+      assertThat(e).hasMessageThat().contains("Variable 'a' is referenced before assignment");
+    }
+  }
+
+  @Test
+  public void localsAreNotSharedBetweenCalls() throws Exception {
+    assertThat(
+            eval(
+                "def g(x):",
+                "  y = x * 2",
+                "  return y",
+                "def f(x):",
+                "  y = x + 1",
+                "  return [g(y), y]",
+                "result = str(f(1) + f(10))"))
+        .isEqualTo("[4, 2, 22, 11]");
+  }
+
+  private static FunctionDefStatement resolve(String... lines) throws Exception {
+    BuildFileAST ast = BuildFileAST.parseSkylarkString(Environment.FAIL_FAST_HANDLER, lines);
+    Resolver.resolve(ast.getStatements());
+    FunctionDefStatement function = (FunctionDefStatement) ast.getStatements().get(0);
+    assertThat(function.getScope()).isNotNull();
+    return function;
+  }
+
+  private static Object eval(String... lines) throws Exception {
+    try (Mutability mutability = Mutability.create("test")) {
+      Environment env =
+          Environment.builder(mutability)
+              .setGlobals(Environment.SKYLARK)
+              .setEventHandler(Environment.FAIL_FAST_HANDLER)
+              .build();
+      BuildFileAST.eval(env, lines);
+      return env.lookup("result");
+    }
+  }
+}
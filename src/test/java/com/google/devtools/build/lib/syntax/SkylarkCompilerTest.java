@@ -0,0 +1,235 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.syntax;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.common.options.Options;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests for {@link SkylarkCompiler}. Each program is run both interpreted and compiled, and must
+ * produce the same result or the same error.
+ */
+@RunWith(JUnit4.class)
+public class SkylarkCompilerTest {
+
+  @Test
+  public void locals() throws Exception {
+    assertSameResult(
+        "(3, \"ab\", [1, 2])",
+        "def f(a, b='b', *args, **kwargs):",
+        "  c = a + 1",
+        "  d = [a]",
+        "  d += [c - 2]",
+        "  return c, a * 0 * 2 and 'x' or 'a' + b, sorted(d)",
+        "result = f(2)");
+  }
+
+  @Test
+  public void operators() throws Exception {
+    assertSameResult(
+        "(\"x\", [], 0, True, False, 1, \"yes\", \"no\", True)",
+        "def f(e):",
+        "  return (0 or 'x', 1 and [], None or 0, not e, not (not e), 7 % 3,",
+        "          'yes' if e == [] else 'no', 'yes' if e else 'no', 2 in [1, 2])",
+        "result = f([])");
+  }
+
+  @Test
+  public void ifStatements() throws Exception {
+    assertSameResult(
+        "[\"small\", \"medium\", \"large\"]",
+        "def size(n):",
+        "  if n < 10:",
+        "    s = 'small'",
+        "  elif n < 100:",
+        "    s = 'medium'",
+        "  else:",
+        "    s = 'large'",
+        "  return s",
+        "def f():",
+        "  return [size(1), size(50), size(500)]",
+        "result = f()");
+  }
+
+  @Test
+  public void loops() throws Exception {
+    assertSameResult(
+        "([0, 2, 3, 4, 2], 19)",
+        "def f(n):",
+        "  r = []",
+        "  total = 0",
+        "  for i in range(n):",
+        "    if i == 1:",
+        "      continue",
+        "    for j in range(n):",
+        "      if j > i:",
+        "        break",
+        "      total += j",
+        "    r.append(i)",
+        "    if i == 4:",
+        "      break",
+        "  for k, v in {2: 2}.items():",
+        "    r.append(k)",
+        "  return r, total",
+        "result = f(10)");
+  }
+
+  @Test
+  public void returnInsideLoopsUnlocksCollections() throws Exception {
+    assertSameResult(
+        "[[1, 2], [3, 4], \"found\", 4]",
+        "def find(ls):",
+        "  for l in ls:",
+        "    for x in l:",
+        "      if x == 3:",
+        "        return 'found'",
+        "  return None",
+        "ls = [[1, 2], [3]]",
+        "r = find(ls)",
+        "ls[1].append(4)",
+        "ls.append(r)",
+        "ls.append(4)",
+        "result = ls");
+  }
+
+  @Test
+  public void globalsAndComprehensions() throws Exception {
+    assertSameResult(
+        "[10, 11, 12]",
+        "base = 10",
+        "def f(n):",
+        "  x = [base + i for i in range(n)]",
+        "  return x",
+        "result = f(3)");
+  }
+
+  @Test
+  public void compoundAssignments() throws Exception {
+    assertSameResult(
+        "(2, 1, {\"k\": [1, 5]})",
+        "def f():",
+        "  a, b = 1, 2",
+        "  a, b = b, a",
+        "  d = {}",
+        "  d['k'] = [a - 1]",
+        "  d['k'] += [5]",
+        "  return a, b, d",
+        "result = f()");
+  }
+
+  @Test
+  public void errorInOperator() throws Exception {
+    assertSameResult("error", "def f(x):", "  y = x + 'a'", "  return y", "result = f(1)");
+  }
+
+  @Test
+  public void errorInLoop() throws Exception {
+    assertSameResult("error", "def f(x):", "  for y in x:", "    pass", "result = f(1)");
+  }
+
+  @Test
+  public void mutationDuringIteration() throws Exception {
+    assertSameResult(
+        "error",
+        "def f(l):",
+        "  for y in l:",
+        "    l.append(y)",
+        "  return l",
+        "result = f([1])");
+  }
+
+  @Test
+  public void readGlobalThenAssignLocal() throws Exception {
+    assertSameResult(
+        "error", "a = 5", "def f():", "  b = a", "  a = 2", "  return b", "result = f()");
+  }
+
+  @Test
+  public void unboundLocal() throws Exception {
+    assertSameResult(
+        "error",
+        "def f(c):",
+        "  if c:",
+        "    x = 1",
+        "  return x",
+        "result = f(False)");
+  }
+
+  @Test
+  public void errorInNestedCall() throws Exception {
+    assertSameResult(
+        "error",
+        "def g(x):",
+        "  return x[10]",
+        "def f():",
+        "  return g([1])",
+        "result = f()");
+  }
+
+  @Test
+  public void functionsAreCompiled() throws Exception {
+    try (Mutability mutability = Mutability.create("test")) {
+      Environment env = newEnvironment(mutability, 2);
+      BuildFileAST.eval(env, "def f(x):", "  return x", "f(1)");
+      UserDefinedFunction f = (UserDefinedFunction) env.lookup("f");
+      assertThat(f.isCompiled()).isFalse();
+      BuildFileAST.eval(env, "f(2)");
+      assertThat(f.isCompiled()).isTrue();
+    }
+  }
+
+  private static void assertSameResult(String expected, String... lines) throws Exception {
+    String interpreted = run(0, lines);
+    String compiled = run(1, lines);
+    assertThat(compiled).isEqualTo(interpreted);
+    if (expected.equals("error")) {
+      assertThat(interpreted).startsWith("error: ");
+    } else {
+      assertThat(interpreted).isEqualTo(expected);
+    }
+  }
+
+  private static String run(int compileThreshold, String... lines) throws Exception {
+    try (Mutability mutability = Mutability.create("test")) {
+      Environment env = newEnvironment(mutability, compileThreshold);
+      try {
+        BuildFileAST.eval(env, lines);
+      } catch (EvalExceptionWithStackTrace e) {
+        return "error: " + e.print();
+      } catch (EvalException e) {
+        return "error: " + e.getLocation() + ": " + e.getMessage();
+      }
+      for (Object value : env.getGlobals().getTransitiveBindings().values()) {
+        if (value instanceof UserDefinedFunction) {
+          assertThat(((UserDefinedFunction) value).isCompiled()).isEqualTo(compileThreshold > 0);
+        }
+      }
+      return Printer.repr(env.lookup("result"));
+    }
+  }
+
+  private static Environment newEnvironment(Mutability mutability, int compileThreshold) {
+    SkylarkSemanticsOptions semantics = Options.getDefaults(SkylarkSemanticsOptions.class);
+    semantics.skylarkCompileThreshold = compileThreshold;
+    return Environment.builder(mutability)
+        .setGlobals(Environment.SKYLARK)
+        .setSemantics(semantics)
+        .setEventHandler(Environment.FAIL_FAST_HANDLER)
+        .build();
+  }
+}
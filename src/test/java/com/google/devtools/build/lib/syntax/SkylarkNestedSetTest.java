@@ -85,6 +85,17 @@ public class SkylarkNestedSetTest extends EvaluationTestCase {
     }
   }
 
+  @Test
+  public void testLen() throws Exception {
+    eval(
+        "s = depset(['a', 'b']) + depset(['b', 'c'])",
+        "n = len(s)",
+        "e = len(depset())");
+    assertThat(get("s").size()).isEqualTo(3);
+    assertThat(lookup("n")).isEqualTo(3);
+    assertThat(lookup("e")).isEqualTo(0);
+  }
+
   @Test
   public void testOrder() throws Exception {
     eval("s = depset(['a', 'b'], order='postorder')");
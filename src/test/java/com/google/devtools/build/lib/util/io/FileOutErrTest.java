@@ -0,0 +1,102 @@
+// Copyright 2017 The Bazel Authors. All rights reserved.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+package com.google.devtools.build.lib.util.io;
+
+import static com.google.common.truth.Truth.assertThat;
+
+import com.google.devtools.build.lib.vfs.FileSystemUtils;
+import com.google.devtools.build.lib.vfs.Path;
+import com.google.devtools.build.lib.vfs.inmemoryfs.InMemoryFileSystem;
+import java.io.ByteArrayOutputStream;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+/**
+ * Tests {@link FileOutErr}.
+ */
+@RunWith(JUnit4.class)
+public class FileOutErrTest {
+
+  private Path stdout;
+  private Path stderr;
+
+  @Before
+  public final void createPaths() throws Exception {
+    InMemoryFileSystem fs = new InMemoryFileSystem();
+    Path root = fs.getPath("/out");
+    root.createDirectory();
+    stdout = root.getChild("stdout");
+    stderr = root.getChild("stderr");
+  }
+
+  @Test
+  public void testFileBackedOutputCreatesFile() throws Exception {
+    FileOutErr outErr = new FileOutErr(stdout, stderr);
+    outErr.printOut("Hello");
+    outErr.getOutputStream().flush();
+    assertThat(stdout.exists()).isTrue();
+    assertThat(outErr.outAsLatin1()).isEqualTo("Hello");
+  }
+
+  @Test
+  public void testSmallOutputStaysInMemory() throws Exception {
+    FileOutErr outErr = new FileOutErr(stdout, stderr, 16);
+    assertThat(outErr.hasRecordedOutput()).isFalse();
+    outErr.printOut("Hello");
+    outErr.printErr("World");
+
+    assertThat(outErr.hasRecordedStdout()).isTrue();
+    assertThat(outErr.hasRecordedStderr()).isTrue();
+    assertThat(outErr.outAsLatin1()).isEqualTo("Hello");
+    assertThat(outErr.errAsLatin1()).isEqualTo("World");
+    ByteArrayOutputStream dumped = new ByteArrayOutputStream();
+    outErr.dumpOutAsLatin1(dumped);
+    assertThat(dumped.toString("ISO-8859-1")).isEqualTo("Hello");
+    assertThat(stdout.exists()).isFalse();
+    assertThat(stderr.exists()).isFalse();
+
+    outErr.clearOut();
+    assertThat(outErr.hasRecordedStdout()).isFalse();
+  }
+
+  @Test
+  public void testLargeOutputMovesToFile() throws Exception {
+    FileOutErr outErr = new FileOutErr(stdout, stderr, 8);
+    outErr.printOut("Hello");
+    assertThat(stdout.exists()).isFalse();
+    outErr.printOut(", world");
+    outErr.getOutputStream().flush();
+
+    assertThat(stdout.exists()).isTrue();
+    assertThat(outErr.outAsLatin1()).isEqualTo("Hello, world");
+    assertThat(outErr.hasRecordedStderr()).isFalse();
+  }
+
+  @Test
+  public void testRequestingPathMovesOutputToFile() throws Exception {
+    FileOutErr outErr = new FileOutErr(stdout, stderr, 1024);
+    outErr.printErr("Hello");
+    assertThat(outErr.getErrorPath()).isEqualTo(stderr);
+    outErr.getErrorStream().flush();
+    assertThat(FileSystemUtils.readContentAsLatin1(stderr)).isEqualTo("Hello".toCharArray());
+
+    // Output written to the handed out path by somebody else is picked up.
+    assertThat(outErr.hasRecordedStdout()).isFalse();
+    FileSystemUtils.writeContentAsLatin1(outErr.getOutputPath(), "external");
+    assertThat(outErr.hasRecordedStdout()).isTrue();
+    assertThat(outErr.outAsLatin1()).isEqualTo("external");
+  }
+}
@@ -96,6 +96,36 @@ EOF
   assert_contains "//visibility:public" output_public
 }
 
+# Enough targets for the streamed output formats to serialize several chunks.
+function make_many_targets() {
+  mkdir -p many || fail "Couldn't mkdir"
+  echo "[sh_library(name = 't%d' % i) for i in range(2500)]" > many/BUILD \
+      || fail "Couldn't write BUILD"
+  bazel query --output=label '//many:all' > labels || fail "Expected success"
+}
+
+function test_streamed_proto_output() {
+  make_many_targets
+  bazel query --output=streamed_proto '//many:all' > output \
+      || fail "Expected success"
+
+  # Each message holds its target's label once, in the order of the targets.
+  grep -ao '//many:t[0-9]*' output > streamed_labels
+  diff labels streamed_labels || fail "Streamed protos differ from the targets"
+}
+
+function test_streamed_jsonproto_output() {
+  make_many_targets
+  bazel query --output=streamed_jsonproto '//many:all' > output \
+      || fail "Expected success"
+
+  # Each line is a message, which starts with the label of its target.
+  sed -n 's/^{"type":"RULE","rule":{"name":"\([^"]*\)".*/\1/p' output \
+      > streamed_labels
+  assert_equals "$(wc -l < labels)" "$(wc -l < output)"
+  diff labels streamed_labels || fail "Streamed JSON differs from the targets"
+}
+
 function make_depth_tests() {
   mkdir -p depth depth2 || die "Could not create test directory"
   cat > "depth/BUILD" <<EOF